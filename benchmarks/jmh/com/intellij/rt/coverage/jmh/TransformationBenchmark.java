@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Instrumentation of the joda-time classes in memory, one class per operation.
+ * Run with the gc profiler, <code>gc.alloc.rate.norm</code> is the number of bytes allocated per transformed class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@SuppressWarnings({"unused", "used in jmh"})
+public class TransformationBenchmark {
+  @Param({"true", "false"})
+  public boolean branchCoverage;
+
+  private final List<String> myNames = new ArrayList<String>();
+  private final List<byte[]> myClasses = new ArrayList<byte[]>();
+  private CoverageTransformer myTransformer;
+  private ClassLoader myLoader;
+  private int myIndex;
+
+  @Setup
+  public void setUp() throws Exception {
+    final URL location = DateTime.class.getProtectionDomain().getCodeSource().getLocation();
+    final JarFile jar = new JarFile(new File(location.toURI()));
+    try {
+      final Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry entry = entries.nextElement();
+        final String name = entry.getName();
+        if (!name.endsWith(".class")) continue;
+        myNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+        myClasses.add(readBytes(jar.getInputStream(entry)));
+      }
+    } finally {
+      jar.close();
+    }
+    myLoader = new URLClassLoader(new URL[]{location}, null);
+
+    final ProjectData projectData = new ProjectData();
+    CoverageRuntime.installRuntime(projectData);
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setBranchCoverage(branchCoverage)
+        .build();
+    myTransformer = new CoverageTransformer(projectData, new ProjectContext(options));
+  }
+
+  @Benchmark
+  public byte[] transformClass() {
+    final int index = myIndex;
+    myIndex = index + 1 == myNames.size() ? 0 : index + 1;
+    return myTransformer.instrument(myClasses.get(index), myNames.get(index), myLoader, false);
+  }
+
+  private static byte[] readBytes(InputStream is) throws IOException {
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
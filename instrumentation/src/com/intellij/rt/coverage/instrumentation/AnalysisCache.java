@@ -0,0 +1,578 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
+import com.intellij.rt.coverage.data.instructions.JumpInstructions;
+import com.intellij.rt.coverage.data.instructions.LineInstructions;
+import com.intellij.rt.coverage.data.instructions.SwitchInstructions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+import org.jetbrains.coverage.gnu.trove.TIntIterator;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of unloaded classes analysis.
+ * For each class the structure collected by {@link UnloadedUtil} is stored by the class name and the hash of the class bytes:
+ * lines with method signatures and probe ids, inferred line hits, hits mask size, instruction counters, ignored lines,
+ * SMAP line mappings, inheritance info and ignored methods. An unchanged class is then restored without reading its bytecode.
+ * <p>
+ * Entries are stored in a single file per options fingerprint in the cache directory,
+ * so the directory may be shared by the coverage agent and the reporter.
+ * Different versions of a class, e.g. from several modules, have their own entries.
+ * Entries which have not been used by the last {@link #MAX_UNUSED_RUNS} saving runs are evicted,
+ * so the classes that have been changed or removed do not pile up, while runs with different class sets keep each other's entries.
+ * Analysis with annotation filters depends on the outer classes of a class, so the cache is not used in this case.
+ * All methods except {@link #open} and {@link #save} may be called concurrently.
+ */
+public class AnalysisCache {
+  private static final int FORMAT_VERSION = 3;
+  /**
+   * Number of saves after which an unused entry is evicted.
+   */
+  static final int MAX_UNUSED_RUNS = 8;
+
+  private static final int HAS_DATA = 1;
+  private static final int HAS_SOURCE = 2;
+  private static final int HAS_OUTER_CLASS = 4;
+  private static final int HAS_INSTRUCTIONS = 8;
+  private static final int HAS_INHERITS = 16;
+  private static final int HAS_INFERRED_HITS = 32;
+
+  private final File myFile;
+  private final ProjectContext myContext;
+  private final Map<String, Entry> myEntries;
+  private final Map<String, Entry> myUsedEntries = new ConcurrentHashMap<String, Entry>();
+  private final AtomicInteger myHitCount = new AtomicInteger();
+  private final AtomicInteger myMissCount = new AtomicInteger();
+  private volatile boolean myModified;
+
+  private AnalysisCache(File file, ProjectContext context, Map<String, Entry> entries) {
+    myFile = file;
+    myContext = context;
+    myEntries = entries;
+  }
+
+  /**
+   * @return cache stored in the directory specified by <code>idea.coverage.analysis.cache.dir</code> property,
+   * or null if the cache is disabled or cannot be used with the context options
+   */
+  public static AnalysisCache open(ProjectContext context) {
+    final String path = OptionsUtil.ANALYSIS_CACHE_DIR;
+    if (path == null || path.length() == 0) return null;
+    return open(new File(path), context);
+  }
+
+  public static AnalysisCache open(File directory, ProjectContext context) {
+    final InstrumentationOptions options = context.getOptions();
+    if (!options.includeAnnotations.isEmpty() || !options.excludeAnnotations.isEmpty()) return null;
+    final File file = new File(directory, "analysis-" + getFingerprint(context) + ".cache");
+    final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    if (file.isFile()) {
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        if (in.readInt() == FORMAT_VERSION) {
+          final int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            final String className = in.readUTF();
+            final byte[] hash = readBytes(in);
+            final int unusedRuns = in.readInt();
+            entries.put(getKey(className, hash), new Entry(className, hash, readBytes(in), unusedRuns));
+          }
+        }
+      } catch (IOException e) {
+        // a broken cache only leads to a full analysis
+        entries.clear();
+      } finally {
+        CoverageIOUtil.close(in);
+      }
+    }
+    return new AnalysisCache(file, context, entries);
+  }
+
+  /**
+   * Options that affect the result of a class analysis.
+   */
+  private static String getFingerprint(ProjectContext context) {
+    final InstrumentationOptions options = context.getOptions();
+    final Package aPackage = AnalysisCache.class.getPackage();
+    final String version = aPackage == null ? null : aPackage.getImplementationVersion();
+    final String fingerprint = FORMAT_VERSION
+        + ";" + version
+        + ";branches=" + options.isBranchCoverage
+        + ";instructions=" + options.isInstructionCoverage
+        + ";hits=" + options.isCalculateHits
+        + ";minimizeProbes=" + options.isMinimizeProbes
+        + ";source=" + options.isSaveSource
+        + ";inherits=" + context.shouldCollectInherits()
+        + ";localFunctions=" + OptionsUtil.IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS
+        + ";kotlin=" + System.getProperty("coverage.kotlin.enable", "true");
+    return toHex(hash(fingerprint.getBytes()));
+  }
+
+  private static String getKey(String className, byte[] hash) {
+    return className + '#' + toHex(hash);
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder result = new StringBuilder();
+    for (byte b : bytes) {
+      result.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+    }
+    return result.toString();
+  }
+
+  public static byte[] hash(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Restore the result of a previous analysis of the class.
+   *
+   * @param hash hash of the class bytes, see {@link #hash}
+   * @return true if the class has been found in the cache
+   */
+  public boolean restore(ProjectData projectData, String className, byte[] hash) {
+    if (!isApplicable(className)) return false;
+    final String key = getKey(className, hash);
+    final Entry entry = myEntries.get(key);
+    if (entry == null) {
+      myMissCount.incrementAndGet();
+      return false;
+    }
+    try {
+      readStructure(projectData, className, new DataInputStream(new ByteArrayInputStream(entry.myStructure)));
+      myUsedEntries.put(key, entry);
+      myHitCount.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to restore analysis of class " + className, e);
+      myEntries.remove(key);
+      myMissCount.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Store the result of the class analysis, which should have been just performed.
+   */
+  public void store(ProjectData projectData, String className, byte[] hash, ClassReader reader) {
+    if (!isApplicable(className)) return;
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      writeStructure(projectData, className, reader, out);
+      out.close();
+      final String key = getKey(className, hash);
+      final Entry entry = new Entry(className, hash, bytes.toByteArray(), 0);
+      myEntries.put(key, entry);
+      myUsedEntries.put(key, entry);
+      myModified = true;
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to store analysis of class " + className, e);
+    }
+  }
+
+  /**
+   * Methods ignored in an outer class affect the analysis of the nested ones, but the outer class bytes are not the part of the key.
+   */
+  private boolean isApplicable(String className) {
+    return !myContext.getFilteredStorage().hasIgnoredMethodsInOuterClasses(className);
+  }
+
+  /**
+   * @return number of classes restored from the cache
+   */
+  public int getHitCount() {
+    return myHitCount.get();
+  }
+
+  /**
+   * @return number of classes which could be restored, but have not been found in the cache
+   */
+  public int getMissCount() {
+    return myMissCount.get();
+  }
+
+  /**
+   * Save the entries used since the cache has been opened and the unused ones which have not expired yet.
+   */
+  public void save() throws IOException {
+    if (!myModified && myUsedEntries.size() == myEntries.size()) return;
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory at " + parent.getAbsolutePath());
+    }
+    final File tempFile = File.createTempFile(myFile.getName(), ".tmp", parent);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(FORMAT_VERSION);
+      final List<Entry> entries = new ArrayList<Entry>(myUsedEntries.values());
+      final int usedCount = entries.size();
+      for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+        if (entry.getValue().myUnusedRuns + 1 < MAX_UNUSED_RUNS && !myUsedEntries.containsKey(entry.getKey())) {
+          entries.add(entry.getValue());
+        }
+      }
+      out.writeInt(entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        final Entry entry = entries.get(i);
+        out.writeUTF(entry.myClassName);
+        writeBytes(out, entry.myHash);
+        out.writeInt(i < usedCount ? 0 : entry.myUnusedRuns + 1);
+        writeBytes(out, entry.myStructure);
+      }
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(myFile) && !(myFile.delete() && tempFile.renameTo(myFile))) {
+        throw new IOException("Failed to save analysis cache to " + myFile.getAbsolutePath());
+      }
+      myModified = false;
+    } finally {
+      CoverageIOUtil.close(out);
+      if (tempFile.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+      }
+    }
+  }
+
+  private void writeStructure(ProjectData projectData, String className, ClassReader reader, DataOutputStream out) throws IOException {
+    final ClassData classData = projectData.getClassData(className);
+    final LineData[] lines = classData == null ? null : (LineData[]) classData.getLines();
+    if (lines == null) {
+      out.writeByte(0);
+      return;
+    }
+    final String source = classData.getSource();
+    final InstrumentationUtils.MethodDescriptor outerClass = myContext.getOptions().isSaveSource
+        ? InstrumentationUtils.getOuterClass(reader) : null;
+    final ClassInstructions instructions = myContext.getOptions().isInstructionCoverage
+        ? projectData.getInstructions().get(className) : null;
+    final Map<String, String[]> allInherits = myContext.getInherits();
+    final String[] inherits = allInherits == null ? null : allInherits.get(className);
+    final int[] inferredHits = classData.getInferredHits();
+    out.writeByte(HAS_DATA
+        | (source != null ? HAS_SOURCE : 0)
+        | (outerClass != null ? HAS_OUTER_CLASS : 0)
+        | (instructions != null ? HAS_INSTRUCTIONS : 0)
+        | (inherits != null ? HAS_INHERITS : 0)
+        | (inferredHits != null ? HAS_INFERRED_HITS : 0));
+    if (source != null) CoverageIOUtil.writeUTF(out, source);
+    if (outerClass != null) CoverageIOUtil.writeUTF(out, ClassNameUtil.convertToFQName(outerClass.owner));
+
+    final Object hitsMask = classData.getHitsMask();
+    CoverageIOUtil.writeINT(out, hitsMask instanceof int[] ? ((int[]) hitsMask).length
+        : hitsMask instanceof boolean[] ? ((boolean[]) hitsMask).length : 0);
+    CoverageIOUtil.writeINT(out, lines.length);
+    int lineCount = 0;
+    for (LineData lineData : lines) {
+      if (lineData != null) lineCount++;
+    }
+    CoverageIOUtil.writeINT(out, lineCount);
+    for (LineData lineData : lines) {
+      if (lineData == null) continue;
+      CoverageIOUtil.writeINT(out, lineData.getLineNumber());
+      CoverageIOUtil.writeUTF(out, lineData.getMethodSignature());
+      CoverageIOUtil.writeINT(out, lineData.getId());
+      CoverageIOUtil.writeINT(out, lineData.jumpsCount());
+      for (int i = 0; i < lineData.jumpsCount(); i++) {
+        final JumpData jumpData = lineData.getJumpData(i);
+        CoverageIOUtil.writeINT(out, jumpData.getId(true));
+        CoverageIOUtil.writeINT(out, jumpData.getId(false));
+      }
+      CoverageIOUtil.writeINT(out, lineData.switchesCount());
+      for (int i = 0; i < lineData.switchesCount(); i++) {
+        final SwitchData switchData = lineData.getSwitchData(i);
+        final int[] keys = switchData.getKeys();
+        CoverageIOUtil.writeINT(out, keys.length);
+        for (int key : keys) {
+          CoverageIOUtil.writeINT(out, key);
+        }
+        for (int key = -1; key < keys.length; key++) {
+          CoverageIOUtil.writeINT(out, switchData.getId(key));
+        }
+      }
+    }
+
+    if (instructions != null) {
+      final LineInstructions[] lineInstructions = instructions.getlines();
+      for (LineData lineData : lines) {
+        if (lineData == null) continue;
+        final int line = lineData.getLineNumber();
+        final LineInstructions lineInstruction = line >= lineInstructions.length ? null : lineInstructions[line];
+        CoverageIOUtil.writeINT(out, lineInstruction == null ? 0 : lineInstruction.getInstructions());
+        final List<JumpInstructions> jumps = lineInstruction == null ? null : lineInstruction.getJumps();
+        for (int i = 0; i < lineData.jumpsCount(); i++) {
+          final JumpInstructions jumpInstructions = jumps == null || i >= jumps.size() ? null : jumps.get(i);
+          CoverageIOUtil.writeINT(out, jumpInstructions == null ? 0 : jumpInstructions.getInstructions(true));
+          CoverageIOUtil.writeINT(out, jumpInstructions == null ? 0 : jumpInstructions.getInstructions(false));
+        }
+        final List<SwitchInstructions> switches = lineInstruction == null ? null : lineInstruction.getSwitches();
+        for (int i = 0; i < lineData.switchesCount(); i++) {
+          final SwitchInstructions switchInstructions = switches == null || i >= switches.size() ? null : switches.get(i);
+          for (int key = -1; key < lineData.getSwitchData(i).getKeys().length; key++) {
+            CoverageIOUtil.writeINT(out, switchInstructions == null ? 0 : switchInstructions.getInstructions(key));
+          }
+        }
+      }
+    }
+
+    final TIntHashSet ignoredLines = myContext.getIgnoredLines(className);
+    CoverageIOUtil.writeINT(out, ignoredLines == null ? 0 : ignoredLines.size());
+    if (ignoredLines != null) {
+      for (TIntIterator it = ignoredLines.iterator(); it.hasNext(); ) {
+        CoverageIOUtil.writeINT(out, it.next());
+      }
+    }
+
+    final FileMapData[] mappings = myContext.getLineMaps(className);
+    CoverageIOUtil.writeINT(out, mappings == null ? 0 : mappings.length);
+    if (mappings != null) {
+      for (FileMapData mapping : mappings) {
+        writeNullableString(out, mapping == null ? null : mapping.getClassName());
+        if (mapping == null) continue;
+        writeNullableString(out, mapping.getFileName());
+        final LineMapData[] lineMappings = mapping.getLines();
+        CoverageIOUtil.writeINT(out, lineMappings == null ? -1 : lineMappings.length);
+        if (lineMappings == null) continue;
+        for (LineMapData lineMapping : lineMappings) {
+          final int count = lineMapping == null ? 0 : lineMapping.getCount();
+          CoverageIOUtil.writeINT(out, lineMapping == null ? -1 : count);
+          if (lineMapping == null) continue;
+          // mapping parameters are restored from the first mapped line
+          CoverageIOUtil.writeINT(out, count == 0 ? 0 : lineMapping.getSourceLine(0));
+          CoverageIOUtil.writeINT(out, count == 0 ? 0 : lineMapping.getMappingStart(0));
+          CoverageIOUtil.writeINT(out, count == 0 ? 0 : lineMapping.getMappingEnd(0) - lineMapping.getMappingStart(0));
+        }
+      }
+    }
+
+    if (inherits != null) {
+      CoverageIOUtil.writeINT(out, inherits.length);
+      for (String name : inherits) {
+        writeNullableString(out, name);
+      }
+    }
+
+    if (inferredHits != null) {
+      CoverageIOUtil.writeINT(out, inferredHits.length);
+      for (int id : inferredHits) {
+        CoverageIOUtil.writeINT(out, id);
+      }
+    }
+
+    final List<String> ignoredMethods = myContext.getFilteredStorage().getIgnoredMethods(className);
+    CoverageIOUtil.writeINT(out, ignoredMethods.size());
+    for (String method : ignoredMethods) {
+      CoverageIOUtil.writeUTF(out, method);
+    }
+  }
+
+  /**
+   * Mirrors the effect of {@link InstrumentationVisitor} and {@link UnloadedUtil} on the project data and the context.
+   */
+  private void readStructure(ProjectData projectData, String className, DataInputStream in) throws IOException {
+    final int flags = in.readByte();
+    if ((flags & HAS_DATA) == 0) return;
+    final InstrumentationOptions options = myContext.getOptions();
+    final String source = (flags & HAS_SOURCE) != 0 ? myContext.getFromPool(CoverageIOUtil.readUTFFast(in)) : null;
+    final String outerClassName = (flags & HAS_OUTER_CLASS) != 0 ? CoverageIOUtil.readUTFFast(in) : null;
+
+    final int maskSize = CoverageIOUtil.readINT(in);
+    final LineData[] lines = new LineData[CoverageIOUtil.readINT(in)];
+    final int lineCount = CoverageIOUtil.readINT(in);
+    for (int i = 0; i < lineCount; i++) {
+      final int line = CoverageIOUtil.readINT(in);
+      final LineData lineData = new LineData(line, myContext.getFromPool(CoverageIOUtil.readUTFFast(in)));
+      lineData.setId(CoverageIOUtil.readINT(in));
+      lines[line] = lineData;
+      final int jumps = CoverageIOUtil.readINT(in);
+      for (int jump = 0; jump < jumps; jump++) {
+        final JumpData jumpData = lineData.addJump(jump);
+        jumpData.setId(CoverageIOUtil.readINT(in), true);
+        jumpData.setId(CoverageIOUtil.readINT(in), false);
+      }
+      final int switches = CoverageIOUtil.readINT(in);
+      for (int aSwitch = 0; aSwitch < switches; aSwitch++) {
+        final int[] keys = new int[CoverageIOUtil.readINT(in)];
+        for (int key = 0; key < keys.length; key++) {
+          keys[key] = CoverageIOUtil.readINT(in);
+        }
+        final SwitchData switchData = lineData.addSwitch(aSwitch, keys);
+        for (int key = -1; key < keys.length; key++) {
+          switchData.setId(CoverageIOUtil.readINT(in), key);
+        }
+      }
+      lineData.fillArrays();
+    }
+
+    ClassInstructions instructions = null;
+    if ((flags & HAS_INSTRUCTIONS) != 0) {
+      final LineInstructions[] lineInstructions = new LineInstructions[lines.length];
+      for (LineData lineData : lines) {
+        if (lineData == null) continue;
+        final LineInstructions lineInstruction = new LineInstructions();
+        lineInstructions[lineData.getLineNumber()] = lineInstruction;
+        lineInstruction.setInstructions(CoverageIOUtil.readINT(in));
+        for (int i = 0; i < lineData.jumpsCount(); i++) {
+          final JumpInstructions jump = new JumpInstructions();
+          lineInstruction.addJump(jump);
+          jump.setInstructions(true, CoverageIOUtil.readINT(in));
+          jump.setInstructions(false, CoverageIOUtil.readINT(in));
+        }
+        for (int i = 0; i < lineData.switchesCount(); i++) {
+          final int size = lineData.getSwitchData(i).getKeys().length;
+          final SwitchInstructions switchInstructions = new SwitchInstructions(size);
+          lineInstruction.addSwitch(switchInstructions);
+          for (int key = -1; key < size; key++) {
+            switchInstructions.setInstructions(key, CoverageIOUtil.readINT(in));
+          }
+        }
+      }
+      instructions = new ClassInstructions(lineInstructions);
+    }
+
+    final int ignoredCount = CoverageIOUtil.readINT(in);
+    final TIntHashSet ignoredLines = ignoredCount == 0 ? null : new TIntHashSet(ignoredCount);
+    for (int i = 0; i < ignoredCount; i++) {
+      ignoredLines.add(CoverageIOUtil.readINT(in));
+    }
+
+    final int mappingsCount = CoverageIOUtil.readINT(in);
+    final FileMapData[] mappings = mappingsCount == 0 ? null : new FileMapData[mappingsCount];
+    for (int i = 0; i < mappingsCount; i++) {
+      final String mappedClassName = readNullableString(in);
+      if (mappedClassName == null) continue;
+      final String fileName = readNullableString(in);
+      final int lineMappingsCount = CoverageIOUtil.readINT(in);
+      final LineMapData[] lineMappings = lineMappingsCount < 0 ? null : new LineMapData[lineMappingsCount];
+      for (int j = 0; j < lineMappingsCount; j++) {
+        final int count = CoverageIOUtil.readINT(in);
+        if (count < 0) continue;
+        final int sourceStart = CoverageIOUtil.readINT(in);
+        final int mappedStart = CoverageIOUtil.readINT(in);
+        final int increment = CoverageIOUtil.readINT(in);
+        lineMappings[j] = new LineMapData(sourceStart, count, mappedStart, increment);
+      }
+      mappings[i] = new FileMapData(mappedClassName, fileName, lineMappings);
+    }
+
+    String[] inherits = null;
+    if ((flags & HAS_INHERITS) != 0) {
+      inherits = new String[CoverageIOUtil.readINT(in)];
+      for (int i = 0; i < inherits.length; i++) {
+        inherits[i] = myContext.getFromPool(readNullableString(in));
+      }
+    }
+
+    int[] inferredHits = null;
+    if ((flags & HAS_INFERRED_HITS) != 0) {
+      inferredHits = new int[CoverageIOUtil.readINT(in)];
+      for (int i = 0; i < inferredHits.length; i++) {
+        inferredHits[i] = CoverageIOUtil.readINT(in);
+      }
+    }
+
+    final int ignoredMethodsCount = CoverageIOUtil.readINT(in);
+    for (int i = 0; i < ignoredMethodsCount; i++) {
+      myContext.getFilteredStorage().addIgnoredMethod(className, CoverageIOUtil.readUTFFast(in));
+    }
+
+    if (mappings != null) {
+      myContext.addLineMaps(className, mappings);
+    }
+    if (outerClassName != null) {
+      final String outerName = myContext.getFromPool(outerClassName);
+      myContext.addOuterClass(className, outerName);
+      final ClassData outerClass = projectData.getOrCreateClassData(outerName);
+      if (outerClass.getSource() == null) {
+        outerClass.setSource(source);
+      }
+    }
+    if (inherits != null) {
+      myContext.addInherits(className, inherits);
+    }
+    final ClassData classData = projectData.getOrCreateClassData(className);
+    classData.setLines(lines);
+    classData.createMask(maskSize, options.isCalculateHits);
+    classData.setSource(source);
+    classData.setInferredHits(inferredHits);
+    myContext.addIgnoredLines(className, ignoredLines);
+    if (instructions != null) {
+      projectData.getInstructions().put(className, instructions);
+    }
+  }
+
+  private static void writeNullableString(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) CoverageIOUtil.writeUTF(out, value);
+  }
+
+  private static String readNullableString(DataInput in) throws IOException {
+    return in.readBoolean() ? CoverageIOUtil.readUTFFast(in) : null;
+  }
+
+  private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static class Entry {
+    private final String myClassName;
+    private final byte[] myHash;
+    private final byte[] myStructure;
+    /**
+     * Number of saves since the entry has been used last time.
+     */
+    private final int myUnusedRuns;
+
+    private Entry(String className, byte[] hash, byte[] structure, int unusedRuns) {
+      myClassName = className;
+      myHash = hash;
+      myStructure = structure;
+      myUnusedRuns = unusedRuns;
+    }
+  }
+}
@@ -24,7 +24,12 @@ import com.intellij.rt.coverage.instrumentation.util.SaveLabelsMethodNode;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
-import org.jetbrains.coverage.org.objectweb.asm.tree.MethodNode;
+import org.jetbrains.coverage.org.objectweb.asm.commons.AnalyzerAdapter;
+import org.jetbrains.coverage.org.objectweb.asm.tree.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Collect information about coverage and prepare jumps and switches execution for coverage collection.
@@ -37,6 +42,8 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
   private final boolean myBranchCoverage;
 
   protected int myCurrentLine;
+  private ProbeInference myProbeInference;
+  private AnalyzerAdapter myFrames;
 
   public CoverageEnumerator(InstrumentationData data, boolean branchCoverage) {
     super(Opcodes.API_VERSION, new SaveLabelsMethodNode(
@@ -57,9 +64,50 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
   }
 
   public void accept(MethodVisitor visitor) {
+    if (myFrames != null) {
+      relabelNewInstructions();
+    }
     myMethodNode.accept(visitor);
   }
 
+  /**
+   * Add a stack map frame to every label inserted by this enumerator, so that the frames of the method stay valid
+   * without recomputation. The frames are derived from the original frames of the method, which must be expanded.
+   *
+   * @return visitor which should receive the method instead of this enumerator
+   */
+  public MethodVisitor preserveFrames(String owner) {
+    myFrames = new AnalyzerAdapter(owner, myData.getMethodAccess(), myData.getMethodName(), myData.getMethodDesc(), this);
+    return myFrames;
+  }
+
+  /**
+   * Find probes that may be omitted, as their hits can be inferred from other probes, see {@link ProbeInference}.
+   * The inferred hits are recorded in the instrumentation data and applied in {@link com.intellij.rt.coverage.data.ClassData#applyHits()}.
+   * <p>
+   * Probe ids are not changed, so that the analysis of classes and the instruction counters are not affected.
+   * Should be called after the method is fully visited.
+   */
+  public void inferProbes(boolean calculateHits) {
+    if (!myBranchCoverage) return;
+    myProbeInference = new ProbeInference(myMethodNode, myData, calculateHits);
+    myProbeInference.infer();
+  }
+
+  /**
+   * @return true if the probe of the line number node should not be inserted, see {@link #inferProbes}
+   */
+  public boolean isLineProbeInferred(int line, Label start) {
+    return myProbeInference != null && myProbeInference.isLineProbeInferred(line, start);
+  }
+
+  /**
+   * @return true if the probe of the jump or switch label should not be inserted, see {@link #inferProbes}
+   */
+  public boolean isLabelProbeInferred(Label label) {
+    return myProbeInference != null && myProbeInference.isLabelProbeInferred(label);
+  }
+
   @Override
   public void visitLineNumber(int line, Label start) {
     myCurrentLine = line;
@@ -83,11 +131,14 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
         onNewJump(label, trueLabel, falseLabel);
 
         jumpInstrumented = true;
+        final FrameNode frame = getCurrentFrame(opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE ? 2 : 1);
         super.visitJumpInsn(opcode, trueLabel);
         super.visitJumpInsn(Opcodes.GOTO, falseLabel);
         super.visitLabel(trueLabel);  // true hit will be inserted here
+        visitInsertedFrame(frame);
         super.visitJumpInsn(Opcodes.GOTO, label);
         super.visitLabel(falseLabel); // false hit will be inserted here
+        visitInsertedFrame(frame);
       }
     }
 
@@ -107,6 +158,8 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
       newLabels[i] = new Label();
     }
 
+    final FrameNode beforeSwitchFrame = getCurrentFrame(0);
+    final FrameNode branchFrame = getCurrentFrame(1);
     super.visitJumpInsn(Opcodes.GOTO, beforeSwitchLabel);
 
     final SwitchLabels replacement = new SwitchLabels(newDefaultLabel, newLabels);
@@ -115,13 +168,16 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
 
     for (int i = 0; i < newLabels.length; i++) {
       super.visitLabel(newLabels[i]);
+      visitInsertedFrame(branchFrame);
       super.visitJumpInsn(Opcodes.GOTO, original.getLabels()[i]);
     }
 
     super.visitLabel(newDefaultLabel);
+    visitInsertedFrame(branchFrame);
     super.visitJumpInsn(Opcodes.GOTO, original.getDefault());
 
     super.visitLabel(beforeSwitchLabel);
+    visitInsertedFrame(beforeSwitchFrame);
 
     return replacement;
   }
@@ -155,6 +211,58 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
     return switchLabels;
   }
 
+  /**
+   * @param popped number of the stack values consumed by the current instruction
+   * @return frame before the current instruction without the consumed values, or null if frames are not preserved
+   */
+  private FrameNode getCurrentFrame(int popped) {
+    if (myFrames == null) return null;
+    if (myFrames.locals == null) {
+      throw new IllegalStateException("No stack map frame for instruction in " + myData.getMethodName() + myData.getMethodDesc());
+    }
+    final Object[] locals = FrameUtil.toFrameTypes(myFrames.locals, myFrames.locals.size());
+    final Object[] stack = FrameUtil.toFrameTypes(myFrames.stack, myFrames.stack.size() - popped);
+    return new FrameNode(F_NEW, locals.length, locals, stack.length, stack);
+  }
+
+  private void visitInsertedFrame(FrameNode frame) {
+    if (frame == null) return;
+    frame.accept(mv);
+  }
+
+  /**
+   * Uninitialized values in frames refer to the label of their <code>NEW</code> instruction.
+   * A probe may be inserted after the labels which precede the instruction, so a new label is placed right before it.
+   */
+  private void relabelNewInstructions() {
+    final Map<LabelNode, LabelNode> replacements = new HashMap<LabelNode, LabelNode>();
+    for (AbstractInsnNode node = myMethodNode.instructions.getFirst(); node != null; node = node.getNext()) {
+      if (node.getOpcode() != NEW) continue;
+      LabelNode newLabel = null;
+      for (AbstractInsnNode previous = node.getPrevious(); previous != null && previous.getOpcode() == -1; previous = previous.getPrevious()) {
+        if (previous.getType() != AbstractInsnNode.LABEL) continue;
+        if (newLabel == null) newLabel = new LabelNode();
+        replacements.put((LabelNode) previous, newLabel);
+      }
+      if (newLabel != null) myMethodNode.instructions.insertBefore(node, newLabel);
+    }
+    if (replacements.isEmpty()) return;
+    for (AbstractInsnNode node = myMethodNode.instructions.getFirst(); node != null; node = node.getNext()) {
+      if (node.getType() != AbstractInsnNode.FRAME) continue;
+      final FrameNode frame = (FrameNode) node;
+      replaceUninitialized(frame.local, replacements);
+      replaceUninitialized(frame.stack, replacements);
+    }
+  }
+
+  private static void replaceUninitialized(List<Object> types, Map<LabelNode, LabelNode> replacements) {
+    if (types == null) return;
+    for (int i = 0; i < types.size(); i++) {
+      final LabelNode replacement = replacements.get(types.get(i));
+      if (replacement != null) types.set(i, replacement);
+    }
+  }
+
   private static int[] asLookupKeys(int min, int max) {
     int[] keys = new int[max - min + 1];
     // Check that i in [min, max]
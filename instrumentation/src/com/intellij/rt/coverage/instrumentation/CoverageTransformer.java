@@ -39,7 +39,7 @@ public class CoverageTransformer extends AbstractIntellijClassfileTransformer {
   }
 
   @Override
-  protected ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw) {
+  protected ClassVisitor createClassVisitor(String className, ClassLoader loader, byte[] classfileBuffer, ClassReader cr, ClassVisitor cw) {
     return InstrumentationStrategy.createInstrumenter(myProjectData, className, cr, cw, myProjectContext, createDataAccess(className, cr));
   }
 
@@ -47,8 +47,10 @@ public class CoverageTransformer extends AbstractIntellijClassfileTransformer {
     if (OptionsUtil.FIELD_INSTRUMENTATION_ENABLED) {
       if (InstrumentationUtils.isCondyEnabled(cr)) {
         return new CondyCoverageDataAccess(createCondyInit(className, cr));
+      } else if (InstrumentationUtils.isIndyEnabled(cr)) {
+        return new IndyCoverageDataAccess(createIndyInit(className, cr));
       } else {
-        return new FieldCoverageDataAccess(cr, className, createInit(className, cr, false));
+        return new FieldCoverageDataAccess(cr, className, createInit(className, cr, false), isPreservingFrames(cr));
       }
     } else {
       return new NameCoverageDataAccess(createInit(className, cr, true));
@@ -72,6 +74,19 @@ public class CoverageTransformer extends AbstractIntellijClassfileTransformer {
         methodName, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;)" + arrayType, new Object[]{className});
   }
 
+  protected CoverageDataAccess.Init createIndyInit(String className, ClassReader cr) {
+    boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
+    String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
+    String methodName = calculateHits ? "getHits" : "getHitsMask";
+    return new CoverageDataAccess.Init("__$hits$__", arrayType, "com/intellij/rt/coverage/util/IndyUtils",
+        methodName, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", new Object[]{className});
+  }
+
+  @Override
+  protected boolean isPreservingFrames(ClassReader cr) {
+    return InstrumentationUtils.isPreservingFrames(myProjectContext.getOptions(), InstrumentationUtils.getBytecodeVersion(cr));
+  }
+
   @Override
   protected boolean shouldExclude(String className) {
     return ClassNameUtil.matchesPatterns(className, myProjectContext.getOptions().excludePatterns);
@@ -33,6 +33,27 @@ public class InstrumentationOptions {
   public final boolean isInstructionCoverage;
   public final boolean isCalculateHits;
   public final boolean isSaveSource;
+  /**
+   * Omit probes which hits may be inferred from other probes, see {@link ProbeInference}.
+   * When hits are calculated, branch probes are also omitted, so fewer counters are updated in loops.
+   * The option must be the same for instrumentation and for analysis of the classes when applying raw hits.
+   */
+  public final boolean isMinimizeProbes;
+  /**
+   * Keep the stack map frames of the instrumented classes valid instead of computing them anew.
+   * Frame computation needs the common super classes of the types merged in the frames,
+   * so it loads other classes of the application during transformation.
+   * Applied to the classes of version 7 and above, the frames of older classes are optional.
+   * Not supported in test tracking mode.
+   */
+  public final boolean isPreserveFrames;
+  /**
+   * Instrument a class with a single line probe per method first, see {@link LazyInstrumentation}.
+   * The class is instrumented fully soon after any of its methods is called.
+   * The calls made before the upgrade report only the first line of the method, so one-shot code is reported partially.
+   * Disabled by default. Not supported in test tracking mode and with minimized probes.
+   */
+  public final boolean isLazyInstrumentation;
 
   public final List<Pattern> includePatterns;
   public final List<Pattern> excludePatterns;
@@ -46,7 +67,8 @@ public class InstrumentationOptions {
 
   public InstrumentationOptions(
       boolean isBranchCoverage, boolean isMergeData, boolean isCalculateUnloaded, boolean isInstructionCoverage,
-      boolean isCalculateHits, boolean isSaveSource,
+      boolean isCalculateHits, boolean isSaveSource, boolean isMinimizeProbes, boolean isPreserveFrames,
+      boolean isLazyInstrumentation,
       List<Pattern> includePatterns, List<Pattern> excludePatterns,
       List<Pattern> includeAnnotations, List<Pattern> excludeAnnotations,
       File dataFile, File sourceMapFile,
@@ -57,6 +79,9 @@ public class InstrumentationOptions {
     this.isInstructionCoverage = isInstructionCoverage;
     this.isCalculateHits = isCalculateHits;
     this.isSaveSource = isSaveSource;
+    this.isMinimizeProbes = isMinimizeProbes;
+    this.isPreserveFrames = isPreserveFrames;
+    this.isLazyInstrumentation = isLazyInstrumentation;
     this.includePatterns = includePatterns;
     this.excludePatterns = excludePatterns;
     this.includeAnnotations = includeAnnotations;
@@ -77,6 +102,9 @@ public class InstrumentationOptions {
     private boolean isInstructionCoverage = OptionsUtil.INSTRUCTIONS_COVERAGE_ENABLED;
     private boolean isCalculateHits = OptionsUtil.CALCULATE_HITS_COUNT;
     private boolean isSaveSource = false;
+    private boolean isMinimizeProbes = OptionsUtil.MINIMIZE_PROBES;
+    private boolean isPreserveFrames = OptionsUtil.PRESERVE_FRAMES;
+    private boolean isLazyInstrumentation = OptionsUtil.LAZY_INSTRUMENTATION;
     private List<Pattern> includePatterns = Collections.emptyList();
     private List<Pattern> excludePatterns = Collections.emptyList();
     private List<Pattern> includeAnnotations = Collections.emptyList();
@@ -115,6 +143,21 @@ public class InstrumentationOptions {
       return this;
     }
 
+    public Builder setMinimizeProbes(boolean isMinimizeProbes) {
+      this.isMinimizeProbes = isMinimizeProbes;
+      return this;
+    }
+
+    public Builder setPreserveFrames(boolean isPreserveFrames) {
+      this.isPreserveFrames = isPreserveFrames;
+      return this;
+    }
+
+    public Builder setLazyInstrumentation(boolean isLazyInstrumentation) {
+      this.isLazyInstrumentation = isLazyInstrumentation;
+      return this;
+    }
+
     public Builder setIncludePatterns(List<Pattern> includePatterns) {
       this.includePatterns = includePatterns;
       return this;
@@ -153,7 +196,9 @@ public class InstrumentationOptions {
     public InstrumentationOptions build() {
       return new InstrumentationOptions(
           isBranchCoverage, isMergeData, isCalculateUnloaded, isInstructionCoverage, isCalculateHits,
-          isSaveSource || sourceMapFile != null,
+          isSaveSource || sourceMapFile != null, isMinimizeProbes && testTrackingMode == null,
+          isPreserveFrames && testTrackingMode == null,
+          isLazyInstrumentation && testTrackingMode == null && !isMinimizeProbes,
           includePatterns, excludePatterns, includeAnnotations, excludeAnnotations,
           dataFile, sourceMapFile, testTrackingMode);
     }
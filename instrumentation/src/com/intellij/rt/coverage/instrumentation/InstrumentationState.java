@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
+import com.intellij.rt.coverage.instrumentation.filters.FilterUtils;
+import com.intellij.rt.coverage.instrumentation.filters.classFilter.ClassFilter;
+import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The objects needed to instrument a class: the instrumentation data and the filters.
+ * The filters are selected by the families of the class before it is visited, see {@link #selectFilters}.
+ * The objects are kept in a per-thread pool and reset for the next class instead of being allocated for every class and method.
+ * <p>
+ * A class may be loaded while another class is instrumented in the same thread,
+ * so a state is taken from the pool for the whole class and returned when the class is visited.
+ * The state of a failed instrumentation is not returned to the pool.
+ */
+class InstrumentationState {
+  private static final ThreadLocal<List<InstrumentationState>> ourPool = new ThreadLocal<List<InstrumentationState>>() {
+    @Override
+    protected List<InstrumentationState> initialValue() {
+      return new ArrayList<InstrumentationState>();
+    }
+  };
+
+  private final InstrumentationData myData;
+  private final List<ClassFilter> myClassFilters = FilterUtils.createClassFilters();
+  private final List<CoverageFilter> myLineFilters = FilterUtils.createLineFilters();
+  private final List<CoverageFilter> myBranchFilters = FilterUtils.createBranchFilters();
+  private final List<ClassFilter> mySelectedClassFilters = new ArrayList<ClassFilter>();
+  private final List<CoverageFilter> mySelectedLineFilters = new ArrayList<CoverageFilter>();
+  private final List<CoverageFilter> mySelectedBranchFilters = new ArrayList<CoverageFilter>();
+  private int mySelectedFamilies = -1;
+
+  private InstrumentationState(ProjectContext projectContext) {
+    myData = new InstrumentationData(projectContext);
+  }
+
+  static InstrumentationState acquire(ProjectContext projectContext) {
+    final List<InstrumentationState> pool = ourPool.get();
+    if (pool.isEmpty()) {
+      return new InstrumentationState(projectContext);
+    }
+    final InstrumentationState state = pool.remove(pool.size() - 1);
+    if (state.myData.getProjectContext() != projectContext) {
+      state.myData.reset(projectContext);
+    }
+    return state;
+  }
+
+  /**
+   * The data is cleared on release, so that a pooled state does not keep the class reader of the last class.
+   */
+  void release() {
+    myData.reset(myData.getProjectContext());
+    ourPool.get().add(this);
+  }
+
+  InstrumentationData getData() {
+    return myData;
+  }
+
+  /**
+   * Select the filters which may be applicable to a class of the families, see {@link FilterFamily}.
+   * The selection is kept while the classes of the thread have the same families.
+   */
+  void selectFilters(int families) {
+    if (families == mySelectedFamilies) return;
+    mySelectedFamilies = families;
+    mySelectedClassFilters.clear();
+    for (ClassFilter filter : myClassFilters) {
+      if (FilterFamily.isApplicable(filter.getFamily(), families)) {
+        mySelectedClassFilters.add(filter);
+      }
+    }
+    selectFilters(myLineFilters, mySelectedLineFilters, families);
+    selectFilters(myBranchFilters, mySelectedBranchFilters, families);
+  }
+
+  List<ClassFilter> getClassFilters() {
+    return mySelectedClassFilters;
+  }
+
+  List<CoverageFilter> getLineFilters() {
+    return mySelectedLineFilters;
+  }
+
+  List<CoverageFilter> getBranchFilters() {
+    return mySelectedBranchFilters;
+  }
+
+  private static void selectFilters(List<CoverageFilter> filters, List<CoverageFilter> selected, int families) {
+    selected.clear();
+    for (CoverageFilter filter : filters) {
+      if (FilterFamily.isApplicable(filter.getFamily(), families)) {
+        selected.add(filter);
+      }
+    }
+  }
+}
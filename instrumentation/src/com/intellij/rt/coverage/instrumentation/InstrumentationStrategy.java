@@ -21,6 +21,7 @@ import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.instrumentation.dataAccess.CoverageDataAccess;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.FilterUtils;
 import com.intellij.rt.coverage.instrumentation.filters.classFilter.ClassFilter;
 import com.intellij.rt.coverage.instrumentation.filters.classes.ClassSignatureFilter;
@@ -28,6 +29,7 @@ import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingMode;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.util.List;
 
@@ -44,27 +46,41 @@ public class InstrumentationStrategy {
     // uncomment to get readable bytecode
     // cw = new TraceClassVisitor(cw, new PrintWriter(System.err));
 
-    InstrumentationData context = new InstrumentationData(projectContext);
+    final InstrumentationState state = InstrumentationState.acquire(projectContext);
+    InstrumentationData context = state.getData();
     context.put(Key.PROJECT_DATA, projectData);
     context.put(Key.CLASS_READER, cr);
     context.put(Key.CLASS_NAME, projectContext.getFromPool(className));
     context.put(Key.CLASS_INTERNAL_NAME, ClassNameUtil.convertToInternalName(className));
 
+    final int families = FilterFamily.scan(cr);
     for (ClassSignatureFilter filter : ourFilters) {
-      if (filter.shouldIgnore(context)) return null;
+      if (FilterFamily.isApplicable(filter.getFamily(), families) && filter.shouldIgnore(context)) {
+        state.release();
+        return null;
+      }
     }
 
+    state.selectFilters(families);
+
     TestTrackingMode testTrackingMode = projectContext.getOptions().testTrackingMode;
     if (testTrackingMode != null) {
       cw = testTrackingMode.createInstrumenter(cw, context);
     }
-    cw = new InstrumentationVisitor(projectData, context, cw, dataAccess);
-    for (ClassFilter cv : FilterUtils.createClassFilters()) {
+    cw = new InstrumentationVisitor(projectData, context, cw, dataAccess, state.getLineFilters(), state.getBranchFilters());
+    for (ClassFilter cv : state.getClassFilters()) {
       if (cv.isApplicable(context)) {
         cv.initFilter(cw, context);
         cw = cv;
       }
     }
-    return cw;
+    // the state is returned when the whole chain has visited the class
+    return new ClassVisitor(Opcodes.API_VERSION, cw) {
+      @Override
+      public void visitEnd() {
+        super.visitEnd();
+        state.release();
+      }
+    };
   }
 }
@@ -64,10 +64,28 @@ public class InstrumentationUtils {
     return cr.readInt(4) & 0xFFFF;
   }
 
+  /**
+   * Frames are preserved only in classes of version 7 and above, where they are mandatory.
+   * Older classes may contain no frames at all, or <code>JSR</code> instructions which cannot be analysed.
+   *
+   * @param version bytecode version, see {@link #getBytecodeVersion(ClassReader)}
+   */
+  public static boolean isPreservingFrames(InstrumentationOptions options, int version) {
+    return options.isPreserveFrames && version >= Opcodes.V1_7;
+  }
+
   public static boolean isCondyEnabled(ClassReader cr) {
     return OptionsUtil.CONDY_ENABLED && getBytecodeVersion(cr) >= Opcodes.V11;
   }
 
+  /**
+   * Disabled by default, as every instrumented method of the class bootstraps its own call site,
+   * while the field is initialized once per class.
+   */
+  public static boolean isIndyEnabled(ClassReader cr) {
+    return OptionsUtil.INDY_ENABLED && getBytecodeVersion(cr) >= Opcodes.V1_7;
+  }
+
   public static boolean isIntConstLoading(int opcode) {
     return Opcodes.ICONST_M1 <= opcode && opcode <= Opcodes.ICONST_5
         || opcode == Opcodes.BIPUSH
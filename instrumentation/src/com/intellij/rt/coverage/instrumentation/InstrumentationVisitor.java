@@ -35,7 +35,9 @@ import com.intellij.rt.coverage.instrumentation.util.InsertLineAfterJumpVisitor;
 import com.intellij.rt.coverage.instrumentation.util.LinesUtil;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.OptionsUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
 import org.jetbrains.coverage.org.objectweb.asm.*;
+import org.jetbrains.coverage.org.objectweb.asm.tree.FrameNode;
 
 import java.util.List;
 
@@ -45,13 +47,33 @@ public class InstrumentationVisitor extends ClassVisitor {
   private final InstrumentationData myContext;
   private final CoverageDataAccessVisitor myDataAccess;
   private final ProjectData myProjectData;
+  private final List<CoverageFilter> myLineFilters;
+  private final List<CoverageFilter> myBranchFilters;
   private String mySource;
+  private boolean myPreserveFrames;
+  private LazyInstrumentation myLazyInstrumentation;
+  /**
+   * Ids of the method entry probes, when the class is instrumented lazily.
+   */
+  private final TIntArrayList myEntryIds = new TIntArrayList();
 
+  public InstrumentationVisitor(ProjectData projectData,
+                                InstrumentationData context,
+                                ClassVisitor classVisitor,
+                                CoverageDataAccess dataAccess) {
+    this(projectData, context, classVisitor, dataAccess, FilterUtils.createLineFilters(), FilterUtils.createBranchFilters());
+  }
 
+  /**
+   * @param lineFilters   filters which are reused for every method of the class
+   * @param branchFilters filters which are reused for every method of the class
+   */
   public InstrumentationVisitor(ProjectData projectData,
                                 final InstrumentationData context,
                                 ClassVisitor classVisitor,
-                                CoverageDataAccess dataAccess) {
+                                CoverageDataAccess dataAccess,
+                                List<CoverageFilter> lineFilters,
+                                List<CoverageFilter> branchFilters) {
     super(Opcodes.API_VERSION, new CoverageDataAccessVisitor(classVisitor, dataAccess) {
       @Override
       protected boolean shouldInstrumentMethod() {
@@ -61,12 +83,17 @@ public class InstrumentationVisitor extends ClassVisitor {
     myDataAccess = (CoverageDataAccessVisitor) cv;
     myContext = context;
     myProjectData = projectData;
+    myLineFilters = lineFilters;
+    myBranchFilters = branchFilters;
   }
 
   @Override
   public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
     myContext.put(Key.CLASS_ACCESS, access);
     myContext.put(Key.INTERFACES, interfaces);
+    myPreserveFrames = InstrumentationUtils.isPreservingFrames(getOptions(), version & 0xFFFF)
+        && myDataAccess.getDataAccess() != EmptyCoverageDataAccess.INSTANCE;
+    myLazyInstrumentation = getLazyInstrumentation();
     super.visit(version, access, name, signature, superName, interfaces);
   }
 
@@ -86,24 +113,42 @@ public class InstrumentationVisitor extends ClassVisitor {
     final CoverageEnumerator enumerator = getOptions().isInstructionCoverage
         ? new CoverageEnumeratorWithInstructions(myContext, branchCoverage)
         : new CoverageEnumerator(myContext, branchCoverage);
-    MethodVisitor mv = chainFilters(enumerator, FilterUtils.createLineFilters());
+    MethodVisitor mv = myPreserveFrames ? enumerator.preserveFrames(myContext.get(Key.CLASS_INTERNAL_NAME)) : enumerator;
+    mv = chainFilters(mv, myLineFilters);
     if (branchCoverage) {
-      mv = chainFilters(mv, FilterUtils.createBranchFilters());
+      mv = chainFilters(mv, myBranchFilters);
     }
 
     return new MethodVisitor(Opcodes.API_VERSION, mv) {
       @Override
       public void visitEnd() {
         super.visitEnd();
+        if (getOptions().isMinimizeProbes) {
+          // should be done at analysis too, as the inferred hits are a part of the class structure
+          enumerator.inferProbes(getOptions().isCalculateHits);
+        }
         if (myDataAccess.getDataAccess() != EmptyCoverageDataAccess.INSTANCE) {
           MethodVisitor methodVisitor = InstrumentationVisitor.super.visitMethod(access, name, descriptor, signature, exceptions);
-          MethodVisitor hitsVisitor = new InsertLineAfterJumpVisitor(new HitsVisitor(methodVisitor));
+          // a static initializer runs once, so it could not be upgraded
+          boolean entryOnly = myLazyInstrumentation != null && !"<clinit>".equals(name);
+          MethodVisitor hitsVisitor = new InsertLineAfterJumpVisitor(new HitsVisitor(methodVisitor, enumerator, entryOnly));
           enumerator.accept(myContext.hasNoLinesInCurrentMethod() ? methodVisitor : hitsVisitor);
         }
       }
     };
   }
 
+  /**
+   * @return null if the class should be instrumented fully
+   */
+  private LazyInstrumentation getLazyInstrumentation() {
+    if (!getOptions().isLazyInstrumentation) return null;
+    if (myDataAccess.getDataAccess() == EmptyCoverageDataAccess.INSTANCE) return null;
+    LazyInstrumentation lazyInstrumentation = myContext.getProjectContext().getLazyInstrumentation();
+    if (lazyInstrumentation == null || !lazyInstrumentation.isLazy(myContext.get(Key.CLASS_NAME))) return null;
+    return lazyInstrumentation;
+  }
+
   /**
    * Should be called only after first <code>visitMethod</code> has been called.
    */
@@ -139,10 +184,14 @@ public class InstrumentationVisitor extends ClassVisitor {
     classData.setLines(LinesUtil.calcLineArray(myContext.getMaxSeenLine(), myContext.getLines()));
     classData.createMask(myContext.getSize(), getOptions().isCalculateHits);
     classData.setSource(mySource);
+    classData.setInferredHits(myContext.getInferredHits());
     myContext.getProjectContext().addIgnoredLines(className, myContext.getIgnoredLines());
     if (OptionsUtil.TEST_MODE) {
       InstrumentationData.assertIds(classData);
     }
+    if (myLazyInstrumentation != null) {
+      myLazyInstrumentation.addLazyClass(className, myEntryIds.toNativeArray());
+    }
     if (getOptions().isInstructionCoverage) {
       ClassInstructions classInstructions = new ClassInstructions(classData, myContext.getInstructions());
       myProjectData.getInstructions().put(classData.getName(), classInstructions);
@@ -167,8 +216,9 @@ public class InstrumentationVisitor extends ClassVisitor {
   @Override
   public void visitOuterClass(String outerClassName, String methodName, String methodSig) {
     if (getOptions().isSaveSource) {
-      String fqnName = ClassNameUtil.convertToFQName(outerClassName);
-      ClassData outerClass = myProjectData.getOrCreateClassData(myContext.getProjectContext().getFromPool(fqnName));
+      String fqnName = myContext.getProjectContext().getFromPool(ClassNameUtil.convertToFQName(outerClassName));
+      myContext.getProjectContext().addOuterClass(myContext.get(Key.CLASS_NAME), fqnName);
+      ClassData outerClass = myProjectData.getOrCreateClassData(fqnName);
       if (outerClass.getSource() == null) {
         outerClass.setSource(mySource);
       }
@@ -180,25 +230,52 @@ public class InstrumentationVisitor extends ClassVisitor {
     return myContext.getProjectContext().getOptions();
   }
 
+  /**
+   * Inserts probes at line numbers and at the labels of jumps and switches.
+   * <p>
+   * When frames are preserved, a probe is delayed until the frame of its offset is visited,
+   * as the frame is visited after the labels and line numbers, and it must stay at the jump target.
+   * A probe is not delayed past another label, so that jumps to that label do not execute it.
+   * Several frames may meet at one offset, when an inserted label is followed by an original one,
+   * then only the last frame is kept: the original frame is valid for all the paths to this offset.
+   * <p>
+   * In the entry only mode of the lazy instrumentation, only the first line probe of the method is inserted.
+   */
   private class HitsVisitor extends MethodVisitor {
+    private final CoverageEnumerator myEnumerator;
+    private final TIntArrayList myDelayedIds = new TIntArrayList();
+    private FrameNode myDelayedFrame;
+    private final boolean myEntryOnly;
+    private boolean myHasEntryProbe;
 
-    public HitsVisitor(MethodVisitor methodVisitor) {
+    public HitsVisitor(MethodVisitor methodVisitor, CoverageEnumerator enumerator, boolean entryOnly) {
       super(Opcodes.API_VERSION, methodVisitor);
+      myEnumerator = enumerator;
+      myEntryOnly = entryOnly;
     }
 
     @Override
     public void visitLineNumber(int line, Label start) {
       LineData lineData = myContext.getLineData(line);
-      if (lineData != null) {
-        incrementHitById(lineData.getId());
+      if (lineData != null && !myEnumerator.isLineProbeInferred(line, start)) {
+        if (!myEntryOnly) {
+          incrementHitById(lineData.getId());
+        } else if (!myHasEntryProbe) {
+          myHasEntryProbe = true;
+          myEntryIds.add(lineData.getId());
+          incrementHitById(lineData.getId());
+        }
       }
       super.visitLineNumber(line, start);
     }
 
     @Override
     public void visitLabel(Label label) {
+      if (!myDelayedIds.isEmpty()) flush();
       super.visitLabel(label);
 
+      if (myEntryOnly || myEnumerator.isLabelProbeInferred(label)) return;
+
       Jump jump = myContext.getJump(label);
       if (jump != null) {
         incrementHitById(jump.getId());
@@ -210,10 +287,122 @@ public class InstrumentationVisitor extends ClassVisitor {
       }
     }
 
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+      if (!myPreserveFrames) {
+        super.visitFrame(type, numLocal, local, numStack, stack);
+        return;
+      }
+      myDelayedFrame = new FrameNode(type, numLocal, local, numStack, stack);
+    }
+
     private void incrementHitById(int id) {
       if (id == -1) return;
+      if (myPreserveFrames) {
+        myDelayedIds.add(id);
+        return;
+      }
+      touch(id);
+    }
+
+    private void touch(int id) {
       myDataAccess.loadFromLocal();
       InstrumentationUtils.touchById(mv, id, getOptions().isCalculateHits);
     }
+
+    private void flush() {
+      if (myDelayedFrame != null) {
+        myDelayedFrame.accept(mv);
+        myDelayedFrame = null;
+      }
+      for (int i = 0; i < myDelayedIds.size(); i++) {
+        touch(myDelayedIds.get(i));
+      }
+      myDelayedIds.clear();
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      flush();
+      super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+      flush();
+      super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int varIndex) {
+      flush();
+      super.visitVarInsn(opcode, varIndex);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+      flush();
+      super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+      flush();
+      super.visitFieldInsn(opcode, owner, name, descriptor);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+      flush();
+      super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+      flush();
+      super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      flush();
+      super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+      flush();
+      super.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitIincInsn(int varIndex, int increment) {
+      flush();
+      super.visitIincInsn(varIndex, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+      flush();
+      super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+      flush();
+      super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+      flush();
+      super.visitMultiANewArrayInsn(descriptor, numDimensions);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+      flush();
+      super.visitMaxs(maxStack, maxLocals);
+    }
   }
 }
@@ -92,15 +92,28 @@ public class Instrumentator {
     CoverageRuntime.installRuntime(data);
 
     final ProjectContext instrumentationData = new ProjectContext(options);
+    final LazyInstrumentation lazyInstrumentation = createLazyInstrumentation(options, data, instrumentation);
+    instrumentationData.setLazyInstrumentation(lazyInstrumentation);
     final CoverageTransformer transformer = new CoverageTransformer(data, instrumentationData);
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       public void run() {
+        if (lazyInstrumentation != null) lazyInstrumentation.stop();
         transformer.stop();
         CoverageReport.save(data, instrumentationData);
       }
     }));
 
     addTransformer(instrumentation, transformer);
+    if (lazyInstrumentation != null) lazyInstrumentation.start();
+  }
+
+  private LazyInstrumentation createLazyInstrumentation(InstrumentationOptions options, ProjectData data, Instrumentation instrumentation) {
+    if (!options.isLazyInstrumentation) return null;
+    final LazyInstrumentation lazyInstrumentation = LazyInstrumentation.create(data, instrumentation);
+    if (lazyInstrumentation == null) {
+      ErrorReporter.info("Classes retransformation is not supported, lazy instrumentation is disabled.");
+    }
+    return lazyInstrumentation;
   }
 
   private void createDataFile(File dataFile) throws IOException {
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upgrades lazily instrumented classes to the full instrumentation.
+ * <p>
+ * A lazily instrumented class has a single probe per method, at the first line of the method.
+ * The class is analysed as usual, so the probes have the same ids as in the full instrumentation.
+ * A daemon thread checks these entry probes periodically, and the classes with called methods
+ * are retransformed in one batch, so a class is retransformed once and the batch costs one VM operation.
+ * The check does not lock the registry, so class loading is never blocked by it.
+ * Methods that are never called keep only the entry probe and are reported as uncovered.
+ * <p>
+ * The coverage is incomplete by design, so the mode is disabled by default.
+ * Every call that starts before the class is upgraded reports only the first line of the method:
+ * <ul>
+ *   <li>the first call of a class method, as the check is asynchronous, and other calls made until the next check,</li>
+ *   <li>one-shot code, e.g. <code>main</code> or setup methods, which is never called again,</li>
+ *   <li>methods that are running during the upgrade, as retransformation does not affect running methods.</li>
+ * </ul>
+ * Upgrading synchronously from the probe would not help, as the calling method is already running.
+ * Static initializers run once, so they are instrumented fully at once.
+ * Reflection is used for 1.5 compatibility, as retransformation is available since Java 6.
+ */
+public class LazyInstrumentation implements Runnable {
+  private static final long CHECK_INTERVAL_MS = 50;
+
+  private final ProjectData myProjectData;
+  private final Instrumentation myInstrumentation;
+  private final Method myRetransformClasses;
+  private final Method myIsModifiableClass;
+
+  /**
+   * Entry probe ids of the lazily instrumented classes.
+   */
+  private final Map<String, int[]> myLazyClasses = new ConcurrentHashMap<String, int[]>();
+  /**
+   * Classes which should be instrumented fully on load or retransformation.
+   */
+  private final Map<String, Boolean> myUpgradedClasses = new ConcurrentHashMap<String, Boolean>();
+  private volatile boolean myStopped;
+
+  private LazyInstrumentation(ProjectData projectData, Instrumentation instrumentation,
+                              Method retransformClasses, Method isModifiableClass) {
+    myProjectData = projectData;
+    myInstrumentation = instrumentation;
+    myRetransformClasses = retransformClasses;
+    myIsModifiableClass = isModifiableClass;
+  }
+
+  /**
+   * @return null if the retransformation of classes is not supported
+   */
+  public static LazyInstrumentation create(ProjectData projectData, Instrumentation instrumentation) {
+    try {
+      final Method isSupported = Instrumentation.class.getMethod("isRetransformClassesSupported");
+      if (!((Boolean) isSupported.invoke(instrumentation))) return null;
+      final Method retransformClasses = Instrumentation.class.getMethod("retransformClasses", Class[].class);
+      final Method isModifiableClass = Instrumentation.class.getMethod("isModifiableClass", Class.class);
+      return new LazyInstrumentation(projectData, instrumentation, retransformClasses, isModifiableClass);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (Exception e) {
+      ErrorReporter.warn("Lazy instrumentation is not available", e);
+      return null;
+    }
+  }
+
+  public void start() {
+    final Thread thread = new Thread(this, "Coverage lazy instrumentation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    myStopped = true;
+  }
+
+  /**
+   * @return true if the class should be instrumented lazily
+   */
+  public boolean isLazy(String className) {
+    return !myUpgradedClasses.containsKey(className);
+  }
+
+  /**
+   * Register a lazily instrumented class.
+   *
+   * @param entryIds ids of the probes at the method entries
+   */
+  public void addLazyClass(String className, int[] entryIds) {
+    if (entryIds.length == 0) return;
+    myLazyClasses.put(className, entryIds);
+  }
+
+  public void run() {
+    while (!myStopped) {
+      try {
+        Thread.sleep(CHECK_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      final Set<String> classNames = collectCalledClasses();
+      if (!classNames.isEmpty() && !myStopped) {
+        upgrade(classNames);
+      }
+    }
+  }
+
+  /**
+   * The classes registered during the scan are checked either now or next time.
+   */
+  private Set<String> collectCalledClasses() {
+    final Set<String> result = new HashSet<String>();
+    for (Map.Entry<String, int[]> entry : myLazyClasses.entrySet()) {
+      final String className = entry.getKey();
+      final ClassData classData = myProjectData.getClassData(className);
+      if (classData == null || !isAnyTouched(classData.getHitsMask(), entry.getValue())) continue;
+      // a concurrent load may still register the class again, then it is upgraded by the next check
+      myUpgradedClasses.put(className, Boolean.TRUE);
+      myLazyClasses.remove(className);
+      result.add(className);
+    }
+    return result;
+  }
+
+  private static boolean isAnyTouched(Object hitsMask, int[] ids) {
+    if (hitsMask instanceof int[]) {
+      final int[] hits = (int[]) hitsMask;
+      for (int id : ids) {
+        if (hits[id] != 0) return true;
+      }
+    } else if (hitsMask instanceof boolean[]) {
+      final boolean[] mask = (boolean[]) hitsMask;
+      for (int id : ids) {
+        if (mask[id]) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A class may be loaded by several class loaders, they share the coverage data, so all of them are upgraded.
+   */
+  private void upgrade(Set<String> classNames) {
+    final List<Class<?>> classes = new ArrayList<Class<?>>();
+    for (Class<?> aClass : myInstrumentation.getAllLoadedClasses()) {
+      if (!classNames.contains(aClass.getName())) continue;
+      try {
+        if ((Boolean) myIsModifiableClass.invoke(myInstrumentation, aClass)) {
+          classes.add(aClass);
+        }
+      } catch (Exception e) {
+        ErrorReporter.info("Failed to check class " + aClass.getName(), e);
+      }
+    }
+    if (classes.isEmpty()) return;
+    if (retransform(classes.toArray(new Class<?>[0])) == null) return;
+    // one failed class fails the whole batch, so retry separately to upgrade the others
+    for (Class<?> aClass : classes) {
+      final Exception e = retransform(new Class<?>[]{aClass});
+      if (e != null) {
+        ErrorReporter.warn("Failed to upgrade lazily instrumented class " + aClass.getName(), e);
+      }
+    }
+  }
+
+  private Exception retransform(Class<?>[] classes) {
+    try {
+      myRetransformClasses.invoke(myInstrumentation, (Object) classes);
+      return null;
+    } catch (Exception e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.data.Jump;
+import com.intellij.rt.coverage.instrumentation.data.Switch;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+import org.jetbrains.coverage.org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Selection of probes which hits can be inferred from other probes of a method.
+ * The method is analysed after {@link CoverageEnumerator} has added the jump and switch trampolines, each with its own probe.
+ * Executions are followed only through straight-line code: there are no exception handlers and no instructions
+ * that may throw on the way, so the inferred hits are exact.
+ * <ul>
+ * <li>A line that is reached only from some trampolines is executed as many times as all of them together.</li>
+ * <li>A line followed by a jump or a switch of the same line is executed as many times as all its branches together.</li>
+ * <li>When hits are counted, one branch of a jump or a switch with known incoming executions is not counted:
+ * its hits are the incoming executions without the hits of the other branches.
+ * This is the flow conservation used for the spanning tree edge counting by Ball and Larus,
+ * the branch that continues a loop is preferred for inference.</li>
+ * </ul>
+ * Probes used for inference are never inferred themselves, and every inferred probe only uses probes
+ * that are real or inferred before it, so the inferred hits may be applied in the order of recording.
+ */
+class ProbeInference implements Opcodes {
+  private static final int MAX_TERMS = 16;
+
+  private final MethodNode myMethodNode;
+  private final InstrumentationData myData;
+  private final boolean myCalculateHits;
+
+  private final Map<LabelNode, List<AbstractInsnNode>> myPredecessors = new HashMap<LabelNode, List<AbstractInsnNode>>();
+  private final Set<LabelNode> myHandlers = new HashSet<LabelNode>();
+  private final Map<LabelNode, TIntArrayList> myLabelFlows = new HashMap<LabelNode, TIntArrayList>();
+  private final Set<LabelNode> myVisiting = new HashSet<LabelNode>();
+  private final TIntHashSet myInferredIds = new TIntHashSet();
+  private final TIntHashSet myUsedIds = new TIntHashSet();
+
+  private final Set<Label> myInferredLabels = new HashSet<Label>();
+  private final Map<Label, Integer> myInferredLines = new HashMap<Label, Integer>();
+
+  ProbeInference(MethodNode methodNode, InstrumentationData data, boolean calculateHits) {
+    myMethodNode = methodNode;
+    myData = data;
+    myCalculateHits = calculateHits;
+  }
+
+  void infer() {
+    collectPredecessors();
+    if (myCalculateHits) {
+      for (AbstractInsnNode node = myMethodNode.instructions.getFirst(); node != null; node = node.getNext()) {
+        final int[] branchIds = getBranchIds(node, -1);
+        if (branchIds != null) inferBranch(node, branchIds);
+      }
+    }
+    for (AbstractInsnNode node = myMethodNode.instructions.getFirst(); node != null; node = node.getNext()) {
+      if (node.getType() == AbstractInsnNode.LINE) inferLine((LineNumberNode) node);
+    }
+  }
+
+  boolean isLabelProbeInferred(Label label) {
+    return myInferredLabels.contains(label);
+  }
+
+  boolean isLineProbeInferred(int line, Label start) {
+    final Integer inferredLine = myInferredLines.get(start);
+    return inferredLine != null && inferredLine == line;
+  }
+
+  private void inferBranch(AbstractInsnNode node, int[] branchIds) {
+    final TIntArrayList flow = getFlow(node);
+    if (flow == null) return;
+    final int index = selectInferredBranch(node, branchIds, flow);
+    if (index == -1) return;
+    final int inferredId = branchIds[index];
+    for (int i = 0; i < flow.size(); i++) {
+      addInferredHits(inferredId, flow.get(i), false);
+    }
+    for (int i = 0; i < branchIds.length; i++) {
+      if (i != index) addInferredHits(inferredId, branchIds[i], true);
+    }
+    myInferredIds.add(inferredId);
+    myInferredLabels.add(getBranchLabel(node, index).getLabel());
+  }
+
+  private void inferLine(LineNumberNode lineNode) {
+    final LineData lineData = myData.getLineData(lineNode.line);
+    if (lineData == null || lineData.getId() == -1) return;
+    final TIntArrayList flow = getFlow(lineNode);
+    final int[] ids = flow != null ? flow.toNativeArray() : findNextBranchIds(lineNode);
+    if (ids == null) return;
+    for (int id : ids) {
+      addInferredHits(lineData.getId(), id, false);
+    }
+    myInferredLines.put(lineNode.start.getLabel(), lineNode.line);
+  }
+
+  private void addInferredHits(int id, int sourceId, boolean subtract) {
+    myUsedIds.add(sourceId);
+    myData.addInferredHits(id, sourceId, subtract);
+  }
+
+  /**
+   * The branch which probe is inferred should not be used by other inferences.
+   * A backward branch continues a loop, so it is the most executed one, otherwise the fall through branch is selected.
+   */
+  private int selectInferredBranch(AbstractInsnNode node, int[] branchIds, TIntArrayList flow) {
+    final int position = myMethodNode.instructions.indexOf(node);
+    int result = -1;
+    for (int i = 0; i < branchIds.length; i++) {
+      final int id = branchIds[i];
+      if (myUsedIds.contains(id) || myInferredIds.contains(id) || flow.contains(id)) continue;
+      final LabelNode target = getTrampolineTarget(getBranchLabel(node, i));
+      if (target != null && myMethodNode.instructions.indexOf(target) < position) return i;
+      if (result == -1 || i == getFallThroughIndex(node)) result = i;
+    }
+    return result;
+  }
+
+  private static int getFallThroughIndex(AbstractInsnNode node) {
+    // jump ids are [true, false], switch ids start with the default branch
+    return node instanceof JumpInsnNode ? 1 : 0;
+  }
+
+  private static LabelNode getBranchLabel(AbstractInsnNode node, int index) {
+    if (node instanceof JumpInsnNode) {
+      return index == 0 ? ((JumpInsnNode) node).label : ((JumpInsnNode) node.getNext()).label;
+    }
+    if (node instanceof TableSwitchInsnNode) {
+      final TableSwitchInsnNode switchNode = (TableSwitchInsnNode) node;
+      return index == 0 ? switchNode.dflt : switchNode.labels.get(index - 1);
+    }
+    final LookupSwitchInsnNode switchNode = (LookupSwitchInsnNode) node;
+    return index == 0 ? switchNode.dflt : switchNode.labels.get(index - 1);
+  }
+
+  /**
+   * A trampoline is a label with a probe followed by a jump to the original target.
+   */
+  private static LabelNode getTrampolineTarget(LabelNode label) {
+    AbstractInsnNode node = label.getNext();
+    while (node != null && node.getOpcode() == -1) {
+      node = node.getNext();
+    }
+    return node != null && node.getOpcode() == GOTO ? ((JumpInsnNode) node).label : null;
+  }
+
+  private void collectPredecessors() {
+    for (AbstractInsnNode node = myMethodNode.instructions.getFirst(); node != null; node = node.getNext()) {
+      if (node instanceof JumpInsnNode) {
+        addPredecessor(((JumpInsnNode) node).label, node);
+      } else if (node instanceof TableSwitchInsnNode) {
+        addPredecessor(((TableSwitchInsnNode) node).dflt, node);
+        for (LabelNode label : ((TableSwitchInsnNode) node).labels) {
+          addPredecessor(label, node);
+        }
+      } else if (node instanceof LookupSwitchInsnNode) {
+        addPredecessor(((LookupSwitchInsnNode) node).dflt, node);
+        for (LabelNode label : ((LookupSwitchInsnNode) node).labels) {
+          addPredecessor(label, node);
+        }
+      }
+    }
+    if (myMethodNode.tryCatchBlocks != null) {
+      for (TryCatchBlockNode block : myMethodNode.tryCatchBlocks) {
+        myHandlers.add(block.handler);
+      }
+    }
+  }
+
+  private void addPredecessor(LabelNode label, AbstractInsnNode node) {
+    List<AbstractInsnNode> predecessors = myPredecessors.get(label);
+    if (predecessors == null) {
+      predecessors = new ArrayList<AbstractInsnNode>(1);
+      myPredecessors.put(label, predecessors);
+    }
+    predecessors.add(node);
+  }
+
+  /**
+   * Follow the straight-line code backwards from the node to the trampolines.
+   *
+   * @return ids of the trampoline probes, which hits sum is the number of executions of the node,
+   * or null if it cannot be inferred
+   */
+  private TIntArrayList getFlow(AbstractInsnNode node) {
+    for (AbstractInsnNode current = node.getPrevious(); current != null; current = current.getPrevious()) {
+      switch (current.getType()) {
+        case AbstractInsnNode.LABEL:
+          final LabelNode label = (LabelNode) current;
+          final int probeId = getProbeId(label);
+          if (probeId != -1) {
+            final TIntArrayList result = new TIntArrayList(1);
+            result.add(probeId);
+            return result;
+          }
+          if (myHandlers.contains(label)) return null;
+          if (myPredecessors.containsKey(label)) return getLabelFlow(label);
+          break;
+        case AbstractInsnNode.LINE:
+        case AbstractInsnNode.FRAME:
+          break;
+        default:
+          // jumps and returns are also here, so the flow is not split
+          if (mayThrow(current)) return null;
+      }
+    }
+    // the number of method calls is not known
+    return null;
+  }
+
+  private TIntArrayList getLabelFlow(LabelNode label) {
+    if (myLabelFlows.containsKey(label)) return myLabelFlows.get(label);
+    // a loop without trampolines
+    if (!myVisiting.add(label)) return null;
+    TIntArrayList result = new TIntArrayList();
+    for (AbstractInsnNode predecessor : myPredecessors.get(label)) {
+      final TIntArrayList flow = predecessor.getOpcode() == GOTO ? getFlow(predecessor) : null;
+      if (flow == null) {
+        result = null;
+        break;
+      }
+      result.add(flow.toNativeArray());
+    }
+    if (result != null && isReachedByFallThrough(label)) {
+      final TIntArrayList flow = getFlow(label);
+      if (flow == null) {
+        result = null;
+      } else {
+        result.add(flow.toNativeArray());
+      }
+    }
+    if (result != null && result.size() > MAX_TERMS) result = null;
+    myVisiting.remove(label);
+    myLabelFlows.put(label, result);
+    return result;
+  }
+
+  private int getProbeId(LabelNode label) {
+    final Jump jump = myData.getJump(label.getLabel());
+    if (jump != null) return jump.getId();
+    final Switch aSwitch = myData.getSwitch(label.getLabel());
+    if (aSwitch != null) return aSwitch.getId();
+    return -1;
+  }
+
+  /**
+   * Follow the straight-line code after the line probe.
+   * An unconditional jump is followed if it is the only way to reach its target, as the jump before a switch.
+   *
+   * @return ids of all the probes of the branch that ends the block, or null if the line probe is required
+   */
+  private int[] findNextBranchIds(LineNumberNode lineNode) {
+    int steps = myMethodNode.instructions.size();
+    AbstractInsnNode node = lineNode.getNext();
+    while (node != null && steps-- > 0) {
+      switch (node.getType()) {
+        case AbstractInsnNode.LABEL:
+          if (myPredecessors.containsKey(node) || myHandlers.contains(node)) return null;
+          break;
+        case AbstractInsnNode.FRAME:
+          break;
+        case AbstractInsnNode.LINE:
+          return null;
+        case AbstractInsnNode.JUMP_INSN:
+          final JumpInsnNode jumpNode = (JumpInsnNode) node;
+          if (jumpNode.getOpcode() == GOTO && isOnlyPredecessor(jumpNode)) {
+            node = jumpNode.label;
+            break;
+          }
+          return getBranchIds(jumpNode, lineNode.line);
+        case AbstractInsnNode.TABLESWITCH_INSN:
+        case AbstractInsnNode.LOOKUPSWITCH_INSN:
+          return getBranchIds(node, lineNode.line);
+        default:
+          if (mayThrow(node)) return null;
+      }
+      node = node.getNext();
+    }
+    return null;
+  }
+
+  private boolean isOnlyPredecessor(JumpInsnNode jumpNode) {
+    final List<AbstractInsnNode> predecessors = myPredecessors.get(jumpNode.label);
+    return predecessors.size() == 1 && !myHandlers.contains(jumpNode.label) && !isReachedByFallThrough(jumpNode.label);
+  }
+
+  /**
+   * A label just before this one may be reached by a jump, so it is reached by fall through too.
+   */
+  private boolean isReachedByFallThrough(LabelNode label) {
+    AbstractInsnNode node = label.getPrevious();
+    while (node != null && node.getOpcode() == -1) {
+      if (node instanceof LabelNode && (myPredecessors.containsKey(node) || myHandlers.contains(node))) return true;
+      node = node.getPrevious();
+    }
+    if (node == null) return true;
+    final int opcode = node.getOpcode();
+    return !(opcode == GOTO || opcode == ATHROW || opcode == RET
+        || opcode == TABLESWITCH || opcode == LOOKUPSWITCH
+        || IRETURN <= opcode && opcode <= RETURN);
+  }
+
+  /**
+   * @param line the line of the branch, or -1 for any line
+   * @return ids of all the probes of an instrumented jump or switch, or null if the node is not an instrumented branch
+   */
+  private int[] getBranchIds(AbstractInsnNode node, int line) {
+    if (node instanceof JumpInsnNode) {
+      return getJumpIds((JumpInsnNode) node, line);
+    } else if (node instanceof TableSwitchInsnNode) {
+      return getSwitchIds(((TableSwitchInsnNode) node).dflt, ((TableSwitchInsnNode) node).labels, line);
+    } else if (node instanceof LookupSwitchInsnNode) {
+      return getSwitchIds(((LookupSwitchInsnNode) node).dflt, ((LookupSwitchInsnNode) node).labels, line);
+    }
+    return null;
+  }
+
+  /**
+   * The conditional jump is replaced with <code>IF trueLabel; GOTO falseLabel</code> in {@link CoverageEnumerator#visitJumpInsn}.
+   */
+  private int[] getJumpIds(JumpInsnNode jumpNode, int line) {
+    if (jumpNode.getOpcode() == GOTO || jumpNode.getOpcode() == JSR) return null;
+    final Jump trueJump = myData.getJump(jumpNode.label.getLabel());
+    if (trueJump == null || line != -1 && trueJump.getLine() != line) return null;
+    final AbstractInsnNode next = jumpNode.getNext();
+    if (next == null || next.getOpcode() != GOTO) return null;
+    final Jump falseJump = myData.getJump(((JumpInsnNode) next).label.getLabel());
+    if (falseJump == null || falseJump.getLine() != trueJump.getLine() || falseJump.getIndex() != trueJump.getIndex()) return null;
+    if (trueJump.getId() == -1 || falseJump.getId() == -1) return null;
+    return new int[]{trueJump.getId(), falseJump.getId()};
+  }
+
+  private int[] getSwitchIds(LabelNode dflt, List<LabelNode> labels, int line) {
+    final Switch defaultSwitch = myData.getSwitch(dflt.getLabel());
+    if (defaultSwitch == null || line != -1 && defaultSwitch.getLine() != line || defaultSwitch.getId() == -1) return null;
+    final int[] ids = new int[labels.size() + 1];
+    ids[0] = defaultSwitch.getId();
+    for (int i = 0; i < labels.size(); i++) {
+      final Switch aSwitch = myData.getSwitch(labels.get(i).getLabel());
+      if (aSwitch == null || aSwitch.getLine() != defaultSwitch.getLine() || aSwitch.getIndex() != defaultSwitch.getIndex()) return null;
+      if (aSwitch.getId() == -1) return null;
+      ids[i + 1] = aSwitch.getId();
+    }
+    return ids;
+  }
+
+  /**
+   * Conservative check: only local variable access, constants, stack operations,
+   * arithmetic without division of integers and primitive conversions are known not to throw.
+   */
+  private static boolean mayThrow(AbstractInsnNode node) {
+    final int opcode = node.getOpcode();
+    if (opcode == LDC) {
+      final Object value = ((LdcInsnNode) node).cst;
+      return !(value instanceof Number || value instanceof String);
+    }
+    if (opcode == IDIV || opcode == LDIV || opcode == IREM || opcode == LREM) return true;
+    return !(NOP <= opcode && opcode <= SIPUSH
+        || ILOAD <= opcode && opcode <= ALOAD
+        || ISTORE <= opcode && opcode <= ASTORE
+        || POP <= opcode && opcode <= DCMPG);
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.instrumentation.dataAccess.EmptyCoverageDataAccess;
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.classFinder.ClassEntry;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
@@ -31,8 +32,11 @@ import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Some classes may be untouched during application execution, so these classes
@@ -60,32 +64,197 @@ public class UnloadedUtil {
   }
 
   private static void appendUnloaded(final ProjectData projectData, final ProjectContext context, final boolean finalizeCoverage) {
-    context.getClassFinder().iterateMatchedClasses(new ClassEntry.Consumer() {
-      public void consume(ClassEntry classEntry) {
-        final ClassData cd = projectData.getClassData(classEntry.getClassName());
-        if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()) return;
+    final AnalysisCache cache = AnalysisCache.open(context);
+    final int threads = OptionsUtil.UNLOADED_ANALYSIS_THREADS;
+    if (threads > 1) {
+      appendUnloadedInParallel(projectData, context, finalizeCoverage, threads, cache);
+    } else {
+      context.getClassFinder().iterateMatchedClasses(new ClassEntry.Consumer() {
+        public void consume(ClassEntry classEntry) {
+          final ClassData cd = projectData.getClassData(classEntry.getClassName());
+          if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()) return;
+          try {
+            final InputStream is = classEntry.getClassInputStream();
+            if (is == null) return;
+            appendUnloadedClass(projectData, classEntry.getClassName(), readBytes(is), context, finalizeCoverage, cache);
+          } catch (Throwable e) {
+            ErrorReporter.info("Failed to process unloaded class: " + classEntry.getClassName() + ", error: " + e.getMessage(), e);
+          }
+        }
+      });
+    }
+    if (cache != null) {
+      ErrorReporter.printInfo("Analysis cache: " + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses");
+      try {
+        cache.save();
+      } catch (IOException e) {
+        ErrorReporter.info("Failed to save analysis cache", e);
+      }
+    }
+  }
+
+  /**
+   * Class files are read by the iterating thread and analysed by the pool.
+   * <p>
+   * Analysis of a nested class depends on its outer class, e.g. annotation filters of an outer method
+   * are applied to its anonymous classes. To keep the result independent of scheduling,
+   * classes are analysed in waves by nesting depth, so that all outer classes are analysed before nested ones.
+   * The classpath is scanned once: top level classes are analysed during the scan,
+   * while nested classes are read and grouped by depth, as the entries of a jar cannot be read after the scan.
+   * When a class is present in several classpath entries, the first one is analysed like in the sequential mode.
+   */
+  private static void appendUnloadedInParallel(final ProjectData projectData, final ProjectContext context,
+                                               final boolean finalizeCoverage, int threads, final AnalysisCache cache) {
+    // when the queue is full, the iterating thread analyses a class itself, which also limits the memory used by read classes
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "Coverage unloaded classes analysis");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+    try {
+      final Set<String> processed = new HashSet<String>();
+      final List<List<UnloadedClass>> nestedClasses = new ArrayList<List<UnloadedClass>>();
+      final List<Future<?>> tasks = new ArrayList<Future<?>>();
+      context.getClassFinder().iterateMatchedClasses(new ClassEntry.Consumer() {
+        public void consume(ClassEntry classEntry) {
+          final String className = classEntry.getClassName();
+          if (!processed.add(className)) return;
+          final ClassData cd = projectData.getClassData(className);
+          if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()) return;
+          final byte[] bytes;
+          try {
+            final InputStream is = classEntry.getClassInputStream();
+            if (is == null) return;
+            bytes = readBytes(is);
+          } catch (Throwable e) {
+            ErrorReporter.info("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
+            return;
+          }
+          final UnloadedClass unloadedClass = new UnloadedClass(className, bytes);
+          final int depth = getNestingDepth(className);
+          if (depth == 0) {
+            tasks.add(submit(executor, unloadedClass, projectData, context, finalizeCoverage, cache));
+            return;
+          }
+          while (nestedClasses.size() < depth) {
+            nestedClasses.add(new ArrayList<UnloadedClass>());
+          }
+          nestedClasses.get(depth - 1).add(unloadedClass);
+        }
+      });
+      if (!awaitAll(tasks)) return;
+      for (int i = 0; i < nestedClasses.size(); i++) {
+        tasks.clear();
+        for (UnloadedClass unloadedClass : nestedClasses.get(i)) {
+          tasks.add(submit(executor, unloadedClass, projectData, context, finalizeCoverage, cache));
+        }
+        // the read classes are released as soon as they are analysed
+        nestedClasses.set(i, null);
+        if (!awaitAll(tasks)) return;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Future<?> submit(ExecutorService executor, final UnloadedClass unloadedClass, final ProjectData projectData,
+                                  final ProjectContext context, final boolean finalizeCoverage, final AnalysisCache cache) {
+    return executor.submit(new Runnable() {
+      public void run() {
         try {
-          final InputStream is = classEntry.getClassInputStream();
-          if (is == null) return;
-          appendUnloadedClass(projectData, classEntry.getClassName(), new ClassReader(is), context, finalizeCoverage);
+          appendUnloadedClass(projectData, unloadedClass.myClassName, unloadedClass.myBytes, context, finalizeCoverage, cache);
         } catch (Throwable e) {
-          ErrorReporter.info("Failed to process unloaded class: " + classEntry.getClassName() + ", error: " + e.getMessage(), e);
+          ErrorReporter.info("Failed to process unloaded class: " + unloadedClass.myClassName + ", error: " + e.getMessage(), e);
         }
       }
     });
   }
 
+  /**
+   * @return false if the current thread has been interrupted
+   */
+  private static boolean awaitAll(List<Future<?>> tasks) {
+    for (Future<?> task : tasks) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException e) {
+        ErrorReporter.info("Failed to process unloaded classes", e.getCause());
+      }
+    }
+    return true;
+  }
+
+  private static class UnloadedClass {
+    private final String myClassName;
+    private final byte[] myBytes;
+
+    private UnloadedClass(String className, byte[] bytes) {
+      myClassName = className;
+      myBytes = bytes;
+    }
+  }
+
+  private static int getNestingDepth(String className) {
+    int depth = 0;
+    for (int i = className.lastIndexOf('.') + 1; i < className.length(); i++) {
+      if (className.charAt(i) == '$') depth++;
+    }
+    return depth;
+  }
+
   @SuppressWarnings("unused") // used in IntelliJ
   public static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, boolean branchCoverage) {
     InstrumentationOptions options = new InstrumentationOptions.Builder().setBranchCoverage(branchCoverage).build();
     appendUnloadedClass(projectData, className, reader, new ProjectContext(options), true);
   }
 
+  /**
+   * Analyse a single class, line mappings are kept in the context to be applied on coverage finalization.
+   */
+  public static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, ProjectContext context) {
+    appendUnloadedClass(projectData, className, reader, context, false);
+  }
+
+  /**
+   * Classes which have not been seen yet are restored from the cache when possible.
+   */
+  private static void appendUnloadedClass(ProjectData projectData, String className, byte[] bytes, ProjectContext context,
+                                          boolean finalizeCoverage, AnalysisCache cache) {
+    final ClassData cd = projectData.getClassData(className);
+    if (cache == null || cd != null && cd.getLines() != null) {
+      appendUnloadedClass(projectData, className, new ClassReader(bytes), context, finalizeCoverage);
+      return;
+    }
+    final byte[] hash = AnalysisCache.hash(bytes);
+    if (!cache.restore(projectData, className, hash)) {
+      final ClassReader reader = new ClassReader(bytes);
+      analyseClass(projectData, className, reader, context);
+      cache.store(projectData, className, hash, reader);
+    }
+    finishClass(projectData, className, context, finalizeCoverage);
+  }
+
   private static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, ProjectContext context, boolean finalizeCoverage) {
+    if (analyseClass(projectData, className, reader, context)) {
+      finishClass(projectData, className, context, finalizeCoverage);
+    }
+  }
+
+  private static boolean analyseClass(ProjectData projectData, String className, ClassReader reader, ProjectContext context) {
     ClassVisitor cv = InstrumentationStrategy.createInstrumenter(projectData, className, reader,
         EMPTY_CLASS_VISITOR, context, EmptyCoverageDataAccess.INSTANCE);
-    if (cv == null) return;
+    if (cv == null) return false;
     reader.accept(cv, ClassReader.SKIP_FRAMES);
+    return true;
+  }
+
+  private static void finishClass(ProjectData projectData, String className, ProjectContext context, boolean finalizeCoverage) {
     final ClassData classData = projectData.getClassData(className);
     if (classData == null || classData.getLines() == null) return;
     final LineData[] lines = (LineData[]) classData.getLines();
@@ -97,4 +266,14 @@ public class UnloadedUtil {
       context.dropLineMappings(projectData, classData);
     }
   }
+
+  private static byte[] readBytes(InputStream is) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 1024));
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
 }
@@ -21,19 +21,24 @@ import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.branches.KotlinDefaultArgsBranchFilter;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+/**
+ * Unloaded classes may be analysed by several threads, so the methods are stored in concurrent maps used as sets.
+ */
 public class FilteredMethodStorage {
   /**
    * We should mark class as ignored to be able to filter companion classes later.
    */
   private static final String CLASS_MARKER = "__$$CLASS_MARKER$$__()V";
 
-  private Set<String> myIncludedMethods;
-  private Set<String> myIgnoredMethods;
+  private final Map<String, Boolean> myIncludedMethods = new ConcurrentHashMap<String, Boolean>();
+  private final Map<String, Boolean> myIgnoredMethods = new ConcurrentHashMap<String, Boolean>();
 
   public boolean checkClassIncluded(InstrumentationData context) {
     if (isNoFilters(context)) return true;
@@ -91,25 +96,52 @@ public class FilteredMethodStorage {
    * The result could be incorrect in case of functions having the same name, but a different signature.
    * It is used for local function determination.
    */
-  public synchronized boolean isMethodNameRegistered(String owner, String methodName, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
-    if (methods == null) return false;
+  public boolean isMethodNameRegistered(String owner, String methodName, boolean included) {
+    Map<String, Boolean> methods = included ? myIncludedMethods : myIgnoredMethods;
     String target = owner + "#" + methodName;
-    for (String candidate : methods) {
+    for (String candidate : methods.keySet()) {
       if (candidate.startsWith(target)) return true;
     }
     return false;
   }
 
+  /**
+   * @return signatures of the ignored methods registered for the class
+   */
+  public List<String> getIgnoredMethods(String owner) {
+    final String prefix = owner + "#";
+    List<String> result = null;
+    for (String method : myIgnoredMethods.keySet()) {
+      if (!method.startsWith(prefix)) continue;
+      if (result == null) result = new ArrayList<String>();
+      result.add(method.substring(prefix.length()));
+    }
+    return result == null ? Collections.<String>emptyList() : result;
+  }
+
+  /**
+   * Check whether any of the outer classes of the class has ignored methods, which may affect the class analysis.
+   */
+  public boolean hasIgnoredMethodsInOuterClasses(String className) {
+    if (className.indexOf('$') < 0) return false;
+    for (String method : myIgnoredMethods.keySet()) {
+      final String owner = method.substring(0, method.indexOf('#'));
+      if (className.startsWith(owner) && className.length() > owner.length() && className.charAt(owner.length()) == '$') {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public void addIgnoredMethod(String owner, String methodSignature) {
     addMethod(owner, methodSignature, false);
   }
 
   private boolean isNoFilters(InstrumentationData context) {
     return context.getProjectContext().getOptions().excludeAnnotations.isEmpty()
-        && (myIgnoredMethods == null || myIgnoredMethods.isEmpty())
+        && myIgnoredMethods.isEmpty()
         && context.getProjectContext().getOptions().includeAnnotations.isEmpty()
-        && (myIncludedMethods == null || myIncludedMethods.isEmpty());
+        && myIncludedMethods.isEmpty();
   }
 
   private boolean isOuterClassRegistered(InstrumentationData context, boolean included) {
@@ -151,22 +183,14 @@ public class FilteredMethodStorage {
     return isMethodRegisteredInternal(owner, CLASS_MARKER, included);
   }
 
-  private synchronized boolean isMethodRegisteredInternal(String owner, String methodSignature, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
-    return methods != null && methods.contains(createDesc(owner, methodSignature));
+  private boolean isMethodRegisteredInternal(String owner, String methodSignature, boolean included) {
+    Map<String, Boolean> methods = included ? myIncludedMethods : myIgnoredMethods;
+    return methods.containsKey(createDesc(owner, methodSignature));
   }
 
-  public synchronized void addMethod(String owner, String methodSignature, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
-    if (methods == null) {
-      methods = new HashSet<String>();
-      if (included) {
-        myIncludedMethods = methods;
-      } else {
-        myIgnoredMethods = methods;
-      }
-    }
-    methods.add(createDesc(owner, methodSignature));
+  public void addMethod(String owner, String methodSignature, boolean included) {
+    Map<String, Boolean> methods = included ? myIncludedMethods : myIgnoredMethods;
+    methods.put(createDesc(owner, methodSignature), Boolean.TRUE);
   }
 
   private static String createDesc(String owner, String methodSignature) {
@@ -33,11 +33,12 @@ import java.util.Map;
  * This class is used to set branch ids during instrumentation.
  */
 public class InstrumentationData {
-  private final ProjectContext myProjectContext;
+  private ProjectContext myProjectContext;
   // Class level data
   private final TIntObjectHashMap<LineData> myLines = new TIntObjectHashMap<LineData>();
   private final Map<Key<?>, Object> myProperties = new HashMap<Key<?>, Object>();
-  private final TIntArrayList myInstructions;
+  private TIntArrayList myInstructions;
+  private TIntArrayList myInferredHits;
   private TIntHashSet myIgnoredLines;
   private int myIgnoreSection = 0;
   private int myNextId = 0;
@@ -57,6 +58,23 @@ public class InstrumentationData {
     myInstructions = projectContext.getOptions().isInstructionCoverage ? new TIntArrayList() : null;
   }
 
+  /**
+   * Prepare the data for the next class. The maps are cleared to be reused,
+   * while the collections which are passed to the project data are allocated again.
+   */
+  public void reset(ProjectContext projectContext) {
+    myProjectContext = projectContext;
+    myLines.clear();
+    myProperties.clear();
+    myInstructions = projectContext.getOptions().isInstructionCoverage ? new TIntArrayList() : null;
+    if (myInferredHits != null) myInferredHits.resetQuick();
+    myIgnoredLines = null;
+    myIgnoreSection = 0;
+    myNextId = 0;
+    myMaxSeenLine = 0;
+    resetMethod();
+  }
+
   public ProjectContext getProjectContext() {
     return myProjectContext;
   }
@@ -205,6 +223,23 @@ public class InstrumentationData {
     myInstructions.set(id, myInstructions.get(id) + instructions);
   }
 
+  /**
+   * Hits of the probe with <code>id</code> should also include or exclude hits of the <code>sourceId</code> probe.
+   */
+  public void addInferredHits(int id, int sourceId, boolean subtract) {
+    if (myInferredHits == null) myInferredHits = new TIntArrayList();
+    myInferredHits.add(id);
+    myInferredHits.add(subtract ? -sourceId - 1 : sourceId);
+  }
+
+  /**
+   * @return pairs of inferred and source ids, a negative source <code>-id - 1</code> is subtracted,
+   * or null if all probes are inserted
+   */
+  public int[] getInferredHits() {
+    return myInferredHits == null || myInferredHits.isEmpty() ? null : myInferredHits.toNativeArray();
+  }
+
   private int incrementId() {
     if (myInstructions != null) {
       while (myInstructions.size() <= myNextId) {
@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.instrumentation.data;
 import com.intellij.rt.coverage.data.*;
 import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.LazyInstrumentation;
 import com.intellij.rt.coverage.util.ArrayUtil;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.LineMapper;
@@ -46,6 +47,8 @@ public class ProjectContext {
   private volatile Map<String, TIntHashSet> myIgnoredLines;
   private volatile Map<String, FileMapData[]> myLinesMap;
   private volatile Map<String, String[]> myInherits;
+  private volatile Map<String, String> myOuterClasses;
+  private volatile LazyInstrumentation myLazyInstrumentation;
 
   public ProjectContext(InstrumentationOptions options) {
     this(options, new ClassFinder(options.includePatterns, options.excludePatterns));
@@ -72,6 +75,17 @@ public class ProjectContext {
     return myClassFinder;
   }
 
+  /**
+   * @return null if the classes are instrumented fully at once
+   */
+  public LazyInstrumentation getLazyInstrumentation() {
+    return myLazyInstrumentation;
+  }
+
+  public void setLazyInstrumentation(LazyInstrumentation lazyInstrumentation) {
+    myLazyInstrumentation = lazyInstrumentation;
+  }
+
   public void addLineMaps(String className, FileMapData[] fileDatas) {
     Map<String, FileMapData[]> linesMap = myLinesMap;
     if (linesMap == null) {
@@ -86,6 +100,16 @@ public class ProjectContext {
     linesMap.put(className, fileDatas);
   }
 
+  public FileMapData[] getLineMaps(String className) {
+    final Map<String, FileMapData[]> linesMap = myLinesMap;
+    return linesMap == null ? null : linesMap.get(className);
+  }
+
+  public TIntHashSet getIgnoredLines(String className) {
+    final Map<String, TIntHashSet> ignoredLines = myIgnoredLines;
+    return ignoredLines == null ? null : ignoredLines.get(className);
+  }
+
   public void addIgnoredLines(String className, TIntHashSet lines) {
     if (lines == null || lines.isEmpty()) return;
     Map<String, TIntHashSet> ignoredLines = myIgnoredLines;
@@ -115,6 +139,8 @@ public class ProjectContext {
     if (myLinesMap != null) {
       for (Map.Entry<String, FileMapData[]> entry : myLinesMap.entrySet()) {
         ClassData classData = projectData.getClassData(entry.getKey());
+        // the context may be shared between several project data with different class sets
+        if (classData == null) continue;
         dropLineMappings(projectData, classData, entry.getValue());
       }
     }
@@ -145,6 +171,20 @@ public class ProjectContext {
     }
   }
 
+  /**
+   * Forget the information collected during analysis of a class, so that the class can be analysed again.
+   */
+  public void dropClass(String className) {
+    final Map<String, FileMapData[]> linesMap = myLinesMap;
+    if (linesMap != null) linesMap.remove(className);
+    final Map<String, TIntHashSet> ignoredLines = myIgnoredLines;
+    if (ignoredLines != null) ignoredLines.remove(className);
+    final Map<String, String[]> inherits = myInherits;
+    if (inherits != null) inherits.remove(className);
+    final Map<String, String> outerClasses = myOuterClasses;
+    if (outerClasses != null) outerClasses.remove(className);
+  }
+
   public void dropIgnoredLines(ProjectData projectData) {
     if (myIgnoredLines == null) return;
     for (Map.Entry<String, TIntHashSet> e : myIgnoredLines.entrySet()) {
@@ -175,6 +215,32 @@ public class ProjectContext {
     return myInherits != null;
   }
 
+  /**
+   * Collect the classes which enclose anonymous and local classes, see {@link #getOuterClass}.
+   */
+  public synchronized void setCollectOuterClasses(boolean collectOuterClasses) {
+    if (collectOuterClasses) {
+      myOuterClasses = new ConcurrentHashMap<String, String>();
+    } else {
+      myOuterClasses = null;
+    }
+  }
+
+  public void addOuterClass(String className, String outerClassName) {
+    final Map<String, String> outerClasses = myOuterClasses;
+    if (outerClasses == null) return;
+    outerClasses.put(className, outerClassName);
+  }
+
+  /**
+   * @return name of the class enclosing an anonymous or local class, as specified by its <code>EnclosingMethod</code> attribute,
+   * or null if the class is not enclosed or outer classes are not collected
+   */
+  public String getOuterClass(String className) {
+    final Map<String, String> outerClasses = myOuterClasses;
+    return outerClasses == null ? null : outerClasses.get(className);
+  }
+
   /**
    * Apply line mappings: move hits from original line in bytecode to the mapped line.
    */
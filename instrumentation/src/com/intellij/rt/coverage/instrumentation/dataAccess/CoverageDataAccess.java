@@ -50,7 +50,7 @@ public abstract class CoverageDataAccess {
   /**
    * An implementation may change method visitor to ensure correctness of coverage data.
    */
-  public MethodVisitor createMethodVisitor(MethodVisitor mv, String name, boolean hasLines) {
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, int access, String name, String descriptor, boolean hasLines) {
     return mv;
   }
 
@@ -43,7 +43,7 @@ public class CoverageDataAccessVisitor extends ClassVisitor {
     MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
     if (!shouldInstrumentMethod()) {
       myLVAccess = null;
-      return myDataAccess.createMethodVisitor(mv, name, false);
+      return myDataAccess.createMethodVisitor(mv, access, name, descriptor, false);
     }
     myLVAccess = new LocalVariableInserter(mv, access, descriptor, "__$coverage_local$__", myDataAccess.getInit().desc) {
       public void visitCode() {
@@ -51,7 +51,7 @@ public class CoverageDataAccessVisitor extends ClassVisitor {
         super.visitCode();
       }
     };
-    return myDataAccess.createMethodVisitor(myLVAccess, name, true);
+    return myDataAccess.createMethodVisitor(myLVAccess, access, name, descriptor, true);
   }
 
   @Override
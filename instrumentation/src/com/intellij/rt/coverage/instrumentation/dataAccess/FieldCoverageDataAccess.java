@@ -28,9 +28,19 @@ import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
  */
 public class FieldCoverageDataAccess extends CoverageDataAccess {
   private final ExtraFieldInstrumenter myExtraFieldInstrumenter;
+  private final boolean myPreserveFrames;
 
   public FieldCoverageDataAccess(ClassReader cr, final String className, final Init init) {
+    this(cr, className, init, false);
+  }
+
+  /**
+   * @param preserveFrames whether the frames of the class are kept instead of being recomputed,
+   *                       then a frame is added after the field initialization check
+   */
+  public FieldCoverageDataAccess(ClassReader cr, final String className, final Init init, boolean preserveFrames) {
     super(init);
+    myPreserveFrames = preserveFrames;
     myExtraFieldInstrumenter = new ExtraFieldInstrumenter(cr, null, className, init.name, init.desc, true) {
 
       public void initField(MethodVisitor mv) {
@@ -56,9 +66,9 @@ public class FieldCoverageDataAccess extends CoverageDataAccess {
   }
 
   @Override
-  public MethodVisitor createMethodVisitor(MethodVisitor mv, String name, boolean hasLines) {
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, int access, String name, String descriptor, boolean hasLines) {
     if (hasLines || myExtraFieldInstrumenter.isInterface() && InstrumentationUtils.CLASS_INIT.equals(name)) {
-      return myExtraFieldInstrumenter.createMethodVisitor(mv, name);
+      return myExtraFieldInstrumenter.createMethodVisitor(mv, access, name, myPreserveFrames ? descriptor : null);
     }
     return mv;
   }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation.dataAccess;
+
+import org.jetbrains.coverage.org.objectweb.asm.Handle;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+/**
+ * Access coverage data through an invokedynamic instruction,
+ * whose call site is bound to the coverage data on the first execution.
+ * Unlike {@link FieldCoverageDataAccess}, the class shape is not changed.
+ * Supported for class files version 7+.
+ */
+public class IndyCoverageDataAccess extends CoverageDataAccess {
+  private final Handle myBootstrap;
+  private final String myDescriptor;
+
+  public IndyCoverageDataAccess(Init init) {
+    super(init);
+    myBootstrap = new Handle(Opcodes.H_INVOKESTATIC, init.initOwner, init.initName, init.initDesc, false);
+    myDescriptor = "()" + init.desc;
+  }
+
+  @Override
+  public void onMethodStart(MethodVisitor mv, int localVariable) {
+    mv.visitInvokeDynamicInsn(myInit.name, myDescriptor, myBootstrap, myInit.params);
+    mv.visitVarInsn(Opcodes.ASTORE, localVariable);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation.filters;
+
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+/**
+ * Families of filters which may be applicable only to some classes.
+ * The families of a class are found once before the class is visited, see {@link #scan},
+ * so that the filters of other families are not asked about every method of the class.
+ * <p>
+ * A scan may report a family which a class does not have; the filters still check their applicability.
+ */
+public class FilterFamily {
+  /**
+   * Classes with <code>kotlin.Metadata</code> annotation.
+   */
+  public static final int KOTLIN = 1;
+  /**
+   * Kotlin classes with methods which take Compose <code>Composer</code> parameter.
+   */
+  public static final int COMPOSE = KOTLIN | 1 << 1;
+
+  private static final int UTF8_TAG = 1;
+  private static final byte[] KOTLIN_METADATA = toAscii("Lkotlin/Metadata;");
+  private static final byte[] COMPOSER = toAscii("Landroidx/compose/runtime/Composer;");
+
+  /**
+   * Find the families of a class by its constant pool, which contains the names of all annotations and descriptors of all methods.
+   * Most classes are not Kotlin ones, and they are rejected by an exact match of the annotation name.
+   */
+  public static int scan(ClassReader cr) {
+    final int count = cr.getItemCount();
+    boolean isKotlin = false;
+    for (int i = 1; i < count && !isKotlin; i++) {
+      final int offset = getUtf8Offset(cr, i);
+      isKotlin = offset > 0 && cr.readUnsignedShort(offset) == KOTLIN_METADATA.length && matches(cr, offset + 2, KOTLIN_METADATA);
+    }
+    if (!isKotlin) return 0;
+    for (int i = 1; i < count; i++) {
+      final int offset = getUtf8Offset(cr, i);
+      // only method descriptors are searched, skipping large strings like the Kotlin metadata
+      if (offset > 0 && cr.readUnsignedShort(offset) > 0 && cr.readByte(offset + 2) == '(' && contains(cr, offset, COMPOSER)) {
+        return COMPOSE;
+      }
+    }
+    return KOTLIN;
+  }
+
+  /**
+   * @return true if a filter of the <code>family</code> may be applicable to a class of the <code>classFamilies</code>
+   */
+  public static boolean isApplicable(int family, int classFamilies) {
+    return (family & classFamilies) == family;
+  }
+
+  /**
+   * @return offset of the constant pool entry if it is a string, or 0 otherwise
+   */
+  private static int getUtf8Offset(ClassReader cr, int index) {
+    // the second slot of long and double entries has no offset
+    final int offset = cr.getItem(index);
+    return offset > 0 && cr.readByte(offset - 1) == UTF8_TAG ? offset : 0;
+  }
+
+  private static boolean contains(ClassReader cr, int offset, byte[] pattern) {
+    final int start = offset + 2;
+    final int end = start + cr.readUnsignedShort(offset) - pattern.length;
+    for (int i = start; i <= end; i++) {
+      if (matches(cr, i, pattern)) return true;
+    }
+    return false;
+  }
+
+  private static byte[] toAscii(String s) {
+    final byte[] result = new byte[s.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) s.charAt(i);
+    }
+    return result;
+  }
+
+  private static boolean matches(ClassReader cr, int offset, byte[] pattern) {
+    for (int i = 0; i < pattern.length; i++) {
+      if (cr.readByte(offset + i) != pattern[i]) return false;
+    }
+    return true;
+  }
+}
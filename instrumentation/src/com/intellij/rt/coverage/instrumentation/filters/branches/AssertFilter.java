@@ -22,6 +22,7 @@ import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -39,6 +40,12 @@ public class AssertFilter extends CoverageFilter {
     return !KotlinUtils.isKotlinClass(context);
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = 0;
+  }
+
   @Override
   public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
     super.visitFieldInsn(opcode, owner, name, desc);
@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -44,6 +45,14 @@ public class BooleanOperatorFilter extends CoverageFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myTrueLabel = null;
+    myFalseLabel = null;
+    myState = 0;
+  }
+
   @Override
   public void visitJumpInsn(int opcode, Label label) {
     super.visitJumpInsn(opcode, label);
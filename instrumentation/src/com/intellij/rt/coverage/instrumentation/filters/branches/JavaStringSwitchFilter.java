@@ -24,6 +24,7 @@ import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -70,6 +71,14 @@ public class JavaStringSwitchFilter extends CoverageFilter {
     return version >= Opcodes.V1_7 && !KotlinUtils.isKotlinClass(context);
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = 0;
+    mySlot = -1;
+    mySwitch = null;
+  }
+
   @Override
   public void visitInsn(int opcode) {
     super.visitInsn(opcode);
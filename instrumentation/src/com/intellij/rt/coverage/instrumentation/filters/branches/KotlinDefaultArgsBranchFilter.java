@@ -18,9 +18,11 @@ package com.intellij.rt.coverage.instrumentation.filters.branches;
 
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 import org.jetbrains.coverage.org.objectweb.asm.Type;
 
@@ -51,6 +53,18 @@ public class KotlinDefaultArgsBranchFilter extends CoverageFilter {
     return isFilterApplicable(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myIgnoreNextIf = false;
+    myAndVisited = false;
+  }
+
   public static boolean isFilterApplicable(InstrumentationData data) {
     return (data.getMethodAccess() & Opcodes.ACC_SYNTHETIC) != 0
         && KotlinUtils.isKotlinClass(data)
@@ -18,8 +18,10 @@ package com.intellij.rt.coverage.instrumentation.filters.branches;
 
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -45,6 +47,17 @@ public class KotlinOpenMemberWithDefaultArgsFilter extends CoverageFilter {
     return KotlinDefaultArgsBranchFilter.isFilterApplicable(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = 0;
+  }
+
   @Override
   public void visitLineNumber(int line, Label start) {
     super.visitLineNumber(line, start);
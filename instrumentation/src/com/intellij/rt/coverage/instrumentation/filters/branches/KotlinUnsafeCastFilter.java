@@ -18,9 +18,11 @@ package com.intellij.rt.coverage.instrumentation.filters.branches;
 
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -43,6 +45,17 @@ public class KotlinUnsafeCastFilter extends CoverageFilter {
     return KotlinUtils.isKotlinClass(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = 0;
+  }
+
   @Override
   public void visitInsn(int opcode) {
     super.visitInsn(opcode);
@@ -20,9 +20,11 @@ import com.intellij.rt.coverage.data.JumpData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.SwitchData;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.util.HashMap;
@@ -46,6 +48,22 @@ public class KotlinWhenMappingExceptionFilter extends CoverageFilter {
     return KotlinUtils.isKotlinClass(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    if (myJumpLabels != null) myJumpLabels.clear();
+    if (mySwitchLabels != null) mySwitchLabels.clear();
+    myCurrentLabel = null;
+    myCurrentLine = 0;
+    myState = 0;
+    myJumpLabel = null;
+  }
+
   @Override
   public void visitLineNumber(int line, Label start) {
     super.visitLineNumber(line, start);
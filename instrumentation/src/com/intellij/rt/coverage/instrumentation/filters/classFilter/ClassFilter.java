@@ -17,9 +17,16 @@
 package com.intellij.rt.coverage.instrumentation.filters.classFilter;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
+/**
+ * A class visitor which is inserted before the instrumentation when it is applicable to a class.
+ * <p>
+ * A filter instance is reused for the classes instrumented in one thread,
+ * so the state of a filter must be reset in {@link #initFilter}.
+ */
 public abstract class ClassFilter extends ClassVisitor {
   protected InstrumentationData myContext;
 
@@ -27,10 +34,20 @@ public abstract class ClassFilter extends ClassVisitor {
     super(Opcodes.API_VERSION);
   }
 
+  /**
+   * Prepare the filter to visit a class. Called before every class the filter is applicable to.
+   */
   public void initFilter(ClassVisitor cv, InstrumentationData context) {
     this.cv = cv;
     myContext = context;
   }
 
   public abstract boolean isApplicable(InstrumentationData context);
+
+  /**
+   * @return the family of classes this filter may be applicable to, see {@link FilterFamily}, or 0 for any class
+   */
+  public int getFamily() {
+    return 0;
+  }
 }
@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.classFilter;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import org.jetbrains.coverage.org.objectweb.asm.AnnotationVisitor;
 
 public class KotlinClassMarkerFilter extends ClassFilter {
@@ -28,6 +29,11 @@ public class KotlinClassMarkerFilter extends ClassFilter {
     return true;
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
   @Override
   public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
     if (KOTLIN_METADATA.equals(descriptor)) {
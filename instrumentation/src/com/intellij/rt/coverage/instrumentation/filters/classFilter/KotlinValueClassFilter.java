@@ -18,7 +18,9 @@ package com.intellij.rt.coverage.instrumentation.filters.classFilter;
 
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.FieldVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
@@ -49,6 +51,26 @@ public class KotlinValueClassFilter extends ClassFilter {
     return true;
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(ClassVisitor cv, InstrumentationData context) {
+    super.initFilter(cv, context);
+    myEqualsVisited = false;
+    myToStringVisited = false;
+    myHashCodeVisited = false;
+    myConstructorVisited = false;
+    myBoxingVisited = false;
+    myUnboxingVisited = false;
+    myGetterLine = -1;
+    myConstructorLine = -1;
+    myFieldsCount = 0;
+    myFieldType = null;
+  }
+
   @Override
   public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
     final MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
@@ -48,6 +48,21 @@ public class PrivateConstructorOfUtilClassFilter extends ClassFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(ClassVisitor cv, InstrumentationData context) {
+    super.initFilter(cv, context);
+    myIsAbstractClass = false;
+    myHasMethods = false;
+    myAllMethodsStatic = true;
+    myHasConstFields = false;
+    myAllFieldsConst = true;
+    myIsCompanionObject = false;
+    myIsKotlinObject = false;
+    myConstructorIsEmpty = true;
+    myConstructorLines = null;
+    myName = null;
+  }
+
   @Override
   public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
     super.visit(version, access, name, signature, superName, interfaces);
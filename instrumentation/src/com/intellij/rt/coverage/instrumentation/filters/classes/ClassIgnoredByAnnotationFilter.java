@@ -28,4 +28,9 @@ public class ClassIgnoredByAnnotationFilter implements ClassSignatureFilter {
   public boolean shouldIgnore(InstrumentationData context) {
     return !context.getProjectContext().getFilteredStorage().checkClassIncluded(context);
   }
+
+  @Override
+  public int getFamily() {
+    return 0;
+  }
 }
@@ -17,10 +17,16 @@
 package com.intellij.rt.coverage.instrumentation.filters.classes;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 
 /**
  * Filters out coverage from class if it's signature matches filter.
  */
 public interface ClassSignatureFilter {
   boolean shouldIgnore(InstrumentationData context);
+
+  /**
+   * @return the family of classes this filter may be applicable to, see {@link FilterFamily}, or 0 for any class
+   */
+  int getFamily();
 }
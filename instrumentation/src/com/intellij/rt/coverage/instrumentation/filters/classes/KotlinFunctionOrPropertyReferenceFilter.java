@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.classes;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
@@ -36,6 +37,10 @@ public class KotlinFunctionOrPropertyReferenceFilter implements ClassSignatureFi
         && (isFunctionReferenceClass(superClass) || isPropertyReferenceClass(superClass));
   }
 
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
   private static boolean isFunctionReferenceClass(String superClass) {
     return superClass != null
         && superClass.startsWith("kotlin/jvm/internal/FunctionReference");
@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.instrumentation.filters.classes;
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
 /**
@@ -39,4 +40,9 @@ public class KotlinSerializerFilter implements ClassSignatureFilter {
     String parentName = InstrumentationUtils.getParentClassIfIsInner(cr);
     return parentName != null && (parentName + SERIALIZER_SUFFIX).equals(className);
   }
+
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
 }
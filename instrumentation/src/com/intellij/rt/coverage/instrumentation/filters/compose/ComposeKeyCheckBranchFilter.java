@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.compose;
 
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.branches.KotlinDefaultArgsBranchFilter;
 import com.intellij.rt.coverage.instrumentation.filters.lines.CoverageFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
@@ -48,6 +49,11 @@ public class ComposeKeyCheckBranchFilter extends CoverageFilter {
     return ComposeUtils.isComposeMethod(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.COMPOSE;
+  }
+
   @Override
   public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
     // Default args are inserted directly in the method, no $default method is generated
@@ -55,6 +61,8 @@ public class ComposeKeyCheckBranchFilter extends CoverageFilter {
     defaultArgsFilter.initFilter(methodVisitor, context);
     super.initFilter(defaultArgsFilter, context);
     myKeyIndex = getKeyParameterVarIndex();
+    myState = State.INITIAL;
+    mySavedVarIndex = -1;
   }
 
   @Override
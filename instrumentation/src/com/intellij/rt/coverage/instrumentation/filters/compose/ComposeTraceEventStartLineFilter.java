@@ -17,8 +17,10 @@
 package com.intellij.rt.coverage.instrumentation.filters.compose;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.lines.BaseLineFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -35,6 +37,17 @@ public class ComposeTraceEventStartLineFilter extends BaseLineFilter {
     return ComposeUtils.isComposeMethod(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.COMPOSE;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = -1;
+  }
+
   @Override
   protected boolean shouldRemoveLine() {
     return myState == 1;
@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import org.jetbrains.coverage.org.objectweb.asm.AnnotationVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -39,6 +40,12 @@ public class AnnotationIgnoredMethodFilter extends CoverageFilter {
         || excludeAnnotations != null && !excludeAnnotations.isEmpty();
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myShouldIgnore = false;
+  }
+
   @Override
   public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
     final String annotationName = ClassNameUtil.convertVMNameToFQN(descriptor);
@@ -16,8 +16,10 @@
 
 package com.intellij.rt.coverage.instrumentation.filters.lines;
 
+import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 
 /**
  * This is a helper filter to ignore a line.
@@ -43,6 +45,13 @@ public abstract class BaseLineFilter extends CoverageFilter {
   private static final int DEBUG_LINE = -1;
   private static final Class<?> DEBUG_FILTER_CLASS = BaseLineFilter.class;
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myHasInstructions = false;
+    myCurrentLine = -1;
+  }
+
   private void tryRemoveLine() {
     if (myCurrentLine != -1 && !myHasInstructions && shouldRemoveLine()) {
       myContext.removeLine(myCurrentLine);
@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -35,6 +36,14 @@ public class ClosingBracesFilter extends BaseLineFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    mySeenReturn = false;
+    mySeenGoto = false;
+    myLinesCount = 0;
+  }
+
   @Override
   protected boolean shouldRemoveLine() {
     return (mySeenReturn || mySeenGoto) && myLinesCount > 1;
@@ -17,11 +17,15 @@
 package com.intellij.rt.coverage.instrumentation.filters.lines;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
  * Filter for undesirable lines. These filters are enabled in line and branch coverage mode.
+ * <p>
+ * A filter instance is reused for the methods instrumented in one thread,
+ * so the state of a filter must be reset in {@link #initFilter}.
  */
 public abstract class CoverageFilter extends MethodVisitor {
   protected InstrumentationData myContext;
@@ -30,10 +34,20 @@ public abstract class CoverageFilter extends MethodVisitor {
     super(Opcodes.API_VERSION);
   }
 
+  /**
+   * Prepare the filter to visit a method. Called before every method the filter is applicable to.
+   */
   public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
     mv = methodVisitor;
     myContext = context;
   }
 
   public abstract boolean isApplicable(InstrumentationData context);
+
+  /**
+   * @return the family of classes this filter may be applicable to, see {@link FilterFamily}, or 0 for any class
+   */
+  public int getFamily() {
+    return 0;
+  }
 }
@@ -19,9 +19,11 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.branches.KotlinDefaultArgsBranchFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 import org.jetbrains.coverage.org.objectweb.asm.Type;
 
@@ -90,6 +92,26 @@ public class KotlinCoroutinesFilter extends CoverageFilter {
         && (context.getMethodName().equals("invokeSuspend") || context.getMethodDesc().endsWith("Lkotlin/coroutines/Continuation;)" + InstrumentationUtils.OBJECT_TYPE));
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myGetCoroutinesSuspendedVisited = false;
+    myStoreCoroutinesSuspendedVisited = false;
+    myLoadCoroutinesSuspendedVisited = false;
+    myLoadStateLabelVisited = false;
+    mySuspendCallVisited = false;
+    myCoroutinesSuspendedIndex = -1;
+    myLine = -1;
+    myHadLineDataBefore = false;
+    myState = 0;
+    myHasInstructions = false;
+  }
+
   @Override
   public void visitLineNumber(int line, Label start) {
     myHadLineDataBefore = myContext.getLineData(line) != null;
@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.branches.KotlinDefaultArgsBranchFilter;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
@@ -55,6 +56,11 @@ public class KotlinDefaultArgsLineFilter extends CoverageFilter {
     return KotlinDefaultArgsBranchFilter.isFilterApplicable(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
   @Override
   public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
     super.initFilter(methodVisitor, context);
@@ -68,6 +74,9 @@ public class KotlinDefaultArgsLineFilter extends CoverageFilter {
     myMinMaskIndex = range[0];
     myMaxMaskIndex = range[1];
     myHasInstructions = false;
+    myFirstLine = -1;
+    myCurrentLine = -1;
+    myState = 0;
   }
 
   @Override
@@ -18,8 +18,10 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import org.jetbrains.coverage.org.objectweb.asm.AnnotationVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -33,6 +35,17 @@ public class KotlinDeprecatedMethodFilter extends CoverageFilter {
     return KotlinUtils.isKotlinClass(context);
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myShouldIgnore = false;
+  }
+
   @Override
   public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
     final AnnotationVisitor av = super.visitAnnotation(descriptor, visible);
@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
+import com.intellij.rt.coverage.instrumentation.filters.FilterFamily;
 import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
@@ -59,12 +60,20 @@ public class KotlinImplementerDefaultInterfaceMemberFilter extends CoverageFilte
     return KotlinUtils.isKotlinClass(context) && interfaces != null && interfaces.length > 0;
   }
 
+  @Override
+  public int getFamily() {
+    return FilterFamily.KOTLIN;
+  }
+
   @Override
   public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
     super.initFilter(methodVisitor, context);
     myState = State.UNKNOWN;
     myLoadArgsNumber = Type.getArgumentTypes(context.getMethodDesc()).length + 1;
     myLoadArgIndex = 0;
+    matchedInstructions = 0;
+    myLine = -1;
+    myPreviousLineData = null;
   }
 
   private boolean completed() {
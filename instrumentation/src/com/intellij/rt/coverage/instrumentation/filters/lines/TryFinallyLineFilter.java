@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.util.HashSet;
@@ -50,6 +51,14 @@ public class TryFinallyLineFilter extends BaseLineFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myCatchLabels.clear();
+    myState = State.INITIAL;
+    myCatchLabelVisited = false;
+  }
+
   @Override
   protected boolean shouldRemoveLine() {
     return myState == State.F1_ASTORE
@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.org.objectweb.asm.Handle;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.util.HashSet;
@@ -39,6 +40,14 @@ public class TryWithResourcesJava8LineFilter extends BaseLineFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myCandidates.clear();
+    myCatchStarts.clear();
+    myState = 1;
+  }
+
   @Override
   protected boolean shouldRemoveLine() {
     return myState == 9;
@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.instrumentation.filters.lines;
 
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 /**
@@ -71,6 +72,14 @@ public class TryWithResourcesLineFilter extends BaseLineFilter {
     return true;
   }
 
+  @Override
+  public void initFilter(MethodVisitor methodVisitor, InstrumentationData context) {
+    super.initFilter(methodVisitor, context);
+    myState = State.INITIAL;
+    myJumpsToRemove = 0;
+    myExceptionVarIndex = -1;
+  }
+
   @Override
   protected boolean shouldRemoveLine() {
     return myState == State.GOTO || myState == State.THROW || myState == State.CALL_CLOSE
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.junit5;
+
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.TestSource;
+import org.junit.platform.engine.support.descriptor.ClassSource;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.TestPlan;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit Platform listener which reports test boundaries to the test discovery agent
+ * and to the coverage agent in test tracking mode. It is registered with the service loader,
+ * so it is enough to put this module on the test classpath.
+ * <p>
+ * The entry points of the agents are looked up once and bound to the project data instance,
+ * so a test start or finish costs a direct call instead of a reflective lookup and invocation.
+ * The agents keep a single current test, so usages of tests running at the same time would be mixed.
+ * Therefore, the listener does not report tests of a test plan which is configured for parallel execution,
+ * and stops reporting tests of a test plan once two tests are running at the same time.
+ * <p>
+ * The test discovery data is flushed by the agent shutdown hook, as one JVM may execute several test plans.
+ */
+public class TestDiscoveryExecutionListener implements TestExecutionListener {
+  private static final String TEST_DISCOVERY_DATA = "com.intellij.rt.coverage.data.TestDiscoveryProjectData";
+  private static final String COVERAGE_DATA = "com.intellij.rt.coverage.data.ProjectData";
+  private static final String PARALLEL_EXECUTION_ENABLED = "junit.jupiter.execution.parallel.enabled";
+
+  private final MethodHandle myDiscoveryStarted;
+  private final MethodHandle myDiscoveryEnded;
+  private final MethodHandle myTrackingStarted;
+  private final MethodHandle myTrackingEnded;
+
+  private final AtomicInteger myRunningTests = new AtomicInteger();
+  private final AtomicBoolean myParallelExecution = new AtomicBoolean();
+
+  public TestDiscoveryExecutionListener() {
+    final MethodType classAndMethod = MethodType.methodType(void.class, String.class, String.class);
+    final MethodType testName = MethodType.methodType(void.class, String.class);
+    final Object discoveryData = getData(TEST_DISCOVERY_DATA);
+    myDiscoveryStarted = findMethod(discoveryData, "testDiscoveryStarted", classAndMethod);
+    myDiscoveryEnded = findMethod(discoveryData, "testDiscoveryEnded", classAndMethod);
+    final Object coverageData = getData(COVERAGE_DATA);
+    myTrackingStarted = findMethod(coverageData, "testStarted", testName);
+    myTrackingEnded = findMethod(coverageData, "testEnded", testName);
+  }
+
+  @Override
+  public void testPlanExecutionStarted(TestPlan testPlan) {
+    if (!isEnabled()) return;
+    myRunningTests.set(0);
+    myParallelExecution.set(false);
+    if (isParallelExecutionEnabled(testPlan)) {
+      reportParallelExecution(PARALLEL_EXECUTION_ENABLED + " is set");
+    }
+  }
+
+  @Override
+  public void executionStarted(TestIdentifier testIdentifier) {
+    if (!testIdentifier.isTest() || !isEnabled() || myParallelExecution.get()) return;
+    final String className = getClassName(testIdentifier);
+    if (className == null) return;
+    final String methodName = getMethodName(testIdentifier);
+    if (myRunningTests.incrementAndGet() > 1) {
+      reportParallelExecution("several tests are running at the same time");
+      return;
+    }
+    try {
+      if (myDiscoveryStarted != null) myDiscoveryStarted.invokeExact(className, methodName);
+      if (myTrackingStarted != null) myTrackingStarted.invokeExact(getTestName(className, methodName));
+    } catch (Throwable t) {
+      t.printStackTrace();
+    }
+  }
+
+  @Override
+  public void executionFinished(TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+    if (!testIdentifier.isTest() || !isEnabled() || myParallelExecution.get()) return;
+    final String className = getClassName(testIdentifier);
+    if (className == null) return;
+    final String methodName = getMethodName(testIdentifier);
+    try {
+      if (myTrackingEnded != null) myTrackingEnded.invokeExact(getTestName(className, methodName));
+      if (myDiscoveryEnded != null) myDiscoveryEnded.invokeExact(className, methodName);
+    } catch (Throwable t) {
+      t.printStackTrace();
+    } finally {
+      myRunningTests.decrementAndGet();
+    }
+  }
+
+  private boolean isEnabled() {
+    return myDiscoveryStarted != null || myTrackingStarted != null;
+  }
+
+  /**
+   * Stops reporting tests until the next test plan, the running tests are not reported either.
+   */
+  private void reportParallelExecution(String reason) {
+    if (myParallelExecution.getAndSet(true)) return;
+    System.err.println("Test discovery and test tracking are disabled for the tests executed in parallel: " + reason);
+  }
+
+  private static boolean isParallelExecutionEnabled(TestPlan testPlan) {
+    try {
+      return testPlan.getConfigurationParameters().getBoolean(PARALLEL_EXECUTION_ENABLED).orElse(false);
+    } catch (NoSuchMethodError e) {
+      // JUnit Platform before 1.8, parallel execution is still detected when the tests overlap
+      return false;
+    }
+  }
+
+  private static String getClassName(TestIdentifier testIdentifier) {
+    final TestSource source = testIdentifier.getSource().orElse(null);
+    if (source instanceof MethodSource) return ((MethodSource) source).getClassName();
+    if (source instanceof ClassSource) return ((ClassSource) source).getClassName();
+    return null;
+  }
+
+  /**
+   * Dynamic and parameterized tests share the source method, so the display name is used when there is no method.
+   */
+  private static String getMethodName(TestIdentifier testIdentifier) {
+    final TestSource source = testIdentifier.getSource().orElse(null);
+    if (source instanceof MethodSource) return ((MethodSource) source).getMethodName();
+    return testIdentifier.getDisplayName();
+  }
+
+  /**
+   * Test name format expected by the test tracking mode of the coverage agent.
+   */
+  private static String getTestName(String className, String methodName) {
+    return className + "," + methodName;
+  }
+
+  /**
+   * @return project data of the agent or null if the agent is not attached
+   */
+  private static Object getData(String className) {
+    try {
+      final Class<?> dataClass = Class.forName(className);
+      return MethodHandles.publicLookup()
+          .findStatic(dataClass, "getProjectData", MethodType.methodType(dataClass))
+          .invoke();
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (Throwable t) {
+      t.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * @return handle bound to <code>data</code>, so that its type is exactly <code>type</code>
+   */
+  private static MethodHandle findMethod(Object data, String name, MethodType type) {
+    if (data == null) return null;
+    try {
+      return MethodHandles.publicLookup().findVirtual(data.getClass(), name, type).bindTo(data);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.junit5;
+
+import com.intellij.rt.coverage.data.ClassMetadata;
+import com.intellij.rt.coverage.data.NameEnumerator;
+import com.intellij.rt.coverage.data.TestDiscoveryDataListener;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data listener of the test discovery agent in tests, records the finished tests as <code>className.methodName</code>.
+ */
+public class RecordingTestDiscoveryDataListener implements TestDiscoveryDataListener {
+  private static final List<String> ourFinishedTests = Collections.synchronizedList(new ArrayList<String>());
+
+  static List<String> getFinishedTests(String className) {
+    final List<String> result = new ArrayList<String>();
+    synchronized (ourFinishedTests) {
+      for (String test : ourFinishedTests) {
+        if (test.startsWith(className + ".")) result.add(test);
+      }
+    }
+    return result;
+  }
+
+  static void clear() {
+    ourFinishedTests.clear();
+  }
+
+  public void testFinished(String className, String methodName, TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames, List<int[]> openedFiles) {
+    ourFinishedTests.add(className + "." + methodName);
+  }
+
+  public void testsFinished() {
+  }
+
+  public void addMetadata(Map<String, String> metadata) {
+  }
+
+  public void addClassMetadata(List<ClassMetadata> metadata) {
+  }
+
+  public NameEnumerator getNameEnumerator() {
+    return new NameEnumerator();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.junit5;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.engine.TestDescriptor;
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.UniqueId;
+import org.junit.platform.engine.support.descriptor.AbstractTestDescriptor;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.core.LauncherConfig;
+import org.junit.platform.launcher.core.LauncherFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+import static org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder.request;
+
+/**
+ * Runs sample tests with the JUnit Platform launcher and checks the tests reported to the test discovery agent.
+ */
+public class TestDiscoveryExecutionListenerTest {
+  private static final String SAMPLE = SampleTest.class.getName();
+
+  @BeforeEach
+  public void setUp() {
+    RecordingTestDiscoveryDataListener.clear();
+  }
+
+  @Test
+  public void testTestsAreReported() {
+    execute(new TestDiscoveryExecutionListener(), Collections.<String, String>emptyMap());
+    assertEquals(Arrays.asList(SAMPLE + ".first", SAMPLE + ".second"), getReportedTests());
+  }
+
+  @Test
+  public void testParallelExecutionIsRefused() {
+    final TestDiscoveryExecutionListener listener = new TestDiscoveryExecutionListener();
+    execute(listener, Collections.singletonMap("junit.jupiter.execution.parallel.enabled", "true"));
+    assertEquals(Collections.<String>emptyList(), getReportedTests());
+
+    // the next sequential test plan is reported again
+    execute(listener, Collections.<String, String>emptyMap());
+    assertEquals(Arrays.asList(SAMPLE + ".first", SAMPLE + ".second"), getReportedTests());
+  }
+
+  @Test
+  public void testOverlappingTestsAreNotReported() {
+    final TestDiscoveryExecutionListener listener = new TestDiscoveryExecutionListener();
+    final TestIdentifier first = createTest("first");
+    final TestIdentifier second = createTest("second");
+    final TestIdentifier third = createTest("third");
+
+    listener.executionStarted(first);
+    listener.executionStarted(second);
+    listener.executionFinished(second, TestExecutionResult.successful());
+    listener.executionFinished(first, TestExecutionResult.successful());
+    listener.executionStarted(third);
+    listener.executionFinished(third, TestExecutionResult.successful());
+
+    assertEquals(Collections.<String>emptyList(), getReportedTests());
+  }
+
+  private static List<String> getReportedTests() {
+    final List<String> tests = RecordingTestDiscoveryDataListener.getFinishedTests(SAMPLE);
+    Collections.sort(tests);
+    return tests;
+  }
+
+  private static void execute(TestDiscoveryExecutionListener listener, Map<String, String> configuration) {
+    // the listener is registered explicitly, so that the instance under test is the only one
+    final Launcher launcher = LauncherFactory.create(LauncherConfig.builder()
+        .enableTestExecutionListenerAutoRegistration(false)
+        .build());
+    final LauncherDiscoveryRequest request = request()
+        .selectors(selectClass(SampleTest.class))
+        .configurationParameters(configuration)
+        .build();
+    launcher.execute(request, listener);
+  }
+
+  private static TestIdentifier createTest(String methodName) {
+    final UniqueId id = UniqueId.root("test", methodName);
+    return TestIdentifier.from(new AbstractTestDescriptor(id, methodName, MethodSource.from(SAMPLE, methodName)) {
+      public Type getType() {
+        return TestDescriptor.Type.TEST;
+      }
+    });
+  }
+
+  @Tag("sample")
+  public static class SampleTest {
+    @Test
+    public void first() {
+    }
+
+    @Test
+    public void second() {
+    }
+  }
+}
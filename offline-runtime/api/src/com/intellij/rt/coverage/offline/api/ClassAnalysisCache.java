@@ -0,0 +1,150 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.offline.api;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.UnloadedUtil;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structural analysis of classes (lines, probe ids and methods) is kept between calls of {@link CoverageCollector},
+ * so that only classes with changed bytes are analysed again.
+ * A class is analysed into a template without hits, which is copied for every collection to apply the current hits.
+ * Only the classes of the last collection are kept, so the cache does not outgrow the classes requested by the caller.
+ */
+class ClassAnalysisCache {
+  private final ProjectContext myContext;
+  private final Map<String, CachedClass> myClasses = new HashMap<String, CachedClass>();
+
+  ClassAnalysisCache(InstrumentationOptions options) {
+    // class finder is not used, as classes are passed one by one
+    myContext = new ProjectContext(options, null);
+  }
+
+  ProjectContext getContext() {
+    return myContext;
+  }
+
+  /**
+   * @return project data with analysed classes of the finder, hits are not applied yet
+   */
+  synchronized ProjectData createProjectData(ClassFinder classFinder) {
+    final ProjectData projectData = new ProjectData();
+    final Set<String> classNames = new HashSet<String>();
+    classFinder.iterateMatchedClasses(new ClassEntry.Consumer() {
+      public void consume(ClassEntry classEntry) {
+        final String className = classEntry.getClassName();
+        // the first class with this name wins, like in unloaded classes analysis
+        if (!classNames.add(className)) return;
+        try {
+          final InputStream is = classEntry.getClassInputStream();
+          if (is == null) return;
+          final byte[] bytes;
+          try {
+            bytes = readBytes(is);
+          } finally {
+            CoverageIOUtil.close(is);
+          }
+          final ClassData template = getTemplate(className, bytes);
+          if (template != null) {
+            projectData.addClassData(template.copyStructure());
+          }
+        } catch (Throwable e) {
+          ErrorReporter.info("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
+        }
+      }
+    });
+    for (Iterator<String> it = myClasses.keySet().iterator(); it.hasNext(); ) {
+      final String className = it.next();
+      if (classNames.contains(className)) continue;
+      it.remove();
+      myContext.dropClass(className);
+    }
+    return projectData;
+  }
+
+  private ClassData getTemplate(String className, byte[] bytes) {
+    final byte[] hash = hash(bytes);
+    final CachedClass cached = myClasses.get(className);
+    if (cached != null) {
+      if (Arrays.equals(cached.myHash, hash)) return cached.myTemplate;
+      myContext.dropClass(className);
+    }
+    final ClassData template = analyse(className, bytes);
+    myClasses.put(className, new CachedClass(hash, template));
+    return template;
+  }
+
+  /**
+   * @return analysed class without hits or null if the class has no coverage data
+   */
+  ClassData analyse(String className, byte[] bytes) {
+    final ProjectData projectData = new ProjectData();
+    UnloadedUtil.appendUnloadedClass(projectData, className, new ClassReader(bytes), myContext);
+    final ClassData classData = projectData.getClassData(className);
+    return classData == null || classData.getLines() == null ? null : classData;
+  }
+
+  private static byte[] readBytes(InputStream is) throws IOException {
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      os.write(buffer, 0, read);
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] hash(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class CachedClass {
+    private final byte[] myHash;
+    /**
+     * Null if the class has no coverage data, e.g. it is filtered out.
+     */
+    private final ClassData myTemplate;
+
+    private CachedClass(byte[] hash, ClassData template) {
+      myHash = hash;
+      myTemplate = template;
+    }
+  }
+}
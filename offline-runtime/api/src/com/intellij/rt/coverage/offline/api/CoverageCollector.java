@@ -19,8 +19,6 @@ package com.intellij.rt.coverage.offline.api;
 import com.intellij.rt.coverage.data.*;
 import com.intellij.rt.coverage.instrument.RawReportLoader;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
-import com.intellij.rt.coverage.instrumentation.UnloadedUtil;
-import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.offline.RawProjectData;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 
@@ -29,6 +27,11 @@ import java.util.List;
 import java.util.Map;
 
 public class CoverageCollector {
+  private static final ClassAnalysisCache ourAnalysisCache = new ClassAnalysisCache(new InstrumentationOptions.Builder()
+      .setBranchCoverage(true)
+      .setSaveSource(true)
+      .build());
+
   static List<ClassCoverage> collect(RawProjectData rawData, ClassFinder classFinder) {
     List<ClassCoverage> classes = new ArrayList<ClassCoverage>();
     if (rawData == null) return classes;
@@ -54,16 +57,14 @@ public class CoverageCollector {
   }
 
   private static ProjectData collectRawData(RawProjectData rawData, ClassFinder classFinder) {
-    ProjectData projectData = new ProjectData();
-    InstrumentationOptions options = new InstrumentationOptions.Builder()
-        .setBranchCoverage(true)
-        .setSaveSource(true)
-        .build();
-    ProjectContext context = new ProjectContext(options, classFinder);
-    UnloadedUtil.appendUnloaded(projectData, context);
-    RawReportLoader.apply(projectData, rawData);
-    context.finalizeCoverage(projectData);
-    return projectData;
+    // the context of the cache keeps line mappings of the analysed classes, which are changed with the analysis
+    synchronized (ourAnalysisCache) {
+      ProjectData projectData = ourAnalysisCache.createProjectData(classFinder);
+      final InstrumentationOptions options = ourAnalysisCache.getContext().getOptions();
+      RawReportLoader.apply(projectData, rawData, options.isMinimizeProbes, options.isCalculateHits);
+      ourAnalysisCache.getContext().finalizeCoverage(projectData);
+      return projectData;
+    }
   }
 
   private static LineCoverage collectLineCoverage(LineData lineData) {
@@ -22,10 +22,26 @@ package com.intellij.rt.coverage.offline;
 public class RawClassData {
   public final String name;
   public final Object hits;
+  /**
+   * Whether the class was instrumented to count hits rather than to mark covered probes.
+   * It may differ from the array type of loaded data, which is always <code>int[]</code>.
+   */
+  public final boolean calculateHits;
+  /**
+   * Whether the class was instrumented with minimized probes, so the hits of the omitted probes
+   * must be inferred by the reporter from the same class analysis.
+   */
+  public final boolean minimizedProbes;
 
   public RawClassData(String name, Object hits) {
+    this(name, hits, hits instanceof int[], false);
+  }
+
+  public RawClassData(String name, Object hits, boolean calculateHits, boolean minimizedProbes) {
     this.name = name;
     this.hits = hits;
+    this.calculateHits = calculateHits;
+    this.minimizedProbes = minimizedProbes;
   }
 
   public int getLength() {
@@ -21,51 +21,254 @@ import com.intellij.rt.coverage.util.CoverageIOUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This report is used in case of offline instrumentation.
  * As no class file analysis is done in runtime, this report stores coverage results
  * in row format. It includes only class names and arrays with hits.
  * On load, this information could be applied to a ProjectData with already analysed classes.
+ * <p>
+ * The format is defined by the configuration line following the magic number.
+ * An empty line after {@link #MAGIC} stands for the initial format, where every class name and every hit are written as is.
+ * In the {@link #SPARSE_FORMAT} package names are written once as a dictionary,
+ * and each hits array is written in the smallest of the {@link #DENSE}, {@link #BITMAP} or {@link #RUNS} encodings.
+ * The header of each class also holds the instrumentation modes of the class, see {@link #CLASS_CALCULATE_HITS},
+ * so that the reporter could detect classes which were instrumented with options different from its own.
+ * The sparse format starts with {@link #SPARSE_MAGIC}, as the readers of the initial format ignore the configuration line,
+ * so they reject the file instead of reading it incorrectly.
  */
 public class RawHitsReport {
   private static final int MAGIC = 284996684;
+  private static final int SPARSE_MAGIC = 284996685;
+  private static final String SPARSE_FORMAT = "sparse";
 
+  /**
+   * All hits are zero, nothing is written.
+   */
+  private static final int ZEROS = 0;
+  /**
+   * Every hit is written.
+   */
+  private static final int DENSE = 1;
+  /**
+   * Bitmap of non-zero hits followed by the non-zero hits.
+   */
+  private static final int BITMAP = 2;
+  /**
+   * Number of runs followed by pairs of zero and non-zero runs lengths, each followed by the non-zero hits of the run.
+   * Trailing zeros are implied by the array length.
+   */
+  private static final int RUNS = 3;
+  /**
+   * All non-zero hits are equal to 1 and are not written, which is always the case in the line mask mode.
+   */
+  private static final int ONES_FLAG = 0x10;
+
+  /**
+   * The class counts hits instead of marking covered probes.
+   */
+  private static final int CLASS_CALCULATE_HITS = 0x1;
+  /**
+   * The class was instrumented with minimized probes.
+   */
+  private static final int CLASS_MINIMIZED_PROBES = 0x2;
+
+  /**
+   * The report is written to a temporary file which is then renamed,
+   * so that a process killed during the dump never leaves a truncated report.
+   */
   static void dump(File file, RawProjectData data) {
     DataOutputStream os = null;
+    File tempFile = null;
     try {
-      if (!file.exists()) {
-        file.getParentFile().mkdirs();
-        file.createNewFile();
-      }
+      final File parent = file.getAbsoluteFile().getParentFile();
+      parent.mkdirs();
+      tempFile = File.createTempFile(file.getName(), ".tmp", parent);
 
-      os = CoverageIOUtil.openWriteFile(file);
+      os = CoverageIOUtil.openWriteFile(tempFile);
       dump(os, data);
+      os.close();
+      os = null;
+      if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+        throw new IOException("Failed to rename " + tempFile + " to " + file);
+      }
     } catch (Throwable e) {
       ErrorReporter.warn("Error during coverage report dump", e);
     } finally {
       CoverageIOUtil.close(os);
+      if (tempFile != null && tempFile.exists()) {
+        tempFile.delete();
+      }
     }
   }
 
   public static void dump(DataOutput out, RawProjectData data) throws IOException {
-    CoverageIOUtil.writeINT(out, MAGIC);
+    CoverageIOUtil.writeINT(out, SPARSE_MAGIC);
+    CoverageIOUtil.writeUTF(out, SPARSE_FORMAT);
 
-    // leave empty line as a space for format configuration
-    CoverageIOUtil.writeUTF(out, "");
+    // classes may be registered concurrently, so the dictionary is built from a snapshot
+    final List<RawClassData> classes = new ArrayList<RawClassData>(data.getClasses());
+    final Map<String, Integer> packageIds = new HashMap<String, Integer>();
+    final List<String> packages = new ArrayList<String>();
+    for (RawClassData classData : classes) {
+      final String packageName = getPackageName(classData.name);
+      if (!packageIds.containsKey(packageName)) {
+        packageIds.put(packageName, packages.size());
+        packages.add(packageName);
+      }
+    }
+    CoverageIOUtil.writeINT(out, packages.size());
+    for (String packageName : packages) {
+      CoverageIOUtil.writeUTF(out, packageName);
+    }
 
-    for (RawClassData classData : data.getClasses()) {
-      int[] hits = CommonArrayUtil.getIntArray(classData.hits);
+    for (RawClassData classData : classes) {
+      final int[] hits = copyHits(classData.hits);
       if (hits == null || hits.length == 0) continue;
-      CoverageIOUtil.writeUTF(out, classData.name);
+      final String packageName = getPackageName(classData.name);
+      CoverageIOUtil.writeINT(out, packageIds.get(packageName) + 1);
+      CoverageIOUtil.writeUTF(out, packageName.length() == 0 ? classData.name : classData.name.substring(packageName.length() + 1));
       CoverageIOUtil.writeINT(out, hits.length);
+      out.writeByte((classData.calculateHits ? CLASS_CALCULATE_HITS : 0) | (classData.minimizedProbes ? CLASS_MINIMIZED_PROBES : 0));
+      writeHits(out, hits);
+    }
+
+    // file end marker
+    CoverageIOUtil.writeINT(out, 0);
+  }
+
+  /**
+   * The hits may be updated by the application during the dump, while the encoding is chosen in one pass
+   * over the hits and written in another one, so both passes must see the same values.
+   */
+  private static int[] copyHits(Object hits) {
+    if (hits instanceof int[]) return ((int[]) hits).clone();
+    // a boolean mask is converted to a new array
+    return CommonArrayUtil.getIntArray(hits);
+  }
+
+  /**
+   * @param hits must not be modified concurrently, see {@link #copyHits}
+   */
+  private static void writeHits(DataOutput out, int[] hits) throws IOException {
+    int nonZeroCount = 0;
+    int nonZeroSize = 0;
+    int denseSize = 0;
+    int runsSize = 0;
+    int runCount = 0;
+    boolean ones = true;
+    int zeroRun = 0;
+    int nonZeroRun = 0;
+    for (int hit : hits) {
+      final int size = sizeOfINT(hit);
+      denseSize += size;
+      if (hit == 0) {
+        if (nonZeroRun > 0) {
+          runsSize += sizeOfINT(zeroRun) + sizeOfINT(nonZeroRun);
+          runCount++;
+          zeroRun = 0;
+          nonZeroRun = 0;
+        }
+        zeroRun++;
+      } else {
+        nonZeroRun++;
+        nonZeroCount++;
+        nonZeroSize += size;
+        ones &= hit == 1;
+      }
+    }
+    if (nonZeroRun > 0) {
+      runsSize += sizeOfINT(zeroRun) + sizeOfINT(nonZeroRun);
+      runCount++;
+    }
+    if (nonZeroCount == 0) {
+      out.writeByte(ZEROS);
+      return;
+    }
+    final int valuesSize = ones ? 0 : nonZeroSize;
+    final int bitmapSize = (hits.length + 7) / 8 + valuesSize;
+    runsSize += sizeOfINT(runCount) + valuesSize;
+    if (denseSize <= bitmapSize && denseSize <= runsSize) {
+      out.writeByte(DENSE);
       for (int hit : hits) {
         CoverageIOUtil.writeINT(out, hit);
       }
+    } else if (bitmapSize <= runsSize) {
+      out.writeByte(BITMAP | (ones ? ONES_FLAG : 0));
+      for (int i = 0; i < hits.length; i += 8) {
+        int bits = 0;
+        for (int j = 0; j < 8 && i + j < hits.length; j++) {
+          if (hits[i + j] != 0) bits |= 1 << j;
+        }
+        out.writeByte(bits);
+      }
+      if (!ones) {
+        for (int hit : hits) {
+          if (hit != 0) CoverageIOUtil.writeINT(out, hit);
+        }
+      }
+    } else {
+      out.writeByte(RUNS | (ones ? ONES_FLAG : 0));
+      CoverageIOUtil.writeINT(out, runCount);
+      int i = 0;
+      for (int run = 0; run < runCount; run++) {
+        final int zeroStart = i;
+        while (hits[i] == 0) i++;
+        final int nonZeroStart = i;
+        while (i < hits.length && hits[i] != 0) i++;
+        CoverageIOUtil.writeINT(out, nonZeroStart - zeroStart);
+        CoverageIOUtil.writeINT(out, i - nonZeroStart);
+        if (!ones) {
+          for (int j = nonZeroStart; j < i; j++) {
+            CoverageIOUtil.writeINT(out, hits[j]);
+          }
+        }
+      }
     }
+  }
 
-    // file end marker
-    CoverageIOUtil.writeUTF(out, "");
+  private static void readHits(DataInput in, int[] hits, int length) throws IOException {
+    final int encoding = in.readUnsignedByte();
+    final boolean ones = (encoding & ONES_FLAG) != 0;
+    switch (encoding & ~ONES_FLAG) {
+      case ZEROS:
+        break;
+      case DENSE:
+        for (int i = 0; i < length; i++) {
+          hits[i] = CoverageIOUtil.readINT(in);
+        }
+        break;
+      case BITMAP:
+        final byte[] bitmap = new byte[(length + 7) / 8];
+        in.readFully(bitmap);
+        for (int i = 0; i < length; i++) {
+          if ((bitmap[i >> 3] & (1 << (i & 7))) != 0) {
+            hits[i] = ones ? 1 : CoverageIOUtil.readINT(in);
+          }
+        }
+        break;
+      case RUNS:
+        final int runCount = CoverageIOUtil.readINT(in);
+        int i = 0;
+        for (int run = 0; run < runCount; run++) {
+          final int zeroRun = CoverageIOUtil.readINT(in);
+          final int nonZeroRun = CoverageIOUtil.readINT(in);
+          i += zeroRun;
+          if (zeroRun < 0 || nonZeroRun <= 0 || i + nonZeroRun > length) {
+            throw new IOException("Malformed hits run at " + i + " of " + length);
+          }
+          for (int end = i + nonZeroRun; i < end; i++) {
+            hits[i] = ones ? 1 : CoverageIOUtil.readINT(in);
+          }
+        }
+        break;
+      default:
+        throw new IOException("Unknown hits encoding " + encoding);
+    }
   }
 
   public static RawProjectData load(File file) throws IOException {
@@ -75,20 +278,40 @@ public class RawHitsReport {
       is = CoverageIOUtil.openReadFile(file);
 
       final int magic = CoverageIOUtil.readINT(is);
-      if (magic != MAGIC) {
+      if (magic != MAGIC && magic != SPARSE_MAGIC) {
         throw new IOException("This file is not in raw hits report format");
       }
 
-      // read config line
-      CoverageIOUtil.readUTFFast(is);
-
-      String className;
-      while (!"".equals(className = CoverageIOUtil.readUTFFast(is))) {
-        final int length = CoverageIOUtil.readINT(is);
-        final int[] hits = (int[])projectData.getOrCreateClass(className, length, true).hits;
-        for (int i = 0; i < length; i++) {
-          hits[i] = CoverageIOUtil.readINT(is);
+      final String format = CoverageIOUtil.readUTFFast(is);
+      if (magic == MAGIC && "".equals(format)) {
+        // the initial format has no modes, it is written only by the versions without minimized probes
+        String className;
+        while (!"".equals(className = CoverageIOUtil.readUTFFast(is))) {
+          final int length = CoverageIOUtil.readINT(is);
+          final int[] hits = (int[])projectData.getOrCreateClass(className, length, true).hits;
+          for (int i = 0; i < length; i++) {
+            hits[i] = CoverageIOUtil.readINT(is);
+          }
+        }
+      } else if (magic == SPARSE_MAGIC && SPARSE_FORMAT.equals(format)) {
+        final String[] packages = new String[CoverageIOUtil.readINT(is)];
+        for (int i = 0; i < packages.length; i++) {
+          packages[i] = CoverageIOUtil.readUTFFast(is);
+        }
+        int packageId;
+        while ((packageId = CoverageIOUtil.readINT(is)) != 0) {
+          final String packageName = packages[packageId - 1];
+          final String simpleName = CoverageIOUtil.readUTFFast(is);
+          final String className = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+          final int length = CoverageIOUtil.readINT(is);
+          final int modes = is.readUnsignedByte();
+          final int[] hits = new int[length];
+          readHits(is, hits, length);
+          projectData.addClass(new RawClassData(className, hits,
+              (modes & CLASS_CALCULATE_HITS) != 0, (modes & CLASS_MINIMIZED_PROBES) != 0));
         }
+      } else {
+        throw new IOException("Unsupported raw hits report format: " + format);
       }
     } finally {
       CoverageIOUtil.close(is);
@@ -96,12 +319,29 @@ public class RawHitsReport {
     return projectData;
   }
 
+  private static String getPackageName(String className) {
+    final int index = className.lastIndexOf('.');
+    return index < 0 ? "" : className.substring(0, index);
+  }
+
+  /**
+   * @return number of bytes written by {@link CoverageIOUtil#writeINT}
+   */
+  private static int sizeOfINT(int value) {
+    if (0 <= value && value < 192) return 1;
+    int size = 2;
+    for (int rest = value >>> 6; rest >= 128; rest >>>= 7) {
+      size++;
+    }
+    return size;
+  }
+
   public static boolean isRawHitsFile(File file) throws IOException {
     DataInputStream is = null;
     try {
       is = CoverageIOUtil.openReadFile(file);
       final int magic = CoverageIOUtil.readINT(is);
-      return magic == MAGIC;
+      return magic == MAGIC || magic == SPARSE_MAGIC;
     } finally {
       CoverageIOUtil.close(is);
     }
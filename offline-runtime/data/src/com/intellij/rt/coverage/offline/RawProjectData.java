@@ -32,25 +32,69 @@ public class RawProjectData {
   }
 
   public RawClassData getOrCreateClass(String className, int length, boolean hits) {
+    return getOrCreateClass(className, length, hits, false);
+  }
+
+  public RawClassData getOrCreateClass(String className, int length, boolean hits, boolean minimizedProbes) {
     final RawClassData classData = myClasses.get(className);
     if (classData != null) {
       checkLength(classData, length);
       return classData;
     }
-    return createClassData(className, length, hits);
+    return createClassData(className, length, hits, minimizedProbes);
   }
 
-  private synchronized RawClassData createClassData(String className, int length, boolean hits) {
+  private synchronized RawClassData createClassData(String className, int length, boolean hits, boolean minimizedProbes) {
     RawClassData classData = myClasses.get(className);
     if (classData != null) {
       checkLength(classData, length);
       return classData;
     }
-    classData = new RawClassData(className, hits ? new int[length] : new boolean[length]);
+    classData = new RawClassData(className, hits ? new int[length] : new boolean[length], hits, minimizedProbes);
     myClasses.put(className, classData);
     return classData;
   }
 
+  void addClass(RawClassData classData) {
+    myClasses.put(classData.name, classData);
+  }
+
+  /**
+   * Copy the collected hits without any locking, so that application threads are not blocked.
+   * With <code>reset</code>, the copied hits are subtracted from the live arrays, so that the next snapshot contains only new hits.
+   * The arrays are updated in place as instrumented classes may cache them.
+   * Similarly to concurrent increments, which are not atomic either, a hit happening during the reset may be lost.
+   */
+  public RawProjectData snapshot(boolean reset) {
+    final RawProjectData snapshot = new RawProjectData();
+    for (RawClassData classData : myClasses.values()) {
+      final Object hits = classData.hits;
+      final Object copy;
+      if (hits instanceof int[]) {
+        final int[] array = (int[]) hits;
+        final int[] copyArray = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+          final int hit = array[i];
+          if (hit == 0) continue;
+          copyArray[i] = hit;
+          if (reset) array[i] -= hit;
+        }
+        copy = copyArray;
+      } else {
+        final boolean[] array = (boolean[]) hits;
+        final boolean[] copyArray = new boolean[array.length];
+        for (int i = 0; i < array.length; i++) {
+          if (!array[i]) continue;
+          copyArray[i] = true;
+          if (reset) array[i] = false;
+        }
+        copy = copyArray;
+      }
+      snapshot.myClasses.put(classData.name, new RawClassData(classData.name, copy, classData.calculateHits, classData.minimizedProbes));
+    }
+    return snapshot;
+  }
+
   private static void checkLength(RawClassData classData, int length) {
     if (classData.getLength() < length) {
       throw new RuntimeException("Class " + classData.name + " is loaded twice with different hits length");
@@ -27,4 +27,12 @@ public class CondyUtils {
   public static boolean[] getOrCreateHitsMask(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className, int length) {
     return RawProjectInit.getOrCreateHitsMask(className, length);
   }
+
+  public static int[] getOrCreateMinimizedHits(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className, int length) {
+    return RawProjectInit.getOrCreateMinimizedHits(className, length);
+  }
+
+  public static boolean[] getOrCreateMinimizedHitsMask(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className, int length) {
+    return RawProjectInit.getOrCreateMinimizedHitsMask(className, length);
+  }
 }
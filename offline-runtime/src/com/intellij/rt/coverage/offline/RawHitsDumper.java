@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.offline;
+
+import com.intellij.rt.coverage.util.CommonArrayUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Writes raw hits reports of the offline runtime. The report is always written on exit,
+ * and when the process may be killed without running shutdown hooks, it can also be written
+ * <ul>
+ *   <li>periodically, see {@link #DUMP_INTERVAL},</li>
+ *   <li>when a trigger file is created, see {@link #TRIGGER_FILE},</li>
+ *   <li>when a connection is accepted on a loopback port, see {@link #TRIGGER_PORT}.</li>
+ * </ul>
+ * By default, every dump overwrites the report with all the hits collected so far.
+ * In the {@link #DELTA} mode, every dump takes the hits collected since the previous dump and resets them,
+ * the result is written to a new file <code>name-N.ext</code> next to the report path, so that consecutive files can be merged.
+ */
+public class RawHitsDumper {
+  /**
+   * Period of the background dump in milliseconds.
+   */
+  public static final String DUMP_INTERVAL = "coverage.offline.report.dump.interval";
+  /**
+   * Path to a file which is polled for existence, the file is deleted when the dump is done.
+   */
+  public static final String TRIGGER_FILE = "coverage.offline.report.dump.trigger.file";
+  /**
+   * Loopback port to listen to, <code>OK</code> is sent to the connection when the dump is done.
+   */
+  public static final String TRIGGER_PORT = "coverage.offline.report.dump.port";
+  /**
+   * Write the hits collected since the previous dump to a new file every time.
+   */
+  public static final String DELTA = "coverage.offline.report.dump.delta";
+
+  private static final long TRIGGER_FILE_POLL_INTERVAL = 1000;
+
+  private final File myFile;
+  private final RawProjectData myData;
+  private final boolean myDelta;
+  private int myDeltaIndex;
+
+  RawHitsDumper(File file, RawProjectData data, boolean delta) {
+    myFile = file;
+    myData = data;
+    myDelta = delta;
+  }
+
+  /**
+   * Set up reporting according to the system properties.
+   */
+  public static void start(File file, RawProjectData data) {
+    final RawHitsDumper dumper = new RawHitsDumper(file, data, Boolean.getBoolean(DELTA));
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        dumper.dump();
+      }
+    }));
+
+    final long interval = Long.getLong(DUMP_INTERVAL, 0);
+    if (interval > 0) {
+      startDaemon("Coverage periodic dump", new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              Thread.sleep(interval);
+              dumper.dump();
+            }
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+    }
+
+    final String triggerPath = System.getProperty(TRIGGER_FILE);
+    if (triggerPath != null) {
+      final File trigger = new File(triggerPath);
+      startDaemon("Coverage dump trigger file watcher", new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              Thread.sleep(TRIGGER_FILE_POLL_INTERVAL);
+              if (!trigger.exists()) continue;
+              dumper.dump();
+              if (!trigger.delete()) {
+                ErrorReporter.warn("Failed to delete coverage dump trigger file " + trigger.getAbsolutePath());
+                return;
+              }
+            }
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+    }
+
+    final Integer port = Integer.getInteger(TRIGGER_PORT);
+    if (port != null) {
+      final ServerSocket serverSocket;
+      try {
+        serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+      } catch (IOException e) {
+        ErrorReporter.warn("Failed to listen to coverage dump trigger port " + port, e);
+        return;
+      }
+      startDaemon("Coverage dump trigger port listener", new Runnable() {
+        public void run() {
+          while (true) {
+            Socket socket = null;
+            try {
+              socket = serverSocket.accept();
+              dumper.dump();
+              final OutputStream output = socket.getOutputStream();
+              output.write("OK\n".getBytes("UTF-8"));
+              output.flush();
+            } catch (IOException e) {
+              ErrorReporter.warn("Error in coverage dump trigger port listener", e);
+            } finally {
+              close(socket);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Dumps are serialized, while application threads continue to collect hits.
+   */
+  public synchronized void dump() {
+    if (myDelta) {
+      final RawProjectData snapshot = myData.snapshot(true);
+      // do not produce empty files when the process is idle
+      if (hasHits(snapshot)) {
+        RawHitsReport.dump(nextDeltaFile(), snapshot);
+      }
+    } else {
+      RawHitsReport.dump(myFile, myData);
+    }
+  }
+
+  /**
+   * Files of the previous runs of the process are not overwritten.
+   */
+  private File nextDeltaFile() {
+    final String name = myFile.getName();
+    final int extensionIndex = name.lastIndexOf('.');
+    final String baseName = extensionIndex <= 0 ? name : name.substring(0, extensionIndex);
+    final String extension = extensionIndex <= 0 ? "" : name.substring(extensionIndex);
+    File file;
+    do {
+      file = new File(myFile.getParentFile(), baseName + "-" + ++myDeltaIndex + extension);
+    } while (file.exists());
+    return file;
+  }
+
+  private static boolean hasHits(RawProjectData data) {
+    for (RawClassData classData : data.getClasses()) {
+      final int[] hits = CommonArrayUtil.getIntArray(classData.hits);
+      for (int hit : hits) {
+        if (hit != 0) return true;
+      }
+    }
+    return false;
+  }
+
+  private static void startDaemon(String name, Runnable runnable) {
+    final Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void close(Socket socket) {
+    if (socket == null) return;
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -27,7 +27,7 @@ import java.io.File;
  * Also, the project data is initialized on the first call.
  */
 public class RawProjectInit {
-  private static final MethodCaller INITIALIZER_METHOD_CALLER = new MethodCaller("inializeAndGetHitsMask", new Class[]{String.class, int.class, boolean.class});
+  private static final MethodCaller INITIALIZER_METHOD_CALLER = new MethodCaller("inializeAndGetHitsMask", new Class[]{String.class, int.class, boolean.class, boolean.class});
 
   private static final String KOVER_INITIALIZER_CLASS_NAME = "kotlinx.kover.offline.runtime.KoverInit";
 
@@ -41,24 +41,42 @@ public class RawProjectInit {
     return (boolean[]) getOrCreateHitsMaskInternal(className, length, false);
   }
 
+  /**
+   * Entry point of classes instrumented with minimized probes, so that the mode is stored in the coverage report.
+   */
+  public static int[] getOrCreateMinimizedHits(String className, int length) {
+    return (int[]) getOrCreateHitsMaskInternal(className, length, true, true);
+  }
+
+  /**
+   * Entry point of classes instrumented with minimized probes, so that the mode is stored in the coverage report.
+   */
+  public static boolean[] getOrCreateMinimizedHitsMask(String className, int length) {
+    return (boolean[]) getOrCreateHitsMaskInternal(className, length, false, true);
+  }
+
+  public static Object getOrCreateHitsMaskInternal(String className, int length, boolean hits) {
+    return getOrCreateHitsMaskInternal(className, length, hits, false);
+  }
+
   /**
    * This method is used in case of offline instrumentation.
    * As ProjectData is uninitialized, this method also creates ClassData when needed.
    */
-  public static Object getOrCreateHitsMaskInternal(String className, int length, boolean hits) {
+  public static Object getOrCreateHitsMaskInternal(String className, int length, boolean hits, boolean minimizedProbes) {
     if (ourProjectData != null) {
-      return ourProjectData.getOrCreateClass(className, length, hits).hits;
+      return ourProjectData.getOrCreateClass(className, length, hits, minimizedProbes).hits;
     }
     try {
       try {
         // Here we use system class loader here as in offline instrumentation mode
         // coverage agent is not included to the bootstrap class loader
         // but added to the class path as usual jar
-        return INITIALIZER_METHOD_CALLER.invokeStatic(RawProjectInit.class.getName(), new Object[]{className, length, hits}, ClassLoader.getSystemClassLoader());
+        return INITIALIZER_METHOD_CALLER.invokeStatic(RawProjectInit.class.getName(), new Object[]{className, length, hits, minimizedProbes}, ClassLoader.getSystemClassLoader());
       } catch (ClassNotFoundException ignored) {
         // On Android devices system classloader does not contain the application classes,
         // so we use any class loaded in this case.
-        return inializeAndGetHitsMask(className, length, hits);
+        return inializeAndGetHitsMask(className, length, hits, minimizedProbes);
       }
     } catch (Exception e) {
       ErrorReporter.error("Error in class data access: " + className, e);
@@ -72,8 +90,12 @@ public class RawProjectInit {
    * As ProjectData is uninitialized, this method also creates ProjectData when needed and sets up reporting hook.
    */
   public static Object inializeAndGetHitsMask(String className, int length, boolean hits) {
+    return inializeAndGetHitsMask(className, length, hits, false);
+  }
+
+  public static Object inializeAndGetHitsMask(String className, int length, boolean hits, boolean minimizedProbes) {
     checkIsInitialized();
-    return ourProjectData.getOrCreateClass(className, length, hits).hits;
+    return ourProjectData.getOrCreateClass(className, length, hits, minimizedProbes).hits;
   }
 
   private static void checkIsInitialized() {
@@ -84,7 +106,7 @@ public class RawProjectInit {
           final String filePath = System.getProperty("coverage.offline.report.path");
           if (filePath != null) {
             final File file = new File(filePath);
-            RawHitsReport.dumpOnExit(file, ourProjectData);
+            RawHitsDumper.start(file, ourProjectData);
             ErrorReporter.suggestBasePath(file.getParent());
           }
           try {
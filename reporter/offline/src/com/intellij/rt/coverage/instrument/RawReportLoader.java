@@ -34,6 +34,36 @@ public class RawReportLoader {
     apply(projectData, rawProjectData);
   }
 
+  public static void load(File file, ProjectData projectData, boolean isMinimizeProbes, boolean isCalculateHits) throws IOException {
+    final RawProjectData rawProjectData = RawHitsReport.load(file);
+    apply(projectData, rawProjectData, isMinimizeProbes, isCalculateHits);
+  }
+
+  /**
+   * Apply the hits and warn about the classes instrumented in modes different from the ones used for <code>projectData</code> analysis.
+   * The omitted probes of minimized classes are inferred using the analysis,
+   * so the inferred lines and branches are incorrect if the modes differ.
+   * Without minimization, the hits mode only affects the hit counts, so it is not checked.
+   */
+  public static void apply(ProjectData projectData, RawProjectData rawProjectData, boolean isMinimizeProbes, boolean isCalculateHits) {
+    int mismatches = 0;
+    String example = null;
+    for (RawClassData rawClassData : rawProjectData.getClasses()) {
+      if (rawClassData.minimizedProbes == isMinimizeProbes && (!isMinimizeProbes || rawClassData.calculateHits == isCalculateHits)) continue;
+      if (projectData.getClassData(rawClassData.name) == null) continue;
+      if (example == null) {
+        example = rawClassData.name + " (minimizeProbes=" + rawClassData.minimizedProbes + ", calculateHits=" + rawClassData.calculateHits + ")";
+      }
+      mismatches++;
+    }
+    if (mismatches > 0) {
+      ErrorReporter.warn(mismatches + " classes were instrumented with options different from the report options"
+          + " (minimizeProbes=" + isMinimizeProbes + ", calculateHits=" + isCalculateHits + "), e.g. " + example
+          + ". Coverage of these classes is incorrect, the same options must be used for offline instrumentation and for the report.");
+    }
+    apply(projectData, rawProjectData);
+  }
+
   public static void apply(ProjectData projectData, RawProjectData rawProjectData) {
     for (RawClassData rawClassData : rawProjectData.getClasses()) {
       final ClassData classData = projectData.getClassData(rawClassData.name);
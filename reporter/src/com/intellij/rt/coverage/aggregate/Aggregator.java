@@ -18,10 +18,13 @@ package com.intellij.rt.coverage.aggregate;
 
 import com.intellij.rt.coverage.aggregate.api.Request;
 import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
 import com.intellij.rt.coverage.instrumentation.UnloadedUtil;
 import com.intellij.rt.coverage.instrument.RawReportLoader;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.offline.RawHitsReport;
+import com.intellij.rt.coverage.offline.RawProjectData;
 import com.intellij.rt.coverage.report.data.BinaryReport;
 import com.intellij.rt.coverage.util.CoverageReport;
 import com.intellij.rt.coverage.util.ProjectDataLoader;
@@ -31,6 +34,7 @@ import com.intellij.rt.coverage.util.classFinder.OutputClassFinder;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * Collects results from different modules into a number of intermediate binary reports and collects coverage in unloaded classes
@@ -55,41 +59,7 @@ public class Aggregator {
    * Collecting this data once ensures that unloaded classes will not be analysed several times.
    */
   public ProjectData getProjectData(Request request) {
-    boolean hasRawHitsReport = false;
-    for (BinaryReport report : myReports) {
-      hasRawHitsReport |= report.isRawHitsReport();
-    }
-    // Note that instructions collection is done only inside this method
-    // to ensure that instructions count in inline methods
-    // correspond to method definition, not method call
-    ProjectData projectData = new ProjectData();
-    final ProjectContext context = collectCoverageInformationFromOutputs(projectData, request);
-    final ProjectData projectDataCopy = hasRawHitsReport ? copyProjectData(projectData) : null;
-    context.dropLineMappings(projectData);
-
-    for (BinaryReport report : myReports) {
-      if (report.isRawHitsReport()) {
-        try {
-          RawReportLoader.load(report.getDataFile(), projectDataCopy);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-      } else {
-        final ProjectData data = ProjectDataLoader.load(report.getDataFile());
-        context.dropIgnoredLines(data);
-        mergeHits(projectData, data);
-      }
-    }
-    if (projectDataCopy != null) {
-      context.finalizeCoverage(projectDataCopy);
-      mergeHits(projectData, projectDataCopy);
-    }
-
-    if (context.getInherits() != null) {
-      projectData = filterInheritance(request, context, projectData);
-    }
-
-    return projectData;
+    return new CollectedData(Collections.singletonList(request)).getProjectData(request);
   }
 
   private static ProjectData filterInheritance(Request request, ProjectContext context, ProjectData projectData) {
@@ -109,39 +79,7 @@ public class Aggregator {
   private static ProjectData copyProjectData(ProjectData projectData) {
     final ProjectData projectDataCopy = new ProjectData();
     for (ClassData classData : projectData.getClassesCollection()) {
-      final ClassData classCopy = projectDataCopy.getOrCreateClassData(classData.getName());
-      final LineData[] lines = (LineData[]) classData.getLines();
-      if (lines == null) continue;
-      final LineData[] linesCopy = new LineData[lines.length];
-      classCopy.setLines(linesCopy);
-      for (LineData lineData : lines) {
-        if (lineData == null) continue;
-        final LineData lineCopy = new LineData(lineData.getLineNumber(), lineData.getMethodSignature());
-        lineCopy.setId(lineData.getId());
-        linesCopy[lineCopy.getLineNumber()] = lineCopy;
-
-        final JumpData[] jumps = lineData.getJumps();
-        if (jumps != null) {
-          for (int i = 0; i < jumps.length; i++) {
-            final JumpData jump = jumps[i];
-            final JumpData jumpCopy = lineCopy.addJump(i);
-            jumpCopy.setId(jump.getId(true), true);
-            jumpCopy.setId(jump.getId(false), false);
-          }
-        }
-
-        final SwitchData[] switches = lineData.getSwitches();
-        if (switches != null) {
-          for (int i = 0; i < switches.length; i++) {
-            final SwitchData aSwitch = switches[i];
-            final SwitchData switchCopy = lineCopy.addSwitch(i, aSwitch.getKeys());
-            for (int key = -1; key < aSwitch.getKeys().length; key++) {
-              switchCopy.setId(aSwitch.getId(key), key);
-            }
-          }
-        }
-        lineCopy.fillArrays();
-      }
+      projectDataCopy.addClassData(classData.copyStructure());
     }
     return projectDataCopy;
   }
@@ -162,34 +100,171 @@ public class Aggregator {
    * Processing request is selecting required classes from a global project data.
    */
   public void processRequests() {
+    // annotation filters are applied during classes analysis, so only requests with the same ones can share it
+    final Map<String, List<Request>> groups = new LinkedHashMap<String, List<Request>>();
     for (Request request : myRequests) {
       if (request.outputFile == null) continue;
-      ProjectData projectData = getProjectData(request);
-      InstrumentationOptions options = new InstrumentationOptions.Builder()
-          .setDataFile(request.outputFile)
-          .setSourceMapFile(request.smapFile)
-          .build();
-      CoverageReport.save(projectData, options);
+      final String key = patternsKey(request.filters.includeAnnotations) + "\n" + patternsKey(request.filters.excludeAnnotations);
+      List<Request> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<Request>();
+        groups.put(key, group);
+      }
+      group.add(request);
+    }
+    for (List<Request> group : groups.values()) {
+      final CollectedData data = new CollectedData(group);
+      for (Request request : group) {
+        processRequest(request, data.getProjectData(request));
+      }
+    }
+  }
+
+  private static void processRequest(Request request, ProjectData projectData) {
+    InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setDataFile(request.outputFile)
+        .setSourceMapFile(request.smapFile)
+        .build();
+    CoverageReport.save(projectData, options);
+  }
+
+  private static String patternsKey(List<Pattern> patterns) {
+    final StringBuilder builder = new StringBuilder();
+    for (Pattern pattern : patterns) {
+      builder.append(pattern.flags()).append(':').append(pattern.pattern()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Classes analysis and binary reports shared by requests with the same annotation filters.
+   * Outputs are analysed and reports are loaded once, then each request gets a copy of the selected classes.
+   */
+  private class CollectedData {
+    private final ProjectData myTemplate = new ProjectData();
+    private final ProjectContext myContext;
+    private final List<ProjectData> myReports = new ArrayList<ProjectData>();
+    private final List<RawProjectData> myRawReports = new ArrayList<RawProjectData>();
+
+    private CollectedData(List<Request> requests) {
+      // Note that instructions collection is done only here
+      // to ensure that instructions count in inline methods
+      // correspond to method definition, not method call
+      myContext = collectCoverageInformationFromOutputs(myTemplate, requests);
+      for (BinaryReport report : Aggregator.this.myReports) {
+        try {
+          if (report.isRawHitsReport()) {
+            myRawReports.add(RawHitsReport.load(report.getDataFile()));
+          } else {
+            final ProjectData data = ProjectDataLoader.load(report.getDataFile());
+            myContext.dropIgnoredLines(data);
+            myReports.add(data);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    private ProjectData getProjectData(Request request) {
+      final boolean checkInherits = myContext.getInherits() != null && request.filters.shouldCheckInherits();
+      ProjectData projectData = new ProjectData();
+      projectData.setInstructionsCoverage(true);
+      for (ClassData classData : myTemplate.getClassesCollection()) {
+        final String className = classData.getName();
+        // class pattern is applied together with inheritance filter
+        if (!checkInherits && !request.classFilter.shouldInclude(className)) continue;
+        projectData.addClassData(classData.copyStructure());
+        final ClassInstructions instructions = myTemplate.getInstructions().get(className);
+        if (instructions != null) {
+          final ClassInstructions instructionsCopy = new ClassInstructions();
+          instructionsCopy.merge(instructions);
+          projectData.getInstructions().put(className, instructionsCopy);
+        }
+        if (!checkInherits) addOuterClassSource(projectData, classData);
+      }
+
+      final ProjectData projectDataCopy = myRawReports.isEmpty() ? null : copyProjectData(projectData);
+      myContext.dropLineMappings(projectData);
+
+      for (ProjectData data : myReports) {
+        mergeHits(projectData, data);
+      }
+      if (projectDataCopy != null) {
+        for (RawProjectData hits : myRawReports) {
+          RawReportLoader.apply(projectDataCopy, hits, myContext.getOptions().isMinimizeProbes, myContext.getOptions().isCalculateHits);
+        }
+        myContext.finalizeCoverage(projectDataCopy);
+        mergeHits(projectData, projectDataCopy);
+      }
+
+      if (checkInherits) {
+        projectData = filterInheritance(request, myContext, projectData);
+      }
+      return projectData;
+    }
+
+    /**
+     * Analysis of an anonymous or local class saves its source into the outer class,
+     * so the outer class is present in the report even if it is filtered out.
+     */
+    private void addOuterClassSource(ProjectData projectData, ClassData classData) {
+      final String outerName = myContext.getOuterClass(classData.getName());
+      if (outerName == null) return;
+      final ClassData outerClass = projectData.getOrCreateClassData(outerName);
+      if (outerClass.getSource() == null) {
+        outerClass.setSource(classData.getSource());
+      }
     }
   }
 
-  private ProjectContext collectCoverageInformationFromOutputs(ProjectData projectData, Request request) {
+  private ProjectContext collectCoverageInformationFromOutputs(ProjectData projectData, List<Request> requests) {
     projectData.setInstructionsCoverage(true);
+    final Request first = requests.get(0);
     InstrumentationOptions options = new InstrumentationOptions.Builder()
         .setBranchCoverage(true)
         .setSaveSource(true)
         .setInstructionCoverage(true)
-        .setIncludeAnnotations(request.filters.includeAnnotations)
-        .setExcludeAnnotations(request.filters.excludeAnnotations)
+        .setIncludeAnnotations(first.filters.includeAnnotations)
+        .setExcludeAnnotations(first.filters.excludeAnnotations)
         .build();
-    boolean collectInherits = request.filters.shouldCheckInherits();
+    boolean collectInherits = false;
+    for (Request request : requests) {
+      collectInherits |= request.filters.shouldCheckInherits();
+    }
     // Cannot filter classes by name, as we need to collect inheritance hierarchy.
     // Class pattern will be applied later.
-    ClassFilter.PatternFilter classFilter = collectInherits ? null : request.classFilter;
+    ClassFilter classFilter = null;
+    if (!collectInherits) {
+      classFilter = requests.size() == 1 ? first.classFilter : new UnionFilter(requests);
+    }
     ProjectContext context = new ProjectContext(options, new OutputClassFinder(classFilter, myOutputs));
     context.setCollectInherits(collectInherits);
+    // outer classes of the shared analysis are applied to each request separately
+    context.setCollectOuterClasses(true);
     UnloadedUtil.appendUnloaded(projectData, context);
     return context;
   }
 
+  private static class UnionFilter implements ClassFilter.PackageFilter {
+    private final List<Request> myRequests;
+
+    private UnionFilter(List<Request> requests) {
+      myRequests = requests;
+    }
+
+    public boolean shouldInclude(String className) {
+      for (Request request : myRequests) {
+        if (request.classFilter.shouldInclude(className)) return true;
+      }
+      return false;
+    }
+
+    public boolean shouldScanPackage(String packagePrefix) {
+      for (Request request : myRequests) {
+        if (request.classFilter.shouldScanPackage(packagePrefix)) return true;
+      }
+      return false;
+    }
+  }
 }
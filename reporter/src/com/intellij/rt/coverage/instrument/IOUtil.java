@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2022 JetBrains s.r.o.
+ * Copyright 2000-2024 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -36,11 +36,28 @@ public class IOUtil {
     return os.toByteArray();
   }
 
+  /**
+   * Read a stream with a known length into an array of exactly this size, without intermediate copies.
+   * @param size expected number of bytes or a negative value if unknown
+   */
+  public static byte[] readBytes(InputStream is, long size) throws IOException {
+    if (size < 0 || size > Integer.MAX_VALUE) return readBytes(is);
+    final byte[] bytes = new byte[(int) size];
+    int offset = 0;
+    while (offset < bytes.length) {
+      final int read = is.read(bytes, offset, bytes.length - offset);
+      if (read == -1) throw new EOFException("Unexpected end of stream after " + offset + " bytes of " + size);
+      offset += read;
+    }
+    if (is.read() != -1) throw new IOException("Stream is longer than " + size + " bytes");
+    return bytes;
+  }
+
   public static byte[] readBytes(File file) throws IOException {
     InputStream is = null;
     try {
-      is = new BufferedInputStream(new FileInputStream(file));
-      return readBytes(is);
+      is = new FileInputStream(file);
+      return readBytes(is, file.length());
     } finally {
       CoverageIOUtil.close(is);
     }
@@ -49,7 +66,7 @@ public class IOUtil {
   public static void writeBytes(File file, byte[] bytes) throws IOException {
     OutputStream os = null;
     try {
-      os = new BufferedOutputStream(new FileOutputStream(file));
+      os = new FileOutputStream(file);
       os.write(bytes);
     } finally {
       CoverageIOUtil.close(os);
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrument;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of the previous offline instrumentation of a root, used to skip files which have not changed.
+ * For every file path relative to the root, the input and the output hashes are stored together with
+ * file sizes and modification times, so that unchanged files are detected without reading them.
+ * <p>
+ * The state is discarded when instrumentation options fingerprint differs from the stored one,
+ * but the stored paths are still used to delete outputs of removed files.
+ * All methods except {@link #load} and {@link #save} may be called concurrently.
+ */
+public class InstrumentationManifest {
+  private static final int FORMAT_VERSION = 1;
+
+  private final File myFile;
+  private final String myFingerprint;
+  private final boolean myValid;
+  private final Map<String, Entry> myPreviousEntries;
+  private final Map<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+  private InstrumentationManifest(File file, String fingerprint, boolean valid, Map<String, Entry> previousEntries) {
+    myFile = file;
+    myFingerprint = fingerprint;
+    myValid = valid;
+    myPreviousEntries = previousEntries;
+  }
+
+  /**
+   * @return manifest stored in the file, or an empty manifest if the file does not exist or cannot be read
+   */
+  public static InstrumentationManifest load(File file, String fingerprint) {
+    final Map<String, Entry> entries = new HashMap<String, Entry>();
+    boolean valid = false;
+    if (file.isFile()) {
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        if (in.readInt() == FORMAT_VERSION) {
+          valid = fingerprint.equals(in.readUTF());
+          final int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            final String path = in.readUTF();
+            entries.put(path, new Entry(in.readLong(), in.readLong(), readBytes(in), in.readLong(), in.readLong(), readBytes(in)));
+          }
+        }
+      } catch (IOException e) {
+        // a broken manifest only leads to full instrumentation
+        valid = false;
+      } finally {
+        CoverageIOUtil.close(in);
+      }
+    }
+    return new InstrumentationManifest(file, fingerprint, valid, entries);
+  }
+
+  /**
+   * Check whether the output is the result of instrumentation of the input with the same options.
+   * An up-to-date file is kept in the manifest, otherwise {@link #update} is expected to be called after instrumentation.
+   * @param path path of the file relative to the root
+   */
+  public boolean isUpToDate(String path, File input, File output) throws IOException {
+    if (!myValid) return false;
+    final Entry entry = myPreviousEntries.get(path);
+    if (entry == null || !output.isFile()) return false;
+    final long inputModified = input.lastModified();
+    final long inputLength = input.length();
+    if (inputLength != entry.myInputLength) return false;
+    if (inputModified != entry.myInputModified && !Arrays.equals(entry.myInputHash, hash(input))) return false;
+    final long outputModified = output.lastModified();
+    final long outputLength = output.length();
+    if (outputLength != entry.myOutputLength) return false;
+    if (outputModified != entry.myOutputModified && !Arrays.equals(entry.myOutputHash, hash(output))) return false;
+    myEntries.put(path, new Entry(inputLength, inputModified, entry.myInputHash, outputLength, outputModified, entry.myOutputHash));
+    return true;
+  }
+
+  /**
+   * Record the state of a file after instrumentation, when both input and output contents are available in memory.
+   */
+  public void update(String path, File input, byte[] inputBytes, File output, byte[] outputBytes) {
+    myEntries.put(path, new Entry(input.length(), input.lastModified(), hash(inputBytes),
+        output.length(), output.lastModified(), hash(outputBytes)));
+  }
+
+  /**
+   * Record the state of a file after instrumentation.
+   */
+  public void update(String path, File input, File output) throws IOException {
+    myEntries.put(path, new Entry(input.length(), input.lastModified(), hash(input),
+        output.length(), output.lastModified(), hash(output)));
+  }
+
+  /**
+   * Delete outputs of the files which were present during the previous instrumentation, but not visited this time.
+   */
+  public void deleteRemoved(File outputRoot) {
+    for (String path : myPreviousEntries.keySet()) {
+      if (myEntries.containsKey(path)) continue;
+      final File output = new File(outputRoot, path);
+      if (output.isFile() && !output.delete()) {
+        throw new RuntimeException("Failed to delete " + output.getAbsolutePath());
+      }
+    }
+  }
+
+  public void save() throws IOException {
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory at " + parent.getAbsolutePath());
+    }
+    final File tempFile = File.createTempFile(myFile.getName(), ".tmp", parent);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(myFingerprint);
+      out.writeInt(myEntries.size());
+      for (Map.Entry<String, Entry> mapEntry : myEntries.entrySet()) {
+        final Entry entry = mapEntry.getValue();
+        out.writeUTF(mapEntry.getKey());
+        out.writeLong(entry.myInputLength);
+        out.writeLong(entry.myInputModified);
+        writeBytes(out, entry.myInputHash);
+        out.writeLong(entry.myOutputLength);
+        out.writeLong(entry.myOutputModified);
+        writeBytes(out, entry.myOutputHash);
+      }
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(myFile) && !(myFile.delete() && tempFile.renameTo(myFile))) {
+        throw new IOException("Failed to save instrumentation manifest to " + myFile.getAbsolutePath());
+      }
+    } finally {
+      CoverageIOUtil.close(out);
+      if (tempFile.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+      }
+    }
+  }
+
+  private static byte[] hash(byte[] bytes) {
+    return createDigest().digest(bytes);
+  }
+
+  private static byte[] hash(File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(file);
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      CoverageIOUtil.close(input);
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static class Entry {
+    private final long myInputLength;
+    private final long myInputModified;
+    private final byte[] myInputHash;
+    private final long myOutputLength;
+    private final long myOutputModified;
+    private final byte[] myOutputHash;
+
+    private Entry(long inputLength, long inputModified, byte[] inputHash,
+                  long outputLength, long outputModified, byte[] outputHash) {
+      myInputLength = inputLength;
+      myInputModified = inputModified;
+      myInputHash = inputHash;
+      myOutputLength = outputLength;
+      myOutputModified = outputModified;
+      myOutputHash = outputHash;
+    }
+  }
+}
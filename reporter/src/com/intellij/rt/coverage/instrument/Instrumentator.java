@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2022 JetBrains s.r.o.
+ * Copyright 2000-2024 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,34 +20,103 @@ import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
 import com.intellij.rt.coverage.report.api.Filters;
 import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Perform offline instrumentation of class files in specified output roots.
  * If a class is not included into coverage instrumentation via filters,
  * its class file is copied to new output directory without modifications.
+ * <p>
+ * A root may be a directory or a jar file. A jar root is written to a jar with the same entry order,
+ * the output is either a jar file or a directory where a jar with the same name is created.
+ * Classes are transformed in parallel, the number of tasks in flight is limited so that
+ * only a bounded number of class files is kept in memory.
+ * <p>
+ * In the incremental mode, the state of each root is kept in a {@link InstrumentationManifest},
+ * only changed files are processed and outputs of removed files are deleted.
  */
 public class Instrumentator {
   private final List<File> myRoots;
   private final List<File> myOutputRoots;
   private final Filters myFilters;
+  private final int myThreads;
 
 
   public Instrumentator(List<File> roots, List<File> outputRoots, Filters filters) {
+    this(roots, outputRoots, filters, Runtime.getRuntime().availableProcessors());
+  }
+
+  public Instrumentator(List<File> roots, List<File> outputRoots, Filters filters, int threads) {
     myRoots = roots;
     myOutputRoots = outputRoots;
     myFilters = filters;
+    myThreads = Math.max(1, threads);
   }
 
   public void instrument(final boolean countHits) {
-    for (int i = 0; i < myRoots.size(); i++) {
-      final File root = myRoots.get(i);
-      final File outputRoot = myOutputRoots.get(i);
-      new InstrumentationVisitor(root, outputRoot, countHits).visitFiles();
+    instrument(countHits, null);
+  }
+
+  /**
+   * @param manifests a file per root to store instrumentation state between runs,
+   *                  or null to instrument all the files
+   */
+  public void instrument(final boolean countHits, List<File> manifests) {
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setIsCalculateHits(countHits)
+        .setExcludeAnnotations(myFilters.excludeAnnotations)
+        .build();
+    // transformer caches class readers for frames computation in a non-thread-safe map, so each worker uses its own
+    final ThreadLocal<CoverageTransformer> transformers = new ThreadLocal<CoverageTransformer>() {
+      @Override
+      protected CoverageTransformer initialValue() {
+        return new OfflineCoverageTransformer(options);
+      }
+    };
+    final ExecutorService executor = Executors.newFixedThreadPool(myThreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "Offline instrumentation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      for (int i = 0; i < myRoots.size(); i++) {
+        final File root = myRoots.get(i);
+        final File outputRoot = myOutputRoots.get(i);
+        final TaskWindow window = new TaskWindow(executor, 4 * myThreads);
+        final InstrumentationManifest manifest = manifests == null ? null
+            : InstrumentationManifest.load(manifests.get(i), getOptionsFingerprint(options));
+        if (root.isFile()) {
+          final File output = getJarOutput(root, outputRoot);
+          // a jar is processed as a whole
+          if (manifest == null || !manifest.isUpToDate(root.getName(), root, output)) {
+            new JarInstrumenter(root, output, transformers, window).instrument();
+            if (manifest != null) manifest.update(root.getName(), root, output);
+          }
+        } else {
+          new InstrumentationVisitor(root, outputRoot, transformers, window, manifest).visitFiles();
+          window.awaitAll();
+          if (manifest != null) manifest.deleteRemoved(outputRoot);
+        }
+        if (manifest != null) manifest.save();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
     }
   }
 
@@ -60,48 +129,236 @@ public class Instrumentator {
     return transformer.transform(loader, className, bytes, null);
   }
 
-  private class InstrumentationVisitor extends DirectoryVisitor {
+  /**
+   * Everything that changes the instrumented bytecode, outputs of a previous run with another fingerprint are not reused.
+   */
+  private String getOptionsFingerprint(InstrumentationOptions options) {
+    return "version=" + Instrumentator.class.getPackage().getImplementationVersion()
+        + ";hits=" + options.isCalculateHits
+        + ";excludeAnnotations=" + myFilters.excludeAnnotations
+        + ";field=" + OptionsUtil.FIELD_INSTRUMENTATION_ENABLED
+        + ";condy=" + OptionsUtil.CONDY_ENABLED
+        + ";indy=" + OptionsUtil.INDY_ENABLED
+        + ";minimizeProbes=" + options.isMinimizeProbes
+        + ";preserveFrames=" + options.isPreserveFrames
+        + ";lazy=" + options.isLazyInstrumentation
+        + ";instructions=" + OptionsUtil.INSTRUCTIONS_COVERAGE_ENABLED
+        + ";noFrames=" + System.getProperty("idea.coverage.no.frames");
+  }
+
+  /**
+   * @return transformed bytes or the original ones if the class should not be instrumented
+   */
+  private static byte[] transform(CoverageTransformer transformer, String className, byte[] bytes) {
+    // This loader is not user actually, just need some not null loader
+    final ClassLoader loader = ClassLoader.getSystemClassLoader();
+    final byte[] transformed = transformer.transform(loader, className, null, null, bytes);
+    return transformed == null ? bytes : transformed;
+  }
+
+  private static File getJarOutput(File jar, File output) {
+    return output.isDirectory() ? new File(output, jar.getName()) : output;
+  }
+
+  private static void createDirectory(File directory) {
+    // the directory may be created concurrently
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new RuntimeException("Failed to create directory at " + directory.getAbsolutePath());
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Limits the number of submitted tasks which are not yet consumed, tasks are consumed in the submission order.
+   */
+  private static class TaskWindow {
+    private final ExecutorService myExecutor;
+    private final int mySize;
+    private final ArrayDeque<Future<byte[]>> myFutures = new ArrayDeque<Future<byte[]>>();
+
+    private TaskWindow(ExecutorService executor, int size) {
+      myExecutor = executor;
+      mySize = size;
+    }
+
+    boolean isFull() {
+      return myFutures.size() >= mySize;
+    }
+
+    boolean isEmpty() {
+      return myFutures.isEmpty();
+    }
+
+    void submit(Callable<byte[]> task) {
+      myFutures.addLast(myExecutor.submit(task));
+    }
+
+    byte[] next() throws IOException {
+      return await(myFutures.removeFirst());
+    }
+
+    void awaitAll() throws IOException {
+      while (!isEmpty()) {
+        next();
+      }
+    }
+  }
+
+  private static class InstrumentationVisitor extends DirectoryVisitor {
     private final File myOutput;
-    private final CoverageTransformer myTransformer;
+    private final ThreadLocal<CoverageTransformer> myTransformers;
+    private final TaskWindow myWindow;
+    private final InstrumentationManifest myManifest;
 
-    private InstrumentationVisitor(File root, File output, boolean countHits) {
+    private InstrumentationVisitor(File root, File output, ThreadLocal<CoverageTransformer> transformers,
+                                   TaskWindow window, InstrumentationManifest manifest) {
       super(root);
       myOutput = output;
-      InstrumentationOptions options = new InstrumentationOptions.Builder()
-          .setIsCalculateHits(countHits)
-          .setExcludeAnnotations(myFilters.excludeAnnotations)
-          .build();
-      myTransformer = new OfflineCoverageTransformer(options);
+      myTransformers = transformers;
+      myWindow = window;
+      myManifest = manifest;
     }
 
     @Override
-    protected void visitFile(String packageName, File file) {
+    protected void visitFile(String packageName, final File file) {
+      final File directory = new File(myOutput, packageName.replace(".", File.separator));
+      createDirectory(directory);
+      try {
+        if (myWindow.isFull()) {
+          myWindow.next();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      final String className;
+      if (file.getName().endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
+        final String classSimpleName = ClassNameUtil.removeClassSuffix(file.getName());
+        className = packageName.isEmpty()
+            ? classSimpleName
+            : ClassNameUtil.convertToInternalName(packageName) + "/" + classSimpleName;
+      } else {
+        className = null;
+      }
+      final String path = packageName.isEmpty() ? file.getName() : packageName.replace('.', '/') + "/" + file.getName();
+      myWindow.submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          final File output = new File(directory, file.getName());
+          if (myManifest != null && myManifest.isUpToDate(path, file, output)) return null;
+          final byte[] bytes = IOUtil.readBytes(file);
+          final byte[] transformed = className == null ? bytes : transform(myTransformers.get(), className, bytes);
+          IOUtil.writeBytes(output, transformed);
+          if (myManifest != null) myManifest.update(path, file, bytes, output, transformed);
+          return null;
+        }
+      });
+    }
+  }
+
+  /**
+   * Entries are read through the jar central directory and transformed ahead,
+   * while the output jar is written sequentially in the original entry order.
+   * Signature files are not copied, as instrumented classes would not match them.
+   */
+  private static class JarInstrumenter {
+    private final File myJar;
+    private final File myOutput;
+    private final ThreadLocal<CoverageTransformer> myTransformers;
+    private final TaskWindow myWindow;
+    private final ArrayDeque<ZipEntry> myEntries = new ArrayDeque<ZipEntry>();
+
+    private JarInstrumenter(File jar, File output, ThreadLocal<CoverageTransformer> transformers, TaskWindow window) {
+      myJar = jar;
+      myOutput = output;
+      myTransformers = transformers;
+      myWindow = window;
+    }
+
+    void instrument() throws IOException {
+      final File parent = myOutput.getAbsoluteFile().getParentFile();
+      if (parent != null) createDirectory(parent);
+      final ZipFile zip = new ZipFile(myJar);
+      ZipOutputStream out = null;
       try {
-        byte[] bytes = IOUtil.readBytes(file);
-
-        if (file.getName().endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
-          final String classSimpleName = ClassNameUtil.removeClassSuffix(file.getName());
-          final String className = packageName.isEmpty()
-              ? classSimpleName
-              : ClassNameUtil.convertToInternalName(packageName) + "/" + classSimpleName;
-          // This loader is not user actually, just need some not null loader
-          final ClassLoader loader = ClassLoader.getSystemClassLoader();
-          final byte[] transformed = myTransformer.transform(loader, className, null, null, bytes);
-          if (transformed != null) {
-            bytes = transformed;
+        out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(myOutput), 64 * 1024));
+        final Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          final ZipEntry entry = entries.nextElement();
+          if (isSignatureFile(entry.getName())) continue;
+          if (myWindow.isFull()) {
+            writeNext(out);
           }
+          myEntries.addLast(entry);
+          myWindow.submit(createTask(zip, entry));
         }
+        while (!myWindow.isEmpty()) {
+          writeNext(out);
+        }
+        out.finish();
+      } finally {
+        CoverageIOUtil.close(out);
+        zip.close();
+      }
+    }
 
-        final File directory = new File(myOutput, packageName.replace(".", File.separator));
-        if (!directory.exists() && !directory.mkdirs()) {
-          throw new RuntimeException("Failed to create directory at " + directory.getAbsolutePath());
+    private Callable<byte[]> createTask(final ZipFile zip, final ZipEntry entry) {
+      return new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          if (entry.isDirectory()) return null;
+          final InputStream input = zip.getInputStream(entry);
+          final byte[] bytes;
+          try {
+            bytes = IOUtil.readBytes(input, entry.getSize());
+          } finally {
+            CoverageIOUtil.close(input);
+          }
+          final String name = entry.getName();
+          if (!name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) return bytes;
+          // the path does not match the class name for multi-release jar entries
+          final String className = new ClassReader(bytes).getClassName();
+          return transform(myTransformers.get(), className, bytes);
         }
+      };
+    }
 
-        final File newFile = new File(directory, file.getName());
-        IOUtil.writeBytes(newFile, bytes);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+    private void writeNext(ZipOutputStream out) throws IOException {
+      final ZipEntry entry = myEntries.removeFirst();
+      final byte[] bytes = myWindow.next();
+      final ZipEntry newEntry = new ZipEntry(entry.getName());
+      newEntry.setTime(entry.getTime());
+      newEntry.setExtra(entry.getExtra());
+      newEntry.setComment(entry.getComment());
+      final int length = bytes == null ? 0 : bytes.length;
+      if (entry.getMethod() == ZipEntry.STORED) {
+        final CRC32 crc = new CRC32();
+        if (bytes != null) crc.update(bytes);
+        newEntry.setMethod(ZipEntry.STORED);
+        newEntry.setSize(length);
+        newEntry.setCompressedSize(length);
+        newEntry.setCrc(crc.getValue());
       }
+      out.putNextEntry(newEntry);
+      if (bytes != null) out.write(bytes);
+      out.closeEntry();
+    }
+
+    private static boolean isSignatureFile(String name) {
+      if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) return false;
+      final String upperCase = name.toUpperCase();
+      return upperCase.endsWith(".SF") || upperCase.endsWith(".RSA") || upperCase.endsWith(".DSA") || upperCase.endsWith(".EC");
     }
   }
 }
@@ -45,7 +45,7 @@ public class OfflineCoverageTransformer extends CoverageTransformer {
     int length = getRequiredArrayLength(cr);
     boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
     String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
-    String methodName = calculateHits ? "getOrCreateHits" : "getOrCreateHitsMask";
+    String methodName = getInitMethodName(calculateHits);
     return new CoverageDataAccess.Init("__$hits$__", arrayType, "com/intellij/rt/coverage/offline/RawProjectInit",
         methodName, "(Ljava/lang/String;I)" + arrayType, new Object[]{className, length});
   }
@@ -55,11 +55,32 @@ public class OfflineCoverageTransformer extends CoverageTransformer {
     final int length = getRequiredArrayLength(cr);
     boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
     String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
-    String methodName = calculateHits ? "getOrCreateHits" : "getOrCreateHitsMask";
+    String methodName = getInitMethodName(calculateHits);
     return new CoverageDataAccess.Init("__$hits$__", arrayType, "com/intellij/rt/coverage/offline/CondyUtils",
         methodName, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;I)" + arrayType, new Object[]{className, length});
   }
 
+  @Override
+  protected CoverageDataAccess.Init createIndyInit(String className, ClassReader cr) {
+    final int length = getRequiredArrayLength(cr);
+    boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
+    String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
+    String methodName = getInitMethodName(calculateHits);
+    return new CoverageDataAccess.Init("__$hits$__", arrayType, "com/intellij/rt/coverage/offline/IndyUtils",
+        methodName, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;I)Ljava/lang/invoke/CallSite;", new Object[]{className, length});
+  }
+
+  /**
+   * Classes with minimized probes use separate entry points, so that the mode is written to the raw report
+   * and the reporter could check that it analyses the classes in the same mode.
+   */
+  private String getInitMethodName(boolean calculateHits) {
+    if (myProjectContext.getOptions().isMinimizeProbes) {
+      return calculateHits ? "getOrCreateMinimizedHits" : "getOrCreateMinimizedHitsMask";
+    }
+    return calculateHits ? "getOrCreateHits" : "getOrCreateHitsMask";
+  }
+
   private static int getRequiredArrayLength(ClassReader cr) {
     return analyseClassLength(cr).getHits();
   }
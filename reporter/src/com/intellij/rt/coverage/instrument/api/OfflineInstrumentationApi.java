@@ -34,6 +34,15 @@ public class OfflineInstrumentationApi {
     new Instrumentator(roots, outputRoots, filters).instrument(countHits);
   }
 
+  /**
+   * Incremental instrumentation: only the files changed since the previous call with the same manifests are instrumented,
+   * outputs of removed files are deleted.
+   * @param manifests a file per root where the state of instrumentation is stored between runs
+   */
+  public static void instrumentIncrementally(List<File> roots, List<File> outputRoots, List<File> manifests, Filters filters, boolean countHits) {
+    new Instrumentator(roots, outputRoots, filters).instrument(countHits, manifests);
+  }
+
   public static byte[] instrument(InputStream input, boolean countHits) throws IOException {
     byte[] bytes = IOUtil.readBytes(input);
     return Instrumentator.instrument(bytes, countHits);
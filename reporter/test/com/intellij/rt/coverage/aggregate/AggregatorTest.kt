@@ -17,17 +17,23 @@ package com.intellij.rt.coverage.aggregate
 
 import com.intellij.rt.coverage.aggregate.api.AggregatorApi
 import com.intellij.rt.coverage.aggregate.api.Request
+import com.intellij.rt.coverage.data.LineData
 import com.intellij.rt.coverage.data.ProjectData
 import com.intellij.rt.coverage.report.TestUtils.checkLogFile
 import com.intellij.rt.coverage.report.TestUtils.clearLogFile
 import com.intellij.rt.coverage.report.TestUtils.createFilters
 import com.intellij.rt.coverage.report.TestUtils.outputRoots
 import com.intellij.rt.coverage.report.TestUtils.runTest
+import com.intellij.rt.coverage.util.ErrorReporter
+import com.intellij.rt.coverage.util.OptionsUtil
 import com.intellij.rt.coverage.util.ProjectDataLoader
 import org.junit.Assert
 import org.junit.Test
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOException
+import java.io.PrintStream
+import java.nio.file.Files
 import java.util.regex.Pattern
 
 class AggregatorTest {
@@ -48,6 +54,102 @@ class AggregatorTest {
         )
     }
 
+    @Test
+    fun testSharedAnalysisIsEqualToSeparate() {
+        val reports = listOf("testData.defaultArgs.TestKt", "testData.crossinline.TestKt").map { runTest("", it).dataFile }
+        val requests = createRequests()
+        AggregatorApi.aggregate(requests, reports, outputRoots)
+        for (request in requests) {
+            val separate = Request(request.filters, File.createTempFile("request", "ic"), null)
+            AggregatorApi.aggregate(listOf(separate), reports, outputRoots)
+            val expected = ProjectDataLoader.load(separate.outputFile)
+            val actual = ProjectDataLoader.load(request.outputFile)
+            Assert.assertEquals(expected.classes.keys, actual.classes.keys)
+            for (classData in expected.classesCollection) {
+                val actualClass = actual.getClassData(classData.name)
+                Assert.assertEquals(classData.source, actualClass.source)
+                Assert.assertEquals(
+                    classData.lines?.filterNotNull()?.map { (it as LineData).lineNumber to it.hits },
+                    actualClass.lines?.filterNotNull()?.map { (it as LineData).lineNumber to it.hits }
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testAnalysisCache() {
+        val reports = listOf(runTest("", "testData.defaultArgs.TestKt").dataFile)
+        val filters = createFilters(Pattern.compile("testData\\..*"))
+        val expected = Request(filters, File.createTempFile("request", "ic"), null)
+        AggregatorApi.aggregate(listOf(expected), reports, outputRoots)
+
+        val cacheDir = Files.createTempDirectory("analysisCache").toFile()
+        val oldCacheDir = OptionsUtil.ANALYSIS_CACHE_DIR
+        OptionsUtil.ANALYSIS_CACHE_DIR = cacheDir.absolutePath
+        try {
+            val statistics = (0..1).map {
+                val request = Request(filters, File.createTempFile("request", "ic"), null)
+                val output = captureInfo { AggregatorApi.aggregate(listOf(request), reports, outputRoots) }
+                Assert.assertEquals(1, cacheDir.listFiles()!!.size)
+                Assert.assertArrayEquals(expected.outputFile.readBytes(), request.outputFile.readBytes())
+                val match = Regex("Analysis cache: (\\d+) hits, (\\d+) misses").find(output)!!
+                match.groupValues[1].toInt() to match.groupValues[2].toInt()
+            }
+            // all the classes are analysed in the first run and restored in the second one
+            val (firstHits, firstMisses) = statistics[0]
+            Assert.assertEquals(0, firstHits)
+            Assert.assertTrue(firstMisses > 0)
+            Assert.assertEquals(firstMisses to 0, statistics[1])
+        } finally {
+            OptionsUtil.ANALYSIS_CACHE_DIR = oldCacheDir
+            cacheDir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testAnalysisCacheIsSharedByRunsWithDifferentClasses() {
+        val reports = listOf(runTest("", "testData.defaultArgs.TestKt").dataFile)
+        val filters = listOf(
+            createFilters(Pattern.compile("testData\\.defaultArgs\\..*")),
+            createFilters(Pattern.compile("testData\\.branches\\..*"))
+        )
+        val cacheDir = Files.createTempDirectory("analysisCache").toFile()
+        val oldCacheDir = OptionsUtil.ANALYSIS_CACHE_DIR
+        OptionsUtil.ANALYSIS_CACHE_DIR = cacheDir.absolutePath
+        try {
+            val statistics = (0..3).map {
+                val request = Request(filters[it % 2], File.createTempFile("request", "ic"), null)
+                val output = captureInfo { AggregatorApi.aggregate(listOf(request), reports, outputRoots) }
+                val match = Regex("Analysis cache: (\\d+) hits, (\\d+) misses").find(output)!!
+                match.groupValues[1].toInt() to match.groupValues[2].toInt()
+            }
+            // the runs alternate in the same cache directory, but do not evict each other's entries
+            for (i in 0..1) {
+                val (hits, misses) = statistics[i]
+                Assert.assertEquals(0, hits)
+                Assert.assertTrue(misses > 0)
+                Assert.assertEquals(misses to 0, statistics[i + 2])
+            }
+        } finally {
+            OptionsUtil.ANALYSIS_CACHE_DIR = oldCacheDir
+            cacheDir.deleteRecursively()
+        }
+    }
+
+    private fun captureInfo(action: () -> Unit): String {
+        val originalOut = System.out
+        val output = ByteArrayOutputStream()
+        System.setOut(PrintStream(output, true))
+        ErrorReporter.setLogLevel(ErrorReporter.INFO)
+        try {
+            action()
+        } finally {
+            ErrorReporter.setLogLevel(ErrorReporter.WARNING)
+            System.setOut(originalOut)
+        }
+        return output.toString()
+    }
+
     companion object {
         private fun createRequests(): List<Request> {
             val requests: MutableList<Request> = ArrayList()
@@ -19,11 +19,16 @@ import com.intellij.rt.coverage.instrument.api.OfflineInstrumentationApi
 import com.intellij.rt.coverage.report.TestUtils
 import com.intellij.rt.coverage.report.api.Filters
 import com.intellij.rt.coverage.util.ClassNameUtil
+import com.intellij.rt.coverage.util.OptionsUtil
 import org.jetbrains.coverage.org.objectweb.asm.*
 import org.junit.Assert
 import org.junit.Test
 import java.io.File
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
 import kotlin.io.path.createTempDirectory
+import kotlin.io.path.createTempFile
 
 class InstrumentatorTest {
 
@@ -45,6 +50,90 @@ class InstrumentatorTest {
         checkOfflineInstrumentation(roots, outputRoots, filters)
     }
 
+    @Test
+    fun jarTest() {
+        val root = File(TestUtils.JAVA_OUTPUT)
+        val jar = createTempFile("input", ".jar").toFile()
+        ZipOutputStream(jar.outputStream()).use { out ->
+            root.walk().filter { it.isFile }.forEach { file ->
+                out.putNextEntry(ZipEntry(file.toRelativeString(root).replace(File.separatorChar, '/')))
+                out.write(file.readBytes())
+                out.closeEntry()
+            }
+        }
+        val outputDir = createTempDirectory("output").toFile()
+
+        TestUtils.clearLogFile(File("."))
+        Instrumentator(listOf(jar), listOf(outputDir), Filters.EMPTY, 4).instrument(false)
+        TestUtils.checkLogFile(File("."))
+
+        val outputJar = File(outputDir, jar.name)
+        ZipFile(jar).use { input ->
+            ZipFile(outputJar).use { output ->
+                Assert.assertEquals(input.entries().toList().map { it.name }, output.entries().toList().map { it.name })
+                val hasInstrumentation = output.entries().toList()
+                    .filter { it.name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX) && !it.name.startsWith("com/intellij/rt/") }
+                    .any { output.getInputStream(it).readBytes().isInstrumented() }
+                Assert.assertTrue(hasInstrumentation)
+            }
+        }
+    }
+
+    @Test
+    fun incrementalTest() {
+        val root = createTempDirectory("input").toFile()
+        File(TestUtils.JAVA_OUTPUT).copyRecursively(root)
+        val outputRoot = createTempDirectory("output").toFile()
+        val manifest = File(createTempDirectory("manifest").toFile(), "manifest")
+        val instrument = {
+            OfflineInstrumentationApi.instrumentIncrementally(listOf(root), listOf(outputRoot), listOf(manifest), Filters.EMPTY, true)
+        }
+
+        TestUtils.clearLogFile(File("."))
+        instrument()
+        TestUtils.checkLogFile(File("."))
+        checkOfflineInstrumentation(listOf(root), listOf(outputRoot), Filters.EMPTY)
+
+        val classFiles = root.walk().filter { it.name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX) }.toList()
+        val (removed, kept) = classFiles[0] to classFiles[1]
+        val keptOutput = File(outputRoot, kept.toRelativeString(root))
+        val keptModified = keptOutput.lastModified() - 10000
+        keptOutput.setLastModified(keptModified)
+        removed.delete()
+
+        instrument()
+        Assert.assertEquals(collectFiles(root), collectFiles(outputRoot))
+        Assert.assertEquals(keptModified, keptOutput.lastModified())
+    }
+
+    @Test
+    fun incrementalOptionsChangeTest() {
+        val root = createTempDirectory("input").toFile()
+        File(TestUtils.JAVA_OUTPUT).copyRecursively(root)
+        val outputRoot = createTempDirectory("output").toFile()
+        val manifest = File(createTempDirectory("manifest").toFile(), "manifest")
+        val instrument = {
+            OfflineInstrumentationApi.instrumentIncrementally(listOf(root), listOf(outputRoot), listOf(manifest), Filters.EMPTY, true)
+        }
+        instrument()
+
+        // outputs of a run with other bytecode affecting options are not reused
+        val output = outputRoot.walk().first { it.name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX) }
+        val options = listOf(OptionsUtil::INDY_ENABLED, OptionsUtil::MINIMIZE_PROBES, OptionsUtil::PRESERVE_FRAMES, OptionsUtil::LAZY_INSTRUMENTATION)
+        for (option in options) {
+            val modified = output.lastModified() - 10000
+            output.setLastModified(modified)
+            val value = option.get()
+            option.set(!value)
+            try {
+                instrument()
+            } finally {
+                option.set(value)
+            }
+            Assert.assertNotEquals(option.name, modified, output.lastModified())
+        }
+    }
+
     @Test
     fun singleClassApiTest() {
         val file = File(TestUtils.JAVA_OUTPUT).walk().first { it.name == "Main.class" }
@@ -99,7 +188,7 @@ private fun checkOfflineInstrumentation(roots: List<File>, outputRoots: List<Fil
 
 private fun ByteArray.isInstrumented(): Boolean {
     var hasInstrumentation = false
-    var hasCondyInstrumentation = false
+    var hasDynamicInstrumentation = false
     val visitor = object : ClassVisitor(Opcodes.API_VERSION) {
         override fun visitMethod(
             access: Int, name: String?, descriptor: String?,
@@ -111,7 +200,7 @@ private fun ByteArray.isInstrumented(): Boolean {
                     descriptor: String?, isInterface: Boolean
                 ) {
                     if (owner == "com/intellij/rt/coverage/offline/RawProjectInit"
-                        && (name == "getOrCreateHitsMask" || name == "getOrCreateHits")
+                        && name?.startsWith("getOrCreate") == true
                         && descriptor!!.startsWith("(Ljava/lang/String;I)[")
                     ) {
                         hasInstrumentation = true
@@ -120,13 +209,22 @@ private fun ByteArray.isInstrumented(): Boolean {
 
                 override fun visitLdcInsn(value: Any?) {
                     if (value is ConstantDynamic && value.name == "__\$hits\$__") {
-                        hasCondyInstrumentation = true
+                        hasDynamicInstrumentation = true
+                    }
+                }
+
+                override fun visitInvokeDynamicInsn(
+                    name: String?, descriptor: String?,
+                    bootstrapMethodHandle: Handle?, vararg bootstrapMethodArguments: Any?
+                ) {
+                    if (name == "__\$hits\$__" && bootstrapMethodHandle?.owner == "com/intellij/rt/coverage/offline/IndyUtils") {
+                        hasDynamicInstrumentation = true
                     }
                 }
             }
         }
     }
     ClassReader(this).accept(visitor, ClassReader.SKIP_FRAMES or ClassReader.SKIP_DEBUG)
-    check(!(hasInstrumentation && hasCondyInstrumentation))
-    return hasInstrumentation || hasCondyInstrumentation
+    check(!(hasInstrumentation && hasDynamicInstrumentation))
+    return hasInstrumentation || hasDynamicInstrumentation
 }
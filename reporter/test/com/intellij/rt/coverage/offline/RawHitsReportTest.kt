@@ -18,8 +18,13 @@ package com.intellij.rt.coverage.offline
 import com.intellij.rt.coverage.data.LineData
 import com.intellij.rt.coverage.data.ProjectData
 import com.intellij.rt.coverage.instrument.RawReportLoader
+import com.intellij.rt.coverage.util.CoverageIOUtil
+import com.intellij.rt.coverage.util.ErrorReporter
 import org.junit.Assert
 import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.FilterOutputStream
 import java.nio.file.Files
 
 class RawHitsReportTest {
@@ -46,6 +51,158 @@ class RawHitsReportTest {
             Assert.assertEquals(classData.getLineData(i).hits.toLong(), loadedClassData.getLineData(i).hits.toLong())
         }
     }
+
+    @Test
+    fun testSparseEncodings() {
+        val expected = mapOf(
+            "a.Zeros" to IntArray(100),
+            "a.Dense" to IntArray(100) { it + 1 },
+            "a.b.Bitmap" to IntArray(100) { if (it % 3 == 0) it * 1000 else 0 },
+            "Runs" to IntArray(1000) { if (it in 100..199 || it in 500..509) it else 0 },
+            "a.b.Large" to IntArray(10) { if (it % 2 == 0) Int.MAX_VALUE - it else 0 },
+        )
+        val rawProjectData = RawProjectData()
+        for ((name, hits) in expected) {
+            hits.copyInto(rawProjectData.getOrCreateClass(name, hits.size, true).hits as IntArray)
+        }
+        val mask = rawProjectData.getOrCreateClass("a.Mask", 50, false).hits as BooleanArray
+        for (i in mask.indices step 7) mask[i] = true
+
+        val file = Files.createTempFile("coverage", "ric").toFile()
+        RawHitsReport.dump(file, rawProjectData)
+        val loaded = RawHitsReport.load(file).classes.associate { it.name to it.hits as IntArray }
+
+        Assert.assertEquals(expected.keys + "a.Mask", loaded.keys)
+        for ((name, hits) in expected) {
+            Assert.assertArrayEquals(name, hits, loaded[name])
+        }
+        Assert.assertArrayEquals(IntArray(50) { if (it % 7 == 0) 1 else 0 }, loaded["a.Mask"])
+    }
+
+    @Test
+    fun testHitsChangeDuringDump() {
+        val rawProjectData = RawProjectData()
+        val hits = rawProjectData.getOrCreateClass("a.Live", 1000, true).hits as IntArray
+        for (i in 100..199) hits[i] = i
+        val zeroSlots = hits.indices.filter { hits[it] == 0 }
+
+        // the application sets one more counter on every write, so the hits change between the encoding passes
+        var changed = 0
+        val bytes = ByteArrayOutputStream()
+        val out = DataOutputStream(object : FilterOutputStream(bytes) {
+            override fun write(b: Int) {
+                if (changed < zeroSlots.size) hits[zeroSlots[changed++]] = 7
+                super.write(b)
+            }
+        })
+        RawHitsReport.dump(out, rawProjectData)
+        out.flush()
+        val file = Files.createTempFile("coverage", "ric").toFile()
+        file.writeBytes(bytes.toByteArray())
+
+        // the report must contain the hits as they were at some moment of the dump
+        val loaded = RawHitsReport.load(file).classes.single().hits as IntArray
+        val setCount = zeroSlots.count { loaded[it] != 0 }
+        Assert.assertTrue(setCount in 1..changed)
+        val expected = IntArray(1000) { if (it in 100..199) it else 0 }
+        for (i in 0 until setCount) expected[zeroSlots[i]] = 7
+        Assert.assertArrayEquals(expected, loaded)
+    }
+
+    @Test
+    fun testSnapshotWithReset() {
+        val rawProjectData = RawProjectData()
+        val hits = rawProjectData.getOrCreateClass("A", 3, true).hits as IntArray
+        val mask = rawProjectData.getOrCreateClass("B", 2, false).hits as BooleanArray
+        hits[0] = 2
+        hits[2] = 5
+        mask[1] = true
+
+        val snapshot = rawProjectData.snapshot(true).classes.associate { it.name to it.hits }
+        Assert.assertArrayEquals(intArrayOf(2, 0, 5), snapshot["A"] as IntArray)
+        Assert.assertArrayEquals(booleanArrayOf(false, true), snapshot["B"] as BooleanArray)
+        // live arrays are reset in place
+        Assert.assertArrayEquals(intArrayOf(0, 0, 0), hits)
+        Assert.assertArrayEquals(booleanArrayOf(false, false), mask)
+
+        hits[1] = 1
+        val next = rawProjectData.snapshot(false).classes.associate { it.name to it.hits }
+        Assert.assertArrayEquals(intArrayOf(0, 1, 0), next["A"] as IntArray)
+        Assert.assertArrayEquals(intArrayOf(0, 1, 0), hits)
+    }
+
+    @Test
+    fun testInstrumentationModesAreStored() {
+        val rawProjectData = RawProjectData()
+        rawProjectData.getOrCreateClass("a.Hits", 2, true)
+        rawProjectData.getOrCreateClass("a.Mask", 2, false)
+        rawProjectData.getOrCreateClass("a.MinimizedHits", 2, true, true)
+        rawProjectData.getOrCreateClass("a.MinimizedMask", 2, false, true)
+
+        val file = Files.createTempFile("coverage", "ric").toFile()
+        RawHitsReport.dump(file, rawProjectData)
+        val loaded = RawHitsReport.load(file).classes.associate { it.name to (it.calculateHits to it.minimizedProbes) }
+
+        Assert.assertEquals(
+            mapOf(
+                "a.Hits" to (true to false),
+                "a.Mask" to (false to false),
+                "a.MinimizedHits" to (true to true),
+                "a.MinimizedMask" to (false to true),
+            ), loaded
+        )
+    }
+
+    @Test
+    fun testInstrumentationModesMismatchIsReported() {
+        val rawProjectData = RawProjectData()
+        (rawProjectData.getOrCreateClass("A", 2, true, true).hits as IntArray)[0] = 1
+
+        val log = Files.createTempFile("coverage", "log").toFile()
+        ErrorReporter.setPath(log.path)
+        try {
+            RawReportLoader.apply(createProject(), rawProjectData, true, true)
+            Assert.assertEquals("", log.readText())
+            RawReportLoader.apply(createProject(), rawProjectData, true, false)
+            Assert.assertTrue(log.readText().contains("A (minimizeProbes=true, calculateHits=true)"))
+            log.writeText("")
+            RawReportLoader.apply(createProject(), rawProjectData, false, true)
+            Assert.assertTrue(log.readText().contains("A (minimizeProbes=true, calculateHits=true)"))
+        } finally {
+            ErrorReporter.setPath(null)
+            log.delete()
+        }
+    }
+
+    @Test
+    fun testLoadInitialFormat() {
+        val file = Files.createTempFile("coverage", "ric").toFile()
+        CoverageIOUtil.openWriteFile(file).use { out ->
+            CoverageIOUtil.writeINT(out, 284996684)
+            CoverageIOUtil.writeUTF(out, "")
+            CoverageIOUtil.writeUTF(out, "a.A")
+            CoverageIOUtil.writeINT(out, 3)
+            for (hit in intArrayOf(0, 5, 1000)) CoverageIOUtil.writeINT(out, hit)
+            CoverageIOUtil.writeUTF(out, "")
+        }
+        val loaded = RawHitsReport.load(file).classes.single()
+        Assert.assertEquals("a.A", loaded.name)
+        Assert.assertArrayEquals(intArrayOf(0, 5, 1000), loaded.hits as IntArray)
+    }
+
+    @Test
+    fun testSparseFormatIsRejectedByInitialFormatReaders() {
+        val rawProjectData = RawProjectData()
+        (rawProjectData.getOrCreateClass("a.A", 3, true).hits as IntArray)[1] = 5
+        val file = Files.createTempFile("coverage", "ric").toFile()
+        RawHitsReport.dump(file, rawProjectData)
+
+        // the readers of the initial format check the magic number and skip the configuration line
+        CoverageIOUtil.openReadFile(file).use { input ->
+            Assert.assertNotEquals(284996684, CoverageIOUtil.readINT(input))
+        }
+        Assert.assertTrue(RawHitsReport.isRawHitsFile(file))
+    }
 }
 
 private fun createProject(): ProjectData {
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.offline.api
+
+import com.intellij.rt.coverage.data.ClassData
+import com.intellij.rt.coverage.data.LineData
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions
+import com.intellij.rt.coverage.util.classFinder.ClassEntry
+import com.intellij.rt.coverage.util.classFinder.ClassFilter
+import com.intellij.rt.coverage.util.classFinder.ClassFinder
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter
+import org.jetbrains.coverage.org.objectweb.asm.Label
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+
+class ClassAnalysisCacheTest {
+    private val analysed = mutableListOf<String>()
+    private val cache = object : ClassAnalysisCache(InstrumentationOptions.Builder().setBranchCoverage(true).build()) {
+        override fun analyse(className: String, bytes: ByteArray): ClassData? {
+            analysed.add(className)
+            return super.analyse(className, bytes)
+        }
+    }
+
+    @Test
+    fun testUnchangedClassIsReused() {
+        val a = createClass("a.A", 1, 2)
+        val b = createClass("a.B", 5)
+        collectLines(a, b)
+        Assert.assertEquals(listOf("a.A", "a.B"), analysed)
+
+        val lines = collectLines(a, b)
+        Assert.assertEquals(listOf("a.A", "a.B"), analysed)
+        Assert.assertEquals(mapOf("a.A" to listOf(1, 2), "a.B" to listOf(5)), lines)
+    }
+
+    @Test
+    fun testChangedClassIsAnalysedAgain() {
+        collectLines(createClass("a.A", 1, 2))
+        val lines = collectLines(createClass("a.A", 1, 2, 3))
+        Assert.assertEquals(listOf("a.A", "a.A"), analysed)
+        Assert.assertEquals(mapOf("a.A" to listOf(1, 2, 3)), lines)
+    }
+
+    @Test
+    fun testClassesOfPreviousCollectionsAreDropped() {
+        val a = createClass("a.A", 1)
+        collectLines(a)
+        collectLines(createClass("a.B", 1))
+        collectLines(a)
+        Assert.assertEquals(listOf("a.A", "a.B", "a.A"), analysed)
+    }
+
+    private fun collectLines(vararg classes: ByteArray): Map<String, List<Int>> {
+        val finder = object : ClassFinder(null as ClassFilter?) {
+            override fun iterateMatchedClasses(consumer: ClassEntry.Consumer) {
+                for (bytes in classes) {
+                    val className = ClassReader(bytes).className.replace('/', '.')
+                    consumer.consume(object : ClassEntry(className) {
+                        override fun getClassInputStream() = ByteArrayInputStream(bytes)
+                    })
+                }
+            }
+        }
+        return cache.createProjectData(finder).classesCollection.associate { classData ->
+            classData.name to classData.lines.filterIsInstance<LineData>().map { it.lineNumber }
+        }
+    }
+}
+
+/**
+ * Class with a single method, which prints an empty line on each of the lines.
+ */
+private fun createClass(className: String, vararg lines: Int): ByteArray {
+    val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, className.replace('.', '/'), null, "java/lang/Object", null)
+    writer.visitSource("A.java", null)
+    val mv = writer.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "foo", "()V", null, null)
+    mv.visitCode()
+    for (line in lines) {
+        val label = Label()
+        mv.visitLabel(label)
+        mv.visitLineNumber(line, label)
+        mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;")
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", "()V", false)
+    }
+    mv.visitInsn(Opcodes.RETURN)
+    mv.visitMaxs(0, 0)
+    mv.visitEnd()
+    writer.visitEnd()
+    return writer.toByteArray()
+}
@@ -16,6 +16,7 @@ include(":instrumentation")
 include(":instrumentation:java7-utils")
 include(":test-discovery")
 include(":junit4-test-discovery-launcher")
+include(":junit5-test-discovery-listener")
 include(":tests")
 include(":util")
 include(":reporter")
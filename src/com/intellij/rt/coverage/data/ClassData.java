@@ -46,6 +46,11 @@ public class ClassData implements CoverageData {
    * Storage for test tracking data.
    */
   private volatile boolean[] myTraceMask;
+  /**
+   * Pairs of ids: hits of the first probe include hits of the second one, as the first probe is omitted.
+   * A negative second id <code>-id - 1</code> means that its hits are subtracted.
+   */
+  private int[] myInferredHits;
 
   /**
    * This flag shows whether the bytecode this class
@@ -113,6 +118,49 @@ public class ClassData implements CoverageData {
     }
   }
 
+  /**
+   * Copy class structure without hits: source, lines with probe ids, jumps and switches.
+   */
+  public ClassData copyStructure() {
+    final ClassData classCopy = new ClassData(myClassName);
+    classCopy.setSource(mySource);
+    classCopy.setInferredHits(myInferredHits);
+    final LineData[] lines = myLinesArray;
+    if (lines == null) return classCopy;
+    final LineData[] linesCopy = new LineData[lines.length];
+    classCopy.setLines(linesCopy);
+    for (LineData lineData : lines) {
+      if (lineData == null) continue;
+      final LineData lineCopy = new LineData(lineData.getLineNumber(), lineData.getMethodSignature());
+      lineCopy.setId(lineData.getId());
+      linesCopy[lineCopy.getLineNumber()] = lineCopy;
+
+      final JumpData[] jumps = lineData.getJumps();
+      if (jumps != null) {
+        for (int i = 0; i < jumps.length; i++) {
+          final JumpData jump = jumps[i];
+          final JumpData jumpCopy = lineCopy.addJump(i);
+          jumpCopy.setId(jump.getId(true), true);
+          jumpCopy.setId(jump.getId(false), false);
+        }
+      }
+
+      final SwitchData[] switches = lineData.getSwitches();
+      if (switches != null) {
+        for (int i = 0; i < switches.length; i++) {
+          final SwitchData aSwitch = switches[i];
+          final SwitchData switchCopy = lineCopy.addSwitch(i, aSwitch.getKeys());
+          for (int key = -1; key < aSwitch.getKeys().length; key++) {
+            switchCopy.setId(aSwitch.getId(key), key);
+          }
+        }
+      }
+      lineCopy.fillArrays();
+      classCopy.registerMethodSignature(lineCopy);
+    }
+    return classCopy;
+  }
+
   private void mergeLines(LineData[] dLines) {
     if (dLines == null) return;
     if (myLinesArray == null || myLinesArray.length < dLines.length) {
@@ -268,6 +316,14 @@ public class ClassData implements CoverageData {
     myHitsMask = hits;
   }
 
+  public int[] getInferredHits() {
+    return myInferredHits;
+  }
+
+  public void setInferredHits(int[] inferredHits) {
+    myInferredHits = inferredHits;
+  }
+
   public boolean[] getTraceMask() {
     return myTraceMask;
   }
@@ -291,6 +347,7 @@ public class ClassData implements CoverageData {
       }
     }
     try {
+      applyInferredHits(hits, myHitsMask instanceof boolean[]);
       for (LineData lineData : myLinesArray) {
         if (lineData == null) continue;
         int lineId = lineData.getId();
@@ -340,4 +397,25 @@ public class ClassData implements CoverageData {
       ErrorReporter.warn("Unexpected error during applying hits data to class " + getName(), e);
     }
   }
+
+  /**
+   * Hits of omitted probes are restored from the hits of other probes before the hits are applied.
+   * The pairs are applied in order, so an inferred probe may be used for later inferences.
+   */
+  private void applyInferredHits(int[] hits, boolean isBooleanMask) {
+    final int[] inferredHits = myInferredHits;
+    if (inferredHits == null) return;
+    for (int i = 0; i + 1 < inferredHits.length; i += 2) {
+      final int id = inferredHits[i];
+      final int sourceId = inferredHits[i + 1];
+      if (sourceId < 0) {
+        // may be negative if concurrent updates of the hits were lost
+        hits[id] = Math.max(0, hits[id] - hits[-sourceId - 1]);
+      } else if (isBooleanMask) {
+        hits[id] = Math.max(hits[id], hits[sourceId]);
+      } else {
+        hits[id] = trimHits(hits[id] + hits[sourceId]);
+      }
+    }
+  }
 }
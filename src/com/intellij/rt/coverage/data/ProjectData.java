@@ -23,6 +23,7 @@ import com.intellij.rt.coverage.util.*;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 /**
@@ -35,7 +36,7 @@ public class ProjectData implements CoverageData, Serializable {
   private List<Pattern> myExcludePatterns;
   private List<Pattern> myAnnotationsToIgnore;
 
-  private final Map<String, ClassData> myClasses = new ConcurrentHashMap<String, ClassData>(1000);
+  private final ConcurrentMap<String, ClassData> myClasses = new ConcurrentHashMap<String, ClassData>(1000);
   private boolean myCollectInstructions;
   private Map<String, ClassInstructions> myInstructions;
 
@@ -57,7 +58,9 @@ public class ProjectData implements CoverageData, Serializable {
     ClassData classData = myClasses.get(name);
     if (classData == null) {
       classData = new ClassData(name);
-      myClasses.put(name, classData);
+      // classes may be analysed concurrently, see UnloadedUtil
+      final ClassData existing = myClasses.putIfAbsent(name, classData);
+      if (existing != null) return existing;
     }
     return classData;
   }
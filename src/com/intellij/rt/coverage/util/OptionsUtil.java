@@ -22,9 +22,15 @@ public class OptionsUtil {
           && "true".equals(System.getProperty("idea.new.tracing.coverage", "true"));
   public static final boolean NEW_TEST_TRACKING_ENABLED = "true".equals(System.getProperty("idea.new.test.tracking.coverage", "true"));
   public static boolean CONDY_ENABLED = "true".equals(System.getProperty("coverage.condy.enable", "true"));
+  public static boolean INDY_ENABLED = "true".equals(System.getProperty("coverage.indy.enable", "false"));
   public static final boolean INSTRUCTIONS_COVERAGE_ENABLED = "true".equals(System.getProperty("coverage.instructions.enable", "false"));
   public static boolean CALCULATE_HITS_COUNT = "true".equals(System.getProperty("idea.coverage.calculate.hits", "false"));
+  public static boolean MINIMIZE_PROBES = "true".equals(System.getProperty("idea.coverage.minimize.probes", "false"));
+  public static boolean PRESERVE_FRAMES = "true".equals(System.getProperty("idea.coverage.preserve.frames", "false"));
+  public static boolean LAZY_INSTRUMENTATION = "true".equals(System.getProperty("idea.coverage.lazy.instrumentation", "false"));
   public static boolean IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS = "true".equals(System.getProperty("idea.coverage.ignore.local.functions.in.ignored.methods", "true"));
   public static final boolean TEST_MODE = "true".equals(System.getProperty("idea.coverage.test.mode", "false"));
+  public static int UNLOADED_ANALYSIS_THREADS = Integer.getInteger("idea.coverage.unloaded.threads", Runtime.getRuntime().availableProcessors());
+  public static String ANALYSIS_CACHE_DIR = System.getProperty("idea.coverage.analysis.cache.dir");
   public static final boolean USE_SYSTEM_CLASS_LOADER = "true".equals(System.getProperty("idea.coverage.use.system.classloader", "false"));
 }
@@ -24,9 +24,21 @@ import java.util.regex.Pattern;
 public interface ClassFilter {
   boolean shouldInclude(String className);
 
-  class PatternFilter implements ClassFilter {
+  /**
+   * Filter which is able to reject a whole package, so that the package is not scanned at all.
+   */
+  interface PackageFilter extends ClassFilter {
+    /**
+     * @param packagePrefix package name followed by a dot, or an empty string for the default package
+     * @return false if no class in the package or in its subpackages can be included
+     */
+    boolean shouldScanPackage(String packagePrefix);
+  }
+
+  class PatternFilter implements PackageFilter {
     private final List<Pattern> myIncludePatterns;
     private final List<Pattern> myExcludePatterns;
+    private String[] myIncludePrefixes;
 
     public PatternFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
       myIncludePatterns = includePatterns;
@@ -39,5 +51,49 @@ public interface ClassFilter {
       if (ClassNameUtil.matchesPatterns(outerClassName, myIncludePatterns)) return true;
       return myIncludePatterns.isEmpty();
     }
+
+    public boolean shouldScanPackage(String packagePrefix) {
+      if (myIncludePatterns.isEmpty()) return true;
+      String[] prefixes = myIncludePrefixes;
+      if (prefixes == null) {
+        prefixes = new String[myIncludePatterns.size()];
+        for (int i = 0; i < prefixes.length; i++) {
+          prefixes[i] = getLiteralPrefix(myIncludePatterns.get(i));
+        }
+        myIncludePrefixes = prefixes;
+      }
+      for (String prefix : prefixes) {
+        if (prefix.startsWith(packagePrefix) || packagePrefix.startsWith(prefix)) return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return a string which starts every class name matching the pattern, e.g. <code>com.acme.</code> for <code>com\.acme\..*</code>
+     */
+    static String getLiteralPrefix(Pattern pattern) {
+      if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.LITERAL | Pattern.COMMENTS)) != 0) return "";
+      final String regex = pattern.pattern();
+      if (regex.indexOf('|') >= 0) return "";
+      final StringBuilder prefix = new StringBuilder();
+      for (int i = 0; i < regex.length(); i++) {
+        final char c = regex.charAt(i);
+        if (c == '\\') {
+          final char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+          if (next != '.' && next != '$') break;
+          prefix.append(next);
+          i++;
+        } else if (c != '$' && Character.isJavaIdentifierPart(c)) {
+          prefix.append(c);
+        } else {
+          if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+            // the previous character is optional
+            prefix.setLength(prefix.length() - 1);
+          }
+          break;
+        }
+      }
+      return prefix.toString();
+    }
   }
 }
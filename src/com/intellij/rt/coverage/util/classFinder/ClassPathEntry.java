@@ -70,6 +70,14 @@ public class ClassPathEntry {
       if (myFilter == null) return true;
       return myFilter.shouldInclude(className);
     }
+
+    /**
+     * @param packagePrefix package name followed by a dot, or an empty string for the default package
+     */
+    protected final boolean shouldScanPackage(final String packagePrefix) {
+      if (!(myFilter instanceof ClassFilter.PackageFilter)) return true;
+      return ((ClassFilter.PackageFilter) myFilter).shouldScanPackage(packagePrefix);
+    }
   }
 
   private interface ClassPathEntryProcessor {
@@ -87,19 +95,21 @@ public class ClassPathEntry {
     }
 
     private void collectClasses(final String curPath, final File parent, final ClassEntry.Consumer consumer, final InputStream[] is) {
+      String prefix = curPath.isEmpty() ? "" : curPath + ".";
+      if (!shouldScanPackage(prefix)) return;
       File[] files = parent.listFiles();
       if (files != null) {
-        String prefix = curPath.isEmpty() ? "" : curPath + ".";
         // force anonymous classes to come after its outer class
-        Arrays.sort(files, new Comparator<File>() {
-          public int compare(File o1, File o2) {
-            return ClassNameUtil.removeClassSuffix(o1.getName()).compareTo(ClassNameUtil.removeClassSuffix(o2.getName()));
-          }
-        });
-        for (final File f : files) {
-          final String name = f.getName();
-          if (name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
-            final String className = prefix + ClassNameUtil.removeClassSuffix(name);
+        final SortedFile[] sortedFiles = new SortedFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+          sortedFiles[i] = new SortedFile(files[i]);
+        }
+        Arrays.sort(sortedFiles);
+        for (final SortedFile sortedFile : sortedFiles) {
+          final File f = sortedFile.myFile;
+          final String name = sortedFile.myName;
+          if (sortedFile.myIsClass) {
+            final String className = prefix + sortedFile.myKey;
             if (shouldInclude(className)) {
               is[0] = null;
               try {
@@ -122,16 +132,47 @@ public class ClassPathEntry {
     }
   }
 
+  /**
+   * Directory entry with the precomputed sort key.
+   */
+  private static class SortedFile implements Comparable<SortedFile> {
+    private final File myFile;
+    private final String myName;
+    private final String myKey;
+    private final boolean myIsClass;
+
+    private SortedFile(File file) {
+      myFile = file;
+      myName = file.getName();
+      myIsClass = myName.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX);
+      myKey = myIsClass ? ClassNameUtil.removeClassSuffix(myName) : myName;
+    }
+
+    public int compareTo(SortedFile o) {
+      return myKey.compareTo(o.myKey);
+    }
+  }
+
   private static class ZipEntryProcessor extends AbstractClassPathEntryProcessor {
     public void iterateMatchedClasses(final String classPathEntry, ClassEntry.Consumer consumer) throws IOException {
       final ZipFile zipFile = new ZipFile(new File(classPathEntry));
       try {
         final InputStream[] is = new InputStream[] {null};
+        // entries of a package usually go together, so the package check result is reused
+        String lastPackage = null;
+        boolean lastPackageScanned = false;
         Enumeration<? extends ZipEntry> zenum = zipFile.entries();
         while (zenum.hasMoreElements()) {
           ZipEntry ze = zenum.nextElement();
-          if (!ze.isDirectory() && ze.getName().endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
-            final String className = ClassNameUtil.convertToFQName(ClassNameUtil.removeClassSuffix(ze.getName()));
+          final String entryName = ze.getName();
+          if (!ze.isDirectory() && entryName.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
+            final int packageEnd = entryName.lastIndexOf('/') + 1;
+            if (lastPackage == null || lastPackage.length() != packageEnd || !entryName.startsWith(lastPackage)) {
+              lastPackage = entryName.substring(0, packageEnd);
+              lastPackageScanned = shouldScanPackage(ClassNameUtil.convertToFQName(lastPackage));
+            }
+            if (!lastPackageScanned) continue;
+            final String className = ClassNameUtil.convertToFQName(ClassNameUtil.removeClassSuffix(entryName));
             if (shouldInclude(className)) {
               is[0] = null;
               try {
@@ -16,51 +16,65 @@
 
 package com.intellij.rt.coverage.data;
 
-import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
-
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns integer ids to names (class names, method names, path segments).
+ * <p>
+ * Lookups of already known names are lock-free. A new id is reserved with an atomic increment and
+ * published with <code>putIfAbsent</code>, so when several threads enumerate the same name concurrently
+ * exactly one id wins and the others are discarded. Ids are therefore unique but may have gaps.
+ */
 public class NameEnumerator {
-  private final TObjectIntHashMap<String> myNames = new TObjectIntHashMap<String>();
-  private int myNextNameId = 1; // because TObjectIntHashMap uses 0 as null
-  private final Object myNameLock = "NameLock";
+  private final ConcurrentMap<String, Integer> myNames = new ConcurrentHashMap<String, Integer>();
+  private final AtomicInteger myNextNameId = new AtomicInteger(1); // 0 is reserved as "no id"
 
   int enumerate(String name) {
-    synchronized (myNameLock) {
-      int enumerated = myNames.get(name);
-      if (enumerated != 0) return enumerated;
-
-      int newId = myNextNameId++;
-      updateDataIncrement(name, newId);
-      myNames.put(name, newId);
-      return newId;
-    }
+    final Integer enumerated = myNames.get(name);
+    if (enumerated != null) return enumerated;
+
+    final int newId = myNextNameId.getAndIncrement();
+    // the increment must be visible before the id is published,
+    // otherwise a concurrent writer may send the id without its name
+    updateDataIncrement(name, newId);
+    final Integer previous = myNames.putIfAbsent(name, newId);
+    return previous != null ? previous : newId;
   }
 
-  TObjectIntHashMap<String> getNamesMap() {
+  ConcurrentMap<String, Integer> getNamesMap() {
     return myNames;
   }
 
   protected void updateDataIncrement(String name, int id) {
   }
 
+  /**
+   * Enumerator which records newly assigned ids so that they could be sent to the consumer in portions.
+   * The log is a lock-free queue, draining it does not block enumeration.
+   * <p>
+   * Ids which lost the race in {@link NameEnumerator#enumerate(String)} are also recorded.
+   * Such entries are never referenced by the data, so they are harmless for readers.
+   */
   static class Incremental extends NameEnumerator {
-    private List<NameAndId> myDataIncrement = new ArrayList<NameAndId>();
-    private final Object myDataIncrementLock = "DataIncrementLock";
+    private final Queue<NameAndId> myDataIncrement = new ConcurrentLinkedQueue<NameAndId>();
 
     protected void updateDataIncrement(String name, int id) {
-      synchronized (myDataIncrementLock) {
-        myDataIncrement.add(new NameAndId(name, id));
-      }
+      myDataIncrement.add(new NameAndId(name, id));
     }
 
     List<NameAndId> getAndClearDataIncrement() {
-      synchronized (myDataIncrementLock) {
-        List<NameAndId> dataIncrement = myDataIncrement;
-        myDataIncrement = new ArrayList<NameAndId>();
-        return dataIncrement;
+      final List<NameAndId> dataIncrement = new ArrayList<NameAndId>();
+      NameAndId nameAndId;
+      while ((nameAndId = myDataIncrement.poll()) != null) {
+        dataIncrement.add(nameAndId);
       }
+      return dataIncrement;
     }
 
     static final class NameAndId {
@@ -17,6 +17,8 @@
 package com.intellij.rt.coverage.data;
 
 import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.jetbrains.coverage.gnu.trove.TLongArrayList;
 
 import java.io.*;
 import java.util.List;
@@ -30,14 +32,26 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
   public static final String BUFFER_SIZE = "org.jetbrains.instrumentation.trace.file.buffer.size";
   @SuppressWarnings("WeakerAccess")
   public static final String FILE_VERSION = "org.jetbrains.instrumentation.trace.file.version";
+  @SuppressWarnings("WeakerAccess")
+  public static final String SYNC_INTERVAL = "org.jetbrains.instrumentation.trace.file.sync.interval";
 
   public static final byte HEADER_START = 0x49; // "I"
   public static final byte[] HEADER_TAIL = new byte[]{0x4a, 0x54, 0x43}; // "JTC"
+  /**
+   * Last int of a file with the sync points index, see {@link #writeSyncIndex()}.
+   */
+  public static final int SYNC_INDEX_MAGIC = 0x494a5349; // "IJSI"
 
   private static final int DEFAULT_VERSION = 0x3;
+  private static final int DEFAULT_SYNC_INTERVAL = 1000;
 
   private final DataOutputStream myStream;
+  private final PositionOutputStream myPosition;
   private final NameEnumerator.Incremental myNameEnumerator;
+  private final int mySyncInterval;
+  private final TLongArrayList mySyncPointOffsets = new TLongArrayList();
+  private final TLongArrayList myDictionaryPartOffsets = new TLongArrayList();
+  private int myTestCount;
 
 
   public SingleTrFileDiscoveryProtocolDataListener() throws Exception {
@@ -46,8 +60,10 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
     int bufferSize = Integer.parseInt(System.getProperty(BUFFER_SIZE, "32768"));
     //noinspection ResultOfMethodCallIgnored
     myTraceFile.getParentFile().mkdirs();
-    myStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myTraceFile), bufferSize));
+    myPosition = new PositionOutputStream(new BufferedOutputStream(new FileOutputStream(myTraceFile), bufferSize));
+    myStream = new DataOutputStream(myPosition);
     myNameEnumerator = new NameEnumerator.Incremental();
+    mySyncInterval = Integer.parseInt(System.getProperty(SYNC_INTERVAL, String.valueOf(DEFAULT_SYNC_INTERVAL)));
     start(this.myStream);
 
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
@@ -59,18 +75,29 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
 
   // For tests
   SingleTrFileDiscoveryProtocolDataListener(DataOutputStream stream, int version) throws Exception {
+    this(stream, version, DEFAULT_SYNC_INTERVAL);
+  }
+
+  // For tests
+  SingleTrFileDiscoveryProtocolDataListener(DataOutputStream stream, int version, int syncInterval) throws Exception {
     super((byte) version);
-    myStream = stream;
+    myPosition = new PositionOutputStream(stream);
+    myStream = new DataOutputStream(myPosition);
     myNameEnumerator = new NameEnumerator.Incremental();
+    mySyncInterval = syncInterval;
     start(myStream);
   }
 
   private static Long ourSendTime = 0L;
 
-  public synchronized void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) throws IOException {
+  public synchronized void testFinished(String className, String methodName, TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames, List<int[]> openedFiles) throws IOException {
     long s = System.nanoTime();
     try {
       writeTestFinished(myStream, className, methodName, classToVisitedMethods, classToMethodNames, openedFiles);
+      if (++myTestCount % mySyncInterval == 0 && myVersion >= 4) {
+        mySyncPointOffsets.add(myPosition.myPosition);
+        writeSyncPoint(myStream, myTestCount, myDictionaryPartOffsets.size());
+      }
     } finally {
       Long diff = ourSendTime += System.nanoTime() - s;
     }
@@ -82,6 +109,7 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
     try {
       writeDictionaryIncrementIfNeeded(myStream);
       finish(myStream);
+      writeSyncIndex();
     } finally {
       ourSendTime += System.nanoTime() - s;
       myStream.close();
@@ -96,10 +124,49 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
     writeMetadata(myStream, metadata);
   }
 
-  public void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
+  public synchronized void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
     writeClassMetadata(myStream, metadata);
   }
 
+  @Override
+  protected void writeDictionaryIncrementIfNeeded(DataOutput output) throws IOException {
+    final long position = myPosition.myPosition;
+    super.writeDictionaryIncrementIfNeeded(output);
+    if (myVersion >= 4 && myPosition.myPosition != position) {
+      myDictionaryPartOffsets.add(position);
+    }
+  }
+
+  /**
+   * Writes offsets of sync points and dictionary parts after the finish marker, sequential readers stop before it.
+   * Format:
+   * <ul>
+   * <li>Sync points count (N) - number</li>
+   * <li>N sync point offsets - long</li>
+   * <li>Dictionary parts count (M) - number</li>
+   * <li>M dictionary part offsets - long</li>
+   * <li>Offset of the index - long</li>
+   * <li>{@link #SYNC_INDEX_MAGIC} - int</li>
+   * </ul>
+   *
+   * @since Version 4
+   */
+  private void writeSyncIndex() throws IOException {
+    if (myVersion < 4) return;
+    final long indexOffset = myPosition.myPosition;
+    writeOffsets(mySyncPointOffsets);
+    writeOffsets(myDictionaryPartOffsets);
+    myStream.writeLong(indexOffset);
+    myStream.writeInt(SYNC_INDEX_MAGIC);
+  }
+
+  private void writeOffsets(TLongArrayList offsets) throws IOException {
+    CoverageIOUtil.writeINT(myStream, offsets.size());
+    for (int i = 0; i < offsets.size(); i++) {
+      myStream.writeLong(offsets.get(i));
+    }
+  }
+
   protected synchronized void start(DataOutput output) throws IOException {
     output.writeByte(HEADER_START);
     output.write(HEADER_TAIL);
@@ -107,6 +174,29 @@ public class SingleTrFileDiscoveryProtocolDataListener extends TestDiscoveryProt
   }
 
 
+  /**
+   * Tracks the offset in the file, {@link DataOutputStream#size()} overflows on large files.
+   */
+  private static class PositionOutputStream extends FilterOutputStream {
+    private long myPosition;
+
+    PositionOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      myPosition++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      myPosition += len;
+    }
+  }
+
   private static File getCanonicalFile(File file) {
     try {
       return file.getCanonicalFile();
@@ -17,17 +17,37 @@
 package com.intellij.rt.coverage.data;
 
 import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends test discovery data to a socket.
+ * <p>
+ * Test threads only serialize data into pooled buffers and put them into a bounded queue.
+ * A dedicated writer thread takes all the queued buffers and sends them with a single gathering write,
+ * so network stalls on the receiver side do not slow down tests until the queue is full.
+ * When the queue is full, the behaviour is defined by {@link #OVERFLOW_POLICY_PROP}:
+ * <ul>
+ *   <li><code>block</code> (default) - wait until the writer thread frees space in the queue;</li>
+ *   <li><code>drop</code> - drop the test record. Names dictionary increment is never dropped, it is sent with the next message.</li>
+ * </ul>
+ * Once the writer thread has stopped or failed to write, the data is discarded without queueing.
+ * On shutdown, the listener waits for the remaining data at most {@link #SHUTDOWN_TIMEOUT_PROP} milliseconds.
+ */
 @SuppressWarnings("unused")
 public class SocketTestDiscoveryProtocolDataListener extends TestDiscoveryProtocolDataListener {
   private static final int SOCKET_BUFFER_SIZE = 128 * 1024;
@@ -37,61 +57,261 @@ public class SocketTestDiscoveryProtocolDataListener extends TestDiscoveryProtoc
   public static final String PORT_PROP = "test.discovery.data.port";
   @SuppressWarnings("WeakerAccess")
   public static final String DATA_VERSION = "test.discovery.data.version";
+  @SuppressWarnings("WeakerAccess")
+  public static final String QUEUE_SIZE_PROP = "test.discovery.data.queue.size";
+  @SuppressWarnings("WeakerAccess")
+  public static final String OVERFLOW_POLICY_PROP = "test.discovery.data.overflow.policy";
+  @SuppressWarnings("WeakerAccess")
+  public static final String SHUTDOWN_TIMEOUT_PROP = "test.discovery.data.shutdown.timeout";
 
   private static final byte DEFAULT_VERSION = 1;
+  private static final int DEFAULT_QUEUE_SIZE = 64;
+  private static final int MAX_BATCH_SIZE = 64;
+  private static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 30000;
+  /**
+   * A blocked producer checks the writer state with this interval.
+   */
+  private static final long WRITER_CHECK_INTERVAL_MS = 100;
+  /**
+   * Buffers which have grown larger are not returned to the pool.
+   */
+  private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+  private static final Buffer END_OF_DATA = new Buffer();
 
-  private final Socket mySocket;
-  private final BlockingQueue<ByteBuffer> myData = new ArrayBlockingQueue<ByteBuffer>(10);
+  private final SocketChannel myChannel;
+  private final BlockingQueue<Buffer> myData;
+  private final Queue<Buffer> myBufferPool = new ConcurrentLinkedQueue<Buffer>();
+  private final boolean myDropOnOverflow;
+  private final long myShutdownTimeout;
   private final NameEnumerator.Incremental incrementalNameEnumerator = new NameEnumerator.Incremental();
-  private final DataOutputStream dos;
-  private final OutputStream os;
+  private final Thread myWriterThread;
+
+  /**
+   * Data which must be sent before the next message, e.g. names dictionary increment of a dropped test.
+   */
+  private Buffer myPending;
+  private int myDroppedTestsCount;
+  private volatile boolean myWriteFailed;
+  private volatile boolean myWriterStopped;
 
   public SocketTestDiscoveryProtocolDataListener() throws IOException {
     super(Byte.parseByte(System.getProperty(DATA_VERSION, String.valueOf(DEFAULT_VERSION))));
     String host = System.getProperty(HOST_PROP, "127.0.0.1");
     int port = Integer.parseInt(System.getProperty(PORT_PROP));
-    mySocket = new Socket(host, port);
-    mySocket.setSendBufferSize(SOCKET_BUFFER_SIZE);
-    mySocket.setTcpNoDelay(true);
-    os = mySocket.getOutputStream();
-    dos = new DataOutputStream(os);
-    start(dos);
+    myData = new ArrayBlockingQueue<Buffer>(Integer.parseInt(System.getProperty(QUEUE_SIZE_PROP, String.valueOf(DEFAULT_QUEUE_SIZE))));
+    myDropOnOverflow = "drop".equals(System.getProperty(OVERFLOW_POLICY_PROP));
+    myShutdownTimeout = Long.parseLong(System.getProperty(SHUTDOWN_TIMEOUT_PROP, String.valueOf(DEFAULT_SHUTDOWN_TIMEOUT_MS)));
+    myChannel = SocketChannel.open(new InetSocketAddress(host, port));
+    myChannel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+    myChannel.socket().setTcpNoDelay(true);
+    myWriterThread = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "Test discovery data writer");
+    myWriterThread.setDaemon(true);
+    myWriterThread.start();
+
+    final Buffer buffer = acquireBuffer();
+    start(buffer.myOutput);
+    send(buffer);
   }
 
-  public void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) {
+  public synchronized void testFinished(String className, String methodName, TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames, List<int[]> openedFiles) {
     try {
-      writeTestFinished(dos, className, methodName, classToVisitedMethods, classToMethodNames, openedFiles);
+      final NameEnumerator nameEnumerator = getNameEnumerator();
+      final int testClassNameId = nameEnumerator.enumerate(className);
+      final int testMethodNameId = nameEnumerator.enumerate(methodName);
+
+      final Buffer buffer = acquireBuffer();
+      writeDictionaryIncrementIfNeeded(buffer.myOutput);
+      final int requiredSize = buffer.size();
+      writeTestData(buffer.myOutput, testClassNameId, testMethodNameId, classToVisitedMethods, classToMethodNames, openedFiles);
+
+      if (!isWriterAvailable()) {
+        releaseBuffer(buffer);
+      } else if (myDropOnOverflow) {
+        if (!myData.offer(buffer)) {
+          buffer.truncate(requiredSize);
+          myPending = buffer;
+          myDroppedTestsCount++;
+        }
+      } else {
+        send(buffer);
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
   public void testsFinished() {
+    final long deadline = System.currentTimeMillis() + myShutdownTimeout;
     try {
-      finish(dos);
-    } catch (IOException e) {
+      final boolean finished;
+      synchronized (this) {
+        final Buffer buffer = acquireBuffer();
+        writeDictionaryIncrementIfNeeded(buffer.myOutput);
+        finish(buffer.myOutput);
+        finished = send(buffer, deadline) && send(END_OF_DATA, deadline);
+        if (myDroppedTestsCount > 0) {
+          System.err.println("Test discovery data of " + myDroppedTestsCount + " tests was dropped due to slow data receiver");
+        }
+      }
+      if (finished) {
+        // wait until all the data is written
+        myWriterThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+      if (myWriterThread.isAlive() || !finished || myWriteFailed) {
+        System.err.println("Test discovery data was not completely sent, the rest of the data is discarded");
+        myWriteFailed = true;
+        myChannel.close();
+      }
+    } catch (Exception e) {
       e.printStackTrace();
+    }
+  }
+
+  public synchronized void addMetadata(Map<String, String> metadata) throws IOException {
+    final Buffer buffer = acquireBuffer();
+    writeMetadata(buffer.myOutput, metadata);
+    send(buffer);
+  }
+
+  public synchronized void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
+    final Buffer buffer = acquireBuffer();
+    writeClassMetadata(buffer.myOutput, metadata);
+    send(buffer);
+  }
+
+  public NameEnumerator.Incremental getNameEnumerator() {
+    return incrementalNameEnumerator;
+  }
+
+  /**
+   * Returns a buffer for the next message. Pending data is always sent first, so it is written to the same buffer.
+   */
+  private Buffer acquireBuffer() {
+    Buffer buffer = myPending;
+    if (buffer != null) {
+      myPending = null;
+      return buffer;
+    }
+    buffer = myBufferPool.poll();
+    return buffer != null ? buffer : new Buffer();
+  }
+
+  private void releaseBuffer(Buffer buffer) {
+    if (buffer == END_OF_DATA || buffer.capacity() > MAX_POOLED_BUFFER_SIZE) return;
+    buffer.reset();
+    myBufferPool.add(buffer);
+  }
+
+  private boolean isWriterAvailable() {
+    return !myWriteFailed && !myWriterStopped;
+  }
+
+  /**
+   * Enqueues a message that cannot be dropped, blocks while the queue is full and the writer thread is working.
+   */
+  private void send(Buffer buffer) throws IOException {
+    send(buffer, Long.MAX_VALUE);
+  }
+
+  /**
+   * @return false if the message is discarded because the writer thread is not available or the deadline has passed
+   */
+  private boolean send(Buffer buffer, long deadline) throws IOException {
+    if (buffer != END_OF_DATA && buffer.size() == 0) {
+      releaseBuffer(buffer);
+      return true;
+    }
+    try {
+      while (isWriterAvailable()) {
+        final long timeout = Math.min(WRITER_CHECK_INTERVAL_MS, deadline - System.currentTimeMillis());
+        if (timeout <= 0) break;
+        if (myData.offer(buffer, timeout, TimeUnit.MILLISECONDS)) return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sending test discovery data");
+    }
+    releaseBuffer(buffer);
+    return false;
+  }
+
+  private void writeLoop() {
+    final List<Buffer> batch = new ArrayList<Buffer>(MAX_BATCH_SIZE);
+    boolean finished = false;
+    try {
+      while (!finished) {
+        batch.add(myData.take());
+        myData.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+        final ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        int count = 0;
+        for (Buffer buffer : batch) {
+          if (buffer == END_OF_DATA) {
+            finished = true;
+            break;
+          }
+          buffers[count++] = buffer.toByteBuffer();
+        }
+        if (!myWriteFailed) {
+          write(buffers, count);
+        }
+        for (Buffer buffer : batch) {
+          releaseBuffer(buffer);
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException ignored) {
     } finally {
+      myWriterStopped = true;
       try {
-        dos.close();
-        os.close();
-        mySocket.close();
+        myChannel.close();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
 
-  public void addMetadata(Map<String, String> metadata) throws IOException {
-    writeMetadata(dos, metadata);
+  private void write(ByteBuffer[] buffers, int count) {
+    try {
+      int offset = 0;
+      while (offset < count) {
+        myChannel.write(buffers, offset, count - offset);
+        while (offset < count && !buffers[offset].hasRemaining()) offset++;
+      }
+    } catch (IOException e) {
+      // the rest of the data is discarded, tests must not be blocked by a broken connection
+      if (!myWriteFailed) {
+        myWriteFailed = true;
+        e.printStackTrace();
+      }
+    }
   }
 
-  public void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
-    writeClassMetadata(dos, metadata);
-  }
+  /**
+   * Growable byte array which is sent to the socket without copying.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    private final DataOutputStream myOutput = new DataOutputStream(this);
 
-  public NameEnumerator.Incremental getNameEnumerator() {
-    return incrementalNameEnumerator;
+    private Buffer() {
+      super(1024);
+    }
+
+    private ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    private void truncate(int size) {
+      count = size;
+    }
+
+    private int capacity() {
+      return buf.length;
+    }
   }
 
   private static class VisitedMethods {
@@ -16,13 +16,20 @@
 
 package com.intellij.rt.coverage.data;
 
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 public interface TestDiscoveryDataListener {
 
-  void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) throws IOException;
+  /**
+   * @param classToVisitedMethods flags of visited methods for the classes touched by the test;
+   *                              a flags array may be longer than the corresponding method names array, extra elements must be ignored
+   * @param classToMethodNames    enumerated method names of the touched classes
+   */
+  void testFinished(String className, String methodName, TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames, List<int[]> openedFiles) throws IOException;
 
   void testsFinished() throws IOException;
 
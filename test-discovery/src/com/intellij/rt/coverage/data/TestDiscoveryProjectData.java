@@ -16,12 +16,18 @@
 
 package com.intellij.rt.coverage.data;
 
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.jetbrains.coverage.gnu.trove.TIntProcedure;
+import org.jetbrains.coverage.gnu.trove.TObjectProcedure;
+
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 
 import static com.intellij.rt.coverage.util.CoverageIOUtil.GIGA;
@@ -69,63 +75,170 @@ public class TestDiscoveryProjectData {
     return ourProjectData;
   }
 
-  private final ConcurrentMap<Integer, boolean[]> myClassToVisitedMethods = new ConcurrentHashMap<Integer, boolean[]>();
-  private final ConcurrentMap<Integer, int[]> myClassToMethodNames = new ConcurrentHashMap<Integer, int[]>();
-  final ConcurrentMap<Integer, ClassMetadata> classesToMetadata = new ConcurrentHashMap<Integer, ClassMetadata>();
+  /**
+   * Visited methods flags and method names of all loaded classes, guarded by {@link #myClassRegistrationLock}.
+   * The last element of a flags array is not a method: it is set when the class is registered in {@link #myTouchedClasses}.
+   */
+  private final TIntObjectHashMap<boolean[]> myClassToVisitedMethods = new TIntObjectHashMap<boolean[]>();
+  private final TIntObjectHashMap<int[]> myClassToMethodNames = new TIntObjectHashMap<int[]>();
+  /**
+   * Classes registered at transformation time by registration id, guarded by {@link #myClassRegistrationLock}.
+   * A registration is removed when its class is registered again with other methods after the static initializer has run,
+   * see {@link #registerClass(String, String[])}.
+   */
+  private final TIntObjectHashMap<RegisteredClass> myRegisteredClasses = new TIntObjectHashMap<RegisteredClass>();
+  private final TIntIntHashMap myClassToRegistrationId = new TIntIntHashMap();
+  private int myNextRegistrationId;
+  /**
+   * Classes which methods were called since the last cleanup.
+   * Only these classes are cleared and reported, so the per-test cost does not depend on the number of loaded classes.
+   */
+  private final Queue<TouchedClass> myTouchedClasses = new ConcurrentLinkedQueue<TouchedClass>();
+  /**
+   * Metadata of the instrumented classes by class id, guarded by {@link #myClassRegistrationLock}.
+   * The metadata of a class is reported and removed when the class is touched by a test for the first time.
+   */
+  private final TIntObjectHashMap<ClassMetadata> myClassesToMetadata = new TIntObjectHashMap<ClassMetadata>();
   private final TestDiscoveryDataListener myDataListener;
 
+  /**
+   * Called at class transformation time, registers the names of the instrumented methods of a class.
+   * A class is registered again when it is retransformed or loaded by another class loader.
+   * The same methods reuse the previous registration. Otherwise, the previous registration is removed
+   * if its static initializer has already run, as it is never traced again.
+   *
+   * @return registration id to be passed to {@link #trace(int, int)} from the static initializer of the class
+   */
+  public int registerClass(String className, String[] methodNames) {
+    final int classId = myNameEnumerator.enumerate(className);
+    final int[] methodIds = NameEnumerator.enumerate(methodNames, myNameEnumerator);
+    synchronized (myClassRegistrationLock) {
+      if (myClassToRegistrationId.containsKey(classId)) {
+        final int previousId = myClassToRegistrationId.get(classId);
+        final RegisteredClass previous = myRegisteredClasses.get(previousId);
+        if (Arrays.equals(previous.myMethodIds, methodIds)) {
+          return previousId;
+        }
+        if (previous.myTraced) {
+          myRegisteredClasses.remove(previousId);
+        }
+      }
+      final int registrationId = myNextRegistrationId++;
+      myRegisteredClasses.put(registrationId, new RegisteredClass(classId, methodIds));
+      myClassToRegistrationId.put(classId, registrationId);
+      return registrationId;
+    }
+  }
+
+  /**
+   * @return id of the class name, to be passed to {@link #registerClassForTrace(boolean[], int)} from instrumented methods
+   */
+  public int getClassId(String className) {
+    return myNameEnumerator.enumerate(className);
+  }
+
   // called from instrumented code during class's static init
-  public static boolean[] trace(String className, boolean[] methodFlags, String[] methodNames) {
+  public static boolean[] trace(int registrationId, int methodCount) {
     long s = System.nanoTime();
     try {
-      return ourProjectData.traceLines(className, methodFlags, methodNames);
+      return ourProjectData.traceLines(registrationId, methodCount);
     } finally {
       ourTraceTime += System.nanoTime() - s;
     }
   }
 
-  private static Long ourTraceTime = 0L;
-  private static Long ourCleanupTime = 0L;
+  /**
+   * Called from instrumented code on a method call when the registration flag of the class is not set.
+   * The flag is reset in {@link #cleanup()}, so a class is registered at most once per test (modulo races).
+   */
+  public static void registerClassForTrace(boolean[] methodFlags, int classId) {
+    ourProjectData.registerTouchedClass(classId, methodFlags);
+  }
 
-  private synchronized boolean[] traceLines(String className, boolean[] methodFlags, String[] methodNames) {
-    //System.out.println("Registering " + className);
-    //assert methodFlags.length == methodNames.length;
-    int classId = myNameEnumerator.enumerate(className);
+  /**
+   * @return index of the registration flag in the flags array of a class with <code>methodCount</code> instrumented methods
+   */
+  public static int getRegistrationFlagIndex(int methodCount) {
+    return methodCount;
+  }
 
-    final boolean[] previousMethodFlags = myClassToVisitedMethods.putIfAbsent(classId, methodFlags);
+  private static Long ourTraceTime = 0L;
+  private static Long ourCleanupTime = 0L;
 
-    if (previousMethodFlags != null) {
-      if (previousMethodFlags.length == methodFlags.length) {
+  private final Object myClassRegistrationLock = new Object();
+
+  private boolean[] traceLines(int registrationId, int methodCount) {
+    final int flagsLength = getRegistrationFlagIndex(methodCount) + 1;
+    // flags and names must be replaced together, the critical section is only a few map operations
+    synchronized (myClassRegistrationLock) {
+      final RegisteredClass registeredClass = myRegisteredClasses.get(registrationId);
+      if (registeredClass == null || registeredClass.myMethodIds.length != methodCount) {
+        // must not happen, the class is transformed before its initialization
+        System.err.println("Test discovery: class with registration id " + registrationId + " and " + methodCount +
+                           " methods is not registered, its usages are not tracked");
+        return new boolean[flagsLength];
+      }
+      registeredClass.myTraced = true;
+      final int classId = registeredClass.myClassId;
+      final boolean[] previousMethodFlags = myClassToVisitedMethods.get(classId);
+      if (previousMethodFlags != null && previousMethodFlags.length == flagsLength) {
         return previousMethodFlags;
       }
-      //override previous data so different loaded classes would work with different arrays 
+      //override previous data so different loaded classes would work with different arrays
       //the last loaded class wins but at least no ArrayIndexOutOfBound would be possible due to different class versions
+      final boolean[] methodFlags = new boolean[flagsLength];
+      myClassToMethodNames.put(classId, registeredClass.myMethodIds);
       myClassToVisitedMethods.put(classId, methodFlags);
+      return methodFlags;
     }
+  }
 
-    myClassToMethodNames.put(classId, NameEnumerator.enumerate(methodNames, myNameEnumerator));
-    return methodFlags;
+  private void registerTouchedClass(int classId, boolean[] methodFlags) {
+    // the flag is set before the class is queued: if cleanup runs in between,
+    // the flag is either cleared or the class is already in the queue
+    methodFlags[methodFlags.length - 1] = true;
+    myTouchedClasses.add(new TouchedClass(classId, methodFlags));
   }
 
   public synchronized void testDiscoveryEnded(final String className, final String methodName) {
     try {
-      myDataListener.testFinished(className, methodName, myClassToVisitedMethods, myClassToMethodNames, enumerateFiles(myOpenFilesPerTest));
-      for (Map.Entry<Integer, boolean[]> e : myClassToVisitedMethods.entrySet()) {
-        for (boolean isUsed : e.getValue()) {
-          if (isUsed) {
-            ClassMetadata cm = classesToMetadata.remove(e.getKey());
+      final TIntObjectHashMap<boolean[]> classToVisitedMethods = new TIntObjectHashMap<boolean[]>();
+      final TIntObjectHashMap<int[]> classToMethodNames = new TIntObjectHashMap<int[]>();
+      collectTouchedClasses(classToVisitedMethods, classToMethodNames);
+      myDataListener.testFinished(className, methodName, classToVisitedMethods, classToMethodNames, enumerateFiles(resolveOpenedFiles()));
+      // a class is touched only when one of its methods is called
+      final List<ClassMetadata> touchedMetadata = new ArrayList<ClassMetadata>();
+      synchronized (myClassRegistrationLock) {
+        classToVisitedMethods.forEachKey(new TIntProcedure() {
+          public boolean execute(int classId) {
+            ClassMetadata cm = myClassesToMetadata.remove(classId);
             if (cm != null) {
-              myDataListener.addClassMetadata(Collections.singletonList(cm));
+              touchedMetadata.add(cm);
             }
-            break;
+            return true;
           }
-        }
+        });
+      }
+      if (!touchedMetadata.isEmpty()) {
+        myDataListener.addClassMetadata(touchedMetadata);
       }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  private void collectTouchedClasses(TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames) {
+    synchronized (myClassRegistrationLock) {
+      for (TouchedClass touchedClass : myTouchedClasses) {
+        final int classId = touchedClass.myClassId;
+        // skip duplicates and classes which were replaced by another version of the class with the same name
+        if (classToVisitedMethods.containsKey(classId) || myClassToVisitedMethods.get(classId) != touchedClass.myMethodFlags) continue;
+        classToVisitedMethods.put(classId, touchedClass.myMethodFlags);
+        classToMethodNames.put(classId, myClassToMethodNames.get(classId));
+      }
+    }
+  }
+
   private List<int[]> enumerateFiles(Collection<String> openedFiles) {
     List<int[]> files = new ArrayList<int[]>(openedFiles.size());
     for (String file : openedFiles) {
@@ -153,11 +266,10 @@ public class TestDiscoveryProjectData {
   }
 
   private void cleanup() {
-    for (Object e : myClassToVisitedMethods.entrySet()) {
-      boolean[] used = (boolean[]) ((Map.Entry) e).getValue();
-      for (int i = 0, len = used.length; i < len; ++i) {
-        if (used[i]) used[i] = false;
-      }
+    TouchedClass touchedClass;
+    while ((touchedClass = myTouchedClasses.poll()) != null) {
+      // clears the registration flag as well
+      Arrays.fill(touchedClass.myMethodFlags, false);
     }
 
     myOpenFilesPerTest.clear();
@@ -176,8 +288,28 @@ public class TestDiscoveryProjectData {
   }
 
   public void addClassMetadata(List<ClassMetadata> classMetadata) {
-    for (ClassMetadata cm : classMetadata) {
-      classesToMetadata.put(myNameEnumerator.enumerate(cm.getFqn()), cm);
+    final int[] classIds = new int[classMetadata.size()];
+    for (int i = 0; i < classIds.length; i++) {
+      classIds[i] = myNameEnumerator.enumerate(classMetadata.get(i).getFqn());
+    }
+    synchronized (myClassRegistrationLock) {
+      for (int i = 0; i < classIds.length; i++) {
+        myClassesToMetadata.put(classIds[i], classMetadata.get(i));
+      }
+    }
+  }
+
+  //TestOnly
+  Collection<ClassMetadata> getClassMetadata() {
+    synchronized (myClassRegistrationLock) {
+      final List<ClassMetadata> result = new ArrayList<ClassMetadata>();
+      myClassesToMetadata.forEachValue(new TObjectProcedure<ClassMetadata>() {
+        public boolean execute(ClassMetadata cm) {
+          result.add(cm);
+          return true;
+        }
+      });
+      return result;
     }
   }
 
@@ -187,32 +319,141 @@ public class TestDiscoveryProjectData {
   }
 
   //TestOnly
-  ConcurrentMap<Integer, int[]> getClassToMethodNames() {
-    return myClassToMethodNames;
+  TIntObjectHashMap<int[]> getClassToMethodNames() {
+    synchronized (myClassRegistrationLock) {
+      return myClassToMethodNames.clone();
+    }
   }
 
   //TestOnly
-  ConcurrentMap<Integer, boolean[]> getClassToVisitedMethods() {
-    return myClassToVisitedMethods;
+  int getRegisteredClassCount() {
+    synchronized (myClassRegistrationLock) {
+      return myRegisteredClasses.size();
+    }
   }
 
-  private static final Map<Object, File> myOpenFilesMap = new WeakHashMap<Object, File>();
-  private static final Collection<String> myOpenFilesPerTest = new LinkedHashSet<String>();
+  //TestOnly
+  TIntObjectHashMap<boolean[]> getClassToVisitedMethods() {
+    synchronized (myClassRegistrationLock) {
+      return myClassToVisitedMethods.clone();
+    }
+  }
+
+  private static final class RegisteredClass {
+    private final int myClassId;
+    private final int[] myMethodIds;
+    private boolean myTraced;
+
+    private RegisteredClass(int classId, int[] methodIds) {
+      myClassId = classId;
+      myMethodIds = methodIds;
+    }
+  }
+
+  private static final class TouchedClass {
+    private final int myClassId;
+    private final boolean[] myMethodFlags;
+
+    private TouchedClass(int classId, boolean[] methodFlags) {
+      myClassId = classId;
+      myMethodFlags = methodFlags;
+    }
+  }
 
   public static final String AFFECTED_ROOTS = "test.discovery.affected.roots";
   @SuppressWarnings("WeakerAccess")
   public static final String EXCLUDED_ROOTS = "test.discovery.excluded.roots";
   @SuppressWarnings("WeakerAccess")
   public static final String TRACK_FILES = "test.discovery.track.files";
+  @SuppressWarnings("WeakerAccess")
+  public static final String TRACK_LEAKED_FILES = "test.discovery.track.leaked.files";
+  @SuppressWarnings("WeakerAccess")
+  public static final String RESOLVED_FILES_CACHE_SIZE = "test.discovery.resolved.files.cache.size";
+
+  /**
+   * Canonical paths of the roots, opened files are matched by their canonical paths.
+   */
+  private static final String[] myAffectedRoots = canonicalize(split(AFFECTED_ROOTS));
+  private static final String[] myExcludedRoots = canonicalize(split(EXCLUDED_ROOTS));
+  private static final int ourResolvedFilesCacheSize = Integer.parseInt(System.getProperty(RESOLVED_FILES_CACHE_SIZE, "10000"));
+
+  /**
+   * Absolute path of a directory to its canonical path. Files of a directory are usually opened together,
+   * so opened files are filtered by the canonical path of the directory without a file system call per file.
+   */
+  private static final ConcurrentMap<String, String> myCanonicalDirectories = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Paths of the files opened by the current test which may be under an affected root, with the directory canonicalized.
+   * The paths are fully canonicalized and stripped at the end of the test, see {@link #resolveOpenedFiles()}.
+   */
+  private static final Set<String> myOpenFilesPerTest = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Opened file path to the path relative to an affected root, or to null if the file is not affected.
+   * Accessed only from {@link #testDiscoveryEnded(String, String)}.
+   */
+  private static final Map<String, String> myResolvedFiles = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > ourResolvedFilesCacheSize;
+    }
+  };
 
-  private static final String[] myAffectedRoots = split(AFFECTED_ROOTS);
-  private static final String[] myExcludedRoots = split(EXCLUDED_ROOTS);
+  /**
+   * Files opened but not closed, guarded by itself. The map is updated only if {@link #TRACK_LEAKED_FILES} is set,
+   * as it would serialize all file operations otherwise.
+   */
+  private static final Map<Object, File> myOpenFilesMap = new WeakHashMap<Object, File>();
+  private static final boolean ourTrackLeakedFiles = Boolean.getBoolean(TRACK_LEAKED_FILES);
+  private static volatile Method ourPathToFileMethod;
 
   private static String[] split(String key) {
     String affected = System.getProperty(key);
     return affected == null ? new String[]{} : affected.split(";");
   }
 
+  private static String[] canonicalize(String[] roots) {
+    final String[] result = new String[roots.length];
+    for (int i = 0; i < roots.length; i++) {
+      final String root = roots[i];
+      final String canonicalRoot = getPath(new File(root));
+      // keep the trailing separator, so that it is stripped from the relative paths
+      final boolean withSeparator = root.endsWith("/") || root.endsWith(File.separator);
+      result[i] = withSeparator && !canonicalRoot.endsWith(File.separator) ? canonicalRoot + File.separator : canonicalRoot;
+    }
+    return result;
+  }
+
+  /**
+   * @return the path of the file in the canonical path of its directory
+   */
+  private static String getPathInCanonicalDirectory(File file) {
+    final String absolutePath = file.getAbsolutePath();
+    final int nameStart = absolutePath.lastIndexOf(File.separatorChar) + 1;
+    if (nameStart <= 0) return getPath(file);
+    final String directory = absolutePath.substring(0, nameStart);
+    String canonicalDirectory = myCanonicalDirectories.get(directory);
+    if (canonicalDirectory == null) {
+      canonicalDirectory = getPath(new File(directory));
+      if (!canonicalDirectory.endsWith(File.separator)) {
+        canonicalDirectory += File.separator;
+      }
+      if (myCanonicalDirectories.size() >= ourResolvedFilesCacheSize) {
+        myCanonicalDirectories.clear();
+      }
+      myCanonicalDirectories.put(directory, canonicalDirectory);
+    }
+    return canonicalDirectory + absolutePath.substring(nameStart);
+  }
+
+  private static boolean mayBeAffected(String canonicalPath) {
+    for (String root : myAffectedRoots) {
+      if (canonicalPath.startsWith(root)) return true;
+    }
+    return false;
+  }
+
   private static String stripRoot(String path) {
     for (String prefix : myAffectedRoots) {
       if (path.startsWith(prefix)) {
@@ -233,11 +474,14 @@ public class TestDiscoveryProjectData {
     return fileName.replace('\\', '/');
   }
 
-  public static synchronized void openPath(Object path) {
+  public static void openPath(Object path) {
     try {
-      Class<?> pathClass = Class.forName("java.nio.file.Path");
-      File file = (File) pathClass.getDeclaredMethod("toFile").invoke(path);
-      openFile(path, file);
+      Method toFile = ourPathToFileMethod;
+      if (toFile == null) {
+        toFile = Class.forName("java.nio.file.Path").getDeclaredMethod("toFile");
+        ourPathToFileMethod = toFile;
+      }
+      openFile(path, (File) toFile.invoke(path));
     } catch (IllegalAccessException ignored) {
     } catch (InvocationTargetException ignored) {
     } catch (NoSuchMethodException ignored) {
@@ -245,17 +489,48 @@ public class TestDiscoveryProjectData {
     }
   }
 
-  public static synchronized void openFile(Object o, File file) {
-    if (file == null) return;
+  /**
+   * Called on every file open, so the file is matched by the cached canonical path of its directory.
+   * A file which is itself a symbolic link is matched by the directory of the link, it is resolved at the end of the test.
+   */
+  public static void openFile(Object o, File file) {
+    if (file == null || myAffectedRoots.length == 0) return;
 
-    String absolutePath = getPath(file);
+    String path = getPathInCanonicalDirectory(file);
+    if (!mayBeAffected(path)) return;
 
-    String trimmedPath = stripRoot(absolutePath);
-    if (trimmedPath == null) return;
-    if (excluded(absolutePath)) return;
+    myOpenFilesPerTest.add(path);
+    if (ourTrackLeakedFiles) {
+      synchronized (myOpenFilesMap) {
+        myOpenFilesMap.put(o, file);
+      }
+    }
+  }
 
-    myOpenFilesMap.put(o, file);
-    myOpenFilesPerTest.add(toSystemIndependentName(trimmedPath));
+  private static Collection<String> resolveOpenedFiles() {
+    final Collection<String> result = new LinkedHashSet<String>();
+    for (String path : myOpenFilesPerTest) {
+      final String resolved;
+      if (myResolvedFiles.containsKey(path)) {
+        resolved = myResolvedFiles.get(path);
+      } else {
+        resolved = resolveFile(path);
+        myResolvedFiles.put(path, resolved);
+      }
+      if (resolved != null) {
+        result.add(resolved);
+      }
+    }
+    return result;
+  }
+
+  private static String resolveFile(String path) {
+    String canonicalPath = getPath(new File(path));
+
+    String trimmedPath = stripRoot(canonicalPath);
+    if (trimmedPath == null) return null;
+    if (excluded(canonicalPath)) return null;
+    return toSystemIndependentName(trimmedPath);
   }
 
   private static String getPath(File file) {
@@ -266,17 +541,23 @@ public class TestDiscoveryProjectData {
     }
   }
 
-  public static synchronized void closeFile(Object o) {
-    myOpenFilesMap.remove(o);
+  public static void closeFile(Object o) {
+    if (!ourTrackLeakedFiles) return;
+    synchronized (myOpenFilesMap) {
+      myOpenFilesMap.remove(o);
+    }
   }
 
   private static synchronized void logTestInfo() {
     System.out.println("Trace time: " + 1. * ourTraceTime / GIGA);
     System.out.println("Cleanup time: " + 1. * ourCleanupTime / GIGA);
 
-    System.out.println("Leaked files: " + myOpenFilesMap.size());
-    for (File value : new ArrayList<File>(myOpenFilesMap.values())) {
-      System.out.println(value.getPath());
+    if (!ourTrackLeakedFiles) return;
+    synchronized (myOpenFilesMap) {
+      System.out.println("Leaked files: " + myOpenFilesMap.size());
+      for (File value : new ArrayList<File>(myOpenFilesMap.values())) {
+        System.out.println(value.getPath());
+      }
     }
   }
 
@@ -19,6 +19,8 @@ package com.intellij.rt.coverage.data;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
 import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntIntIterator;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.jetbrains.coverage.gnu.trove.TIntObjectIterator;
 
 import java.io.DataOutput;
 import java.io.IOException;
@@ -38,6 +40,12 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
 
   public static final int METADATA_MARKER = 0x05;
   public static final int CLASS_METADATA_MARKER = 0x06;
+  public static final int SYNC_POINT_MARKER = 0x07;
+
+  /**
+   * Follows {@link #SYNC_POINT_MARKER} to make false positives unlikely when sync points are searched or validated.
+   */
+  public static final int SYNC_POINT_MAGIC = 0x53594e43; // "SYNC"
 
   protected final byte myVersion;
 
@@ -46,7 +54,7 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
   }
 
   protected void writeTestFinished(DataOutput output, String className, String methodName,
-                                   Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames,
+                                   TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames,
                                    List<int[]> openedFiles) throws IOException {
     NameEnumerator nameEnumerator = getNameEnumerator();
     final int testClassNameId = nameEnumerator.enumerate(className);
@@ -57,6 +65,15 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
     // Also send enumerated file path chunks
     writeDictionaryIncrementIfNeeded(output);
 
+    writeTestData(output, testClassNameId, testMethodNameId, classToVisitedMethods, classToMethodNames, openedFiles);
+  }
+
+  /**
+   * Writes test record only, all the names used in the record must be already sent.
+   */
+  protected void writeTestData(DataOutput output, int testClassNameId, int testMethodNameId,
+                               TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames,
+                               List<int[]> openedFiles) throws IOException {
     output.writeByte(TEST_FINISHED_MARKER);
     CoverageIOUtil.writeINT(output, testClassNameId);
     CoverageIOUtil.writeINT(output, testMethodNameId);
@@ -85,6 +102,29 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
     // TODO: Write CRC or at least total length?
   }
 
+  /**
+   * Writes a record boundary which a reader may start decoding from.
+   * Format:
+   * <ul>
+   * <li>Marker - byte</li>
+   * <li>Magic - int</li>
+   * <li>Tests written before the sync point - number</li>
+   * <li>Dictionary parts written before the sync point - number</li>
+   * </ul>
+   * <p>
+   * The dictionary is append-only, so a reader that knows all the dictionary parts before a sync point
+   * can decode the records after it independently of the other records.
+   *
+   * @since Version 4
+   */
+  protected void writeSyncPoint(DataOutput output, int testCount, int dictionaryPartCount) throws IOException {
+    if (myVersion < 4) return;
+    output.writeByte(SYNC_POINT_MARKER);
+    output.writeInt(SYNC_POINT_MAGIC);
+    CoverageIOUtil.writeINT(output, testCount);
+    CoverageIOUtil.writeINT(output, dictionaryPartCount);
+  }
+
   public abstract NameEnumerator.Incremental getNameEnumerator();
 
   protected void writeDictionaryIncrementIfNeeded(DataOutput output) throws IOException {
@@ -102,20 +142,25 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
     }
   }
 
-  protected void writeVisitedMethod(Map<Integer, boolean[]> classToVisitedMethods,
-                                    Map<Integer, int[]> classToMethodNames,
+  protected void writeVisitedMethod(TIntObjectHashMap<boolean[]> classToVisitedMethods,
+                                    TIntObjectHashMap<int[]> classToMethodNames,
                                     DataOutput os) throws IOException {
     TIntIntHashMap classToUsedMethods = new TIntIntHashMap();
-    for (Map.Entry<Integer, boolean[]> o : classToVisitedMethods.entrySet()) {
-      boolean[] used = o.getValue();
+    final TIntObjectIterator<boolean[]> classes = classToVisitedMethods.iterator();
+    while (classes.hasNext()) {
+      classes.advance();
+      final int[] methodNames = classToMethodNames.get(classes.key());
+      if (methodNames == null) continue;
+      final boolean[] used = classes.value();
       int usedMethodsCount = 0;
 
-      for (boolean anUsed : used) {
-        if (anUsed) ++usedMethodsCount;
+      // flags array may contain service elements after the methods
+      for (int i = 0, len = Math.min(used.length, methodNames.length); i < len; ++i) {
+        if (used[i]) ++usedMethodsCount;
       }
 
       if (usedMethodsCount > 0) {
-        classToUsedMethods.put(o.getKey(), usedMethodsCount);
+        classToUsedMethods.put(classes.key(), usedMethodsCount);
       }
     }
 
@@ -134,7 +179,7 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
       final int[] methodNames = classToMethodNames.get(className);
       final boolean[] used = classToVisitedMethods.get(className);
 
-      for (int i = 0, len = used.length; i < len; ++i) {
+      for (int i = 0, len = Math.min(used.length, methodNames.length); i < len; ++i) {
         // we check usedMethodCount here since used can still be updated by other threads
         if (used[i] && usedMethodsCount-- > 0) {
           CoverageIOUtil.writeINT(os, methodNames[i]);
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data.api;
+
+import com.intellij.rt.coverage.data.SingleTrFileDiscoveryProtocolDataListener;
+import com.intellij.rt.coverage.data.TestDiscoveryProtocolDataListener;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Decodes a trace file with sync points (version 4 and above) in parallel.
+ * <p>
+ * The file is memory-mapped and split into segments at the sync points.
+ * The dictionary parts are delivered first in the file order, then the segments are decoded by a thread pool.
+ * Test data is delivered either concurrently, so the reader must be thread-safe, or in the file order.
+ * Files without the sync points index (older versions, interrupted runs) are read sequentially.
+ */
+class ChunkedTestDiscoveryFileReader {
+  private static final int HEADER_SIZE = 6; // "IJTC", start marker, version
+  private static final int INDEX_TAIL_SIZE = 12; // index offset, magic
+
+  private final File myFile;
+  private final TestDiscoveryProtocolReader myReader;
+  private final int myThreads;
+  private final boolean myOrdered;
+
+  ChunkedTestDiscoveryFileReader(File file, TestDiscoveryProtocolReader reader, int threads, boolean ordered) {
+    myFile = file;
+    myReader = reader;
+    myThreads = threads;
+    myOrdered = ordered;
+  }
+
+  void read() throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(myFile, "r");
+    try {
+      final FileChannel channel = file.getChannel();
+      final int version = readVersion(channel);
+      final long[][] index = version >= 4 ? readIndex(channel) : null;
+      if (index == null) {
+        myReader.debug("no sync points index, reading sequentially");
+        TestDiscoveryProtocolUtil.readFile(myFile, myReader);
+        return;
+      }
+      final long[] syncPoints = index[0];
+      final long[] dictionaryParts = index[1];
+      final long end = index[2][0];
+
+      final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>(syncPoints.length + 1);
+      final long[] starts = new long[syncPoints.length + 1];
+      long start = HEADER_SIZE;
+      for (int i = 0; i <= syncPoints.length; i++) {
+        final long segmentEnd = i < syncPoints.length ? syncPoints[i] : end;
+        if (segmentEnd - start > Integer.MAX_VALUE) {
+          myReader.debug("segment is too large to be mapped, reading sequentially");
+          TestDiscoveryProtocolUtil.readFile(myFile, myReader);
+          return;
+        }
+        starts[i] = start;
+        segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, segmentEnd - start));
+        start = segmentEnd;
+      }
+
+      myReader.testDiscoveryDataProcessingStarted(version);
+      readDictionary(segments, starts, dictionaryParts);
+      if (myOrdered) {
+        readOrdered(segments, version);
+      } else {
+        readConcurrently(segments, version);
+      }
+      myReader.testDiscoveryDataProcessingFinished();
+    } finally {
+      file.close();
+    }
+  }
+
+  private static int readVersion(FileChannel channel) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) <= 0) return -1;
+    }
+    if (header.get(0) != SingleTrFileDiscoveryProtocolDataListener.HEADER_START) return -1;
+    if (header.get(4) != TestDiscoveryProtocolDataListener.START_MARKER) return -1;
+    return header.get(5);
+  }
+
+  /**
+   * @return sync point offsets, dictionary part offsets and the end of the data, or null if the file has no index
+   */
+  private static long[][] readIndex(FileChannel channel) throws IOException {
+    final long size = channel.size();
+    if (size < HEADER_SIZE + INDEX_TAIL_SIZE) return null;
+    final MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - INDEX_TAIL_SIZE, INDEX_TAIL_SIZE);
+    final long indexOffset = tail.getLong();
+    if (tail.getInt() != SingleTrFileDiscoveryProtocolDataListener.SYNC_INDEX_MAGIC) return null;
+    if (indexOffset < HEADER_SIZE || indexOffset > size - INDEX_TAIL_SIZE) return null;
+    final DataInputStream input = new DataInputStream(new ByteBufferInputStream(
+        channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - INDEX_TAIL_SIZE - indexOffset)));
+    final long[] syncPoints = readOffsets(input);
+    final long[] dictionaryParts = readOffsets(input);
+    return new long[][]{syncPoints, dictionaryParts, new long[]{indexOffset}};
+  }
+
+  private static long[] readOffsets(DataInputStream input) throws IOException {
+    final long[] offsets = new long[CoverageIOUtil.readINT(input)];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = input.readLong();
+    }
+    return offsets;
+  }
+
+  private void readDictionary(List<MappedByteBuffer> segments, long[] starts, long[] dictionaryParts) throws IOException {
+    int segment = 0;
+    for (long offset : dictionaryParts) {
+      while (segment + 1 < starts.length && starts[segment + 1] <= offset) segment++;
+      final ByteBuffer buffer = segments.get(segment).duplicate();
+      buffer.position((int) (offset - starts[segment]));
+      final DataInputStream input = new DataInputStream(new ByteBufferInputStream(buffer));
+      if (input.readByte() != TestDiscoveryProtocolDataListener.NAMES_DICTIONARY_PART_MARKER) {
+        throw new IOException("Dictionary part expected at " + offset);
+      }
+      TestDiscoveryProtocolUtil.readDictionary(input, myReader);
+    }
+  }
+
+  private void readConcurrently(List<MappedByteBuffer> segments, final int version) throws IOException {
+    final TestDiscoveryProtocolReader reader = new DelegatingReader(myReader);
+    final ExecutorService executor = createExecutor();
+    try {
+      final List<Future<?>> futures = new ArrayList<Future<?>>(segments.size());
+      for (final MappedByteBuffer segment : segments) {
+        futures.add(executor.submit(new Callable<Object>() {
+          public Object call() throws IOException {
+            TestDiscoveryProtocolUtil.readSegment(new DataInputStream(new ByteBufferInputStream(segment)), reader, version);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        await(future);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Segments are decoded ahead into {@link RecordingReader}s and replayed in the file order.
+   * At most twice the number of threads segments are kept in memory.
+   */
+  private void readOrdered(final List<MappedByteBuffer> segments, final int version) throws IOException {
+    final ExecutorService executor = createExecutor();
+    try {
+      final int window = 2 * myThreads;
+      final List<Future<RecordingReader>> futures = new ArrayList<Future<RecordingReader>>(segments.size());
+      for (int i = 0; i < segments.size(); i++) {
+        while (futures.size() < segments.size() && futures.size() < i + window) {
+          final MappedByteBuffer segment = segments.get(futures.size());
+          futures.add(executor.submit(new Callable<RecordingReader>() {
+            public RecordingReader call() throws IOException {
+              final RecordingReader recorder = new RecordingReader();
+              TestDiscoveryProtocolUtil.readSegment(new DataInputStream(new ByteBufferInputStream(segment)), recorder, version);
+              return recorder;
+            }
+          }));
+        }
+        final RecordingReader recorder = await(futures.get(i));
+        futures.set(i, null);
+        recorder.replay(myReader);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ExecutorService createExecutor() {
+    return Executors.newFixedThreadPool(myThreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "Test discovery data reader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private static final TestDiscoveryProtocolReader.NameEnumeratorReader IGNORE_NAMES = new TestDiscoveryProtocolReader.NameEnumeratorReader() {
+    public void enumerate(String name, int id) {
+    }
+  };
+
+  /**
+   * Passes segment data to the reader, the dictionary is already delivered.
+   */
+  private static class DelegatingReader implements TestDiscoveryProtocolReader {
+    private final TestDiscoveryProtocolReader myDelegate;
+
+    DelegatingReader(TestDiscoveryProtocolReader delegate) {
+      myDelegate = delegate;
+    }
+
+    public void testDiscoveryDataProcessingStarted(int version) {
+    }
+
+    public void testDiscoveryDataProcessingFinished() {
+    }
+
+    public MetadataReader createMetadataReader() {
+      return myDelegate.createMetadataReader();
+    }
+
+    public ClassMetadataReader createClassMetadataReader() {
+      return myDelegate.createClassMetadataReader();
+    }
+
+    public NameEnumeratorReader createNameEnumeratorReader() {
+      return IGNORE_NAMES;
+    }
+
+    public TestDataReader createTestDataReader(int classId, int methodId) {
+      return myDelegate.createTestDataReader(classId, methodId);
+    }
+
+    public void debug(String message) {
+      myDelegate.debug(message);
+    }
+
+    public void error(String message) {
+      myDelegate.error(message);
+    }
+
+    public void error(Exception error) {
+      myDelegate.error(error);
+    }
+  }
+
+  /**
+   * Records reader calls of a segment as a compact list of events to replay them later.
+   */
+  private static class RecordingReader implements TestDiscoveryProtocolReader {
+    private static final int METADATA = 0;
+    private static final int CLASS_METADATA_START = 1;
+    private static final int CLASS_STARTED = 2;
+    private static final int CLASS_FILE = 3;
+    private static final int CLASS_METHOD = 4;
+    private static final int CLASS_FINISHED = 5;
+    private static final int CLASS_METADATA_FINISHED = 6;
+    private static final int TEST_STARTED = 7;
+    private static final int TEST_CLASS_STARTED = 8;
+    private static final int TEST_METHOD = 9;
+    private static final int TEST_CLASS_FINISHED = 10;
+    private static final int TEST_FILE = 11;
+    private static final int TEST_FINISHED = 12;
+    private static final int DEBUG = 13;
+    private static final int ERROR = 14;
+
+    private final TIntArrayList myEvents = new TIntArrayList();
+    private final List<Object> myObjects = new ArrayList<Object>();
+
+    private void add(int event, Object object) {
+      myEvents.add(event);
+      myEvents.add(myObjects.size());
+      myObjects.add(object);
+    }
+
+    public void testDiscoveryDataProcessingStarted(int version) {
+    }
+
+    public void testDiscoveryDataProcessingFinished() {
+    }
+
+    public MetadataReader createMetadataReader() {
+      return new MetadataReader() {
+        public void processMetadataEntry(String key, String value) {
+          add(METADATA, new String[]{key, value});
+        }
+      };
+    }
+
+    public ClassMetadataReader createClassMetadataReader() {
+      myEvents.add(CLASS_METADATA_START);
+      return new ClassMetadataReader() {
+        public void classStarted(int classId) {
+          myEvents.add(CLASS_STARTED);
+          myEvents.add(classId);
+        }
+
+        public void file(int fileId) {
+          myEvents.add(CLASS_FILE);
+          myEvents.add(fileId);
+        }
+
+        public void method(int methodId, byte[] hash) {
+          myEvents.add(CLASS_METHOD);
+          myEvents.add(methodId);
+          myEvents.add(myObjects.size());
+          myObjects.add(hash);
+        }
+
+        public void classFinished(int classId) {
+          myEvents.add(CLASS_FINISHED);
+          myEvents.add(classId);
+        }
+
+        public void finished() {
+          myEvents.add(CLASS_METADATA_FINISHED);
+        }
+      };
+    }
+
+    public NameEnumeratorReader createNameEnumeratorReader() {
+      return IGNORE_NAMES;
+    }
+
+    public TestDataReader createTestDataReader(int classId, int methodId) {
+      myEvents.add(TEST_STARTED);
+      myEvents.add(classId);
+      myEvents.add(methodId);
+      return new TestDataReader() {
+        public void classProcessingStarted(int classId) {
+          myEvents.add(TEST_CLASS_STARTED);
+          myEvents.add(classId);
+        }
+
+        public void processUsedMethod(int methodId) {
+          myEvents.add(TEST_METHOD);
+          myEvents.add(methodId);
+        }
+
+        public void classProcessingFinished(int classId) {
+          myEvents.add(TEST_CLASS_FINISHED);
+          myEvents.add(classId);
+        }
+
+        public void testDataProcessed() {
+          myEvents.add(TEST_FINISHED);
+        }
+
+        public void processAffectedFile(int[] chunks) {
+          add(TEST_FILE, chunks);
+        }
+      };
+    }
+
+    public void debug(String message) {
+      add(DEBUG, message);
+    }
+
+    public void error(String message) {
+      add(ERROR, message);
+    }
+
+    public void error(Exception error) {
+      add(ERROR, error);
+    }
+
+    void replay(TestDiscoveryProtocolReader reader) {
+      ClassMetadataReader classMetadataReader = null;
+      TestDataReader testDataReader = null;
+      final int size = myEvents.size();
+      int i = 0;
+      while (i < size) {
+        switch (myEvents.get(i++)) {
+          case METADATA:
+            final String[] entry = (String[]) myObjects.get(myEvents.get(i++));
+            reader.createMetadataReader().processMetadataEntry(entry[0], entry[1]);
+            break;
+          case CLASS_METADATA_START:
+            classMetadataReader = reader.createClassMetadataReader();
+            break;
+          case CLASS_STARTED:
+            final int startedClass = myEvents.get(i++);
+            if (classMetadataReader != null) classMetadataReader.classStarted(startedClass);
+            break;
+          case CLASS_FILE:
+            final int file = myEvents.get(i++);
+            if (classMetadataReader != null) classMetadataReader.file(file);
+            break;
+          case CLASS_METHOD:
+            final int method = myEvents.get(i++);
+            final byte[] hash = (byte[]) myObjects.get(myEvents.get(i++));
+            if (classMetadataReader != null) classMetadataReader.method(method, hash);
+            break;
+          case CLASS_FINISHED:
+            final int finishedClass = myEvents.get(i++);
+            if (classMetadataReader != null) classMetadataReader.classFinished(finishedClass);
+            break;
+          case CLASS_METADATA_FINISHED:
+            if (classMetadataReader != null) classMetadataReader.finished();
+            break;
+          case TEST_STARTED:
+            final int testClass = myEvents.get(i++);
+            testDataReader = reader.createTestDataReader(testClass, myEvents.get(i++));
+            break;
+          case TEST_CLASS_STARTED:
+            testDataReader.classProcessingStarted(myEvents.get(i++));
+            break;
+          case TEST_METHOD:
+            testDataReader.processUsedMethod(myEvents.get(i++));
+            break;
+          case TEST_CLASS_FINISHED:
+            testDataReader.classProcessingFinished(myEvents.get(i++));
+            break;
+          case TEST_FILE:
+            testDataReader.processAffectedFile((int[]) myObjects.get(myEvents.get(i++)));
+            break;
+          case TEST_FINISHED:
+            testDataReader.testDataProcessed();
+            break;
+          case DEBUG:
+            reader.debug((String) myObjects.get(myEvents.get(i++)));
+            break;
+          case ERROR:
+            final Object error = myObjects.get(myEvents.get(i++));
+            if (error instanceof Exception) {
+              reader.error((Exception) error);
+            } else {
+              reader.error((String) error);
+            }
+            break;
+          default:
+            throw new IllegalStateException("Unknown event: " + myEvents.get(i - 1));
+        }
+      }
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer myBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!myBuffer.hasRemaining()) return -1;
+      final int count = Math.min(len, myBuffer.remaining());
+      myBuffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return myBuffer.remaining();
+    }
+  }
+}
@@ -31,6 +31,20 @@ public class TestDiscoveryProtocolUtil {
     readSequentially(new BufferedInputStream(new FileInputStream(file), bufferSize), reader);
   }
 
+  /**
+   * Decodes a trace file written with sync points (version 4 and above) using several threads.
+   * Files without sync points are read sequentially.
+   *
+   * @param ordered whether the test data should be delivered in the file order,
+   *                otherwise the reader is called from several threads and must be thread-safe
+   */
+  public static void readFileInParallel(File file,
+                                        TestDiscoveryProtocolReader reader,
+                                        int threads,
+                                        boolean ordered) throws IOException {
+    new ChunkedTestDiscoveryFileReader(file, reader, threads, ordered).read();
+  }
+
   public static void readSequentially(InputStream testDiscoveryDataStream,
                                       TestDiscoveryProtocolReader reader) throws IOException {
     DataInputStream input = new DataInputStream(testDiscoveryDataStream);
@@ -74,6 +88,9 @@ public class TestDiscoveryProtocolUtil {
           reader.debug("class metadata received");
           readClassMetadata(input, reader);
           break;
+        case TestDiscoveryProtocolDataListener.SYNC_POINT_MARKER:
+          readSyncPoint(input, reader);
+          break;
         case SingleTrFileDiscoveryProtocolDataListener.HEADER_START:
           final byte[] jtc = new byte[3];
           if (!start) throw new IllegalStateException("File header is not expected here");
@@ -89,6 +106,49 @@ public class TestDiscoveryProtocolUtil {
     }
   }
 
+  /**
+   * Reads records between two sync points, see {@link ChunkedTestDiscoveryFileReader}.
+   * Stops at the end of the input or at the finish marker.
+   */
+  static void readSegment(DataInputStream input, TestDiscoveryProtocolReader reader, int version) throws IOException {
+    while (true) {
+      final int read = input.read();
+      if (read == -1) return;
+      switch ((byte) read) {
+        case TestDiscoveryProtocolDataListener.FINISH_MARKER:
+          return;
+        case TestDiscoveryProtocolDataListener.TEST_FINISHED_MARKER:
+          readTestData(input, reader, version);
+          break;
+        case TestDiscoveryProtocolDataListener.NAMES_DICTIONARY_PART_MARKER:
+          readDictionary(input, reader);
+          break;
+        case TestDiscoveryProtocolDataListener.METADATA_MARKER:
+          readMetadata(input, reader);
+          break;
+        case TestDiscoveryProtocolDataListener.CLASS_METADATA_MARKER:
+          readClassMetadata(input, reader);
+          break;
+        case TestDiscoveryProtocolDataListener.SYNC_POINT_MARKER:
+          readSyncPoint(input, reader);
+          break;
+        default:
+          // the rest of the segment can not be decoded
+          reader.error(String.format("Unknown input: %2X", read));
+          return;
+      }
+    }
+  }
+
+  private static void readSyncPoint(DataInputStream input, TestDiscoveryProtocolReader reader) throws IOException {
+    if (input.readInt() != TestDiscoveryProtocolDataListener.SYNC_POINT_MAGIC) {
+      reader.error("Sync point magic mismatch");
+    }
+    final int testCount = CoverageIOUtil.readINT(input);
+    CoverageIOUtil.readINT(input); // dictionary parts count
+    reader.debug("sync point after " + testCount + " tests");
+  }
+
   private static void readMetadata(DataInputStream input, TestDiscoveryProtocolReader reader) throws IOException {
     TestDiscoveryProtocolReader.MetadataReader metadataReader = reader.createMetadataReader();
     int count = CoverageIOUtil.readINT(input);
@@ -126,7 +186,7 @@ public class TestDiscoveryProtocolUtil {
     if (metadataReader != null) metadataReader.finished();
   }
 
-  private static void readDictionary(DataInputStream input, TestDiscoveryProtocolReader reader) throws IOException {
+  static void readDictionary(DataInputStream input, TestDiscoveryProtocolReader reader) throws IOException {
     TestDiscoveryProtocolReader.NameEnumeratorReader nameEnumeratorReader = reader.createNameEnumeratorReader();
     int count = CoverageIOUtil.readINT(input);
     while (count-- > 0) {
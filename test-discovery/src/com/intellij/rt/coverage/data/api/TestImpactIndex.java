@@ -0,0 +1,422 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data.api;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compact index of test discovery data: which tests use a method or a file, and the checksums of the methods.
+ * It is built from trace files with {@link TestImpactIndexBuilder} and answers the question
+ * "which tests are affected by a change" without replaying the traces.
+ * <p>
+ * Class names, method ids and checksums are the same as in {@link com.intellij.rt.coverage.data.ClassMetadata}.
+ * The class declaration checksum is stored as a method with the name of the class.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TestImpactIndex {
+  private static final int MAGIC = 0x494a5449; // "IJTI"
+  private static final int FORMAT_VERSION = 1;
+
+  private final Test[] myTests;
+  private final Map<String, ClassEntry> myClasses;
+  private final Map<String, int[]> myFiles;
+
+  TestImpactIndex(Test[] tests, Map<String, ClassEntry> classes, Map<String, int[]> files) {
+    myTests = tests;
+    myClasses = classes;
+    myFiles = files;
+  }
+
+  public int getTestCount() {
+    return myTests.length;
+  }
+
+  public Set<String> getClassNames() {
+    return Collections.unmodifiableSet(myClasses.keySet());
+  }
+
+  /**
+   * @return method checksums of a class or an empty map if the class metadata was not recorded
+   */
+  public Map<String, byte[]> getChecksums(String className) {
+    final ClassEntry classEntry = myClasses.get(className);
+    if (classEntry == null) return Collections.emptyMap();
+    final Map<String, byte[]> result = new HashMap<String, byte[]>();
+    for (Map.Entry<String, MethodEntry> entry : classEntry.myMethods.entrySet()) {
+      if (entry.getValue().myChecksum != null) {
+        result.put(entry.getKey(), entry.getValue().myChecksum);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return tests which use any method of the classes
+   */
+  public Set<Test> getAffectedTestsByClasses(Collection<String> classNames) {
+    final TIntHashSet result = new TIntHashSet();
+    for (String className : classNames) {
+      addClassTests(myClasses.get(className), result);
+    }
+    return toTests(result);
+  }
+
+  /**
+   * @param methods method ids of the class, see {@link com.intellij.rt.coverage.testDiscovery.instrumentation.TestDiscoveryInstrumentationUtils#getMethodId(String, String)}
+   * @return tests which use any of the methods
+   */
+  public Set<Test> getAffectedTestsByMethods(String className, Collection<String> methods) {
+    final TIntHashSet result = new TIntHashSet();
+    final ClassEntry classEntry = myClasses.get(className);
+    if (classEntry != null) {
+      for (String method : methods) {
+        final MethodEntry methodEntry = classEntry.myMethods.get(method);
+        if (methodEntry != null) result.addAll(methodEntry.myTests);
+      }
+    }
+    return toTests(result);
+  }
+
+  /**
+   * A file is either a resource file opened by a test or a source file of a class used by a test.
+   *
+   * @param files paths relative to the affected roots or source paths as in {@link com.intellij.rt.coverage.data.ClassMetadata#getFiles()}
+   * @return tests which use any of the files
+   */
+  public Set<Test> getAffectedTestsByFiles(Collection<String> files) {
+    final TIntHashSet result = new TIntHashSet();
+    final Set<String> fileSet = new HashSet<String>(files);
+    for (String file : fileSet) {
+      final int[] tests = myFiles.get(file);
+      if (tests != null) result.addAll(tests);
+    }
+    for (ClassEntry classEntry : myClasses.values()) {
+      for (String source : classEntry.myFiles) {
+        if (fileSet.contains(source)) {
+          addClassTests(classEntry, result);
+          break;
+        }
+      }
+    }
+    return toTests(result);
+  }
+
+  /**
+   * Compares the recorded checksums with the current ones.
+   * A changed class declaration affects all tests of the class, a changed or removed method affects tests of the method.
+   * Classes missing from <code>currentChecksums</code> are considered unchanged.
+   *
+   * @param currentChecksums class name to the method checksums, e.g. from another index or {@link com.intellij.rt.coverage.data.ClassMetadata}
+   */
+  public Set<Test> getAffectedTestsByChecksums(Map<String, Map<String, byte[]>> currentChecksums) {
+    return getAffectedTestsByChecksums(currentChecksums, Collections.<String>emptySet());
+  }
+
+  /**
+   * Same as {@link #getAffectedTestsByChecksums(Map)}, but an indexed class missing from <code>currentChecksums</code>
+   * is considered deleted or renamed when its package is scanned, so all tests of the class are affected.
+   *
+   * @param scannedPackages packages (e.g. <code>com.example</code>, empty for the default package)
+   *                        whose current classes are all present in <code>currentChecksums</code>
+   */
+  public Set<Test> getAffectedTestsByChecksums(Map<String, Map<String, byte[]>> currentChecksums, Set<String> scannedPackages) {
+    final TIntHashSet result = new TIntHashSet();
+    if (!scannedPackages.isEmpty()) {
+      for (Map.Entry<String, ClassEntry> entry : myClasses.entrySet()) {
+        final String className = entry.getKey();
+        if (!currentChecksums.containsKey(className) && scannedPackages.contains(getPackageName(className))) {
+          addClassTests(entry.getValue(), result);
+        }
+      }
+    }
+    for (Map.Entry<String, Map<String, byte[]>> entry : currentChecksums.entrySet()) {
+      final String className = entry.getKey();
+      final ClassEntry classEntry = myClasses.get(className);
+      if (classEntry == null) continue;
+      final Map<String, byte[]> checksums = entry.getValue();
+      final MethodEntry declaration = classEntry.myMethods.get(className);
+      if (declaration != null && declaration.myChecksum != null && !Arrays.equals(declaration.myChecksum, checksums.get(className))) {
+        addClassTests(classEntry, result);
+        continue;
+      }
+      for (Map.Entry<String, MethodEntry> methodEntry : classEntry.myMethods.entrySet()) {
+        final byte[] checksum = methodEntry.getValue().myChecksum;
+        if (checksum != null && !Arrays.equals(checksum, checksums.get(methodEntry.getKey()))) {
+          result.addAll(methodEntry.getValue().myTests);
+        }
+      }
+    }
+    return toTests(result);
+  }
+
+  /**
+   * @return checksums of all classes in the index, to be compared with a previous index
+   */
+  public Map<String, Map<String, byte[]>> getAllChecksums() {
+    final Map<String, Map<String, byte[]>> result = new HashMap<String, Map<String, byte[]>>();
+    for (String className : myClasses.keySet()) {
+      final Map<String, byte[]> checksums = getChecksums(className);
+      if (!checksums.isEmpty()) result.put(className, checksums);
+    }
+    return result;
+  }
+
+  private static String getPackageName(String className) {
+    final int index = className.lastIndexOf('.');
+    return index < 0 ? "" : className.substring(0, index);
+  }
+
+  private static void addClassTests(ClassEntry classEntry, TIntHashSet result) {
+    if (classEntry == null) return;
+    for (MethodEntry methodEntry : classEntry.myMethods.values()) {
+      result.addAll(methodEntry.myTests);
+    }
+  }
+
+  private Set<Test> toTests(TIntHashSet ids) {
+    final int[] sorted = ids.toArray();
+    Arrays.sort(sorted);
+    final Set<Test> result = new LinkedHashSet<Test>(sorted.length * 2);
+    for (int id : sorted) {
+      result.add(myTests[id]);
+    }
+    return result;
+  }
+
+  public void save(File file) throws IOException {
+    final DataOutputStream out = CoverageIOUtil.openWriteFile(file);
+    try {
+      write(out);
+    } finally {
+      CoverageIOUtil.close(out);
+    }
+  }
+
+  public static TestImpactIndex load(File file) throws IOException {
+    final DataInputStream in = CoverageIOUtil.openReadFile(file);
+    try {
+      return read(in);
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  /**
+   * Layout: header, string table, tests, classes with methods, files.
+   * All names are indices in the string table, test lists are sorted and delta encoded.
+   */
+  void write(DataOutput out) throws IOException {
+    final StringTable strings = new StringTable();
+    for (Test test : myTests) {
+      strings.add(test.getClassName());
+      strings.add(test.getMethodName());
+    }
+    for (Map.Entry<String, ClassEntry> entry : myClasses.entrySet()) {
+      strings.add(entry.getKey());
+      for (String source : entry.getValue().myFiles) strings.add(source);
+      for (String method : entry.getValue().myMethods.keySet()) strings.add(method);
+    }
+    for (String file : myFiles.keySet()) strings.add(file);
+
+    out.writeInt(MAGIC);
+    CoverageIOUtil.writeINT(out, FORMAT_VERSION);
+    CoverageIOUtil.writeINT(out, strings.myList.size());
+    for (String string : strings.myList) {
+      CoverageIOUtil.writeUTF(out, string);
+    }
+
+    CoverageIOUtil.writeINT(out, myTests.length);
+    for (Test test : myTests) {
+      CoverageIOUtil.writeINT(out, strings.get(test.getClassName()));
+      CoverageIOUtil.writeINT(out, strings.get(test.getMethodName()));
+    }
+
+    CoverageIOUtil.writeINT(out, myClasses.size());
+    for (Map.Entry<String, ClassEntry> entry : myClasses.entrySet()) {
+      final ClassEntry classEntry = entry.getValue();
+      CoverageIOUtil.writeINT(out, strings.get(entry.getKey()));
+      CoverageIOUtil.writeINT(out, classEntry.myFiles.size());
+      for (String source : classEntry.myFiles) {
+        CoverageIOUtil.writeINT(out, strings.get(source));
+      }
+      CoverageIOUtil.writeINT(out, classEntry.myMethods.size());
+      for (Map.Entry<String, MethodEntry> methodEntry : classEntry.myMethods.entrySet()) {
+        final MethodEntry method = methodEntry.getValue();
+        CoverageIOUtil.writeINT(out, strings.get(methodEntry.getKey()));
+        if (method.myChecksum == null) {
+          CoverageIOUtil.writeINT(out, 0);
+        } else {
+          CoverageIOUtil.writeINT(out, method.myChecksum.length + 1);
+          out.write(method.myChecksum);
+        }
+        writeTests(out, method.myTests);
+      }
+    }
+
+    CoverageIOUtil.writeINT(out, myFiles.size());
+    for (Map.Entry<String, int[]> entry : myFiles.entrySet()) {
+      CoverageIOUtil.writeINT(out, strings.get(entry.getKey()));
+      writeTests(out, entry.getValue());
+    }
+  }
+
+  static TestImpactIndex read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) throw new IOException("Not a test impact index");
+    final int version = CoverageIOUtil.readINT(in);
+    if (version != FORMAT_VERSION) throw new IOException("Unsupported test impact index version: " + version);
+    final String[] strings = new String[CoverageIOUtil.readINT(in)];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = CoverageIOUtil.readUTFFast(in);
+    }
+
+    final Test[] tests = new Test[CoverageIOUtil.readINT(in)];
+    for (int i = 0; i < tests.length; i++) {
+      final String className = strings[CoverageIOUtil.readINT(in)];
+      tests[i] = new Test(className, strings[CoverageIOUtil.readINT(in)]);
+    }
+
+    int classCount = CoverageIOUtil.readINT(in);
+    final Map<String, ClassEntry> classes = new HashMap<String, ClassEntry>(classCount * 2);
+    while (classCount-- > 0) {
+      final String className = strings[CoverageIOUtil.readINT(in)];
+      int fileCount = CoverageIOUtil.readINT(in);
+      final List<String> files = new ArrayList<String>(fileCount);
+      while (fileCount-- > 0) {
+        files.add(strings[CoverageIOUtil.readINT(in)]);
+      }
+      int methodCount = CoverageIOUtil.readINT(in);
+      final Map<String, MethodEntry> methods = new HashMap<String, MethodEntry>(methodCount * 2);
+      while (methodCount-- > 0) {
+        final String method = strings[CoverageIOUtil.readINT(in)];
+        final int checksumLength = CoverageIOUtil.readINT(in);
+        byte[] checksum = null;
+        if (checksumLength > 0) {
+          checksum = new byte[checksumLength - 1];
+          in.readFully(checksum);
+        }
+        methods.put(method, new MethodEntry(checksum, readTests(in)));
+      }
+      classes.put(className, new ClassEntry(files, methods));
+    }
+
+    int fileCount = CoverageIOUtil.readINT(in);
+    final Map<String, int[]> files = new HashMap<String, int[]>(fileCount * 2);
+    while (fileCount-- > 0) {
+      final String file = strings[CoverageIOUtil.readINT(in)];
+      files.put(file, readTests(in));
+    }
+    return new TestImpactIndex(tests, classes, files);
+  }
+
+  private static void writeTests(DataOutput out, int[] tests) throws IOException {
+    CoverageIOUtil.writeINT(out, tests.length);
+    int previous = 0;
+    for (int test : tests) {
+      CoverageIOUtil.writeINT(out, test - previous);
+      previous = test;
+    }
+  }
+
+  private static int[] readTests(DataInput in) throws IOException {
+    final int[] tests = new int[CoverageIOUtil.readINT(in)];
+    int previous = 0;
+    for (int i = 0; i < tests.length; i++) {
+      previous += CoverageIOUtil.readINT(in);
+      tests[i] = previous;
+    }
+    return tests;
+  }
+
+  private static class StringTable {
+    private final Map<String, Integer> myIds = new HashMap<String, Integer>();
+    private final List<String> myList = new ArrayList<String>();
+
+    void add(String string) {
+      if (!myIds.containsKey(string)) {
+        myIds.put(string, myList.size());
+        myList.add(string);
+      }
+    }
+
+    int get(String string) {
+      return myIds.get(string);
+    }
+  }
+
+  static class ClassEntry {
+    final List<String> myFiles;
+    final Map<String, MethodEntry> myMethods;
+
+    ClassEntry(List<String> files, Map<String, MethodEntry> methods) {
+      myFiles = files;
+      myMethods = methods;
+    }
+  }
+
+  static class MethodEntry {
+    final byte[] myChecksum;
+    /**
+     * Sorted ids of tests which use the method.
+     */
+    final int[] myTests;
+
+    MethodEntry(byte[] checksum, int[] tests) {
+      myChecksum = checksum;
+      myTests = tests;
+    }
+  }
+
+  public static class Test {
+    private final String myClassName;
+    private final String myMethodName;
+
+    public Test(String className, String methodName) {
+      myClassName = className;
+      myMethodName = methodName;
+    }
+
+    public String getClassName() {
+      return myClassName;
+    }
+
+    public String getMethodName() {
+      return myMethodName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Test)) return false;
+      final Test test = (Test) o;
+      return myClassName.equals(test.myClassName) && myMethodName.equals(test.myMethodName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myClassName.hashCode() + myMethodName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return myClassName + "." + myMethodName;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data.api;
+
+import com.intellij.rt.coverage.data.ClassMetadata;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Collects data of one or more test discovery traces into a {@link TestImpactIndex}.
+ * When a test is present in several traces, its usages are merged; the last recorded checksum of a method wins.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TestImpactIndexBuilder {
+  private final Map<TestImpactIndex.Test, Integer> myTestIds = new HashMap<TestImpactIndex.Test, Integer>();
+  private final List<TestImpactIndex.Test> myTests = new ArrayList<TestImpactIndex.Test>();
+  private final Map<String, ClassBuilder> myClasses = new HashMap<String, ClassBuilder>();
+  private final Map<String, TIntHashSet> myFiles = new HashMap<String, TIntHashSet>();
+
+  public TestImpactIndexBuilder addTraceFile(File file) throws IOException {
+    TestDiscoveryProtocolUtil.readFile(file, new IndexingReader());
+    return this;
+  }
+
+  public TestImpactIndexBuilder addTraceStream(InputStream stream) throws IOException {
+    TestDiscoveryProtocolUtil.readSequentially(stream, new IndexingReader());
+    return this;
+  }
+
+  public TestImpactIndex build() {
+    final Map<String, TestImpactIndex.ClassEntry> classes = new HashMap<String, TestImpactIndex.ClassEntry>(myClasses.size() * 2);
+    for (Map.Entry<String, ClassBuilder> entry : myClasses.entrySet()) {
+      final ClassBuilder classBuilder = entry.getValue();
+      final Set<String> methodNames = new HashSet<String>(classBuilder.myUsages.keySet());
+      methodNames.addAll(classBuilder.myChecksums.keySet());
+      final Map<String, TestImpactIndex.MethodEntry> methods = new HashMap<String, TestImpactIndex.MethodEntry>(methodNames.size() * 2);
+      for (String method : methodNames) {
+        methods.put(method, new TestImpactIndex.MethodEntry(classBuilder.myChecksums.get(method), toSortedArray(classBuilder.myUsages.get(method))));
+      }
+      classes.put(entry.getKey(), new TestImpactIndex.ClassEntry(new ArrayList<String>(classBuilder.myFiles), methods));
+    }
+    final Map<String, int[]> files = new HashMap<String, int[]>(myFiles.size() * 2);
+    for (Map.Entry<String, TIntHashSet> entry : myFiles.entrySet()) {
+      files.put(entry.getKey(), toSortedArray(entry.getValue()));
+    }
+    return new TestImpactIndex(myTests.toArray(new TestImpactIndex.Test[0]), classes, files);
+  }
+
+  private int getTestId(String className, String methodName) {
+    final TestImpactIndex.Test test = new TestImpactIndex.Test(className, methodName);
+    Integer id = myTestIds.get(test);
+    if (id == null) {
+      id = myTests.size();
+      myTests.add(test);
+      myTestIds.put(test, id);
+    }
+    return id;
+  }
+
+  private ClassBuilder getClassBuilder(String className) {
+    ClassBuilder classBuilder = myClasses.get(className);
+    if (classBuilder == null) {
+      classBuilder = new ClassBuilder();
+      myClasses.put(className, classBuilder);
+    }
+    return classBuilder;
+  }
+
+  private static int[] toSortedArray(TIntHashSet set) {
+    if (set == null) return new int[0];
+    final int[] result = set.toArray();
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static class ClassBuilder {
+    private final Set<String> myFiles = new LinkedHashSet<String>(1);
+    private final Map<String, TIntHashSet> myUsages = new HashMap<String, TIntHashSet>();
+    private final Map<String, byte[]> myChecksums = new HashMap<String, byte[]>();
+  }
+
+  /**
+   * Names are resolved with the dictionary of the trace being read, so each trace needs its own reader.
+   */
+  private class IndexingReader extends SimpleDecodingTestDiscoveryProtocolReader {
+    private String myLastTestClass;
+    private String myLastTestMethod;
+    private int myLastTestId;
+
+    private int testId(String testClassName, String testMethodName) {
+      if (!testClassName.equals(myLastTestClass) || !testMethodName.equals(myLastTestMethod)) {
+        myLastTestClass = testClassName;
+        myLastTestMethod = testMethodName;
+        myLastTestId = getTestId(testClassName, testMethodName);
+      }
+      return myLastTestId;
+    }
+
+    @Override
+    protected void processData(String testClassName, String testMethodName, String className, String methodName) {
+      final int testId = testId(testClassName, testMethodName);
+      final Map<String, TIntHashSet> usages = getClassBuilder(className).myUsages;
+      TIntHashSet tests = usages.get(methodName);
+      if (tests == null) {
+        tests = new TIntHashSet();
+        usages.put(methodName, tests);
+      }
+      tests.add(testId);
+    }
+
+    @Override
+    protected void processAffectedFile(String testClassName, String testMethodName, String filePath) {
+      final int testId = testId(testClassName, testMethodName);
+      TIntHashSet tests = myFiles.get(filePath);
+      if (tests == null) {
+        tests = new TIntHashSet();
+        myFiles.put(filePath, tests);
+      }
+      tests.add(testId);
+    }
+
+    @Override
+    protected void processClassMetadataData(ClassMetadata metadata) {
+      final ClassBuilder classBuilder = getClassBuilder(metadata.getFqn());
+      classBuilder.myFiles.addAll(metadata.getFiles());
+      classBuilder.myChecksums.putAll(metadata.getMethods());
+    }
+
+    public void processMetadataEntry(String key, String value) {
+    }
+
+    @Override
+    public void error(String message) {
+      System.err.println(message);
+    }
+
+    @Override
+    public void error(Exception error) {
+      error.printStackTrace();
+    }
+  }
+}
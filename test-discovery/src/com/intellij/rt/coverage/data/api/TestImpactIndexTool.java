@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data.api;
+
+import com.intellij.rt.coverage.testDiscovery.instrumentation.CheckSumCalculator;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Command line access to {@link TestImpactIndex}:
+ * <pre>
+ * build &lt;index&gt; &lt;trace.ijtc&gt;...
+ * query &lt;index&gt; [-class &lt;name&gt;]... [-method &lt;class&gt;#&lt;method id&gt;]... [-file &lt;path&gt;]... [-classes-dir &lt;dir&gt;]...
+ * </pre>
+ * Affected tests are printed one per line.
+ * With <code>-classes-dir</code> the checksums of the compiled classes in the directories are compared with the recorded ones.
+ * A recorded class is considered deleted when it is missing from the directories, but its package contains other classes there,
+ * so all the directories which share packages should be passed together.
+ */
+public class TestImpactIndexTool {
+  public static void main(String[] args) throws IOException {
+    if (args.length >= 2 && "build".equals(args[0])) {
+      final TestImpactIndexBuilder builder = new TestImpactIndexBuilder();
+      for (int i = 2; i < args.length; i++) {
+        builder.addTraceFile(new File(args[i]));
+      }
+      builder.build().save(new File(args[1]));
+    } else if (args.length >= 2 && "query".equals(args[0])) {
+      if (args.length % 2 != 0) {
+        System.err.println("Missing value of option " + args[args.length - 1]);
+        printUsageAndExit();
+      }
+      final TestImpactIndex index = TestImpactIndex.load(new File(args[1]));
+      final Set<TestImpactIndex.Test> result = new LinkedHashSet<TestImpactIndex.Test>();
+      final List<String> classes = new ArrayList<String>();
+      final List<String> files = new ArrayList<String>();
+      final Map<String, Map<String, byte[]>> checksums = new HashMap<String, Map<String, byte[]>>();
+      final Set<String> scannedPackages = new HashSet<String>();
+      for (int i = 2; i < args.length; i += 2) {
+        final String option = args[i];
+        final String value = args[i + 1];
+        if ("-class".equals(option)) {
+          classes.add(value);
+        } else if ("-file".equals(option)) {
+          files.add(value);
+        } else if ("-method".equals(option)) {
+          final int separator = value.indexOf('#');
+          if (separator < 0) throw new IllegalArgumentException("Method should be specified as <class>#<method id>: " + value);
+          result.addAll(index.getAffectedTestsByMethods(value.substring(0, separator), Collections.singletonList(value.substring(separator + 1))));
+        } else if ("-classes-dir".equals(option)) {
+          collectChecksums(new File(value), "", index.getClassNames(), checksums, scannedPackages);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + option);
+        }
+      }
+      if (!scannedPackages.isEmpty()) {
+        result.addAll(index.getAffectedTestsByChecksums(checksums, scannedPackages));
+      }
+      result.addAll(index.getAffectedTestsByClasses(classes));
+      result.addAll(index.getAffectedTestsByFiles(files));
+      for (TestImpactIndex.Test test : result) {
+        System.out.println(test);
+      }
+    } else {
+      printUsageAndExit();
+    }
+  }
+
+  private static void printUsageAndExit() {
+    System.err.println("Usage:");
+    System.err.println("  build <index> <trace.ijtc>...");
+    System.err.println("  query <index> [-class <name>]... [-method <class>#<method id>]... [-file <path>]... [-classes-dir <dir>]...");
+    System.exit(1);
+  }
+
+  private static void collectChecksums(File dir, String packagePrefix, Set<String> indexedClasses,
+                                       Map<String, Map<String, byte[]>> checksums, Set<String> packages) throws IOException {
+    final File[] children = dir.listFiles();
+    if (children == null) return;
+    for (File child : children) {
+      final String name = child.getName();
+      if (child.isDirectory()) {
+        collectChecksums(child, packagePrefix + name + ".", indexedClasses, checksums, packages);
+      } else if (name.endsWith(".class")) {
+        packages.add(packagePrefix.length() == 0 ? "" : packagePrefix.substring(0, packagePrefix.length() - 1));
+        final String className = packagePrefix + name.substring(0, name.length() - ".class".length());
+        // classes which are not used by any test cannot affect tests
+        if (!indexedClasses.contains(className)) continue;
+        final CheckSumCalculator calculator = new CheckSumCalculator(Opcodes.API_VERSION, className);
+        final InputStream input = new FileInputStream(child);
+        try {
+          new ClassReader(input).accept(calculator, 0);
+        } finally {
+          input.close();
+        }
+        checksums.put(className, calculator.getChecksums());
+      }
+    }
+  }
+}
@@ -16,30 +16,46 @@
 
 package com.intellij.rt.coverage.testDiscovery.instrumentation;
 
-import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
-import org.jetbrains.coverage.org.objectweb.asm.Label;
-import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
-import org.jetbrains.coverage.org.objectweb.asm.util.Printer;
-import org.jetbrains.coverage.org.objectweb.asm.util.Textifier;
-import org.jetbrains.coverage.org.objectweb.asm.util.TraceClassVisitor;
-
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import org.jetbrains.coverage.org.objectweb.asm.*;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Calculates MD5 checksums of the class declaration and of the visited methods.
+ * <p>
+ * Bytecode events are fed into the digest directly, without building a textual representation.
+ * Line numbers are ignored, labels are numbered in the order of their first appearance,
+ * so the checksum does not change when the code is only moved in the source file.
+ * Stack map frames are ignored as they are derived from the code.
+ */
 public class CheckSumCalculator extends ClassVisitor {
+  private static final int CLASS = 'C';
+  private static final int SOURCE = 'S';
+  private static final int OUTER_CLASS = 'O';
+  private static final int INNER_CLASS = 'I';
+  private static final int FIELD = 'F';
+  private static final int METHOD = 'M';
+  private static final int PARAMETER = 'P';
+  private static final int ANNOTATION = 'A';
+  private static final int ANNOTATION_VALUE = 'V';
+  private static final int ANNOTATION_END = 'E';
+  private static final int LABEL = 'L';
+  private static final int TRY_CATCH = 'T';
+  private static final int LOCAL_VARIABLE = 'X';
+  private static final int MAXS = 'Z';
+
   private final Map<String, byte[]> checksums = new HashMap<String, byte[]>();
-  private final MessageDigest messageDigest;
+  private final DigestOutput myDigest;
   private final String className;
 
   public CheckSumCalculator(int api, String className) {
-    super(api, new TraceClassVisitor(null, new ChecksumPrinter(api), null));
+    super(api);
     this.className = className;
     try {
-      this.messageDigest = MessageDigest.getInstance("MD5");
+      this.myDigest = new DigestOutput(MessageDigest.getInstance("MD5"));
     } catch (NoSuchAlgorithmException e) {
       throw new RuntimeException(e);
     }
@@ -49,21 +65,74 @@ public class CheckSumCalculator extends ClassVisitor {
     return checksums;
   }
 
-  private Printer getPrinter() {
-    return ((TraceClassVisitor) cv).p;
+  private void saveChecksum(String name) {
+    checksums.put(name, myDigest.digest());
   }
 
-  private void saveChecksum(String name) {
-    PrintWriter pw = null;
-    try {
-      StringWriter sw = new StringWriter();
-      pw = new PrintWriter(sw);
-      getPrinter().print(pw);
-      checksums.put(name, messageDigest.digest(sw.toString().getBytes()));
-    } finally {
-      getPrinter().getText().clear();
-      if (pw != null) pw.close();
-    }
+  @Override
+  public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+    myDigest.putByte(CLASS);
+    myDigest.putInt(version);
+    myDigest.putInt(access);
+    myDigest.putString(name);
+    myDigest.putString(signature);
+    myDigest.putString(superName);
+    myDigest.putStrings(interfaces);
+  }
+
+  @Override
+  public void visitSource(String source, String debug) {
+    myDigest.putByte(SOURCE);
+    myDigest.putString(source);
+    myDigest.putString(debug);
+  }
+
+  @Override
+  public void visitOuterClass(String owner, String name, String descriptor) {
+    myDigest.putByte(OUTER_CLASS);
+    myDigest.putString(owner);
+    myDigest.putString(name);
+    myDigest.putString(descriptor);
+  }
+
+  @Override
+  public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+    return visitAnnotation(-1, descriptor, visible);
+  }
+
+  @Override
+  public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+    return visitAnnotation(typeRef, descriptor, visible);
+  }
+
+  @Override
+  public void visitInnerClass(String name, String outerName, String innerName, int access) {
+    myDigest.putByte(INNER_CLASS);
+    myDigest.putString(name);
+    myDigest.putString(outerName);
+    myDigest.putString(innerName);
+    myDigest.putInt(access);
+  }
+
+  @Override
+  public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+    myDigest.putByte(FIELD);
+    myDigest.putInt(access);
+    myDigest.putString(name);
+    myDigest.putString(descriptor);
+    myDigest.putString(signature);
+    myDigest.putValue(value);
+    return new FieldVisitor(api) {
+      @Override
+      public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+        return CheckSumCalculator.this.visitAnnotation(-1, descriptor, visible);
+      }
+
+      @Override
+      public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+        return CheckSumCalculator.this.visitAnnotation(typeRef, descriptor, visible);
+      }
+    };
   }
 
   /**
@@ -77,30 +146,398 @@ public class CheckSumCalculator extends ClassVisitor {
       // class declaration checksum
       saveChecksum(className);
     }
-    return new MethodVisitor(api, super.visitMethod(access, name, desc, signature, exceptions)) {
-      @Override
-      public void visitEnd() {
-        super.visitEnd();
-        // method checksum
-        saveChecksum(TestDiscoveryInstrumentationUtils.getMethodId(name, desc));
-      }
-    };
+    myDigest.putByte(METHOD);
+    myDigest.putInt(access);
+    myDigest.putString(name);
+    myDigest.putString(desc);
+    myDigest.putString(signature);
+    myDigest.putStrings(exceptions);
+    return new ChecksumMethodVisitor(api, name, desc);
+  }
+
+  private AnnotationVisitor visitAnnotation(int typeRef, String descriptor, boolean visible) {
+    myDigest.putByte(ANNOTATION);
+    myDigest.putInt(typeRef);
+    myDigest.putString(descriptor);
+    myDigest.putBoolean(visible);
+    return new ChecksumAnnotationVisitor(api);
   }
 
-  // TODO: directly extend asm Printer instead of Textifier to avoid string building overhead
-  private static class ChecksumPrinter extends Textifier {
-    ChecksumPrinter(int api) {
+  private class ChecksumAnnotationVisitor extends AnnotationVisitor {
+    ChecksumAnnotationVisitor(int api) {
       super(api);
     }
 
+    @Override
+    public void visit(String name, Object value) {
+      myDigest.putByte(ANNOTATION_VALUE);
+      myDigest.putString(name);
+      myDigest.putValue(value);
+    }
+
+    @Override
+    public void visitEnum(String name, String descriptor, String value) {
+      myDigest.putByte(ANNOTATION_VALUE);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+      myDigest.putString(value);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String name, String descriptor) {
+      myDigest.putByte(ANNOTATION);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+      return new ChecksumAnnotationVisitor(api);
+    }
+
+    @Override
+    public AnnotationVisitor visitArray(String name) {
+      myDigest.putByte(ANNOTATION);
+      myDigest.putString(name);
+      return new ChecksumAnnotationVisitor(api);
+    }
+
+    @Override
+    public void visitEnd() {
+      myDigest.putByte(ANNOTATION_END);
+    }
+  }
+
+  private class ChecksumMethodVisitor extends MethodVisitor {
+    private final String myName;
+    private final String myDesc;
+    private final Map<Label, Integer> myLabels = new HashMap<Label, Integer>();
+
+    ChecksumMethodVisitor(int api, String name, String desc) {
+      super(api);
+      myName = name;
+      myDesc = desc;
+    }
+
+    private void putLabel(Label label) {
+      Integer id = myLabels.get(label);
+      if (id == null) {
+        id = myLabels.size();
+        myLabels.put(label, id);
+      }
+      myDigest.putInt(id);
+    }
+
+    @Override
+    public void visitParameter(String name, int access) {
+      myDigest.putByte(PARAMETER);
+      myDigest.putString(name);
+      myDigest.putInt(access);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotationDefault() {
+      return CheckSumCalculator.this.visitAnnotation(-1, null, true);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+      return CheckSumCalculator.this.visitAnnotation(-1, descriptor, visible);
+    }
+
+    @Override
+    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+      return CheckSumCalculator.this.visitAnnotation(typeRef, descriptor, visible);
+    }
+
+    @Override
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+      myDigest.putByte(PARAMETER);
+      myDigest.putInt(parameter);
+      return CheckSumCalculator.this.visitAnnotation(-1, descriptor, visible);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      myDigest.putByte(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+      myDigest.putByte(opcode);
+      myDigest.putInt(operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+      myDigest.putByte(opcode);
+      myDigest.putInt(var);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+      myDigest.putByte(opcode);
+      myDigest.putString(type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+      myDigest.putByte(opcode);
+      myDigest.putString(owner);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+      myDigest.putByte(opcode);
+      myDigest.putString(owner);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+      myDigest.putBoolean(isInterface);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+      myDigest.putByte(Opcodes.INVOKEDYNAMIC);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+      myDigest.putValue(bootstrapMethodHandle);
+      myDigest.putValue(bootstrapMethodArguments);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      myDigest.putByte(opcode);
+      putLabel(label);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+      myDigest.putByte(LABEL);
+      putLabel(label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+      myDigest.putByte(Opcodes.LDC);
+      myDigest.putValue(value);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+      myDigest.putByte(Opcodes.IINC);
+      myDigest.putInt(var);
+      myDigest.putInt(increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+      myDigest.putByte(Opcodes.TABLESWITCH);
+      myDigest.putInt(min);
+      myDigest.putInt(max);
+      putLabel(dflt);
+      for (Label label : labels) {
+        putLabel(label);
+      }
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+      myDigest.putByte(Opcodes.LOOKUPSWITCH);
+      putLabel(dflt);
+      myDigest.putInt(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        myDigest.putInt(keys[i]);
+        putLabel(labels[i]);
+      }
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+      myDigest.putByte(Opcodes.MULTIANEWARRAY);
+      myDigest.putString(descriptor);
+      myDigest.putInt(numDimensions);
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+      myDigest.putByte(TRY_CATCH);
+      putLabel(start);
+      putLabel(end);
+      putLabel(handler);
+      myDigest.putString(type);
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+      myDigest.putByte(LOCAL_VARIABLE);
+      myDigest.putString(name);
+      myDigest.putString(descriptor);
+      myDigest.putString(signature);
+      putLabel(start);
+      putLabel(end);
+      myDigest.putInt(index);
+    }
+
     @Override
     public void visitLineNumber(int line, Label start) {
-      // no-op
+      // line numbers are ignored
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+      myDigest.putByte(MAXS);
+      myDigest.putInt(maxStack);
+      myDigest.putInt(maxLocals);
     }
 
     @Override
-    protected Textifier createTextifier() {
-      return new ChecksumPrinter(api);
+    public void visitEnd() {
+      // method checksum
+      saveChecksum(TestDiscoveryInstrumentationUtils.getMethodId(myName, myDesc));
+    }
+  }
+
+  /**
+   * Buffers primitive values before passing them to the digest to avoid per-byte digest calls.
+   */
+  private static final class DigestOutput {
+    private final MessageDigest myDigest;
+    private final byte[] myBuffer = new byte[4096];
+    private int myPosition;
+
+    private DigestOutput(MessageDigest digest) {
+      myDigest = digest;
+    }
+
+    byte[] digest() {
+      flush();
+      // digest is reset after this call
+      return myDigest.digest();
+    }
+
+    private void flush() {
+      myDigest.update(myBuffer, 0, myPosition);
+      myPosition = 0;
+    }
+
+    private void ensureCapacity(int size) {
+      if (myPosition + size > myBuffer.length) flush();
+    }
+
+    void putByte(int value) {
+      ensureCapacity(1);
+      myBuffer[myPosition++] = (byte) value;
+    }
+
+    void putBoolean(boolean value) {
+      putByte(value ? 1 : 0);
+    }
+
+    void putInt(int value) {
+      ensureCapacity(4);
+      myBuffer[myPosition++] = (byte) (value >>> 24);
+      myBuffer[myPosition++] = (byte) (value >>> 16);
+      myBuffer[myPosition++] = (byte) (value >>> 8);
+      myBuffer[myPosition++] = (byte) value;
+    }
+
+    void putLong(long value) {
+      putInt((int) (value >>> 32));
+      putInt((int) value);
+    }
+
+    void putString(String value) {
+      if (value == null) {
+        putInt(-1);
+        return;
+      }
+      final int length = value.length();
+      putInt(length);
+      for (int i = 0; i < length; i++) {
+        final char c = value.charAt(i);
+        ensureCapacity(2);
+        myBuffer[myPosition++] = (byte) (c >>> 8);
+        myBuffer[myPosition++] = (byte) c;
+      }
+    }
+
+    void putStrings(String[] values) {
+      if (values == null) {
+        putInt(-1);
+        return;
+      }
+      putInt(values.length);
+      for (String value : values) {
+        putString(value);
+      }
+    }
+
+    /**
+     * Feeds a constant value: a field initial value, an annotation value, an LDC or a bootstrap method argument.
+     */
+    void putValue(Object value) {
+      if (value == null) {
+        putByte(0);
+      } else if (value instanceof String) {
+        putByte('s');
+        putString((String) value);
+      } else if (value instanceof Integer) {
+        putByte('I');
+        putInt((Integer) value);
+      } else if (value instanceof Long) {
+        putByte('J');
+        putLong((Long) value);
+      } else if (value instanceof Float) {
+        putByte('F');
+        putInt(Float.floatToRawIntBits((Float) value));
+      } else if (value instanceof Double) {
+        putByte('D');
+        putLong(Double.doubleToRawLongBits((Double) value));
+      } else if (value instanceof Type) {
+        putByte('T');
+        putString(((Type) value).getDescriptor());
+      } else if (value instanceof Handle) {
+        final Handle handle = (Handle) value;
+        putByte('H');
+        putInt(handle.getTag());
+        putString(handle.getOwner());
+        putString(handle.getName());
+        putString(handle.getDesc());
+        putBoolean(handle.isInterface());
+      } else if (value instanceof ConstantDynamic) {
+        final ConstantDynamic condy = (ConstantDynamic) value;
+        putByte('K');
+        putString(condy.getName());
+        putString(condy.getDescriptor());
+        putValue(condy.getBootstrapMethod());
+        final int count = condy.getBootstrapMethodArgumentCount();
+        putInt(count);
+        for (int i = 0; i < count; i++) {
+          putValue(condy.getBootstrapMethodArgument(i));
+        }
+      } else if (value instanceof Object[]) {
+        final Object[] array = (Object[]) value;
+        putByte('[');
+        putInt(array.length);
+        for (Object element : array) {
+          putValue(element);
+        }
+      } else {
+        // boxed primitives of annotation values and primitive arrays
+        putByte('?');
+        putString(value.getClass().getName());
+        putString(primitiveArrayToString(value));
+      }
+    }
+
+    private static String primitiveArrayToString(Object value) {
+      if (value instanceof byte[]) return java.util.Arrays.toString((byte[]) value);
+      if (value instanceof boolean[]) return java.util.Arrays.toString((boolean[]) value);
+      if (value instanceof short[]) return java.util.Arrays.toString((short[]) value);
+      if (value instanceof char[]) return java.util.Arrays.toString((char[]) value);
+      if (value instanceof int[]) return java.util.Arrays.toString((int[]) value);
+      if (value instanceof long[]) return java.util.Arrays.toString((long[]) value);
+      if (value instanceof float[]) return java.util.Arrays.toString((float[]) value);
+      if (value instanceof double[]) return java.util.Arrays.toString((double[]) value);
+      return value.toString();
     }
   }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.testDiscovery.instrumentation;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent cache of {@link CheckSumCalculator} results keyed by the hash of the class file bytes.
+ * Enabled by the {@link #CACHE_FILE} property, the file is read on first use and rewritten on shutdown
+ * when new entries were added.
+ */
+public class ChecksumCache {
+  @SuppressWarnings("WeakerAccess")
+  public static final String CACHE_FILE = "test.discovery.checksums.cache";
+  @SuppressWarnings("WeakerAccess")
+  public static final String MAX_ENTRIES = "test.discovery.checksums.cache.max.entries";
+
+  private static final int FORMAT_VERSION = 1;
+  private static final ChecksumCache ourInstance = createInstance();
+
+  private final File myFile;
+  private final int myMaxEntries;
+  private final ConcurrentMap<Key, Map<String, byte[]>> myChecksums = new ConcurrentHashMap<Key, Map<String, byte[]>>();
+  private final AtomicBoolean myModified = new AtomicBoolean();
+
+  ChecksumCache(File file, int maxEntries) {
+    myFile = file;
+    myMaxEntries = maxEntries;
+  }
+
+  /**
+   * @return cache instance or null if the cache is disabled
+   */
+  public static ChecksumCache getInstance() {
+    return ourInstance;
+  }
+
+  private static ChecksumCache createInstance() {
+    final String path = System.getProperty(CACHE_FILE);
+    if (path == null) return null;
+    final ChecksumCache cache = new ChecksumCache(new File(path), Integer.parseInt(System.getProperty(MAX_ENTRIES, "200000")));
+    cache.load();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        cache.save();
+      }
+    }));
+    return cache;
+  }
+
+  /**
+   * @return MD5 of the class file bytes, to be used as a key in {@link #get} and {@link #put}
+   */
+  public static byte[] hash(byte[] classBytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(classBytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Map<String, byte[]> get(byte[] classHash) {
+    return myChecksums.get(new Key(classHash));
+  }
+
+  public void put(byte[] classHash, Map<String, byte[]> checksums) {
+    if (myChecksums.size() >= myMaxEntries) return;
+    if (myChecksums.putIfAbsent(new Key(classHash), checksums) == null) {
+      myModified.set(true);
+    }
+  }
+
+  void load() {
+    if (!myFile.isFile()) return;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      if (in.readInt() != FORMAT_VERSION) return;
+      final int count = in.readInt();
+      for (int i = 0; i < count && i < myMaxEntries; i++) {
+        final byte[] classHash = readBytes(in);
+        final int size = in.readInt();
+        final Map<String, byte[]> checksums = new HashMap<String, byte[]>(size * 2);
+        for (int j = 0; j < size; j++) {
+          final String name = in.readUTF();
+          checksums.put(name, readBytes(in));
+        }
+        myChecksums.put(new Key(classHash), checksums);
+      }
+    } catch (IOException e) {
+      // broken cache is not a problem, checksums are recalculated
+      myChecksums.clear();
+    } finally {
+      close(in);
+    }
+  }
+
+  void save() {
+    if (!myModified.getAndSet(false)) return;
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    //noinspection ResultOfMethodCallIgnored
+    parent.mkdirs();
+    DataOutputStream out = null;
+    File tempFile = null;
+    try {
+      tempFile = File.createTempFile(myFile.getName(), ".tmp", parent);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      // snapshot the entries so that the count matches the data even if classes are still being loaded
+      final Map<Key, Map<String, byte[]>> entries = new HashMap<Key, Map<String, byte[]>>(myChecksums);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<Key, Map<String, byte[]>> entry : entries.entrySet()) {
+        writeBytes(out, entry.getKey().myHash);
+        final Map<String, byte[]> checksums = entry.getValue();
+        out.writeInt(checksums.size());
+        for (Map.Entry<String, byte[]> checksum : checksums.entrySet()) {
+          out.writeUTF(checksum.getKey());
+          writeBytes(out, checksum.getValue());
+        }
+      }
+      out.close();
+      out = null;
+      // rename is atomic on the same file system, concurrent runs never see a partially written cache
+      if (!tempFile.renameTo(myFile) && !(myFile.delete() && tempFile.renameTo(myFile))) {
+        System.err.println("Failed to save test discovery checksums cache to " + myFile);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      close(out);
+      if (tempFile != null && tempFile.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+      }
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static final class Key {
+    private final byte[] myHash;
+    private final int myHashCode;
+
+    private Key(byte[] hash) {
+      myHash = hash;
+      myHashCode = Arrays.hashCode(hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(myHash, ((Key) o).myHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
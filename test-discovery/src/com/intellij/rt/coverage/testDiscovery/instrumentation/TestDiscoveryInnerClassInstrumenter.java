@@ -31,8 +31,8 @@ public class TestDiscoveryInnerClassInstrumenter extends TestDiscoveryInstrument
   private volatile Method myDefineClassMethodRef;
   private final ClassLoader myClassLoader;
 
-  public TestDiscoveryInnerClassInstrumenter(ClassVisitor cw, ClassReader cr, String className, ClassLoader loader) {
-    super(cw, cr, className);
+  public TestDiscoveryInnerClassInstrumenter(ClassVisitor cw, ClassReader cr, byte[] classBytes, String className, ClassLoader loader) {
+    super(cw, cr, classBytes, className);
     myInternalCounterClassJVMName = myInternalClassName + "$" + myInternalCounterClassName;
     myClassLoader = loader;
   }
@@ -22,6 +22,7 @@ import com.intellij.rt.coverage.instrumentation.ExtraFieldInstrumenter;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
 import java.util.Collections;
+import java.util.Map;
 
 public class TestDiscoveryInstrumenter extends ExtraFieldInstrumenter {
   private final String myClassName;
@@ -33,27 +34,51 @@ public class TestDiscoveryInstrumenter extends ExtraFieldInstrumenter {
   static final String METHODS_VISITED = "__$methodsVisited$__";
   static final String METHODS_VISITED_CLASS = "[Z";
   private final String[] myMethodNames;
+  private final int myRegistrationId;
+  private final int myClassId;
 
-  public TestDiscoveryInstrumenter(ClassVisitor cw, ClassReader cr, String className) {
+  /**
+   * @param classBytes bytes of the class read by <code>cr</code>, used to look up the cached checksums
+   */
+  public TestDiscoveryInstrumenter(ClassVisitor cw, ClassReader cr, byte[] classBytes, String className) {
     super(cr, cw, className, METHODS_VISITED, METHODS_VISITED_CLASS, false);
     myMethodFilter = new InstrumentedMethodsFilter(className);
     myClassName = className;
-    myMethodNames = inspectClass(cr);
+    myMethodNames = inspectClass(cr, classBytes);
+    if (myMethodNames.length > 0) {
+      // method names are kept by the agent, the instrumented class refers to them by id
+      final TestDiscoveryProjectData projectData = TestDiscoveryProjectData.getProjectData();
+      myRegistrationId = projectData.registerClass(className, myMethodNames);
+      myClassId = projectData.getClassId(className);
+    } else {
+      myRegistrationId = -1;
+      myClassId = -1;
+    }
   }
 
-  private String[] inspectClass(ClassReader cr) {
-    // calculate checksums for class
-    CheckSumCalculator checksumCalculator = new CheckSumCalculator(api, myClassName);
+  private String[] inspectClass(ClassReader cr, byte[] classBytes) {
+    final ChecksumCache cache = ChecksumCache.getInstance();
+    final byte[] classHash = cache == null ? null : ChecksumCache.hash(classBytes);
+    final Map<String, byte[]> cachedChecksums = cache == null ? null : cache.get(classHash);
+    // calculate checksums for class unless they are known from the previous runs
+    CheckSumCalculator checksumCalculator = cachedChecksums == null ? new CheckSumCalculator(api, myClassName) : null;
     // collect source files of class
     SourceFilesCollector sourceFilesCollector = new SourceFilesCollector(api, checksumCalculator, myClassName);
     // collect methods to instrument (and calculate checksums for them, see CheckSumCalculator)
     InstrumentedMethodsCollector methodCollector = new InstrumentedMethodsCollector(api, sourceFilesCollector, this, myClassName);
     cr.accept(methodCollector, 0);
+    Map<String, byte[]> checksums = cachedChecksums;
+    if (checksumCalculator != null) {
+      checksums = checksumCalculator.getChecksums();
+      if (cache != null) {
+        cache.put(classHash, checksums);
+      }
+    }
     TestDiscoveryProjectData.getProjectData()
         .addClassMetadata(Collections.singletonList(
             new ClassMetadata(myClassName,
                 sourceFilesCollector.getSources(),
-                checksumCalculator.getChecksums())));
+                checksums)));
     return methodCollector.instrumentedMethods();
   }
 
@@ -87,6 +112,18 @@ public class TestDiscoveryInstrumenter extends ExtraFieldInstrumenter {
       @Override
       public void visitCode() {
         mv.visitFieldInsn(Opcodes.GETSTATIC, getInternalClassName(), METHODS_VISITED, METHODS_VISITED_CLASS);
+
+        // register class as touched by the current test if it is not registered yet
+        final Label registered = new Label();
+        visitInsn(Opcodes.DUP);
+        pushInstruction(this, TestDiscoveryProjectData.getRegistrationFlagIndex(myMethodNames.length));
+        visitInsn(Opcodes.BALOAD);
+        visitJumpInsn(Opcodes.IFNE, registered);
+        visitInsn(Opcodes.DUP);
+        pushInstruction(this, myClassId);
+        visitMethodInsn(Opcodes.INVOKESTATIC, TestDiscoveryProjectData.PROJECT_DATA_OWNER, "registerClassForTrace", "([ZI)V", false);
+        visitLabel(registered);
+
         pushInstruction(this, myMethodId);
         visitInsn(Opcodes.ICONST_1);
         visitInsn(Opcodes.BASTORE);
@@ -106,31 +143,21 @@ public class TestDiscoveryInstrumenter extends ExtraFieldInstrumenter {
   }
 
   /**
-   * Pushes class name, array of boolean and method names from stack to the {@link TestDiscoveryProjectData#trace(java.lang.String, boolean[], java.lang.String[])}
-   * and store result in the field {@link TestDiscoveryInstrumenter#METHODS_VISITED}
+   * Pushes registration id and method count to the {@link TestDiscoveryProjectData#trace(int, int)}
+   * and store result in the field {@link TestDiscoveryInstrumenter#METHODS_VISITED}.
+   * Method names are registered in {@link TestDiscoveryProjectData#registerClass(String, String[])} during transformation.
    */
   @Override
   public void initField(MethodVisitor mv) {
-    mv.visitLdcInsn(myClassName);
-    pushInstruction(mv, myMethodNames.length);
-    mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BOOLEAN);
-
+    pushInstruction(mv, myRegistrationId);
     pushInstruction(mv, myMethodNames.length);
-    mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/String");
-
-    for (int i = 0; i < myMethodNames.length; ++i) {
-      mv.visitInsn(Opcodes.DUP);
-      pushInstruction(mv, i);
-      mv.visitLdcInsn(myMethodNames[i]);
-      mv.visitInsn(Opcodes.AASTORE);
-    }
-
-    mv.visitMethodInsn(Opcodes.INVOKESTATIC, TestDiscoveryProjectData.PROJECT_DATA_OWNER, "trace", "(Ljava/lang/String;[Z[Ljava/lang/String;)[Z", false);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, TestDiscoveryProjectData.PROJECT_DATA_OWNER, "trace", "(II)[Z", false);
     mv.visitFieldInsn(Opcodes.PUTSTATIC, getInternalClassName(), METHODS_VISITED, METHODS_VISITED_CLASS);
   }
 
   private static void pushInstruction(MethodVisitor mv, int operand) {
-    if (operand < Byte.MAX_VALUE) mv.visitIntInsn(Opcodes.BIPUSH, operand);
-    else mv.visitIntInsn(Opcodes.SIPUSH, operand);
+    if (operand >= Byte.MIN_VALUE && operand <= Byte.MAX_VALUE) mv.visitIntInsn(Opcodes.BIPUSH, operand);
+    else if (operand >= Short.MIN_VALUE && operand <= Short.MAX_VALUE) mv.visitIntInsn(Opcodes.SIPUSH, operand);
+    else mv.visitLdcInsn(operand);
   }
 }
@@ -37,10 +37,10 @@ public class TestDiscoveryTransformer extends AbstractIntellijClassfileTransform
   }
 
   @Override
-  protected ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw) {
+  protected ClassVisitor createClassVisitor(String className, ClassLoader loader, byte[] classfileBuffer, ClassReader cr, ClassVisitor cw) {
     return COUNTERS_IN_INNER_CLASS
-        ? new TestDiscoveryInnerClassInstrumenter(cw, cr, className, loader)
-        : new TestDiscoveryInstrumenter(cw, cr, className);
+        ? new TestDiscoveryInnerClassInstrumenter(cw, cr, classfileBuffer, className, loader)
+        : new TestDiscoveryInstrumenter(cw, cr, classfileBuffer, className);
   }
 
   @Override
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.data.api.SimpleDecodingTestDiscoveryProtocolReader;
+import com.intellij.rt.coverage.data.api.TestDiscoveryProtocolUtil;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunkedTraceFileReaderTest {
+  private static final int TESTS = 25;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testOrderedReadMatchesSequential() throws Exception {
+    final File file = writeTrace(4, 3);
+    final List<String> expected = readSequentially(file);
+    assertThat(expected).hasSize(2 * TESTS + 1);
+    assertThat(readInParallel(file, true)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testConcurrentReadMatchesSequential() throws Exception {
+    final File file = writeTrace(4, 3);
+    final List<String> expected = readSequentially(file);
+    final List<String> actual = readInParallel(file, false);
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  public void testFileWithoutSyncPointsIsReadSequentially() throws Exception {
+    final File file = writeTrace(3, 3);
+    assertThat(readInParallel(file, true)).isEqualTo(readSequentially(file));
+  }
+
+  private File writeTrace(int version, int syncInterval) throws Exception {
+    final File file = tmp.newFile();
+    final SingleTrFileDiscoveryProtocolDataListener listener =
+        new SingleTrFileDiscoveryProtocolDataListener(new DataOutputStream(new FileOutputStream(file)), version, syncInterval);
+    final NameEnumerator enumerator = listener.getNameEnumerator();
+    for (int i = 0; i < TESTS; i++) {
+      // new names appear in every test, so the dictionary is spread over all segments
+      final int classId = enumerator.enumerate("C" + i);
+      final TIntObjectHashMap<boolean[]> classes = new TIntObjectHashMap<boolean[]>();
+      final TIntObjectHashMap<int[]> methods = new TIntObjectHashMap<int[]>();
+      classes.put(classId, new boolean[]{true, false, true});
+      methods.put(classId, new int[]{enumerator.enumerate("m" + i), enumerator.enumerate("unused"), enumerator.enumerate("common")});
+      listener.testFinished("T", "t" + i, classes, methods, Collections.<int[]>emptyList());
+    }
+    listener.addClassMetadata(singletonList(new ClassMetadata("C0", singletonList("C0.java"), Collections.singletonMap("m0", new byte[]{1}))));
+    listener.testsFinished();
+    return file;
+  }
+
+  private static List<String> readSequentially(File file) throws Exception {
+    final List<String> result = new ArrayList<String>();
+    TestDiscoveryProtocolUtil.readFile(file, new CollectingReader(result));
+    return result;
+  }
+
+  private static List<String> readInParallel(File file, boolean ordered) throws Exception {
+    final List<String> result = Collections.synchronizedList(new ArrayList<String>());
+    TestDiscoveryProtocolUtil.readFileInParallel(file, new CollectingReader(result), 4, ordered);
+    return new ArrayList<String>(result);
+  }
+
+  private static class CollectingReader extends SimpleDecodingTestDiscoveryProtocolReader {
+    private final List<String> myResult;
+
+    CollectingReader(List<String> result) {
+      myResult = result;
+    }
+
+    @Override
+    protected void processData(String testClassName, String testMethodName, String className, String methodName) {
+      myResult.add(testClassName + "." + testMethodName + " " + className + "." + methodName);
+    }
+
+    @Override
+    protected void processClassMetadataData(ClassMetadata metadata) {
+      myResult.add(metadata.getFqn() + " " + metadata.getFiles() + " " + metadata.getMethods().keySet());
+    }
+
+    public void processMetadataEntry(String key, String value) {
+      myResult.add(key + "=" + value);
+    }
+
+    @Override
+    public void error(String message) {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameEnumeratorTest {
+  private static final int THREADS = 8;
+  private static final int NAMES = 2000;
+
+  @Test
+  public void testSequentialIdsAreDense() {
+    final NameEnumerator.Incremental enumerator = new NameEnumerator.Incremental();
+    assertThat(enumerator.enumerate("A")).isEqualTo(1);
+    assertThat(enumerator.enumerate("B")).isEqualTo(2);
+    assertThat(enumerator.enumerate("A")).isEqualTo(1);
+
+    final List<NameEnumerator.Incremental.NameAndId> increment = enumerator.getAndClearDataIncrement();
+    assertThat(increment).hasSize(2);
+    assertThat(increment.get(0).getName()).isEqualTo("A");
+    assertThat(increment.get(1).getName()).isEqualTo("B");
+    assertThat(enumerator.getAndClearDataIncrement()).isEmpty();
+  }
+
+  @Test
+  public void testConcurrentEnumerationIsConsistent() throws Exception {
+    final NameEnumerator.Incremental enumerator = new NameEnumerator.Incremental();
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final Future<?>[] futures = new Future<?>[THREADS];
+      final int[][] results = new int[THREADS][NAMES];
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        futures[t] = executor.submit(new Runnable() {
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            for (int i = 0; i < NAMES; i++) {
+              results[thread][i] = enumerator.enumerate("name" + i);
+            }
+          }
+        });
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+
+      for (int t = 1; t < THREADS; t++) {
+        assertThat(results[t]).isEqualTo(results[0]);
+      }
+
+      // every id which is observed by enumerator users must be present in the increment
+      final Map<Integer, String> increment = new HashMap<Integer, String>();
+      for (NameEnumerator.Incremental.NameAndId nameAndId : enumerator.getAndClearDataIncrement()) {
+        assertThat(increment.put(nameAndId.getId(), nameAndId.getName())).isNull();
+      }
+      for (int i = 0; i < NAMES; i++) {
+        assertThat(increment.get(results[0][i])).isEqualTo("name" + i);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.intellij.rt.coverage.data;
 
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -23,8 +24,6 @@ import org.junit.runners.Parameterized;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -48,8 +47,8 @@ public class SingleTrFileDiscoveryDataListenerTest {
     final SingleTrFileDiscoveryProtocolDataListener listener = new SingleTrFileDiscoveryProtocolDataListener(dos, version);
     final String name = "ABC";
     listener.getNameEnumerator().enumerate(name);
-    final Map<Integer, boolean[]> classes = new HashMap<Integer, boolean[]>();
-    final Map<Integer, int[]> methods = new HashMap<Integer, int[]>();
+    final TIntObjectHashMap<boolean[]> classes = new TIntObjectHashMap<boolean[]>();
+    final TIntObjectHashMap<int[]> methods = new TIntObjectHashMap<int[]>();
     classes.put(1, new boolean[]{false});
     methods.put(1, new int[]{1});
     listener.testFinished(name, name, classes, methods, Collections.<int[]>emptyList());
@@ -124,8 +123,8 @@ public class SingleTrFileDiscoveryDataListenerTest {
     listener.getNameEnumerator().enumerate(name2);
     listener.getNameEnumerator().enumerate(name3);
 
-    final Map<Integer, boolean[]> classes = new HashMap<Integer, boolean[]>();
-    final Map<Integer, int[]> methods = new HashMap<Integer, int[]>();
+    final TIntObjectHashMap<boolean[]> classes = new TIntObjectHashMap<boolean[]>();
+    final TIntObjectHashMap<int[]> methods = new TIntObjectHashMap<int[]>();
     classes.put(1, new boolean[]{false});
     classes.put(2, new boolean[]{true});
     methods.put(1, new int[]{1});
@@ -158,8 +157,8 @@ public class SingleTrFileDiscoveryDataListenerTest {
 
     listener.getNameEnumerator().enumerate("A");
 
-    final Map<Integer, boolean[]> classes = new HashMap<Integer, boolean[]>();
-    final Map<Integer, int[]> methods = new HashMap<Integer, int[]>();
+    final TIntObjectHashMap<boolean[]> classes = new TIntObjectHashMap<boolean[]>();
+    final TIntObjectHashMap<int[]> methods = new TIntObjectHashMap<int[]>();
     classes.put(1, new boolean[]{true});
     methods.put(1, new int[]{1});
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.data.api.TestImpactIndex;
+import com.intellij.rt.coverage.data.api.TestImpactIndexBuilder;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestImpactIndexTest {
+  private static final byte[] HASH_1 = {1, 2, 3};
+  private static final byte[] HASH_2 = {4, 5, 6};
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testQueries() throws Exception {
+    final TestImpactIndex index = new TestImpactIndexBuilder().addTraceStream(new ByteArrayInputStream(trace())).build();
+    assertThat(index.getTestCount()).isEqualTo(2);
+    assertThat(names(index.getAffectedTestsByClasses(singletonList("A")))).containsExactly("T.t1", "T.t2");
+    assertThat(names(index.getAffectedTestsByClasses(singletonList("B")))).containsExactly("T.t2");
+    assertThat(names(index.getAffectedTestsByMethods("A", singletonList("a")))).containsExactly("T.t1");
+    assertThat(names(index.getAffectedTestsByFiles(singletonList("res/data.txt")))).containsExactly("T.t1");
+    assertThat(names(index.getAffectedTestsByFiles(singletonList("B.java")))).containsExactly("T.t2");
+    assertThat(index.getAffectedTestsByClasses(singletonList("C"))).isEmpty();
+  }
+
+  @Test
+  public void testChecksums() throws Exception {
+    final TestImpactIndex index = new TestImpactIndexBuilder().addTraceStream(new ByteArrayInputStream(trace())).build();
+    final Map<String, Map<String, byte[]>> current = new HashMap<String, Map<String, byte[]>>();
+    current.put("A", checksums("A", HASH_1, "a", HASH_1, "b", HASH_1));
+    assertThat(index.getAffectedTestsByChecksums(current)).isEmpty();
+
+    current.put("A", checksums("A", HASH_1, "a", HASH_1, "b", HASH_2));
+    assertThat(names(index.getAffectedTestsByChecksums(current))).containsExactly("T.t2");
+
+    current.put("A", checksums("A", HASH_2, "a", HASH_1, "b", HASH_1));
+    assertThat(names(index.getAffectedTestsByChecksums(current))).containsExactly("T.t1", "T.t2");
+  }
+
+  @Test
+  public void testDeletedClass() throws Exception {
+    final TestImpactIndex index = new TestImpactIndexBuilder().addTraceStream(new ByteArrayInputStream(trace())).build();
+    final Map<String, Map<String, byte[]>> current = new HashMap<String, Map<String, byte[]>>();
+    current.put("A", checksums("A", HASH_1, "a", HASH_1, "b", HASH_1));
+    assertThat(index.getAffectedTestsByChecksums(current)).isEmpty();
+    assertThat(index.getAffectedTestsByChecksums(current, Collections.singleton("com.example"))).isEmpty();
+    assertThat(names(index.getAffectedTestsByChecksums(current, Collections.singleton("")))).containsExactly("T.t2");
+  }
+
+  @Test
+  public void testSaveLoad() throws Exception {
+    final TestImpactIndex index = new TestImpactIndexBuilder().addTraceStream(new ByteArrayInputStream(trace())).build();
+    final File file = new File(tmp.getRoot(), "index");
+    index.save(file);
+    final TestImpactIndex loaded = TestImpactIndex.load(file);
+    assertThat(loaded.getClassNames()).isEqualTo(index.getClassNames());
+    assertThat(names(loaded.getAffectedTestsByClasses(singletonList("A")))).containsExactly("T.t1", "T.t2");
+    assertThat(names(loaded.getAffectedTestsByFiles(singletonList("res/data.txt")))).containsExactly("T.t1");
+    assertThat(loaded.getChecksums("A").get("b")).isEqualTo(HASH_1);
+  }
+
+  private static byte[] trace() throws Exception {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    final SingleTrFileDiscoveryProtocolDataListener listener = new SingleTrFileDiscoveryProtocolDataListener(new DataOutputStream(baos), 3);
+    final NameEnumerator enumerator = listener.getNameEnumerator();
+    final int a = enumerator.enumerate("A");
+    final int b = enumerator.enumerate("B");
+
+    final TIntObjectHashMap<boolean[]> classes1 = new TIntObjectHashMap<boolean[]>();
+    final TIntObjectHashMap<int[]> methods1 = new TIntObjectHashMap<int[]>();
+    classes1.put(a, new boolean[]{true, false});
+    methods1.put(a, new int[]{enumerator.enumerate("a"), enumerator.enumerate("b")});
+    final List<int[]> files = singletonList(new int[]{enumerator.enumerate("res"), enumerator.enumerate("data.txt")});
+    listener.testFinished("T", "t1", classes1, methods1, files);
+
+    final TIntObjectHashMap<boolean[]> classes2 = new TIntObjectHashMap<boolean[]>();
+    final TIntObjectHashMap<int[]> methods2 = new TIntObjectHashMap<int[]>();
+    classes2.put(a, new boolean[]{false, true});
+    methods2.put(a, new int[]{enumerator.enumerate("a"), enumerator.enumerate("b")});
+    classes2.put(b, new boolean[]{true});
+    methods2.put(b, new int[]{enumerator.enumerate("x")});
+    listener.testFinished("T", "t2", classes2, methods2, Collections.<int[]>emptyList());
+
+    listener.addClassMetadata(Arrays.asList(
+        new ClassMetadata("A", singletonList("A.java"), checksums("A", HASH_1, "a", HASH_1, "b", HASH_1)),
+        new ClassMetadata("B", singletonList("B.java"), checksums("B", HASH_1, "x", HASH_1))));
+    listener.testsFinished();
+    return baos.toByteArray();
+  }
+
+  private static Map<String, byte[]> checksums(Object... namesAndHashes) {
+    final Map<String, byte[]> result = new HashMap<String, byte[]>();
+    for (int i = 0; i < namesAndHashes.length; i += 2) {
+      result.put((String) namesAndHashes[i], (byte[]) namesAndHashes[i + 1]);
+    }
+    return result;
+  }
+
+  private static String[] names(Iterable<TestImpactIndex.Test> tests) {
+    final List<String> result = new ArrayList<String>();
+    for (TestImpactIndex.Test test : tests) {
+      result.add(test.toString());
+    }
+    return result.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.testDiscovery.instrumentation;
+
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CheckSumCalculatorTest {
+  private static final String CLASS_NAME = "Sample";
+  private static final String METHOD_ID = TestDiscoveryInstrumentationUtils.getMethodId("foo", "()I");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testLineNumbersAreIgnored() {
+    final Map<String, byte[]> checksums = checksums(generateClass(10, 1));
+    final Map<String, byte[]> moved = checksums(generateClass(20, 1));
+    assertThat(checksums.keySet()).containsOnly(CLASS_NAME, METHOD_ID);
+    assertThat(moved.get(CLASS_NAME)).isEqualTo(checksums.get(CLASS_NAME));
+    assertThat(moved.get(METHOD_ID)).isEqualTo(checksums.get(METHOD_ID));
+  }
+
+  @Test
+  public void testMethodBodyChangeIsDetected() {
+    final Map<String, byte[]> checksums = checksums(generateClass(10, 1));
+    final Map<String, byte[]> changed = checksums(generateClass(10, 2));
+    assertThat(changed.get(CLASS_NAME)).isEqualTo(checksums.get(CLASS_NAME));
+    assertThat(changed.get(METHOD_ID)).isNotEqualTo(checksums.get(METHOD_ID));
+  }
+
+  @Test
+  public void testCacheRoundTrip() throws Exception {
+    final byte[] bytes = generateClass(10, 1);
+    final byte[] hash = ChecksumCache.hash(bytes);
+    final Map<String, byte[]> checksums = checksums(bytes);
+    final File file = new File(tmp.getRoot(), "checksums.cache");
+
+    final ChecksumCache cache = new ChecksumCache(file, 10);
+    assertThat(cache.get(hash)).isNull();
+    cache.put(hash, checksums);
+    cache.save();
+
+    final ChecksumCache loaded = new ChecksumCache(file, 10);
+    loaded.load();
+    final Map<String, byte[]> cached = loaded.get(hash);
+    assertThat(cached).isNotNull();
+    assertThat(cached.keySet()).isEqualTo(checksums.keySet());
+    for (Map.Entry<String, byte[]> entry : checksums.entrySet()) {
+      assertThat(cached.get(entry.getKey())).isEqualTo(entry.getValue());
+    }
+    assertThat(loaded.get(ChecksumCache.hash(generateClass(10, 2)))).isNull();
+  }
+
+  private static Map<String, byte[]> checksums(byte[] bytes) {
+    final CheckSumCalculator calculator = new CheckSumCalculator(Opcodes.API_VERSION, CLASS_NAME);
+    new ClassReader(bytes).accept(calculator, 0);
+    return calculator.getChecksums();
+  }
+
+  private static byte[] generateClass(int line, int value) {
+    final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null);
+    cw.visitSource("Sample.java", null);
+    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "foo", "()I", null, null);
+    mv.visitCode();
+    final Label start = new Label();
+    mv.visitLabel(start);
+    mv.visitLineNumber(line, start);
+    mv.visitIntInsn(Opcodes.BIPUSH, value);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+}
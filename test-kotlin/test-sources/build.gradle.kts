@@ -34,5 +34,9 @@ tasks.register<Test>("lineStatusTests") {
     includeTestsMatching("com.intellij.rt.coverage.caseTests.BranchesTest")
     includeTestsMatching("com.intellij.rt.coverage.caseTests.LineSignatureTest")
     includeTestsMatching("com.intellij.rt.coverage.caseTests.OfflineInstrumentationTest")
+    includeTestsMatching("com.intellij.rt.coverage.caseTests.MinimizedProbesTest")
+    includeTestsMatching("com.intellij.rt.coverage.caseTests.MinimizedProbesHitsTest")
+    includeTestsMatching("com.intellij.rt.coverage.caseTests.PreservedFramesTest")
+    includeTestsMatching("com.intellij.rt.coverage.caseTests.LazyInstrumentationTest")
   }
 }
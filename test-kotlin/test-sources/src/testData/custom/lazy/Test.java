@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package testData.custom.lazy;
+
+// classes: Test
+
+public class Test {                   // coverage: NONE
+  static int f(int a) {
+    int b = a + 1;                    // coverage: FULL
+    if (b > 3) {                      // coverage: PARTIAL // branches: 1/2
+      return b * 2;                   // coverage: FULL
+    }
+    return b;                         // coverage: NONE
+  }
+
+  static int unused(int a) {
+    return a * 3;                     // coverage: NONE
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    // the first call is counted by the entry probe only
+    int result = f(1);                // coverage: FULL
+    // the class is upgraded during the sleep, but main is running, so it keeps the entry probe only
+    Thread.sleep(1000);               // coverage: NONE
+    result += f(5);                   // coverage: NONE
+    System.out.println(result);       // coverage: NONE
+  }
+}
@@ -50,27 +50,32 @@ class InstrumentedBytecodeTest {
         val expectedRoot = "bytecode/${testName.replace(".", "/")}"
         assertBytecode("$expectedRoot/original.txt", originalBytes)
 
-        val condyPossible = InstrumentationUtils.getBytecodeVersion(ClassReader(originalBytes)) >= Opcodes.V11
+        val bytecodeVersion = InstrumentationUtils.getBytecodeVersion(ClassReader(originalBytes))
         for (coverage in Coverage.values()) {
             for (hits in listOf(true, false)) {
-                val expectedCoverage = getExpectedCoverage(coverage, condyPossible)
-                val expectedFileName = createExpectedFileName(expectedRoot, expectedCoverage, null, hits)
+                val expectedCoverageName = getExpectedCoverageName(coverage, bytecodeVersion)
+                val expectedFileName = createExpectedFileName(expectedRoot, expectedCoverageName, null, hits)
                 doTest(null, coverage, originalBytes, className, expectedFileName, hits)
             }
         }
         for (testTracking in TestTracking.values()) {
             val coverage = Coverage.BRANCH_FIELD
             val hits = false
-            val expectedCoverage = getExpectedCoverage(coverage, condyPossible)
-            val expectedFileName = createExpectedFileName(expectedRoot, expectedCoverage, testTracking, hits)
+            val expectedCoverageName = getExpectedCoverageName(coverage, bytecodeVersion)
+            val expectedFileName = createExpectedFileName(expectedRoot, expectedCoverageName, testTracking, hits)
             doTest(testTracking, coverage, originalBytes, className, expectedFileName, hits)
         }
     }
 
-    private fun getExpectedCoverage(coverage: Coverage, condyPossible: Boolean): Coverage =
-        if (coverage.isCondyEnabled() && !condyPossible) {
-            if (coverage.isBranchCoverage()) Coverage.BRANCH_FIELD else Coverage.LINE_FIELD
-        } else coverage
+    /**
+     * Condy is used for class files of version 11+, invokedynamic is used instead for versions 7-10.
+     */
+    private fun getExpectedCoverageName(coverage: Coverage, bytecodeVersion: Int): String = when {
+        !coverage.isCondyEnabled() || bytecodeVersion >= Opcodes.V11 -> coverage.getFileName()
+        bytecodeVersion >= Opcodes.V1_7 -> coverage.getFileName().replace("condy", "indy")
+        coverage.isBranchCoverage() -> Coverage.BRANCH_FIELD.getFileName()
+        else -> Coverage.LINE_FIELD.getFileName()
+    }
 
     private fun doTest(
         testTracking: TestTracking?,
@@ -83,6 +88,7 @@ class InstrumentedBytecodeTest {
         mapOf(
             OptionsUtil::FIELD_INSTRUMENTATION_ENABLED to (coverage != Coverage.LINE && coverage != Coverage.BRANCH),
             OptionsUtil::CONDY_ENABLED to coverage.isCondyEnabled(),
+            OptionsUtil::INDY_ENABLED to coverage.isCondyEnabled(),
             OptionsUtil::CALCULATE_HITS_COUNT to calculateHits,
         )
     ) {
@@ -113,22 +119,23 @@ class InstrumentedBytecodeTest {
     }
 }
 
+private fun Coverage.getFileName() = when (this) {
+    Coverage.LINE -> "line"
+    Coverage.LINE_FIELD -> "line_field"
+    Coverage.BRANCH -> "branch"
+    Coverage.BRANCH_FIELD -> "branch_field"
+    Coverage.LINE_CONDY -> "line_condy"
+    Coverage.BRANCH_CONDY -> "branch_condy"
+}
+
 private fun createExpectedFileName(
     expectedRoot: String,
-    coverage: Coverage,
+    coverageName: String,
     testTracking: TestTracking?,
     hits: Boolean,
 ) = buildString {
     append(expectedRoot)
     append("/")
-    val coverageName = when (coverage) {
-        Coverage.LINE -> "line"
-        Coverage.LINE_FIELD -> "line_field"
-        Coverage.BRANCH -> "branch"
-        Coverage.BRANCH_FIELD -> "branch_field"
-        Coverage.LINE_CONDY -> "line_condy"
-        Coverage.BRANCH_CONDY -> "branch_condy"
-    }
     append(coverageName)
     if (hits) append("_with_hits")
     if (testTracking != null) {
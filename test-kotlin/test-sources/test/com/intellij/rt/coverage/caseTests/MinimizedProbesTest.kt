@@ -0,0 +1,112 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.caseTests
+
+import com.intellij.rt.coverage.*
+import com.intellij.rt.coverage.data.LineData
+import com.intellij.rt.coverage.data.ProjectData
+import org.junit.Assert
+import org.junit.Test
+
+private const val MINIMIZE_PROBES_ARG = "-Didea.coverage.minimize.probes=true"
+
+/**
+ * Line hits inferred from branch probes should give the same coverage as the line probes.
+ */
+internal open class MinimizedProbesTest : CoverageTest() {
+    override val coverage get() = Coverage.BRANCH_FIELD
+
+    init {
+        commonExtraArgs.add(MINIMIZE_PROBES_ARG)
+    }
+
+    protected open fun testMinimized(testName: String) = test(testName)
+
+    @Test
+    fun testBasicJavaTryFinallyJava() = testMinimized("basicJava.tryFinally.java")
+
+    @Test
+    fun testCasesElseif() = testMinimized("cases.elseif")
+
+    @Test
+    fun testCasesFallthrough() = testMinimized("cases.fallthrough")
+
+    @Test
+    fun testCasesIfelse() = testMinimized("cases.ifelse")
+
+    @Test
+    fun testCasesJavaIf() = testMinimized("cases.javaIf")
+
+    @Test
+    fun testCasesJavaSwitch() = testMinimized("cases.javaSwitch")
+
+    @Test
+    fun testCasesWhenString() = testMinimized("cases.whenString")
+
+    @Test
+    fun testSimpleBranches() = testMinimized("simple.branches")
+
+    @Test
+    fun testUnloadedSingleFile() = testMinimized("unloaded.singleFile")
+}
+
+/**
+ * With hits calculated, branch counts are also derived from the neighbouring probes.
+ * The inferred counts must be equal to the ones collected with all the probes.
+ */
+internal class MinimizedProbesHitsTest : MinimizedProbesTest() {
+    init {
+        commonExtraArgs.add("-Didea.coverage.calculate.hits=true")
+    }
+
+    override fun testMinimized(testName: String) {
+        lateinit var expected: ProjectData
+        commonExtraArgs.remove(MINIMIZE_PROBES_ARG)
+        try {
+            test(testName) { projectData, _ -> expected = projectData }
+        } finally {
+            commonExtraArgs.add(MINIMIZE_PROBES_ARG)
+        }
+        test(testName) { projectData, config ->
+            verifyResults(projectData, config)
+            assertEqualHits(expected, projectData)
+        }
+    }
+}
+
+private fun assertEqualHits(expected: ProjectData, actual: ProjectData) {
+    Assert.assertEquals(expected.classesCollection.map { it.name }.sorted(), actual.classesCollection.map { it.name }.sorted())
+    for (expectedClass in expected.classesCollection) {
+        val actualClass = actual.getClassData(expectedClass.name)
+        for (expectedLine in expectedClass.lines.filterIsInstance<LineData>()) {
+            val actualLine = actualClass.getLineData(expectedLine.lineNumber)
+            val location = "${expectedClass.name}:${expectedLine.lineNumber}"
+            Assert.assertEquals(location, expectedLine.hits, actualLine.hits)
+            expectedLine.jumps?.forEachIndexed { i, jump ->
+                val actualJump = actualLine.getJumpData(i)
+                Assert.assertEquals("$location jump $i true", jump.trueHits, actualJump.trueHits)
+                Assert.assertEquals("$location jump $i false", jump.falseHits, actualJump.falseHits)
+            }
+            expectedLine.switches?.forEachIndexed { i, switch ->
+                val actualSwitch = actualLine.getSwitchData(i)
+                Assert.assertArrayEquals("$location switch $i", switch.hits, actualSwitch.hits)
+                Assert.assertEquals("$location switch $i default", switch.defaultHits, actualSwitch.defaultHits)
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.intellij.rt.coverage.instrument.OfflineCoverageTransformer
 import com.intellij.rt.coverage.instrument.RawReportLoader
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext
+import com.intellij.rt.coverage.util.OptionsUtil
 import com.intellij.rt.coverage.util.ProcessUtil
 import com.intellij.rt.coverage.util.ResourceUtil
 import org.junit.Test
@@ -39,7 +40,8 @@ internal class OfflineInstrumentationTest(override val coverage: Coverage) : Cov
     companion object {
         @JvmStatic
         @Parameterized.Parameters(name = "{0}")
-        fun data() = arrayOf(Coverage.LINE, Coverage.BRANCH)
+        fun data() = Coverage.valuesWithCondyWhenPossible()
+            .filter { it == Coverage.LINE || it == Coverage.BRANCH || it.isCondyEnabled() }.toTypedArray()
     }
 
     //===GENERATED TESTS===
@@ -126,14 +128,18 @@ internal class OfflineInstrumentationTest(override val coverage: Coverage) : Cov
         }
         UnloadedUtil.appendUnloaded(projectData, projectContext)
 
-        RawReportLoader.load(myDataFile, projectData)
+        RawReportLoader.load(myDataFile, projectData, options.isMinimizeProbes, options.isCalculateHits)
         projectContext.finalizeCoverage(projectData)
 
         assertEqualsLines(projectData, config, coverage)
     }
 
     private fun runOfflineCoverage(test: TestFile, outputRoot: File) {
-        val outputDir = offlineCoverageTransform(coverage.isBranchCoverage(), test, outputRoot)
+        // invokedynamic is used instead of condy for class files of versions 7-10
+        lateinit var outputDir: File
+        runWithOptions(mapOf(OptionsUtil::INDY_ENABLED to coverage.isCondyEnabled())) {
+            outputDir = offlineCoverageTransform(coverage.isBranchCoverage(), test, outputRoot)
+        }
 
         val offlineArtifactPath = ResourceUtil.getAgentPath(pathToFile("..", "..", "dist"),"intellij-coverage-offline")
         val commandLine = arrayOf(
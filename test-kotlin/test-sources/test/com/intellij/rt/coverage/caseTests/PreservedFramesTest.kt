@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.caseTests
+
+import com.intellij.rt.coverage.*
+import org.junit.Test
+
+/**
+ * Classes instrumented with preserved stack map frames should pass verification and give the same coverage.
+ */
+internal class PreservedFramesTest : CoverageTest() {
+    override val coverage get() = Coverage.BRANCH_FIELD
+
+    init {
+        commonExtraArgs.add("-Didea.coverage.preserve.frames=true")
+    }
+
+    @Test
+    fun testBasicJavaAssertion() = test("basicJava.assertion")
+
+    @Test
+    fun testBasicJavaBadCycleClasses() = test("basicJava.badCycle.classes")
+
+    @Test
+    fun testBasicJavaInterfaces() = test("basicJava.interfaces")
+
+    @Test
+    fun testBasicJavaTryFinallyJava() = test("basicJava.tryFinally.java")
+
+    @Test
+    fun testBasicJavaTryWithResourcesJava() = test("basicJava.tryWithResources.java")
+
+    @Test
+    fun testCasesIntMaxSwitch() = test("cases.intMaxSwitch")
+
+    @Test
+    fun testCasesJavaIf() = test("cases.javaIf")
+
+    @Test
+    fun testCasesJavaSwitch() = test("cases.javaSwitch")
+
+    @Test
+    fun testCasesWhenString() = test("cases.whenString")
+
+    @Test
+    fun testSimpleBranches() = test("simple.branches")
+}
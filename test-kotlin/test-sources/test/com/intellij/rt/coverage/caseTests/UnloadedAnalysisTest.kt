@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.caseTests
+
+import com.intellij.rt.coverage.*
+import com.intellij.rt.coverage.data.LineData
+import com.intellij.rt.coverage.data.ProjectData
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions
+import com.intellij.rt.coverage.instrumentation.UnloadedUtil
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext
+import com.intellij.rt.coverage.util.OptionsUtil
+import org.junit.Assert
+import org.junit.Test
+import java.net.URLClassLoader
+import java.util.regex.Pattern
+
+/**
+ * Unloaded classes analysed by several threads must give the same result as the sequential analysis.
+ */
+internal class UnloadedAnalysisTest {
+    @Test
+    fun testParallelAnalysisIsEqualToSequential() {
+        val sequential = analyseUnloaded(1)
+        Assert.assertTrue(sequential.isNotEmpty())
+        repeat(3) {
+            Assert.assertEquals(sequential, analyseUnloaded(8))
+        }
+    }
+
+    private fun analyseUnloaded(threads: Int): String {
+        // annotation filters of outer classes and methods affect the analysis of nested classes
+        val options = InstrumentationOptions.Builder()
+            .setBranchCoverage(true)
+            .setIncludePatterns(listOf(Pattern.compile("$TEST_PACKAGE\\..*")))
+            .setExcludeAnnotations(listOf(Pattern.compile("$TEST_PACKAGE.coverageFeatures.ignoreAnnotation.IgnoreCoverage")))
+            .build()
+        val outputRoots = listOf("kotlin", "java").map { pathToFile("build", "classes", it, "main").toURI().toURL() }
+        val context = ProjectContext(options).apply {
+            classFinder.addClassLoader(URLClassLoader(outputRoots.toTypedArray()))
+        }
+        val projectData = ProjectData()
+        val originalThreads = OptionsUtil.UNLOADED_ANALYSIS_THREADS
+        OptionsUtil.UNLOADED_ANALYSIS_THREADS = threads
+        try {
+            UnloadedUtil.appendUnloaded(projectData, context)
+        } finally {
+            OptionsUtil.UNLOADED_ANALYSIS_THREADS = originalThreads
+        }
+        context.finalizeCoverage(projectData)
+        return projectData.dump()
+    }
+}
+
+private fun ProjectData.dump() = buildString {
+    for (classData in classesCollection.sortedBy { it.name }) {
+        appendLine("${classData.name} ${classData.source}")
+        for (line in classData.lines.filterIsInstance<LineData>()) {
+            append("  ${line.lineNumber} ${line.methodSignature}")
+            line.jumps?.forEach { append(" jump") }
+            line.switches?.forEach { append(" switch ${it.keys.contentToString()}") }
+            appendLine()
+        }
+    }
+}
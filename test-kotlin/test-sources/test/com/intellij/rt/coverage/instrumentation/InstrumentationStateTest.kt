@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation
+
+import com.intellij.rt.coverage.data.LineData
+import com.intellij.rt.coverage.data.ProjectData
+import com.intellij.rt.coverage.instrumentation.data.Key
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * The instrumentation state is reused by the classes of a thread, so it must not carry anything over to the next class.
+ */
+class InstrumentationStateTest {
+    private val options = InstrumentationOptions.Builder().setBranchCoverage(true).build()
+
+    @Test
+    fun testStateIsReusedAndCleared() {
+        inNewThread {
+            val context = ProjectContext(options)
+            val state = InstrumentationState.acquire(context)
+            state.data.put(Key.CLASS_NAME, "a.A")
+            state.release()
+            val reused = InstrumentationState.acquire(context)
+            assertSame(state, reused)
+            assertNull(reused.data.get(Key.CLASS_NAME))
+            reused.release()
+        }
+    }
+
+    @Test
+    fun testClassIsInstrumentedTheSameAfterOtherClasses() {
+        val expected = CLASSES.associateWith { name -> inNewThread { instrument(name) } }
+        for (name in CLASSES) {
+            assertTrue("$name has no lines", expected.getValue(name).isNotEmpty())
+        }
+        val actual = inNewThread {
+            val result = mutableMapOf<String, List<String>>()
+            for (name in CLASSES + CLASSES.reversed()) {
+                val lines = instrument(name)
+                result.putIfAbsent(name, lines)
+                assertEquals("$name is instrumented differently after other classes", result[name], lines)
+            }
+            result
+        }
+        for (name in CLASSES) {
+            assertEquals("$name is instrumented differently after other classes", expected[name], actual[name])
+        }
+    }
+
+    /**
+     * @return lines of the instrumented class with their methods and branches
+     */
+    private fun instrument(className: String): List<String> {
+        val projectData = ProjectData()
+        val transformer = CoverageTransformer(projectData, ProjectContext(options))
+        val bytes = javaClass.classLoader.getResourceAsStream(className.replace('.', '/') + ".class")!!.use { it.readBytes() }
+        transformer.instrument(bytes, className, null, false)
+        val classData = projectData.getClassData(className) ?: return emptyList()
+        return classData.lines.filterIsInstance<LineData>().map { line ->
+            val switches = line.switches?.joinToString { it.keys.contentToString() } ?: ""
+            "${line.lineNumber} ${line.methodSignature} jumps=${line.jumps?.size ?: 0} switches=[$switches]"
+        }
+    }
+
+    private fun <T> inNewThread(action: () -> T): T {
+        var result: T? = null
+        var error: Throwable? = null
+        val thread = Thread {
+            try {
+                result = action()
+            } catch (e: Throwable) {
+                error = e
+            }
+        }
+        thread.start()
+        thread.join()
+        error?.let { throw it }
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+
+    companion object {
+        /**
+         * Java and Kotlin classes, so that the filters of different families are selected in turn,
+         * and value classes, for which the class filter keeps state.
+         */
+        private val CLASSES = listOf(
+            "testData.kotlinFeatures.valueClass.MyValueClass",
+            "testData.cases.whenString.TestKt",
+            "testData.cases.javaSwitch.Test",
+            "testData.kotlinFeatures.valueClass.MyValueClass2",
+            "testData.defaultArgs.simple.X",
+            "testData.kotlinFeatures.lateinit.simple.A",
+            "testData.kotlinFeatures.valueClass.TestKt",
+        )
+    }
+}
@@ -141,9 +141,13 @@ internal fun runWithCoverage(
     mainClass: String = getTestFile(testName).mainClass
 ): ProjectData {
     when (coverage) {
-        Coverage.LINE_FIELD, Coverage.BRANCH_FIELD -> extraArgs.add("-Dcoverage.condy.enable=false")
+        Coverage.LINE_FIELD, Coverage.BRANCH_FIELD -> {
+            extraArgs.add("-Dcoverage.condy.enable=false")
+            extraArgs.add("-Dcoverage.indy.enable=false")
+        }
         Coverage.LINE, Coverage.BRANCH -> extraArgs.add("-Didea.new.tracing.coverage=false")
-        else -> {}
+        // invokedynamic is used instead of condy for class files of versions 7-10
+        Coverage.LINE_CONDY, Coverage.BRANCH_CONDY -> extraArgs.add("-Dcoverage.indy.enable=true")
     }
     if (testTracking == TestTracking.CLASS_DATA) {
         extraArgs.add("-Didea.new.test.tracking.coverage=false")
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation.filters
+
+import com.intellij.rt.coverage.data.ProjectData
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter
+import org.jetbrains.coverage.org.objectweb.asm.Label
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class FilterFamilyTest {
+    @Test
+    fun testJavaClass() {
+        assertEquals(0, FilterFamily.scan(ClassReader(createClass(kotlin = false))))
+    }
+
+    @Test
+    fun testKotlinClass() {
+        assertEquals(FilterFamily.KOTLIN, FilterFamily.scan(ClassReader(createClass(kotlin = true))))
+    }
+
+    @Test
+    fun testComposeClass() {
+        val bytes = createClass(kotlin = true, descriptor = "(Landroidx/compose/runtime/Composer;I)V")
+        assertEquals(FilterFamily.COMPOSE, FilterFamily.scan(ClassReader(bytes)))
+    }
+
+    /**
+     * The function reference filter is a Kotlin class signature filter, it ignores the class only with the Kotlin marker.
+     */
+    @Test
+    fun testClassSignatureFiltersAreSelectedByFamily() {
+        assertNull(instrument(createClass(kotlin = true)))
+        assertNotNull(instrument(createClass(kotlin = false)))
+    }
+
+    private fun instrument(bytes: ByteArray): ByteArray? {
+        val transformer = CoverageTransformer(ProjectData(), ProjectContext(InstrumentationOptions.DEFAULT))
+        return transformer.instrument(bytes, CLASS_NAME.replace('/', '.'), null, false)
+    }
+
+    /**
+     * Creates a synthetic function reference class, which looks like generated by the Kotlin compiler.
+     */
+    private fun createClass(kotlin: Boolean, descriptor: String = "()V"): ByteArray {
+        val cw = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC or Opcodes.ACC_FINAL or Opcodes.ACC_SYNTHETIC, CLASS_NAME, null,
+            "kotlin/jvm/internal/FunctionReference", null)
+        if (kotlin) {
+            cw.visitAnnotation("Lkotlin/Metadata;", true).visitEnd()
+        }
+        val mv = cw.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "invoke", descriptor, null, null)
+        mv.visitCode()
+        val label = Label()
+        mv.visitLabel(label)
+        mv.visitLineNumber(1, label)
+        mv.visitInsn(Opcodes.RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+    companion object {
+        private const val CLASS_NAME = "p/A\$invoke\$1"
+    }
+}
@@ -18,17 +18,20 @@ package com.intellij.rt.coverage.data;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
-import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
-import org.jetbrains.coverage.gnu.trove.TObjectIntProcedure;
+import org.jetbrains.coverage.gnu.trove.TIntObjectIterator;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
 
 public class TestDiscoveryProjectDataTestAccessor {
   public static Collection<ClassMetadata> getClassMetaData() {
-    return TestDiscoveryProjectData.getProjectData().classesToMetadata.values();
+    return TestDiscoveryProjectData.getProjectData().getClassMetadata();
+  }
+
+  public static int getRegisteredClassCount() {
+    return TestDiscoveryProjectData.getProjectData().getRegisteredClassCount();
   }
 
   @NotNull
@@ -36,16 +39,18 @@ public class TestDiscoveryProjectDataTestAccessor {
     TestDiscoveryProjectData projectData = TestDiscoveryProjectData.getProjectData();
     TIntObjectHashMap<String> namesMap = reverse(projectData.getMyNameEnumerator().getNamesMap());
 
-    ConcurrentMap<Integer, int[]> classToMethodNames = projectData.getClassToMethodNames();
+    TIntObjectHashMap<int[]> classToMethodNames = projectData.getClassToMethodNames();
 
     Map<String, String[]> result = new HashMap<String, String[]>();
-    for (Map.Entry<Integer, int[]> entry : classToMethodNames.entrySet()) {
-      int[] methodIds = entry.getValue();
+    TIntObjectIterator<int[]> iterator = classToMethodNames.iterator();
+    while (iterator.hasNext()) {
+      iterator.advance();
+      int[] methodIds = iterator.value();
       String[] methodNames = new String[methodIds.length];
       for (int i = 0; i < methodIds.length; i++) {
         methodNames[i] = namesMap.get(methodIds[i]);
       }
-      result.put(namesMap.get(entry.getKey()), methodNames);
+      result.put(namesMap.get(iterator.key()), methodNames);
     }
     return result;
   }
@@ -55,22 +60,24 @@ public class TestDiscoveryProjectDataTestAccessor {
     TestDiscoveryProjectData projectData = TestDiscoveryProjectData.getProjectData();
     TIntObjectHashMap<String> namesMap = reverse(projectData.getMyNameEnumerator().getNamesMap());
 
-    ConcurrentMap<Integer, boolean[]> classToMethodNames = projectData.getClassToVisitedMethods();
+    TIntObjectHashMap<boolean[]> classToVisitedMethods = projectData.getClassToVisitedMethods();
+    TIntObjectHashMap<int[]> classToMethodNames = projectData.getClassToMethodNames();
     Map<String, boolean[]> result = new HashMap<String, boolean[]>();
-    for (Map.Entry<Integer, boolean[]> entry : classToMethodNames.entrySet()) {
-      result.put(namesMap.get(entry.getKey()), entry.getValue());
+    TIntObjectIterator<boolean[]> iterator = classToVisitedMethods.iterator();
+    while (iterator.hasNext()) {
+      iterator.advance();
+      // strip service elements (registration flag) after the methods
+      int methodCount = classToMethodNames.get(iterator.key()).length;
+      result.put(namesMap.get(iterator.key()), Arrays.copyOf(iterator.value(), methodCount));
     }
     return result;
   }
 
-  private static TIntObjectHashMap<String> reverse(TObjectIntHashMap<String> names) {
+  private static TIntObjectHashMap<String> reverse(Map<String, Integer> names) {
     final TIntObjectHashMap<String> result = new TIntObjectHashMap<String>();
-    names.forEachEntry(new TObjectIntProcedure<String>() {
-      public boolean execute(String s, int i) {
-        result.put(i, s);
-        return true;
-      }
-    });
+    for (Map.Entry<String, Integer> entry : names.entrySet()) {
+      result.put(entry.getValue(), entry.getKey());
+    }
     return result;
   }
 }
@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.testDiscovery;
 import com.intellij.rt.coverage.data.ClassMetadata;
 import com.intellij.rt.coverage.data.NameEnumerator;
 import com.intellij.rt.coverage.data.TestDiscoveryDataListener;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -27,7 +28,7 @@ import java.util.Map;
 public class DeafTestDiscoveryDataListener implements TestDiscoveryDataListener {
   private final List<ClassMetadata> classMetadata = new ArrayList<ClassMetadata>();
 
-  public void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) {
+  public void testFinished(String className, String methodName, TIntObjectHashMap<boolean[]> classToVisitedMethods, TIntObjectHashMap<int[]> classToMethodNames, List<int[]> openedFiles) {
   }
 
   public void testsFinished() {
@@ -142,6 +142,29 @@ public class ExplicitTestDiscoveryInstrumentationTest {
     l2.loadClass("Foo").getDeclaredMethod("baz2").invoke(null);
   }
 
+  @Test
+  public void testRegistrationIsReplacedOnRetransformation() throws Exception {
+    final byte[] fooBytes = generateClassWithSingleStaticMethods("qux1");
+    final ClassLoader loader = new ClassLoader(ClassLoader.getSystemClassLoader()) {{
+      byte[] bytes = doTransform("Foo", fooBytes, this);
+      defineClass("Foo", bytes, 0, bytes.length);
+    }};
+    loader.loadClass("Foo").getDeclaredMethod("qux1").invoke(null);
+    final int registeredClasses = TestDiscoveryProjectDataTestAccessor.getRegisteredClassCount();
+
+    // retransformation of the initialized class, its static initializer is not called again
+    for (int i = 0; i < 3; i++) {
+      doTransform("Foo", fooBytes, loader);
+    }
+    assertEquals(registeredClasses, TestDiscoveryProjectDataTestAccessor.getRegisteredClassCount());
+
+    final byte[] changedFooBytes = generateClassWithSingleStaticMethods("qux1", "qux2");
+    for (int i = 0; i < 3; i++) {
+      doTransform("Foo", changedFooBytes, loader);
+    }
+    assertEquals(registeredClasses, TestDiscoveryProjectDataTestAccessor.getRegisteredClassCount());
+  }
+
   @Nullable
   private byte[] generateClassWithSingleStaticMethods(String... methodNames) {
     ClassWriter cw = new ClassWriter(0);
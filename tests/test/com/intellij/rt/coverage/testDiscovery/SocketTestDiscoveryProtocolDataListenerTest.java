@@ -0,0 +1,74 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.testDiscovery;
+
+import com.intellij.rt.coverage.data.SocketTestDiscoveryProtocolDataListener;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+public class SocketTestDiscoveryProtocolDataListenerTest {
+  private ServerSocket myServerSocket;
+
+  @Before
+  public void setUp() throws Exception {
+    myServerSocket = new ServerSocket();
+    myServerSocket.setReceiveBufferSize(1024);
+    myServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.PORT_PROP, String.valueOf(myServerSocket.getLocalPort()));
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.QUEUE_SIZE_PROP, "1");
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.OVERFLOW_POLICY_PROP, "drop");
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.SHUTDOWN_TIMEOUT_PROP, "500");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    System.clearProperty(SocketTestDiscoveryProtocolDataListener.PORT_PROP);
+    System.clearProperty(SocketTestDiscoveryProtocolDataListener.QUEUE_SIZE_PROP);
+    System.clearProperty(SocketTestDiscoveryProtocolDataListener.OVERFLOW_POLICY_PROP);
+    System.clearProperty(SocketTestDiscoveryProtocolDataListener.SHUTDOWN_TIMEOUT_PROP);
+    myServerSocket.close();
+  }
+
+  @Test(timeout = 20000)
+  public void testShutdownIsNotBlockedByReceiverThatDoesNotRead() throws Exception {
+    final SocketTestDiscoveryProtocolDataListener listener = new SocketTestDiscoveryProtocolDataListener();
+    final Socket receiver = myServerSocket.accept();
+    try {
+      final char[] name = new char[10000];
+      for (int i = 0; i < 1000; i++) {
+        Arrays.fill(name, (char) ('a' + i % 26));
+        listener.testFinished(new String(name) + i, "test", new TIntObjectHashMap<boolean[]>(), new TIntObjectHashMap<int[]>(), new ArrayList<int[]>());
+      }
+      final long start = System.currentTimeMillis();
+      listener.testsFinished();
+      assertTrue(System.currentTimeMillis() - start < 10000);
+    } finally {
+      receiver.close();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class ClassFilterTest extends TestCase {
+  public void testEscapedDots() {
+    assertPrefix("com.acme.", "com\\.acme\\..*");
+    assertPrefix("com.acme.Foo", "com\\.acme\\.Foo");
+  }
+
+  public void testEscapedDollar() {
+    assertPrefix("com.acme.Foo$Bar", "com\\.acme\\.Foo\\$Bar");
+    assertPrefix("com.acme.Foo", "com\\.acme\\.Foo$");
+  }
+
+  public void testQuantifierAfterLiteral() {
+    assertPrefix("com.acm", "com\\.acme?\\..*");
+    assertPrefix("com.acm", "com\\.acme*\\..*");
+    assertPrefix("com.acm", "com\\.acme{0,2}\\..*");
+    assertPrefix("com.acme", "com\\.acme+\\..*");
+  }
+
+  public void testAlternation() {
+    assertPrefix("", "com\\.acme\\..*|org\\.acme\\..*");
+    assertPrefix("", "com\\.(acme|other)\\..*");
+  }
+
+  public void testCaseInsensitive() {
+    assertPrefix("", "(?i)com\\.acme\\..*");
+    assertEquals("", ClassFilter.PatternFilter.getLiteralPrefix(Pattern.compile("com\\.acme\\..*", Pattern.CASE_INSENSITIVE)));
+  }
+
+  public void testLineStart() {
+    assertPrefix("", "^com\\.acme\\..*");
+  }
+
+  public void testUnescapedDot() {
+    assertPrefix("com", "com.acme.*");
+    assertPrefix("", ".*Test");
+  }
+
+  public void testOtherConstructs() {
+    assertPrefix("com.", "com\\.[a-z]+\\..*");
+    assertPrefix("com.", "com\\.\\w+\\..*");
+    assertPrefix("", "\\Qcom.acme\\E.*");
+  }
+
+  public void testShouldScanPackage() {
+    final ClassFilter.PatternFilter filter = createFilter("com\\.acme\\.foo\\..*");
+    assertTrue(filter.shouldScanPackage(""));
+    assertTrue(filter.shouldScanPackage("com."));
+    assertTrue(filter.shouldScanPackage("com.acme."));
+    assertTrue(filter.shouldScanPackage("com.acme.foo."));
+    assertTrue(filter.shouldScanPackage("com.acme.foo.bar."));
+    assertFalse(filter.shouldScanPackage("org."));
+    assertFalse(filter.shouldScanPackage("com.acme.bar."));
+    assertFalse(filter.shouldScanPackage("com.acme.foobar."));
+  }
+
+  public void testShouldScanPackageWithClassPrefix() {
+    final ClassFilter.PatternFilter filter = createFilter("com\\.acme\\.Foo");
+    assertTrue(filter.shouldScanPackage("com.acme."));
+    assertFalse(filter.shouldScanPackage("com.acme.foo."));
+  }
+
+  public void testDefaultPackage() {
+    final ClassFilter.PatternFilter filter = createFilter("Foo.*");
+    assertTrue(filter.shouldScanPackage(""));
+    assertFalse(filter.shouldScanPackage("com."));
+    assertTrue(filter.shouldInclude("FooTest"));
+  }
+
+  public void testEmptyIncludesScanEverything() {
+    final ClassFilter.PatternFilter filter = new ClassFilter.PatternFilter(Collections.<Pattern>emptyList(), Collections.singletonList(Pattern.compile("com\\..*")));
+    assertTrue(filter.shouldScanPackage(""));
+    assertTrue(filter.shouldScanPackage("com."));
+    assertTrue(filter.shouldScanPackage("org."));
+  }
+
+  public void testPackageIsScannedWhenAnyPatternMatches() {
+    final ClassFilter.PatternFilter filter = new ClassFilter.PatternFilter(
+        Arrays.asList(Pattern.compile("com\\.acme\\..*"), Pattern.compile("(?i)org\\.acme\\..*")),
+        Collections.<Pattern>emptyList());
+    assertTrue(filter.shouldScanPackage("com.acme."));
+    assertTrue(filter.shouldScanPackage("net."));
+  }
+
+  private static ClassFilter.PatternFilter createFilter(String pattern) {
+    return new ClassFilter.PatternFilter(Collections.singletonList(Pattern.compile(pattern)), Collections.<Pattern>emptyList());
+  }
+
+  private static void assertPrefix(String expected, String regex) {
+    final Pattern pattern = Pattern.compile(regex);
+    final String prefix = ClassFilter.PatternFilter.getLiteralPrefix(pattern);
+    assertEquals(expected, prefix);
+  }
+}
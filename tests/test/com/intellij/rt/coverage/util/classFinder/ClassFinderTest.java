@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that skipping the packages rejected by {@link ClassFilter.PackageFilter} does not change the found classes.
+ */
+public class ClassFinderTest extends TestCase {
+  private static final String[] CLASSES = {
+      "Foo", "FooTest", "Bar",
+      "com/A", "com/acme/A", "com/acme/A$1", "com/acme/A$Inner",
+      "com/acme/foo/B", "com/acme/foo/bar/C", "com/acme/foobar/D",
+      "com/acmeX/E", "com/other/F", "org/acme/G", "org/acme/foo/H"
+  };
+
+  private File myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    myRoot = File.createTempFile("classFinder", "test");
+    assertTrue(myRoot.delete());
+    assertTrue(myRoot.mkdir());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myRoot);
+  }
+
+  public void testPackagePrefix() throws IOException {
+    checkSameClasses("com\\.acme\\..*");
+  }
+
+  public void testClassName() throws IOException {
+    checkSameClasses("com\\.acme\\.A");
+  }
+
+  public void testQuantifiers() throws IOException {
+    checkSameClasses("com\\.acmeX?\\..*");
+    checkSameClasses("com\\.acme\\.foo.*");
+  }
+
+  public void testDefaultPackage() throws IOException {
+    checkSameClasses("Foo.*");
+  }
+
+  public void testNotPrunablePatterns() throws IOException {
+    checkSameClasses("(?i)COM\\.ACME\\..*");
+    checkSameClasses("com\\.acme\\..*|org\\.acme\\..*");
+    checkSameClasses(".*\\.foo\\..*");
+    checkSameClasses("^org\\.acme\\..*");
+  }
+
+  public void testSeveralPatterns() throws IOException {
+    checkSameClasses("com\\.acme\\.foo\\..*", "org\\.acme\\.G", "Bar");
+  }
+
+  private void checkSameClasses(String... patterns) throws IOException {
+    final List<Pattern> includes = new ArrayList<Pattern>();
+    for (String pattern : patterns) {
+      includes.add(Pattern.compile(pattern));
+    }
+    final ClassFilter.PatternFilter packageFilter = new ClassFilter.PatternFilter(includes, Collections.<Pattern>emptyList());
+    final ClassFilter fullScanFilter = new ClassFilter() {
+      public boolean shouldInclude(String className) {
+        return packageFilter.shouldInclude(className);
+      }
+    };
+
+    final File dir = new File(myRoot, "dir");
+    final File jar = new File(myRoot, "classes.jar");
+    if (!dir.exists()) createClasses(dir, jar);
+
+    for (File entry : new File[]{dir, jar}) {
+      final Set<String> expected = collectClasses(fullScanFilter, entry);
+      final Set<String> actual = collectClasses(packageFilter, entry);
+      assertFalse(expected.isEmpty());
+      assertEquals(Arrays.toString(patterns) + " in " + entry.getName(), expected, actual);
+    }
+  }
+
+  private static Set<String> collectClasses(ClassFilter filter, final File entry) {
+    final Set<String> result = new TreeSet<String>();
+    final ClassFinder finder = new ClassFinder(filter) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Collections.singletonList(new ClassPathEntry(entry.getAbsolutePath()));
+      }
+    };
+    finder.iterateMatchedClasses(new ClassEntry.Consumer() {
+      public void consume(ClassEntry classEntry) {
+        result.add(classEntry.getClassName());
+      }
+    });
+    return result;
+  }
+
+  private static void createClasses(File dir, File jar) throws IOException {
+    final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String name : CLASSES) {
+        final File file = new File(dir, name + ".class");
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        new FileOutputStream(file).close();
+        zip.putNextEntry(new ZipEntry(name + ".class"));
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -126,6 +126,14 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
               hasCoverage[0] = true;
             }
           }
+
+          @Override
+          public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            if ("com/intellij/rt/coverage/util/IndyUtils".equals(bootstrapMethodHandle.getOwner())) {
+              hasCoverage[0] = true;
+            }
+          }
         };
       }
     }, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
@@ -158,7 +166,7 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
   public byte[] instrument(final byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
     final ClassReader cr = new ClassReader(classfileBuffer);
     final ClassWriter cw;
-    if (computeFrames) {
+    if (computeFrames && !isPreservingFrames(cr)) {
       final int version = getClassFileVersion(cr);
       int flags = (version & 0xFFFF) >= Opcodes.V1_6 && version != Opcodes.V1_1 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
       cw = new ClassWriterImpl(flags, loader, classReaders);
@@ -166,13 +174,24 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       cw = new ClassWriterImpl(ClassWriter.COMPUTE_MAXS, loader, classReaders);
     }
 
-    final ClassVisitor cv = createClassVisitor(className, loader, cr, cw);
+    final ClassVisitor cv = createClassVisitor(className, loader, classfileBuffer, cr, cw);
     if (cv == null) return null;
     cr.accept(cv, ClassReader.EXPAND_FRAMES);
     return cw.toByteArray();
   }
 
-  protected abstract ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw);
+  /**
+   * @param classfileBuffer original bytes of the class, which are read by <code>cr</code>
+   */
+  protected abstract ClassVisitor createClassVisitor(String className, ClassLoader loader, byte[] classfileBuffer, ClassReader cr, ClassVisitor cw);
+
+  /**
+   * Returns true if the class visitor keeps the stack map frames of the class valid.
+   * Then the frames are not computed, which requires loading of the classes used in the frames.
+   */
+  protected boolean isPreservingFrames(ClassReader cr) {
+    return false;
+  }
 
   protected abstract boolean shouldExclude(String className);
 
@@ -54,6 +54,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
 
   protected final String myInternalClassName;
   private final boolean myJava8AndAbove;
+  private final boolean myFramesRequired;
   private final boolean myInterface;
   private final boolean myShouldCoverClinit;
   private boolean mySeenClinit = false;
@@ -67,6 +68,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
     myInternalClassName = ClassNameUtil.convertToInternalName(className);
     myInterface = (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
     myJava8AndAbove = (cr.readInt(4) & 0xFFFF) >= Opcodes.V1_8;
+    myFramesRequired = (cr.readInt(4) & 0xFFFF) >= Opcodes.V1_7;
     myShouldCoverClinit = shouldCoverClinit;
   }
 
@@ -83,6 +85,20 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
    */
   public MethodVisitor createMethodVisitor(MethodVisitor mv,
                                            final String name) {
+    return createMethodVisitor(mv, 0, name, null);
+  }
+
+  /**
+   * Create method visitor that ensures field initialization.
+   * When the method descriptor is specified, a stack map frame is added after the initialization check,
+   * so that the frames of the class need not be computed.
+   *
+   * @param mv instrumenting method visitor
+   */
+  public MethodVisitor createMethodVisitor(MethodVisitor mv,
+                                           final int access,
+                                           final String name,
+                                           final String descriptor) {
     if ("<clinit>".equals(name)) {
       if (myInterface && (myJava8AndAbove || myShouldCoverClinit)) {
         mv = new MethodVisitor(Opcodes.API_VERSION, mv) {
@@ -112,6 +128,9 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
         initField(mv);
 
         super.visitLabel(alreadyInitialized);
+        if (descriptor != null && myFramesRequired) {
+          FrameUtil.visitEntryFrame(mv, myInternalClassName, access, name, descriptor);
+        }
         super.visitCode();
       }
     };
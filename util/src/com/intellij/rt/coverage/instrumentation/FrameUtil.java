@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+import org.jetbrains.coverage.org.objectweb.asm.commons.AnalyzerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for instrumentation which inserts stack map frames itself rather than relying on frame computation.
+ */
+public class FrameUtil {
+  /**
+   * Convert types tracked by {@link AnalyzerAdapter} to the types of an expanded frame.
+   * Long and double values occupy two entries in the analyzer, but only one in a frame.
+   *
+   * @param size number of the analyzer entries to convert
+   */
+  public static Object[] toFrameTypes(List<Object> types, int size) {
+    final List<Object> result = new ArrayList<Object>(size);
+    for (int i = 0; i < size; i++) {
+      final Object type = types.get(i);
+      result.add(type);
+      if (type == Opcodes.LONG || type == Opcodes.DOUBLE) i++;
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Visit the frame of a method entry, with the parameters in local variables and an empty stack.
+   */
+  public static void visitEntryFrame(MethodVisitor mv, String owner, int access, String name, String descriptor) {
+    final List<Object> locals = new AnalyzerAdapter(owner, access, name, descriptor, null).locals;
+    final Object[] frameLocals = toFrameTypes(locals, locals.size());
+    mv.visitFrame(Opcodes.F_NEW, frameLocals.length, frameLocals, 0, new Object[0]);
+  }
+}